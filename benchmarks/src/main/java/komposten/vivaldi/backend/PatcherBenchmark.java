@@ -0,0 +1,189 @@
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import komposten.vivaldi.benchmarks.SyntheticFleet;
+
+
+/**
+ * Measures patching a {@link SyntheticFleet} of installations, versions and
+ * instructions, both end-to-end and stage by stage. Each operation covers
+ * every version of the fleet, and the fleet is restored before each
+ * operation, so all operations do the same work.
+ * <ul>
+ * <li><code>applyMods</code>: <code>Patcher.applyMods</code>, including the
+ * patch log, run report and history.</li>
+ * <li><code>backupFiles</code>: Backing up the replaced files and
+ * <code>browser.html</code>.</li>
+ * <li><code>copyFiles</code>: Copying the mod files, after the back-ups have
+ * been made.</li>
+ * <li><code>generateBrowserHtml</code>: Adding the scripts and styles to
+ * <code>browser.html</code>.</li>
+ * </ul>
+ * This class is in the <code>backend</code> package so it can run the
+ * package-private stages of the {@link Patcher}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatcherBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class Fleet
+	{
+		@Param({ "1", "4" })
+		public int installations;
+		@Param({ "2" })
+		public int versions;
+		@Param({ "10", "50" })
+		public int instructions;
+		@Param({ "2", "32" })
+		public int browserHtmlKb;
+
+		SyntheticFleet fleet;
+		Patcher patcher;
+		private PatchLogger logger;
+
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException
+		{
+			fleet = new SyntheticFleet(installations, versions, instructions, browserHtmlKb * 1024);
+
+			File root = fleet.getRoot();
+			logger = new PatchLogger(new File(root, Backend.FILE_PATCHLOG).getPath(), null);
+
+			patcher = new Patcher(Arrays.asList(fleet.getConfig()), logger,
+					new PatchedVersions(new File(root, Backend.FILE_PATCHED)));
+			patcher.setReportFile(new File(root, Backend.FILE_REPORT));
+			patcher.setHistory(new PatchHistory(new File(root, Backend.FILE_HISTORY)));
+		}
+
+
+		/**
+		 * Restores the fleet. The history is kept, so that its cost is
+		 * measured as it grows, like in real use.
+		 */
+		void reset(boolean backedUp) throws IOException
+		{
+			fleet.reset(backedUp);
+		}
+
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException
+		{
+			logger.close();
+			fleet.delete();
+		}
+	}
+
+
+	@State(Scope.Thread)
+	public static class Unpatched
+	{
+		@Setup(Level.Invocation)
+		public void setUp(Fleet fleet) throws IOException
+		{
+			fleet.reset(false);
+		}
+	}
+
+
+	@State(Scope.Thread)
+	public static class BackedUp
+	{
+		@Setup(Level.Invocation)
+		public void setUp(Fleet fleet) throws IOException
+		{
+			fleet.reset(true);
+		}
+	}
+
+
+	@Benchmark
+	public boolean applyMods(Fleet fleet, Unpatched unpatched)
+	{
+		return fleet.patcher.applyMods(true);
+	}
+
+
+	@Benchmark
+	public int backupFiles(Fleet fleet, Unpatched unpatched)
+	{
+		int backedUp = 0;
+
+		for (File versionDir : fleet.fleet.getVersionDirs())
+		{
+			PatchRun run = fleet.patcher.createRun(fleet.fleet.getInstallation(versionDir));
+			List<Instruction> instructions = run.config.getInstructions();
+			backedUp += fleet.patcher.backupFiles(run, instructions, versionDir).size();
+			finish(run);
+		}
+
+		return backedUp;
+	}
+
+
+	@Benchmark
+	public boolean copyFiles(Fleet fleet, BackedUp backedUp)
+	{
+		boolean success = true;
+
+		for (File versionDir : fleet.fleet.getVersionDirs())
+		{
+			PatchRun run = fleet.patcher.createRun(fleet.fleet.getInstallation(versionDir));
+			success &= fleet.patcher.copyFiles(run, run.config.getInstructions(), versionDir);
+			finish(run);
+		}
+
+		return success;
+	}
+
+
+	@Benchmark
+	public boolean generateBrowserHtml(Fleet fleet, BackedUp backedUp)
+	{
+		boolean success = true;
+
+		for (File versionDir : fleet.fleet.getVersionDirs())
+		{
+			PatchRun run = fleet.patcher.createRun(fleet.fleet.getInstallation(versionDir));
+			success &= fleet.patcher.generateBrowserHtmlFile(run, versionDir);
+			finish(run);
+		}
+
+		return success;
+	}
+
+
+	/**
+	 * Hands the run's log entries to the patch logger, as patching does after
+	 * each version.
+	 */
+	private void finish(PatchRun run)
+	{
+		run.flushLog();
+		run.takeErrors();
+	}
+}
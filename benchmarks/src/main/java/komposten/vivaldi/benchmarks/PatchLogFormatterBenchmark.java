@@ -0,0 +1,88 @@
+package komposten.vivaldi.benchmarks;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import komposten.vivaldi.util.PatchLogFormatter;
+
+
+/**
+ * Compares the original patch log formatter with the current one. Run with
+ * <code>-prof gc</code> to see the allocations per record
+ * (<code>gc.alloc.rate.norm</code>).
+ * <ul>
+ * <li><code>legacyFormat</code>: The original formatter.</li>
+ * <li><code>format</code>: The current formatter, returning a string per
+ * record.</li>
+ * <li><code>formatTo</code>: The current formatter appending to a reused
+ * buffer, as the patch logger does when writing a batch.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PatchLogFormatterBenchmark
+{
+	@Param({ "false", "true" })
+	public boolean withThrowable;
+
+	private LegacyPatchLogFormatter legacyFormatter;
+	private PatchLogFormatter formatter;
+	private StringBuilder buffer;
+	private Calendar date;
+	private String message;
+	private Throwable throwable;
+
+
+	@Setup
+	public void setUp()
+	{
+		legacyFormatter = new LegacyPatchLogFormatter();
+		formatter = new PatchLogFormatter();
+		buffer = new StringBuilder(1024);
+		date = Calendar.getInstance();
+		message = "  [OK] C:\\Users\\user\\AppData\\Local\\Vivaldi\\Application\\2.6.1566.49\\resources\\vivaldi\\style\\custom.css";
+
+		if (withThrowable)
+			throwable = new IOException("Could not copy", new IOException("Access is denied"));
+	}
+
+
+	@Benchmark
+	public String legacyFormat()
+	{
+		return legacyFormatter.format(null, date, null, message, throwable, false);
+	}
+
+
+	@Benchmark
+	public String format()
+	{
+		return formatter.format(null, date, null, message, throwable, false);
+	}
+
+
+	@Benchmark
+	public StringBuilder formatTo()
+	{
+		buffer.setLength(0);
+		formatter.formatTo(buffer, null, date, null, message, throwable);
+		return buffer;
+	}
+}
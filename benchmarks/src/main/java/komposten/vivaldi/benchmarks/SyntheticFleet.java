@@ -0,0 +1,206 @@
+package komposten.vivaldi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import komposten.vivaldi.backend.Instruction;
+import komposten.vivaldi.backend.ModConfig;
+
+
+/**
+ * A temporary directory with a mod directory and a number of Vivaldi
+ * installations, for benchmarking the patcher. Everything is generated from a
+ * fixed seed, so the same parameters always give the same files.
+ * <br />
+ * Every third instruction replaces a file that exists in the versions (and so
+ * needs a back-up), while the others add new files. Mod files are between 1
+ * and 32 KB.
+ */
+public class SyntheticFleet
+{
+	private static final long SEED = 20190620;
+	private static final String VIVALDI_PATH = "resources/vivaldi";
+
+	private final File root;
+	private final File modDir;
+	private final List<File> installations;
+	private final List<File> versionDirs;
+	private final List<Instruction> instructions;
+	private final byte[] browserHtml;
+
+
+	/**
+	 * @param installationCount The number of installations.
+	 * @param versionCount The number of versions in each installation.
+	 * @param instructionCount The number of mod files.
+	 * @param browserHtmlSize The approximate size of <code>browser.html</code>,
+	 *          in bytes.
+	 */
+	public SyntheticFleet(int installationCount, int versionCount, int instructionCount,
+			int browserHtmlSize) throws IOException
+	{
+		this.root = Files.createTempDirectory("vivaldimodder-fleet").toFile();
+		this.modDir = new File(root, "mod");
+		this.installations = new ArrayList<>();
+		this.versionDirs = new ArrayList<>();
+		this.instructions = new ArrayList<>();
+		this.browserHtml = createBrowserHtml(browserHtmlSize).getBytes(StandardCharsets.UTF_8);
+
+		Random random = new Random(SEED);
+		for (int i = 0; i < instructionCount; i++)
+		{
+			boolean style = (i % 2 == 0);
+			String name = String.format("mod%d.%s", i, style ? "css" : "js");
+			String target = VIVALDI_PATH + (style ? "/style" : "/scripts");
+
+			writeFile(new File(modDir, name), 1024 + random.nextInt(31 * 1024), random);
+			instructions.add(new Instruction(name, target, false));
+		}
+
+		for (int i = 0; i < installationCount; i++)
+		{
+			File installation = new File(root, "vivaldi-" + i + "/Application");
+			installations.add(installation);
+
+			for (int j = 0; j < versionCount; j++)
+				versionDirs.add(new File(installation, "2." + j + ".1566.49"));
+		}
+
+		reset(false);
+	}
+
+
+	public File getRoot()
+	{
+		return root;
+	}
+
+
+	public ModConfig getConfig()
+	{
+		return new ModConfig(null, modDir, installations.toArray(new File[0]),
+				new ArrayList<>(instructions));
+	}
+
+
+	public List<File> getVersionDirs()
+	{
+		return versionDirs;
+	}
+
+
+	/**
+	 * @return The installation a version directory belongs to.
+	 */
+	public File getInstallation(File versionDir)
+	{
+		return versionDir.getParentFile();
+	}
+
+
+	/**
+	 * Restores all versions to their unpatched state.
+	 *
+	 * @param backedUp If the back-ups should be created, as they are when
+	 *          patching has backed up the files but not copied the mod files
+	 *          yet.
+	 */
+	public void reset(boolean backedUp) throws IOException
+	{
+		for (File versionDir : versionDirs)
+		{
+			File vivaldiDir = new File(versionDir, VIVALDI_PATH);
+			vivaldiDir.mkdirs();
+			writeOriginal(new File(vivaldiDir, "browser.html"), browserHtml, backedUp);
+
+			for (int i = 0; i < instructions.size(); i++)
+			{
+				Instruction instruction = instructions.get(i);
+				File target = new File(new File(versionDir, instruction.targetDirectory),
+						instruction.sourceFile);
+
+				if (i % 3 == 0)
+				{
+					target.getParentFile().mkdirs();
+					byte[] original = ("/* Original " + instruction.sourceFile + " */\n")
+							.getBytes(StandardCharsets.UTF_8);
+					writeOriginal(target, original, backedUp);
+				}
+				else
+				{
+					Files.deleteIfExists(target.toPath());
+				}
+			}
+		}
+	}
+
+
+	public void delete() throws IOException
+	{
+		try (Stream<Path> paths = Files.walk(root.toPath()))
+		{
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(path);
+		}
+	}
+
+
+	private void writeOriginal(File file, byte[] content, boolean backedUp) throws IOException
+	{
+		File backup = new File(file.getPath() + ".bak");
+
+		Files.write(file.toPath(), content);
+		if (backedUp)
+			Files.write(backup.toPath(), content);
+		else
+			Files.deleteIfExists(backup.toPath());
+	}
+
+
+	private void writeFile(File file, int size, Random random) throws IOException
+	{
+		StringBuilder builder = new StringBuilder(size);
+
+		while (builder.length() < size)
+		{
+			builder.append(".rule").append(random.nextInt(100000)).append(" { margin: ")
+					.append(random.nextInt(20)).append("px; }\n");
+		}
+
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), builder.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+
+	/**
+	 * Creates a <code>browser.html</code> like Vivaldi's, padded with more
+	 * scripts and styles to the specified size.
+	 */
+	private static String createBrowserHtml(int size)
+	{
+		StringBuilder head = new StringBuilder();
+		head.append("<!DOCTYPE html>\n<html>\n<head>\n  <meta charset=\"UTF-8\" />\n")
+				.append("  <link rel=\"stylesheet\" href=\"style/common.css\" />\n");
+
+		String body = "<body>\n  <div id=\"app\"></div>\n  <script src=\"bundle.js\"></script>\n"
+				+ "</body>\n</html>\n";
+
+		for (int i = 0; head.length() + body.length() < size; i++)
+		{
+			if (i % 2 == 0)
+				head.append("  <link rel=\"stylesheet\" href=\"style/vendor").append(i).append(".css\" />\n");
+			else
+				head.append("  <script src=\"vendor").append(i).append(".js\"></script>\n");
+		}
+
+		return head.append("</head>\n").append(body).toString();
+	}
+}
@@ -1,11 +1,24 @@
 package komposten.vivaldi;
 
-import komposten.vivaldi.backend.Backend;
+import komposten.vivaldi.cli.CommandLine;
+import komposten.vivaldi.ui.VivaldiModderUI;
 
+/**
+ * Starts the command line interface if the first argument is a command (e.g.
+ * <code>patch</code>), and the user interface otherwise.
+ */
 public class Launcher
 {
 	public static void main(String[] args)
 	{
-		new Backend(null);
+		if (args.length > 0 && CommandLine.isCommand(args[0]))
+		{
+			int exitCode = new CommandLine(System.out, System.err).run(args);
+			System.exit(exitCode);
+		}
+		else
+		{
+			VivaldiModderUI.main(args);
+		}
 	}
 }
@@ -21,35 +21,50 @@ package komposten.vivaldi.backend;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.ClosedWatchServiceException;
-import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-
-import javax.swing.JOptionPane;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import komposten.utilities.data.Settings;
-import komposten.utilities.logging.ExceptionHandler;
 import komposten.utilities.logging.Level;
 import komposten.utilities.logging.LogUtils;
-import komposten.utilities.logging.Logger;
-import komposten.utilities.tools.FileOperations;
 import komposten.vivaldi.backend.Patcher.PatchProgressListener;
-import komposten.vivaldi.util.PatchLogFormatter;
+import komposten.vivaldi.util.DirectoryWatcher;
+import komposten.vivaldi.util.Flow;
+import komposten.vivaldi.util.Metrics;
+import komposten.vivaldi.util.Tracing;
 
 
 public class Backend
 {
+	/**
+	 * Reports errors that the user should be made aware of, e.g. that the
+	 * config could not be loaded.
+	 */
+	public interface ErrorHandler
+	{
+		public void onError(String title, String message);
+	}
+
+
 	private static final String SETTING_APPLY_ON_START = "applyOnStart";
 	private static final String SETTING_WATCH = "watchDirectories";
+	private static final String SETTING_WATCH_MOD_DIR = "watchModDirectory";
+	private static final String SETTING_WATCH_PATCHED = "watchPatchedVersions";
+	private static final String SETTING_FORCE_POLLING = "pollDirectories";
+
+	private static final int MOD_DIR_WATCH_DEPTH = 16;
+	private static final Metrics.Histogram WATCHER_TO_PATCH_SECONDS = Metrics.histogram(
+			"vivaldimodder_watcher_to_patch_seconds",
+			"Time from a file watcher event until the resulting patch starts.");
+	private static final int PATCH_THREADS = Math.max(1,
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
 
 	static final String VERSION_PATTERN = "(\\d+\\.)+\\d+";
 
@@ -57,39 +72,78 @@ public class Backend
 	static final String FILE_CONFIG = "config.ini";
 	static final String FILE_PATCHED = "PATCHED";
 	public static final String FILE_PATCHLOG = "patchlog.txt";
+	public static final String FILE_REPORT = "patchreport.jsonl";
+	public static final String FILE_HISTORY = "patchhistory.tsv";
 	
-	private final String configPath;
+	private final List<String> configPaths;
 
-	private WatchService watchService;
-	private Map<WatchKey, File> keyToDirMap;
+	private volatile DirectoryWatcher directoryWatcher;
+	private volatile ModFileChanges modFileChanges;
 
-	private Logger patchLogger;
+	private PatchLogger patchLogger;
+	private ErrorHandler errorHandler;
 	private Patcher patcher;
-	private ModConfig modConfig;
+	private DriftWatcher driftWatcher;
+	private PatchEventPublisher eventPublisher;
+	private InstallationDiscovery installationDiscovery;
+	private volatile ModConfig modConfig;
+	private volatile List<ModConfig> modConfigs;
 	private Settings appConfig;
 
-	private Thread watcherThread;
-	private WatcherRunnable watcherRunnable;
-	private WorkerThread workerThread;
+	private StripedExecutor patchExecutor;
+	private WorkerThread controlThread;
 
 
 	public Backend(String configPath)
+	{
+		this(configPath, null);
+	}
+
+
+	/**
+	 * @param errorHandler Notified of errors that should be shown to the user,
+	 *          or <code>null</code> to only log them.
+	 */
+	public Backend(String configPath, ErrorHandler errorHandler)
+	{
+		this(Collections.singletonList(configPath != null ? configPath : FILE_CONFIG), errorHandler);
+	}
+
+
+	/**
+	 * Creates a backend that patches with several configs. Installations in
+	 * more than one config are patched once, with the instructions of all of
+	 * those configs. The first config is the {@link #getModConfig() primary
+	 * config}.
+	 * 
+	 * @param errorHandler Notified of errors that should be shown to the user,
+	 *          or <code>null</code> to only log them.
+	 */
+	public Backend(List<String> configPaths, ErrorHandler errorHandler)
 	{
 		if (!LogUtils.hasInitialised())
 			LogUtils.writeToFile("log.txt");
 		
-		this.configPath = (configPath != null ? configPath : FILE_CONFIG);
+		this.configPaths = new ArrayList<>(configPaths);
+		this.errorHandler = errorHandler;
 
-		workerThread = new WorkerThread();
-		workerThread.start();
+		patchExecutor = new StripedExecutor("PatchThread", PATCH_THREADS);
+		controlThread = new WorkerThread("ControlThread");
+		controlThread.start();
+		
+		Metrics.gauge("vivaldimodder_patch_queue_depth", "Patches waiting to start.",
+				patchExecutor::getPendingCount);
+		Metrics.gauge("vivaldimodder_control_queue_depth", "Control operations waiting to run.",
+				controlThread::getQueueDepth);
 
-		patchLogger = new Logger(FILE_PATCHLOG);
-		patchLogger.setFormatter(new PatchLogFormatter());
-		patchLogger.setExceptionHandler(new PatchExceptionHandler()); 
+		patchLogger = new PatchLogger(FILE_PATCHLOG, null);
 		clearLog();
 		loadConfigs();
-		patcher = new Patcher(modConfig, patchLogger);
-
+		patcher = new Patcher(modConfigs, patchLogger);
+		eventPublisher = new PatchEventPublisher();
+		patcher.addEventConsumer(eventPublisher::publish);
+		driftWatcher = new DriftWatcher(patcher, patchExecutor::postRunnable);
+		installationDiscovery = new InstallationDiscovery(this::onInstallationFound);
 	}
 
 
@@ -101,9 +155,11 @@ public class Backend
 		{
 			if (appConfig.getBoolean(SETTING_APPLY_ON_START))
 				applyMods(false, false);
+			
+			installationDiscovery.search(patcher.getVivaldiRoots());
 
-			if (appConfig.getBoolean(SETTING_WATCH, true) && addFileWatchers())
-				startFileWatch();
+			if (appConfig.getBoolean(SETTING_WATCH, true))
+				addFileWatchers();
 		}
 	}
 
@@ -114,68 +170,229 @@ public class Backend
 	}
 
 
+	public PatchProgress getPatchProgress()
+	{
+		return patcher.getProgress();
+	}
+
+
+	public PatchLogger getPatchLogger()
+	{
+		return patchLogger;
+	}
+
+
+	/**
+	 * @return A publisher of all patch events. Subscribers control their own
+	 *         demand; see {@link PatchEventPublisher} for how events are
+	 *         handled when a subscriber falls behind.
+	 */
+	public Flow.Publisher<PatchEvent> getPatchEventPublisher()
+	{
+		return eventPublisher;
+	}
+
+
+	/**
+	 * Subscribes to patch events with a specific backpressure policy.
+	 * 
+	 * @param bufferSize The maximum number of undelivered progress events to
+	 *          keep for the subscriber.
+	 */
+	public void subscribe(Flow.Subscriber<? super PatchEvent> subscriber,
+			PatchEventPublisher.Policy policy, int bufferSize)
+	{
+		eventPublisher.subscribe(subscriber, policy, bufferSize);
+	}
+
+
+	/**
+	 * @return <code>true</code> if a patch is running.
+	 */
+	public boolean isPatching()
+	{
+		return patcher.isPatching();
+	}
+
+
+	/**
+	 * @return All known installations, including those found below the root
+	 *         directories.
+	 */
+	public List<File> getVivaldiDirs()
+	{
+		return patcher.getVivaldiDirs();
+	}
+
+
+	/**
+	 * @return The primary config, i.e. the first config.
+	 */
 	public ModConfig getModConfig()
 	{
 		return modConfig;
 	}
+
+
+	public List<ModConfig> getModConfigs()
+	{
+		return modConfigs;
+	}
 	
 	
+	/**
+	 * Replaces the primary mod config. Patches posted after this call use the
+	 * new config, while a patch that is already running finishes with the old
+	 * one.
+	 */
 	public void setModConfig(ModConfig newConfig)
 	{
-		workerThread.postRunnable(() ->
+		List<ModConfig> newConfigs = new ArrayList<>(modConfigs);
+		newConfigs.set(0, newConfig);
+		setModConfigs(newConfigs);
+	}
+
+
+	private void setModConfigs(List<ModConfig> newConfigs)
+	{
+		this.modConfig = newConfigs.get(0);
+		this.modConfigs = Collections.unmodifiableList(newConfigs);
+		patcher.setModConfigs(newConfigs);
+		
+		controlThread.postRunnable(() ->
 		{
 			boolean watchDirs = appConfig.getBoolean(SETTING_WATCH);
 			if (watchDirs)
+			{
 				removeFileWatchers();
-			
-			this.modConfig = newConfig;
-			patcher.setModConfig(modConfig);
-			
-			if (watchDirs)
 				addFileWatchers();
+			}
 		});
 	}
 	
 	
 	public void saveModConfig()
 	{
-		workerThread.postRunnable(() -> modConfig.save());
+		controlThread.postRunnable(() -> modConfig.save());
+	}
+
+
+	/**
+	 * Reloads the mod configs from their files. The new configs are only used
+	 * if all of them are valid.
+	 * 
+	 * @return The errors in the reloaded configs, or an empty list if they are
+	 *         valid and have been applied.
+	 */
+	public List<String> reloadModConfig()
+	{
+		List<ModConfig> newConfigs = new ArrayList<>();
+		List<String> errors = new ArrayList<>();
+		
+		for (String configPath : configPaths)
+		{
+			try
+			{
+				newConfigs.add(new ModConfig(new File(configPath)));
+			}
+			catch (IOException e)
+			{
+				String msg = String.format("The config file (%s) could not be read: %s", configPath,
+						e.getMessage());
+				LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
+				errors.add(msg);
+			}
+		}
+		
+		if (errors.isEmpty())
+			errors.addAll(validate(newConfigs));
+		
+		if (errors.isEmpty())
+		{
+			setModConfigs(newConfigs);
+			installationDiscovery.search(patcher.getVivaldiRoots());
+		}
+		
+		return errors;
 	}
 
 
+	/**
+	 * Loads the app settings and the mod configs. If the primary config cannot
+	 * be loaded an empty config is used instead, while other configs that
+	 * cannot be loaded are skipped.
+	 */
 	private void loadConfigs()
 	{
 		appConfig = new Settings(FILE_SETTINGS);
+		
+		List<ModConfig> configs = new ArrayList<>();
 
-		try
+		for (int i = 0; i < configPaths.size(); i++)
 		{
-			modConfig = new ModConfig(new File(configPath));
-		}
-		catch (FileNotFoundException e)
-		{
-			//FIXME Don't show UI messages in the backend!
-			String title = "Could not load the config!";
-			String msg = String.format("The config file (%s) could not be found!"
-					+ "%nStarting with an empty config.", configPath);
-			JOptionPane.showMessageDialog(null, msg, title, JOptionPane.ERROR_MESSAGE);
-			LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
-
-			modConfig = new ModConfig(new File(configPath), null, null, null);
+			String configPath = configPaths.get(i);
+			boolean primary = (i == 0);
+			String fallback = (primary ? "Starting with an empty config." : "Skipping it.");
+			
+			try
+			{
+				configs.add(new ModConfig(new File(configPath)));
+			}
+			catch (FileNotFoundException e)
+			{
+				String title = "Could not load the config!";
+				String msg = String.format("The config file (%s) could not be found!"
+						+ "%n%s", configPath, fallback);
+				reportError(title, msg);
+				LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
+				
+				if (primary)
+					configs.add(new ModConfig(new File(configPath), null, null, null));
+			}
+			catch (IOException e)
+			{
+				String title = "Could not load the config!";
+				String msg = String.format("The config file (%s) could not be read:"
+						+ "%n%s%n%s", configPath, e.getMessage(), fallback);
+				reportError(title, msg);
+				LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
+				
+				if (primary)
+					configs.add(new ModConfig(new File(configPath), null, null, null));
+			}
 		}
-		catch (IOException e)
+		
+		modConfig = configs.get(0);
+		modConfigs = Collections.unmodifiableList(configs);
+	}
+
+
+	/**
+	 * @return The errors in the configs. Errors are prefixed with the config
+	 *         file if there are several configs.
+	 */
+	private List<String> validate(List<ModConfig> configs)
+	{
+		List<String> errors = new ArrayList<>();
+		
+		for (ModConfig config : configs)
 		{
-			String title = "Could not load the config!";
-			String msg = String.format("The config file (%s) could not be read:"
-					+ "%n%s", configPath, e.getMessage());
-			JOptionPane.showMessageDialog(null, msg, title, JOptionPane.ERROR_MESSAGE);
-			LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
+			for (String error : config.validate())
+			{
+				if (configs.size() > 1)
+					errors.add(String.format("%s: %s", config.getConfigFile(), error));
+				else
+					errors.add(error);
+			}
 		}
+		
+		return errors;
 	}
 
 
 	private boolean validateModConfig()
 	{
-		List<String> errors = modConfig.validate();
+		List<String> errors = validate(modConfigs);
 
 		if (!errors.isEmpty())
 		{
@@ -186,37 +403,87 @@ public class Backend
 				builder.append("\n" + error);
 
 			LogUtils.log(Level.ERROR, builder.toString());
-
-			//FIXME Don't show UI messages in the backend!
-			JOptionPane.showMessageDialog(null, builder.toString(), "Invalid config!",
-					JOptionPane.ERROR_MESSAGE);
+			reportError("Invalid config!", builder.toString());
 		}
 
 		return errors.isEmpty();
 	}
 
 
-	public void applyMods(boolean clearLog, boolean patchAll)
+	private void reportError(String title, String message)
+	{
+		if (errorHandler != null)
+			errorHandler.onError(title, message);
+	}
+
+
+	/**
+	 * Patches all installations. Each installation is patched on its own
+	 * stripe, so installations are patched concurrently. The installations are
+	 * patched in a single {@link Patcher#startBatch(List) batch}, so listeners see
+	 * them as one patch even if the stripes run one after the other.
+	 * 
+	 * @return A future that completes when all installations have been
+	 *         patched, with <code>true</code> if all versions were patched
+	 *         successfully.
+	 */
+	public CompletableFuture<Boolean> applyMods(boolean clearLog, boolean patchAll)
 	{
 		if (clearLog)
 			clearLog();
 
-		workerThread.postRunnable(() -> patcher.applyMods(patchAll));
+		List<File> vivaldiDirs = patcher.getVivaldiDirs();
+		patcher.startBatch(vivaldiDirs);
+		List<CompletableFuture<Boolean>> results = new ArrayList<>();
+		for (File vivaldiDir : vivaldiDirs)
+			results.add(applyMods(vivaldiDir, patchAll));
+		
+		return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()]))
+				.whenComplete((v, e) -> patcher.finishBatch())
+				.thenApply(v -> results.stream().allMatch(CompletableFuture::join));
 	}
 
 
-	private void applyMods(File vivaldiDir, boolean patchAll)
+	private CompletableFuture<Boolean> applyMods(File vivaldiDir, boolean patchAll)
 	{
-		workerThread.postRunnable(() -> patcher.applyMods(vivaldiDir, patchAll));
+		return postWork(vivaldiDir, new ApplyModsWork(vivaldiDir, patchAll, null));
 	}
 
 
-	private void clearLog()
+	private CompletableFuture<Boolean> postWork(File vivaldiDir, ApplyModsWork work)
+	{
+		patchExecutor.postWork(vivaldiDir, work);
+		return work.result;
+	}
+
+
+	/**
+	 * Cancels the running patch and all patches that have not started yet. The
+	 * version that is being patched is finished first.
+	 * 
+	 * @return <code>false</code> if there was nothing to cancel.
+	 */
+	public boolean cancelPatch()
 	{
-		File logFile = new File(FILE_PATCHLOG);
+		List<WorkQueue.Work> removed = patchExecutor.clear();
+		
+		for (WorkQueue.Work work : removed)
+		{
+			if (work instanceof ApplyModsWork)
+				((ApplyModsWork) work).result.complete(false);
+		}
+		
+		boolean cancelled = patcher.cancel();
+		return cancelled || !removed.isEmpty();
+	}
+
 
-		if (logFile.exists())
-			FileOperations.deleteFileOrFolder(logFile);
+	/**
+	 * Starts a new patch log. The previous logs are kept as older generations.
+	 */
+	private void clearLog()
+	{
+		patchLogger.rotate();
 	}
 
 
@@ -224,21 +491,37 @@ public class Backend
 	{
 		try
 		{
-			watchService = FileSystems.getDefault().newWatchService();
-			keyToDirMap = new HashMap<>();
+			directoryWatcher = new DirectoryWatcher("FileWatcherThread");
+			directoryWatcher.setForcePolling(appConfig.getBoolean(SETTING_FORCE_POLLING, false));
 
-			for (File dir : modConfig.getVivaldiDirs())
+			for (File dir : patcher.getVivaldiDirs())
 			{
-				WatchKey key = dir.toPath().register(watchService,
-						StandardWatchEventKinds.ENTRY_CREATE);
-				keyToDirMap.put(key, dir);
+				directoryWatcher.watch(dir, 0, (kind, file) -> onVivaldiDirChanged(kind, file, dir));
+			}
+			
+			installationDiscovery.watch(directoryWatcher, patcher.getVivaldiRoots());
+
+			if (appConfig.getBoolean(SETTING_WATCH_MOD_DIR, false))
+			{
+				modFileChanges = new ModFileChanges(modConfigs);
+				
+				Set<Path> modDirs = new LinkedHashSet<>();
+				for (ModConfig config : modConfigs)
+					modDirs.add(config.getModDir().getAbsoluteFile().toPath().normalize());
+				
+				for (Path modDir : modDirs)
+					directoryWatcher.watch(modDir.toFile(), MOD_DIR_WATCH_DEPTH, this::onModDirChanged);
 			}
+
+			directoryWatcher.start();
+			watchPatchedVersions();
 		}
 		catch (IOException e)
 		{
 			String msg = "Failed to setup the Watch Service!";
 			LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
 
+			removeFileWatchers();
 			return false;
 		}
 
@@ -246,33 +529,108 @@ public class Backend
 	}
 
 
+	/**
+	 * Starts watching the deployed files in all patched versions, if enabled.
+	 * Called after each patch so newly patched versions are included, and when
+	 * a version is deleted so it is no longer watched.
+	 */
+	private void watchPatchedVersions()
+	{
+		DirectoryWatcher watcher = directoryWatcher;
+		
+		if (watcher != null && appConfig.getBoolean(SETTING_WATCH_PATCHED, false))
+			driftWatcher.watchPatchedVersions(watcher);
+	}
+
+
 	private void removeFileWatchers()
 	{
-		if (watchService != null)
+		if (directoryWatcher != null)
 		{
-			try
-			{
-				watchService.close();
-			}
-			catch (IOException e)
-			{
-				watcherThread.interrupt();
-			}
-	
-			for (WatchKey key : keyToDirMap.keySet())
+			directoryWatcher.close();
+			directoryWatcher = null;
+		}
+		
+		driftWatcher.clear();
+	}
+
+
+	private void onVivaldiDirChanged(WatchEvent.Kind<?> kind, File file, File vivaldiDir)
+	{
+		if (kind == StandardWatchEventKinds.ENTRY_CREATE && file.getName().matches(VERSION_PATTERN))
+		{
+			Tracing.instant(Tracing.SpanType.WATCHER_TRIGGER, file);
+			postWork(vivaldiDir, new ApplyModsWork(vivaldiDir, false, System.nanoTime()));
+		}
+		else if (kind == StandardWatchEventKinds.ENTRY_DELETE && file.getName().matches(VERSION_PATTERN))
+		{
+			controlThread.postRunnable(this::watchPatchedVersions);
+		}
+	}
+
+
+	private void onInstallationFound(File vivaldiDir)
+	{
+		if (patcher.addVivaldiDir(vivaldiDir))
+		{
+			DirectoryWatcher watcher = directoryWatcher;
+			
+			if (watcher != null)
 			{
-				key.cancel();
+				try
+				{
+					watcher.watch(vivaldiDir, 0,
+							(kind, file) -> onVivaldiDirChanged(kind, file, vivaldiDir));
+				}
+				catch (IOException e)
+				{
+					String msg = String.format("Could not watch the new installation %s!", vivaldiDir);
+					LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
+				}
 			}
+			
+			applyMods(vivaldiDir, false);
+		}
+	}
+
+
+	private void onModDirChanged(WatchEvent.Kind<?> kind, File file)
+	{
+		if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+			return;
+
+		if (modFileChanges.add(file))
+		{
+			Tracing.instant(Tracing.SpanType.WATCHER_TRIGGER, file);
+			controlThread.postRunnable(this::applyChangedModFiles);
 		}
 	}
 
 
-	private void startFileWatch()
+	/**
+	 * Posts work to copy all mod files that have changed since the last call to
+	 * each installation. Several change events are usually posted for a single
+	 * save, so calls made after the changes have already been posted do
+	 * nothing.
+	 */
+	private void applyChangedModFiles()
 	{
-		watcherRunnable = new WatcherRunnable();
-		watcherThread = new Thread(watcherRunnable, "FileWatcherThread");
+		ModFileChanges changes = modFileChanges;
+		List<Instruction> instructions;
+		long changedSince;
+
+		synchronized (changes)
+		{
+			if (changes.isEmpty())
+				return;
 
-		watcherThread.start();
+			changedSince = changes.getChangedSince();
+			instructions = changes.take();
+		}
+
+		for (File vivaldiDir : patcher.getVivaldiDirs())
+			patchExecutor.postWork(vivaldiDir,
+					new ApplyModFilesWork(vivaldiDir, instructions, changedSince));
 	}
 
 
@@ -302,106 +660,106 @@ public class Backend
 	}
 
 
-	private class WatcherRunnable implements Runnable
+	/**
+	 * Patches an installation. Work that is absorbed by this work completes
+	 * with its result.
+	 */
+	private class ApplyModsWork extends WorkQueue.PatchWork
 	{
-		boolean running = true;
+		private final CompletableFuture<Boolean> result;
+		private final Long watcherEventTime;
 
 
-		@Override
-		public void run()
+		/**
+		 * @param watcherEventTime The {@link System#nanoTime() time} of the file
+		 *          watcher event that caused this patch, or <code>null</code>.
+		 */
+		public ApplyModsWork(File vivaldiDir, boolean patchAll, Long watcherEventTime)
 		{
-			while (running)
-			{
-				WatchKey key;
-				try
-				{
-					key = watchService.take();
-				}
-				catch (InterruptedException | ClosedWatchServiceException e)
-				{
-					Thread.currentThread().interrupt();
-					break;
-				}
+			super(vivaldiDir, patchAll);
+			this.result = new CompletableFuture<>();
+			this.watcherEventTime = watcherEventTime;
+		}
 
-				for (WatchEvent<?> event : key.pollEvents())
-				{
-					WatchEvent.Kind<?> kind = event.kind();
 
-					if (kind == StandardWatchEventKinds.OVERFLOW)
-						continue;
+		@Override
+		boolean absorb(WorkQueue.Work newer)
+		{
+			if (!super.absorb(newer))
+				return false;
+			
+			if (newer instanceof ApplyModsWork)
+				result.thenAccept(((ApplyModsWork) newer).result::complete);
+			
+			return true;
+		}
 
-					@SuppressWarnings("unchecked")
-					WatchEvent<Path> pathEvent = (WatchEvent<Path>) event;
-					File file = pathEvent.context().toFile();
 
-					if (file.getName().matches(VERSION_PATTERN))
-					{
-						applyMods(keyToDirMap.get(key), false);
-					}
-				}
+		@Override
+		public void run()
+		{
+			boolean success = false;
+			
+			if (watcherEventTime != null)
+				WATCHER_TO_PATCH_SECONDS.observeSince(watcherEventTime);
+			
+			try
+			{
+				success = patcher.applyMods(vivaldiDir, patchAll);
 			}
+			finally
+			{
+				result.complete(success);
+			}
+			
+			controlThread.postRunnable(Backend.this::watchPatchedVersions);
 		}
 	}
 
 
-	private class WorkerThread extends Thread
+	/**
+	 * Copies changed mod files to an installation. Pending work absorbs work
+	 * posted after it, so changes saved in quick succession are copied
+	 * together.
+	 */
+	private class ApplyModFilesWork extends WorkQueue.Work
 	{
-		private BlockingQueue<Runnable> runnables;
-
-
-		public WorkerThread()
-		{
-			super("PatchThread");
-
-			this.runnables = new LinkedBlockingQueue<>();
-		}
+		private final File vivaldiDir;
+		private final Set<Instruction> instructions;
+		private final long watcherEventTime;
 
 
-		void postRunnable(Runnable runnable)
+		/**
+		 * @param watcherEventTime The {@link System#nanoTime() time} of the first
+		 *          mod directory event that caused this work.
+		 */
+		public ApplyModFilesWork(File vivaldiDir, List<Instruction> instructions,
+				long watcherEventTime)
 		{
-			runnables.add(runnable);
+			this.vivaldiDir = vivaldiDir;
+			this.instructions = new LinkedHashSet<>(instructions);
+			this.watcherEventTime = watcherEventTime;
 		}
 
 
 		@Override
-		public void run()
+		boolean absorb(WorkQueue.Work newer)
 		{
-			while (true)
+			if (newer instanceof ApplyModFilesWork)
 			{
-				try
-				{
-					runnables.take().run();
-				}
-				catch (InterruptedException e)
-				{
-					Thread.currentThread().interrupt();
-					break;
-				}
+				instructions.addAll(((ApplyModFilesWork) newer).instructions);
+				return true;
 			}
+
+			return false;
 		}
-	}
-	
-	
-	private class PatchExceptionHandler extends ExceptionHandler
-	{
-		private String previousException;
-		private long previousTime;
-		
+
+
 		@Override
-		public void handleException(String msg, Throwable throwable)
+		public void run()
 		{
-			//Checking message and time to prevent spam of the same message multiple times
-			//in a short interval, which happens when the patch logger can't write to
-			//patchlog.txt but is called to several times write anyway.
-			if (LogUtils.hasInitialised() && 
-					(!throwable.getMessage().equals(previousException) ||
-					(System.nanoTime() - previousTime) > 5E9))
-			{
-				previousException = throwable.getMessage();
-				previousTime = System.nanoTime();
-				
-				LogUtils.log(Level.ERROR, "", msg, throwable, true);
-			}
+			WATCHER_TO_PATCH_SECONDS.observeSince(watcherEventTime);
+			patcher.applyModFiles(vivaldiDir, instructions);
 		}
 	}
 }
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import komposten.utilities.data.ObjectPair;
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+import komposten.vivaldi.util.DirectoryWatcher;
+import komposten.vivaldi.util.DirectoryWatcher.WatchListener;
+import komposten.vivaldi.util.Tracing;
+
+
+/**
+ * Watches the deployed files in patched version directories and re-applies
+ * the affected instructions if the files are modified or deleted by
+ * something else (e.g. Vivaldi's updater).
+ * <br />
+ * Checks are delayed slightly so that a burst of events results in a single
+ * check, and each version is re-applied at most once every
+ * {@link #REAPPLY_INTERVAL} milliseconds. Versions that are deleted are
+ * forgotten the next time {@link #watchPatchedVersions(DirectoryWatcher)} is
+ * called or a check finds them missing.
+ */
+class DriftWatcher
+{
+	private static final long SETTLE_DELAY = 1000;
+	private static final long REAPPLY_INTERVAL = 10000;
+
+	private final Patcher patcher;
+	private final BiConsumer<File, Runnable> patchExecutor;
+	private final ScheduledExecutorService scheduler;
+	private final long settleDelay;
+	private final long reapplyInterval;
+	private final Map<File, Long> lastReapplied;
+	private final Map<File, Set<Instruction>> pendingChecks;
+	private final Map<File, VersionWatch> watchedVersions;
+	private DirectoryWatcher watcher;
+
+
+	/**
+	 * @param patcher The patcher used to check and re-apply instructions.
+	 * @param patchExecutor Executes re-apply tasks for an installation (the
+	 *          first argument) where patches on it are normally run.
+	 */
+	public DriftWatcher(Patcher patcher, BiConsumer<File, Runnable> patchExecutor)
+	{
+		this(patcher, patchExecutor, SETTLE_DELAY, REAPPLY_INTERVAL);
+	}
+
+
+	DriftWatcher(Patcher patcher, BiConsumer<File, Runnable> patchExecutor, long settleDelay,
+			long reapplyInterval)
+	{
+		this.patcher = patcher;
+		this.patchExecutor = patchExecutor;
+		this.settleDelay = settleDelay;
+		this.reapplyInterval = reapplyInterval;
+		this.lastReapplied = new ConcurrentHashMap<>();
+		this.pendingChecks = new HashMap<>();
+		this.watchedVersions = new HashMap<>();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "DriftWatcherThread");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+
+	/**
+	 * Registers watches on the target directories of all instructions (and the
+	 * directory containing <code>browser.html</code>) in every version that has
+	 * been patched previously, using the config of each installation.
+	 * <br />
+	 * Versions that are already watched are left as they are, and versions
+	 * that no longer exist (or are no longer patched) are unwatched.
+	 */
+	public synchronized void watchPatchedVersions(DirectoryWatcher watcher)
+	{
+		if (watcher != this.watcher)
+		{
+			watchedVersions.clear();
+			this.watcher = watcher;
+		}
+
+		Map<File, File> patchedVersions = new HashMap<>();
+		for (ObjectPair<File, File> pair : patcher.listPatchedVersionDirs())
+			patchedVersions.put(pair.getFirst(), pair.getSecond());
+
+		Iterator<Entry<File, VersionWatch>> iterator = watchedVersions.entrySet().iterator();
+		while (iterator.hasNext())
+		{
+			Entry<File, VersionWatch> entry = iterator.next();
+
+			if (!patchedVersions.containsKey(entry.getKey()))
+			{
+				for (File directory : entry.getValue().directories)
+					watcher.unwatch(directory, entry.getValue().listener);
+
+				iterator.remove();
+				forget(entry.getKey());
+			}
+		}
+
+		for (Entry<File, File> entry : patchedVersions.entrySet())
+		{
+			if (!watchedVersions.containsKey(entry.getKey()))
+				watchVersion(watcher, entry.getKey(), entry.getValue());
+		}
+	}
+
+
+	private void watchVersion(DirectoryWatcher watcher, File versionDir, File vivaldiDir)
+	{
+		Map<Path, List<Instruction>> targets = mapTargetsToInstructions(versionDir,
+				patcher.getModConfig(vivaldiDir));
+		Path browserHtml = new File(versionDir, "resources/vivaldi/browser.html")
+				.getAbsoluteFile().toPath().normalize();
+
+		Set<File> directories = new LinkedHashSet<>();
+		directories.add(browserHtml.getParent().toFile());
+		for (Path target : targets.keySet())
+			directories.add(target.getParent().toFile());
+
+		VersionWatch versionWatch = new VersionWatch((kind, file) ->
+		{
+			Path path = file.toPath();
+			if (path.equals(browserHtml))
+				onDrift(vivaldiDir, versionDir, null);
+			else if (targets.containsKey(path))
+				targets.get(path).forEach(instruction -> onDrift(vivaldiDir, versionDir, instruction));
+		});
+
+		for (File directory : directories)
+		{
+			if (!directory.isDirectory())
+				continue;
+
+			try
+			{
+				watcher.watch(directory, 0, versionWatch.listener);
+				versionWatch.directories.add(directory);
+			}
+			catch (IOException e)
+			{
+				String msg = String.format("Could not watch %s for modifications!", directory);
+				LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
+			}
+		}
+
+		watchedVersions.put(versionDir, versionWatch);
+	}
+
+
+	private Map<Path, List<Instruction>> mapTargetsToInstructions(File versionDir,
+			ModConfig modConfig)
+	{
+		Map<Path, List<Instruction>> map = new HashMap<>();
+
+		for (Instruction instruction : modConfig.getInstructions())
+		{
+			Path target = patcher.getTargetFile(instruction, versionDir)
+					.getAbsoluteFile().toPath().normalize();
+			map.computeIfAbsent(target, k -> new ArrayList<>()).add(instruction);
+		}
+
+		return map;
+	}
+
+
+	/**
+	 * @param instruction The instruction whose target changed, or
+	 *          <code>null</code> if <code>browser.html</code> changed.
+	 */
+	private void onDrift(File vivaldiDir, File versionDir, Instruction instruction)
+	{
+		Tracing.instant(Tracing.SpanType.WATCHER_TRIGGER, versionDir);
+		
+		synchronized (pendingChecks)
+		{
+			Set<Instruction> pending = pendingChecks.get(versionDir);
+
+			if (pending == null)
+			{
+				pending = new LinkedHashSet<>();
+				pendingChecks.put(versionDir, pending);
+				scheduleCheck(vivaldiDir, versionDir, settleDelay);
+			}
+
+			pending.add(instruction);
+		}
+	}
+
+
+	private void scheduleCheck(File vivaldiDir, File versionDir, long delay)
+	{
+		scheduler.schedule(() -> check(vivaldiDir, versionDir), delay, TimeUnit.MILLISECONDS);
+	}
+
+
+	private void check(File vivaldiDir, File versionDir)
+	{
+		if (!versionDir.isDirectory())
+		{
+			forget(versionDir);
+			return;
+		}
+
+		long sinceLast = System.currentTimeMillis() - lastReapplied.getOrDefault(versionDir, 0L);
+
+		if (sinceLast < reapplyInterval)
+		{
+			scheduleCheck(vivaldiDir, versionDir, reapplyInterval - sinceLast);
+			return;
+		}
+
+		Set<Instruction> changed;
+		synchronized (pendingChecks)
+		{
+			changed = pendingChecks.remove(versionDir);
+		}
+
+		if (changed == null)
+			return;
+
+		List<Instruction> drifted = new ArrayList<>();
+		boolean browserHtml = false;
+
+		for (Instruction instruction : changed)
+		{
+			if (instruction == null)
+				browserHtml = !patcher.isBrowserHtmlUpToDate(vivaldiDir, versionDir);
+			else if (!patcher.isTargetUpToDate(vivaldiDir, instruction, versionDir))
+				drifted.add(instruction);
+		}
+
+		if (!drifted.isEmpty() || browserHtml)
+		{
+			boolean updateBrowserHtml = browserHtml;
+			lastReapplied.put(versionDir, System.currentTimeMillis());
+			patchExecutor.accept(vivaldiDir,
+					() -> patcher.reapplyDrifted(vivaldiDir, versionDir, drifted, updateBrowserHtml));
+		}
+	}
+
+
+	private void forget(File versionDir)
+	{
+		synchronized (pendingChecks)
+		{
+			pendingChecks.remove(versionDir);
+		}
+
+		lastReapplied.remove(versionDir);
+	}
+
+
+	public synchronized void clear()
+	{
+		synchronized (pendingChecks)
+		{
+			pendingChecks.clear();
+		}
+
+		lastReapplied.clear();
+		watchedVersions.clear();
+		watcher = null;
+	}
+
+
+	private static class VersionWatch
+	{
+		private final WatchListener listener;
+		private final List<File> directories;
+
+
+		public VersionWatch(WatchListener listener)
+		{
+			this.listener = listener;
+			this.directories = new ArrayList<>();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import komposten.utilities.logging.Level;
+import komposten.vivaldi.backend.PatchRun.LogMessage;
+
+
+/**
+ * Collects errors in groups of the same operation, root cause and directory,
+ * keeping the count of each group but only its first few errors. This bounds
+ * both the memory used and the size of the patch log when the same problem
+ * (e.g. a missing permission) affects thousands of files.
+ * <br />
+ * Once {@link #MAX_GROUPS} groups exist, further errors that do not belong to
+ * one of them are collected in a single overflow group.
+ */
+class ErrorAggregator
+{
+	static final int MAX_GROUPS = 32;
+	static final int MAX_SAMPLES = 3;
+
+	/** A character that can be part of a path in an error message. */
+	private static final String PATH_CHAR = "[^\\s\"'(\\[]";
+
+	private final Map<String, ErrorGroup> groups;
+	private ErrorGroup overflow;
+	private int errorCount;
+
+
+	ErrorAggregator()
+	{
+		this.groups = new LinkedHashMap<>();
+	}
+
+
+	/**
+	 * @param operation The operation that failed.
+	 * @param file The file the operation failed on.
+	 */
+	void add(Level logLevel, RunReport.Operation operation, File file, String message,
+			Throwable throwable)
+	{
+		File directory = file.getParentFile();
+		String rootCause = getRootCause(file, throwable);
+		String key = operation + "|" + rootCause + "|" + directory;
+
+		ErrorGroup group = groups.get(key);
+		if (group == null)
+		{
+			if (groups.size() < MAX_GROUPS)
+			{
+				group = new ErrorGroup(operation, rootCause, directory);
+				groups.put(key, group);
+			}
+			else
+			{
+				if (overflow == null)
+					overflow = new ErrorGroup(null, null, null);
+				group = overflow;
+			}
+		}
+
+		group.count++;
+		if (group.samples.size() < MAX_SAMPLES)
+			group.samples.add(new LogMessage(logLevel, "", message, throwable));
+		errorCount++;
+	}
+
+
+	boolean isEmpty()
+	{
+		return errorCount == 0;
+	}
+
+
+	int getErrorCount()
+	{
+		return errorCount;
+	}
+
+
+	/**
+	 * @return The groups in the order they were first added, followed by the
+	 *         overflow group if there is one.
+	 */
+	List<ErrorGroup> getGroups()
+	{
+		List<ErrorGroup> list = new ArrayList<>(groups.values());
+		if (overflow != null)
+			list.add(overflow);
+		return Collections.unmodifiableList(list);
+	}
+
+
+	/**
+	 * @return The class and message of the innermost cause, with the file's
+	 *         path removed so errors on different files can be grouped. Other
+	 *         paths that end with the file's name are removed as well, since
+	 *         the cause may refer to another file with the same name (e.g. the
+	 *         mod file of a copy). The name is only matched as a whole path
+	 *         component, so it is not removed from inside other words.
+	 */
+	private static String getRootCause(File file, Throwable throwable)
+	{
+		if (throwable == null)
+			return null;
+
+		Throwable root = throwable;
+		while (root.getCause() != null && root.getCause() != root)
+			root = root.getCause();
+
+		String message = root.getMessage();
+		if (message != null)
+		{
+			message = message.replace(file.getAbsolutePath(), "<file>").replace(file.getPath(), "<file>");
+			if (!file.getName().isEmpty())
+			{
+				//A path that ends with the name, and is not part of a longer word or path.
+				String path = "(?<!" + PATH_CHAR + ")(?:" + PATH_CHAR + "*[/\\\\])?"
+						+ Pattern.quote(file.getName()) + "(?![^\\s\"'):;,\\]])";
+				message = message.replaceAll(path, "<file>");
+			}
+			return root.getClass().getSimpleName() + ": " + message;
+		}
+
+		return root.getClass().getSimpleName();
+	}
+
+
+	static class ErrorGroup
+	{
+		/** The operation, or <code>null</code> for the overflow group. */
+		final RunReport.Operation operation;
+		/** The root cause, or <code>null</code> if the errors had none. */
+		final String rootCause;
+		/** The directory, or <code>null</code> for the overflow group. */
+		final File directory;
+		final List<LogMessage> samples;
+		int count;
+
+
+		ErrorGroup(RunReport.Operation operation, String rootCause, File directory)
+		{
+			this.operation = operation;
+			this.rootCause = rootCause;
+			this.directory = directory;
+			this.samples = new ArrayList<>(MAX_SAMPLES);
+		}
+
+
+		boolean isOverflow()
+		{
+			return operation == null;
+		}
+	}
+}
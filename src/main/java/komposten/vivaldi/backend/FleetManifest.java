@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A list of installations (or directories to search for installations) to
+ * patch in fleet mode, split into shards of a fixed size.
+ * <br />
+ * The manifest is a text file with one directory per line. Empty lines and
+ * lines starting with <code>#</code> are ignored.
+ */
+class FleetManifest
+{
+	private final List<String> entries;
+	private final int shardSize;
+
+
+	FleetManifest(List<String> entries, int shardSize)
+	{
+		if (shardSize < 1)
+			throw new IllegalArgumentException("shardSize must be positive: " + shardSize);
+
+		this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+		this.shardSize = shardSize;
+	}
+
+
+	static FleetManifest load(File file, int shardSize) throws IOException
+	{
+		List<String> entries = new ArrayList<>();
+
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+		{
+			line = line.trim();
+
+			if (!line.isEmpty() && !line.startsWith("#"))
+				entries.add(line);
+		}
+
+		return new FleetManifest(entries, shardSize);
+	}
+
+
+	public int getEntryCount()
+	{
+		return entries.size();
+	}
+
+
+	public int getShardCount()
+	{
+		return (entries.size() + shardSize - 1) / shardSize;
+	}
+
+
+	public List<String> getShard(int shard)
+	{
+		int start = shard * shardSize;
+		return entries.subList(start, Math.min(start + shardSize, entries.size()));
+	}
+
+
+	/**
+	 * @return An identifier of the manifest's entries and shard size. Workers
+	 *         sharing a state directory must have the same identifier, or they
+	 *         would disagree on what each shard contains.
+	 */
+	public String getId()
+	{
+		return String.format("%d:%d:%08x", shardSize, entries.size(), entries.hashCode());
+	}
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import komposten.vivaldi.util.DirectoryUtils;
+
+
+/**
+ * Patches the installations in a {@link FleetManifest manifest} together with
+ * other worker processes that share the same state directory.
+ * <br />
+ * The manifest is split into shards, and each worker patches the shards it
+ * can {@link ShardLock lock}. For each shard the state directory contains:
+ * <ul>
+ * <li><code>shard-N.lock</code>: The lock, while a worker is patching the
+ * shard.</li>
+ * <li><code>shard-N.progress</code>: The result of each manifest entry that
+ * has been patched, so a shard that was interrupted (e.g. by a crash) resumes
+ * with the first unpatched entry. Entries that failed are patched again when
+ * the shard is resumed.</li>
+ * <li><code>shard-N.patched</code>: The patched versions of the shard's
+ * installations, used instead of the global {@link Backend#FILE_PATCHED}
+ * file.</li>
+ * <li><code>shard-N.done</code>: A summary, once every entry of the shard
+ * has been patched successfully (or has no installations). Complete shards
+ * are skipped.</li>
+ * </ul>
+ * Each worker also writes its patch log, {@link RunReport run reports} and
+ * {@link PatchHistory history} to the state directory.
+ * Each manifest entry is either an installation or a directory to search for
+ * installations, and is patched with all mod configs.
+ */
+public class FleetWorker
+{
+	private static final long HEARTBEAT_INTERVAL = 30 * 1000;
+	private static final long STALE_TIMEOUT = 10 * 60 * 1000;
+	private static final String FILE_ID = "fleet.id";
+
+	private static final String RESULT_OK = "OK";
+	private static final String RESULT_FAILED = "FAILED";
+	private static final String RESULT_SKIPPED = "SKIPPED";
+
+	private final FleetManifest manifest;
+	private final File stateDir;
+	private final List<ModConfig> configs;
+	private final PrintStream out;
+	private final String owner;
+	private final int searchDepth;
+
+
+	/**
+	 * @param manifestFile The manifest, with one installation or directory to
+	 *          search per line.
+	 * @param shardSize The number of manifest entries per shard. All workers
+	 *          sharing a state directory must use the same shard size.
+	 * @param stateDir The shared state directory.
+	 * @param out A stream to print a summary of each shard to.
+	 * @throws IOException If the manifest could not be read.
+	 */
+	public FleetWorker(File manifestFile, int shardSize, File stateDir, List<ModConfig> configs,
+			PrintStream out) throws IOException
+	{
+		this.manifest = FleetManifest.load(manifestFile, shardSize);
+		this.stateDir = stateDir;
+		this.configs = configs;
+		this.out = out;
+		this.owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+
+		int depth = 0;
+		for (ModConfig config : configs)
+			depth = Math.max(depth, config.getVivaldiRootDepth());
+		this.searchDepth = depth;
+	}
+
+
+	/**
+	 * Patches shards until every shard is either complete or locked by another
+	 * worker. Shards of workers that crashed are taken over once their locks
+	 * become stale.
+	 *
+	 * @return <code>true</code> if all installations in the shards patched by
+	 *         this worker were patched successfully.
+	 * @throws IOException If the state directory could not be used, or belongs
+	 *           to a different manifest.
+	 */
+	public boolean run(boolean patchAll) throws IOException
+	{
+		checkStateDir();
+
+		String workerName = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^\\w.-]", "_");
+		PatchLogger logger = new PatchLogger(new File(stateDir, "worker-" + workerName + ".log").getPath(),
+				null);
+		Patcher patcher = new Patcher(configs, logger, new PatchedVersions(getShardFile(0, ".patched")));
+		patcher.setReportFile(new File(stateDir, "worker-" + workerName + ".report.jsonl"));
+		patcher.setHistory(new PatchHistory(new File(stateDir, "worker-" + workerName + ".history.tsv")));
+		ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "HeartbeatThread");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		int shardCount = manifest.getShardCount();
+		int firstShard = (shardCount > 0 ? Math.floorMod(owner.hashCode(), shardCount) : 0);
+		int patchedShards = 0;
+		int lockedShards = 0;
+		boolean success = true;
+
+		try
+		{
+			for (int i = 0; i < shardCount; i++)
+			{
+				int shard = (firstShard + i) % shardCount;
+
+				if (getShardFile(shard, ".done").exists())
+					continue;
+
+				ShardLock lock = new ShardLock(getShardFile(shard, ".lock"), owner, STALE_TIMEOUT);
+				if (!lock.tryAcquire())
+				{
+					lockedShards++;
+					continue;
+				}
+
+				try
+				{
+					//The shard may have been completed after the first check.
+					if (!getShardFile(shard, ".done").exists())
+					{
+						success &= patchShard(shard, lock, patcher, heartbeats, patchAll);
+						patchedShards++;
+					}
+				}
+				finally
+				{
+					lock.release();
+				}
+			}
+		}
+		finally
+		{
+			heartbeats.shutdownNow();
+			logger.close();
+		}
+
+		out.println(String.format("Patched %d shards; %d shards are being patched by other workers.",
+				patchedShards, lockedShards));
+		return success;
+	}
+
+
+	private void checkStateDir() throws IOException
+	{
+		Files.createDirectories(stateDir.toPath());
+
+		Path idFile = stateDir.toPath().resolve(FILE_ID);
+		String id = manifest.getId();
+
+		try
+		{
+			Files.write(idFile, id.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE);
+		}
+		catch (FileAlreadyExistsException e)
+		{
+			String existing = new String(Files.readAllBytes(idFile), StandardCharsets.UTF_8).trim();
+
+			//An empty file means that another worker is writing it right now.
+			if (!existing.isEmpty() && !existing.equals(id))
+			{
+				throw new IOException(String.format("The state directory (%s) belongs to a different"
+						+ " manifest or shard size! Use a new state directory.", stateDir));
+			}
+		}
+	}
+
+
+	private boolean patchShard(int shard, ShardLock lock, Patcher patcher,
+			ScheduledExecutorService heartbeats, boolean patchAll) throws IOException
+	{
+		Path progressFile = getShardFile(shard, ".progress").toPath();
+		Map<String, String> results = readProgress(progressFile);
+		AtomicBoolean lockLost = new AtomicBoolean();
+
+		patcher.setPatchedVersions(new PatchedVersions(getShardFile(shard, ".patched")));
+		ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(() ->
+		{
+			if (!lock.heartbeat())
+				lockLost.set(true);
+		}, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+
+		try
+		{
+			for (String entry : manifest.getShard(shard))
+			{
+				String previous = results.get(entry);
+				if (RESULT_OK.equals(previous) || RESULT_SKIPPED.equals(previous))
+					continue;
+
+				if (lockLost.get())
+				{
+					out.println(String.format("Shard %d was taken over by another worker, stopping!",
+							shard + 1));
+					return false;
+				}
+
+				String result = patchEntry(entry, patcher, patchAll);
+				results.put(entry, result);
+				Files.write(progressFile,
+						(result + "\t" + entry + "\n").getBytes(StandardCharsets.UTF_8),
+						StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			}
+		}
+		finally
+		{
+			heartbeat.cancel(false);
+		}
+
+		int ok = Collections.frequency(results.values(), RESULT_OK);
+		int failed = Collections.frequency(results.values(), RESULT_FAILED);
+		int skipped = Collections.frequency(results.values(), RESULT_SKIPPED);
+		String summary = String.format("Shard %d/%d: %d patched, %d failed, %d without installations.",
+				shard + 1, manifest.getShardCount(), ok, failed, skipped);
+
+		//Shards with failed entries are not done, so that the entries are retried.
+		if (failed == 0)
+			Files.write(getShardFile(shard, ".done").toPath(), summary.getBytes(StandardCharsets.UTF_8));
+		else
+			summary += " The failed entries are retried the next time the shard is patched.";
+		out.println(summary);
+
+		return failed == 0;
+	}
+
+
+	/**
+	 * @return The latest result of each entry that has already been patched.
+	 */
+	private Map<String, String> readProgress(Path progressFile) throws IOException
+	{
+		Map<String, String> results = new HashMap<>();
+
+		try
+		{
+			for (String line : Files.readAllLines(progressFile, StandardCharsets.UTF_8))
+			{
+				int tab = line.indexOf('\t');
+
+				if (tab > 0)
+					results.put(line.substring(tab + 1), line.substring(0, tab));
+			}
+		}
+		catch (NoSuchFileException e)
+		{
+			//Ignore; the shard has not been started before.
+		}
+
+		return results;
+	}
+
+
+	private String patchEntry(String entry, Patcher patcher, boolean patchAll)
+	{
+		File dir = new File(entry);
+
+		if (!dir.isDirectory())
+			return RESULT_SKIPPED;
+
+		List<File> vivaldiDirs;
+		if (!DirectoryUtils.findVivaldiVersionDirs(dir).isEmpty())
+			vivaldiDirs = Collections.singletonList(dir);
+		else
+			vivaldiDirs = DirectoryUtils.findVivaldiDirs(dir, searchDepth);
+
+		if (vivaldiDirs.isEmpty())
+			return RESULT_SKIPPED;
+
+		boolean success = true;
+		for (File vivaldiDir : vivaldiDirs)
+			success &= patcher.applyMods(vivaldiDir, patchAll);
+
+		return success ? RESULT_OK : RESULT_FAILED;
+	}
+
+
+	private File getShardFile(int shard, String extension)
+	{
+		return new File(stateDir, "shard-" + shard + extension);
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+import komposten.vivaldi.util.DirectoryUtils;
+import komposten.vivaldi.util.DirectoryWatcher;
+
+
+/**
+ * Searches root directories (e.g. <code>/opt</code> or <code>/home</code>)
+ * for Vivaldi installations, and watches them for new installations.
+ * <br />
+ * Installers rarely create an installation in one go, so directories created
+ * below a root are searched a few times with increasing delays rather than
+ * immediately.
+ */
+class InstallationDiscovery
+{
+	private static final long[] SEARCH_DELAYS = { 5, 30, 120 };
+
+	private final Consumer<File> onFound;
+	private final ScheduledExecutorService scheduler;
+
+
+	/**
+	 * @param onFound Called with each Vivaldi directory that is found. May be
+	 *          called several times for the same directory.
+	 */
+	public InstallationDiscovery(Consumer<File> onFound)
+	{
+		this.onFound = onFound;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "DiscoveryThread");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+
+	/**
+	 * Searches the root directories for existing installations. The search runs
+	 * on the discovery thread, so this method returns immediately.
+	 * 
+	 * @param roots The root directories, mapped to how many levels below them
+	 *          to search.
+	 */
+	public void search(Map<File, Integer> roots)
+	{
+		scheduler.execute(() -> roots.forEach(this::search));
+	}
+
+
+	private void search(File directory, int depth)
+	{
+		List<File> vivaldiDirs = DirectoryUtils.findVivaldiDirs(directory, depth);
+
+		for (File vivaldiDir : vivaldiDirs)
+			onFound.accept(vivaldiDir);
+	}
+
+
+	/**
+	 * Watches the root directories for new installations.
+	 * 
+	 * @param roots The root directories, mapped to how many levels below them
+	 *          to watch.
+	 */
+	public void watch(DirectoryWatcher watcher, Map<File, Integer> roots)
+	{
+		for (Map.Entry<File, Integer> entry : roots.entrySet())
+		{
+			File root = entry.getKey();
+			int depth = entry.getValue();
+			
+			if (!root.isDirectory())
+				continue;
+
+			int rootLevel = root.getAbsoluteFile().toPath().normalize().getNameCount();
+
+			try
+			{
+				watcher.watch(root, depth, (kind, file) ->
+				{
+					if (kind == StandardWatchEventKinds.ENTRY_CREATE && file.isDirectory())
+					{
+						int level = file.toPath().getNameCount() - rootLevel;
+						scheduleSearch(file, Math.max(depth - level, 0));
+					}
+				});
+			}
+			catch (IOException e)
+			{
+				String msg = String.format("Could not watch %s for new installations!", root);
+				LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
+			}
+		}
+	}
+
+
+	private void scheduleSearch(File directory, int depth)
+	{
+		for (long delay : SEARCH_DELAYS)
+		{
+			scheduler.schedule(() ->
+			{
+				if (!directory.isDirectory())
+					return;
+
+				if (!DirectoryUtils.findVivaldiVersionDirs(directory).isEmpty())
+					onFound.accept(directory);
+
+				search(directory, depth);
+			}, delay, TimeUnit.SECONDS);
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+
+
+/**
+ * An advisory lock on an installation or version directory, which prevents
+ * several VivaldiModder processes from patching the same files at once. The
+ * lock is held on a <code>.vivaldimodder.lock</code> file in the directory.
+ * <br />
+ * The lock file is intentionally left in place when the lock is released. A
+ * process waiting for the lock has already opened the file, so if the file
+ * was deleted, the waiting process would lock the deleted file while a third
+ * process created and locked a new one, and both would patch at once.
+ * Windows also does not always allow deleting a file that is open. The file
+ * is empty, and is hidden on Windows (and by its name elsewhere).
+ * <br />
+ * Locks are also exclusive between threads of the same process.
+ */
+class InstallationLock implements AutoCloseable
+{
+	static final String FILE_NAME = ".vivaldimodder.lock";
+
+	/** How long to wait for another process to release a lock. */
+	static final long DEFAULT_WAIT = 5 * 1000;
+	private static final long POLL_INTERVAL = 100;
+
+	private final FileChannel channel;
+	private final FileLock lock;
+
+
+	private InstallationLock(FileChannel channel, FileLock lock)
+	{
+		this.channel = channel;
+		this.lock = lock;
+	}
+
+
+	/**
+	 * Tries to lock a directory, waiting at most <code>waitMillis</code> for
+	 * another process to release it.
+	 * <br />
+	 * If the lock file cannot be created (e.g. because the directory is
+	 * read-only), the directory is not locked but an unlocked instance is still
+	 * returned, so the problem is reported by the patching itself instead.
+	 *
+	 * @return The lock, or <code>null</code> if another process (or thread)
+	 *         held it for the whole wait.
+	 */
+	static InstallationLock tryLock(File directory, long waitMillis)
+	{
+		Path path = new File(directory, FILE_NAME).toPath();
+		FileChannel channel;
+
+		try
+		{
+			boolean created = !Files.exists(path);
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+			if (created)
+				hide(path);
+		}
+		catch (IOException e)
+		{
+			String msg = String.format("Could not create a lock file in %s, patching it without a lock!",
+					directory);
+			LogUtils.log(Level.WARNING, InstallationLock.class.getSimpleName(), msg, e, false);
+			return new InstallationLock(null, null);
+		}
+
+		long deadline = System.currentTimeMillis() + waitMillis;
+
+		try
+		{
+			while (true)
+			{
+				FileLock lock = tryLock(channel);
+
+				if (lock != null)
+					return new InstallationLock(channel, lock);
+				if (System.currentTimeMillis() >= deadline)
+					break;
+
+				Thread.sleep(POLL_INTERVAL);
+			}
+		}
+		catch (IOException e)
+		{
+			String msg = String.format("Could not lock %s!", directory);
+			LogUtils.log(Level.WARNING, InstallationLock.class.getSimpleName(), msg, e, false);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		closeQuietly(channel);
+		return null;
+	}
+
+
+	private static void hide(Path path)
+	{
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("dos"))
+		{
+			try
+			{
+				Files.setAttribute(path, "dos:hidden", true);
+			}
+			catch (IOException e)
+			{
+				//Ignore; the file is just not hidden.
+			}
+		}
+	}
+
+
+	private static FileLock tryLock(FileChannel channel) throws IOException
+	{
+		try
+		{
+			return channel.tryLock();
+		}
+		catch (OverlappingFileLockException e)
+		{
+			//Another thread in this process holds the lock.
+			return null;
+		}
+	}
+
+
+	/**
+	 * @return <code>false</code> if the directory could not be locked, but
+	 *         patching was allowed to continue anyway.
+	 */
+	public boolean isLocked()
+	{
+		return lock != null;
+	}
+
+
+	@Override
+	public void close()
+	{
+		if (lock != null)
+		{
+			try
+			{
+				lock.release();
+			}
+			catch (IOException e)
+			{
+				//Ignore; closing the channel releases the lock as well.
+			}
+		}
+
+		closeQuietly(channel);
+	}
+
+
+	private static void closeQuietly(FileChannel channel)
+	{
+		if (channel != null)
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				//Ignore
+			}
+		}
+	}
+}
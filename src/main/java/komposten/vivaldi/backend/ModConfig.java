@@ -26,7 +26,10 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import komposten.utilities.logging.Level;
 import komposten.utilities.logging.LogUtils;
@@ -36,10 +39,15 @@ import komposten.vivaldi.util.DirectoryUtils;
 
 public class ModConfig
 {
+	private static final int DEFAULT_ROOT_DEPTH = 2;
+	
 	private File configFile;
 	private File modDir;
 	private File[] vivaldiDirs;
+	private File[] vivaldiRoots;
+	private int vivaldiRootDepth;
 	private List<Instruction> instructions;
+	private Map<Instruction, File> instructionModDirs;
 
 
 	public ModConfig(File file) throws FileNotFoundException, IOException
@@ -56,7 +64,63 @@ public class ModConfig
 		this.configFile = configFile;
 		this.modDir = (modDir == null ? new File("").getAbsoluteFile() : modDir);
 		this.vivaldiDirs = (vivaldiDirs == null ? new File[0] : vivaldiDirs);
+		this.vivaldiRoots = new File[0];
+		this.vivaldiRootDepth = DEFAULT_ROOT_DEPTH;
 		this.instructions = (instructions == null ? new ArrayList<>() : instructions);
+		this.instructionModDirs = new HashMap<>();
+	}
+
+
+	/**
+	 * Merges the instructions of several configs for patching a single
+	 * installation. Each instruction keeps the mod directory of the config it
+	 * came from (see {@link #getModDir(Instruction)}), and instructions that
+	 * copy files to the same target are only included once, with later configs
+	 * taking precedence.
+	 * <br />
+	 * The merged config is only meant for patching and should not be saved.
+	 * 
+	 * @param vivaldiDir The installation the configs are merged for.
+	 */
+	static ModConfig merge(File vivaldiDir, List<ModConfig> configs)
+	{
+		if (configs.size() == 1)
+			return configs.get(0);
+		
+		ModConfig merged = new ModConfig(null, configs.get(0).getModDir(), new File[] { vivaldiDir },
+				null);
+		Map<String, Instruction> targets = new LinkedHashMap<>();
+		Map<String, ModConfig> targetConfigs = new HashMap<>();
+		
+		for (ModConfig config : configs)
+		{
+			for (Instruction instruction : config.getInstructions())
+			{
+				String target = new File(instruction.targetDirectory,
+						new File(instruction.sourceFile).getName()).getPath();
+				Instruction previous = targets.put(target, instruction);
+				ModConfig previousConfig = targetConfigs.put(target, config);
+				
+				if (previous != null)
+				{
+					merged.instructionModDirs.remove(previous);
+					
+					if (previousConfig != config)
+					{
+						String msg = String.format("Both %s and %s copy a file to %s in %s; using %s.",
+								previousConfig.getConfigFile(), config.getConfigFile(), target,
+								vivaldiDir, config.getConfigFile());
+						LogUtils.log(Level.WARNING, msg);
+					}
+				}
+				
+				merged.instructionModDirs.put(instruction, config.getModDir(instruction));
+			}
+		}
+		
+		merged.instructions.addAll(targets.values());
+		Collections.sort(merged.instructions);
+		return merged;
 	}
 	
 	
@@ -72,12 +136,51 @@ public class ModConfig
 	}
 
 
+	/**
+	 * @return The directory that the mod file of the instruction is in. This is
+	 *         the {@link #getModDir() mod directory}, unless the config has been
+	 *         merged from several configs.
+	 */
+	public File getModDir(Instruction instruction)
+	{
+		File dir = instructionModDirs.get(instruction);
+		return (dir != null ? dir : modDir);
+	}
+
+
 	public File[] getVivaldiDirs()
 	{
 		return vivaldiDirs;
 	}
 
 
+	/**
+	 * @return Directories that are searched (and watched) for Vivaldi
+	 *         installations that are not listed in {@link #getVivaldiDirs()}.
+	 */
+	public File[] getVivaldiRoots()
+	{
+		return vivaldiRoots;
+	}
+
+
+	/**
+	 * @return How many levels below the {@link #getVivaldiRoots() root
+	 *         directories} to search for Vivaldi installations.
+	 */
+	public int getVivaldiRootDepth()
+	{
+		return vivaldiRootDepth;
+	}
+	
+	
+	public void setVivaldiRoots(File[] roots, int depth)
+	{
+		this.vivaldiRoots = (roots == null ? new File[0] : roots);
+		this.vivaldiRootDepth = depth;
+	}
+
+
 	public List<Instruction> getInstructions()
 	{
 		return instructions;
@@ -103,6 +206,30 @@ public class ModConfig
 		{
 			modDir = new File(line.substring(line.indexOf('=') + 1).trim());
 		}
+		else if (line.startsWith("vivaldi.roots.depth"))
+		{
+			String depth = line.substring(line.indexOf('=') + 1).trim();
+			
+			try
+			{
+				vivaldiRootDepth = Integer.parseInt(depth);
+			}
+			catch (NumberFormatException e)
+			{
+				String msg = String.format("Invalid root depth (%s), using %d instead.", depth,
+						DEFAULT_ROOT_DEPTH);
+				LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
+			}
+		}
+		else if (line.startsWith("vivaldi.roots"))
+		{
+			String roots = line.substring(line.indexOf('=') + 1).trim();
+			String[] rootsSplit = splitQuotedArray(roots);
+			vivaldiRoots = new File[rootsSplit.length];
+
+			for (int i = 0; i < rootsSplit.length; i++)
+				vivaldiRoots[i] = new File(rootsSplit[i]);
+		}
 		else if (line.startsWith("vivaldi.dirs"))
 		{
 			String dirs = line.substring(line.indexOf('=') + 1).trim();
@@ -182,6 +309,7 @@ public class ModConfig
 		boolean modDirValid = validateModDir(errors);
 
 		validateVivaldiDirs(errors);
+		validateVivaldiRoots(errors);
 		validateInstructions(errors, modDirValid);
 
 		return errors;
@@ -237,6 +365,17 @@ public class ModConfig
 	}
 
 
+	private void validateVivaldiRoots(List<String> errors)
+	{
+		//Roots that don't exist yet are fine, they are searched once they are created.
+		for (File root : vivaldiRoots)
+		{
+			if (root.exists() && !root.isDirectory())
+				errors.add(String.format("Invalid Vivaldi root: %s is not a directory!", root));
+		}
+	}
+
+
 	private void validateInstructions(List<String> errors, boolean validateModFiles)
 	{
 		for (Instruction instruction : instructions)
@@ -275,6 +414,12 @@ public class ModConfig
 			
 			fops.printData("mod.dir=" + modDir.getPath(), false);
 			fops.printData("\nvivaldi.dirs=" + arrayToString(vivaldiDirs), false);
+			
+			if (vivaldiRoots.length > 0)
+			{
+				fops.printData("\nvivaldi.roots=" + arrayToString(vivaldiRoots), false);
+				fops.printData("\nvivaldi.roots.depth=" + vivaldiRootDepth, false);
+			}
 
 			StringBuilder builder = new StringBuilder();
 			for (Instruction instruction : instructions)
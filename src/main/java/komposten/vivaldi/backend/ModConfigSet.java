@@ -0,0 +1,167 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * The mod configs used by a single process. Installations that appear in
+ * several configs are patched in one pass with the
+ * {@link ModConfig#merge(File, List) merged} instructions of those configs,
+ * and root directories shared by several configs are only searched once.
+ * <br />
+ * A set is immutable, so merged configs are cached for the lifetime of the
+ * set.
+ */
+class ModConfigSet
+{
+	private final List<ModConfig> configs;
+	private final Map<String, ModConfig> mergedConfigs;
+
+
+	/**
+	 * @param configs The configs to use. The first config is the
+	 *          {@link #getPrimary() primary config}.
+	 */
+	ModConfigSet(List<ModConfig> configs)
+	{
+		if (configs.isEmpty())
+			throw new IllegalArgumentException("At least one config is required!");
+
+		this.configs = Collections.unmodifiableList(new ArrayList<>(configs));
+		this.mergedConfigs = new ConcurrentHashMap<>();
+	}
+
+
+	public List<ModConfig> getConfigs()
+	{
+		return configs;
+	}
+
+
+	/**
+	 * @return The first config, which is the one edited in the user interface.
+	 */
+	public ModConfig getPrimary()
+	{
+		return configs.get(0);
+	}
+
+
+	/**
+	 * @return The Vivaldi directories of all configs, without duplicates.
+	 */
+	public List<File> getVivaldiDirs()
+	{
+		Map<String, File> dirs = new LinkedHashMap<>();
+
+		for (ModConfig config : configs)
+		{
+			for (File dir : config.getVivaldiDirs())
+				dirs.putIfAbsent(getPath(dir), dir);
+		}
+
+		return new ArrayList<>(dirs.values());
+	}
+
+
+	/**
+	 * @return The root directories of all configs, mapped to how deep to
+	 *         search them. Roots in several configs are searched as deep as
+	 *         the deepest of them.
+	 */
+	public Map<File, Integer> getVivaldiRoots()
+	{
+		Map<String, File> roots = new LinkedHashMap<>();
+		Map<String, Integer> depths = new LinkedHashMap<>();
+
+		for (ModConfig config : configs)
+		{
+			for (File root : config.getVivaldiRoots())
+			{
+				String path = getPath(root);
+				roots.putIfAbsent(path, root);
+				depths.merge(path, config.getVivaldiRootDepth(), Math::max);
+			}
+		}
+
+		Map<File, Integer> result = new LinkedHashMap<>();
+		for (Map.Entry<String, File> entry : roots.entrySet())
+			result.put(entry.getValue(), depths.get(entry.getKey()));
+
+		return result;
+	}
+
+
+	/**
+	 * @return The config to patch an installation with. This is the merged
+	 *         config of all configs that list the installation or have a root
+	 *         directory containing it, or of all configs if none of them do.
+	 */
+	public ModConfig getConfig(File vivaldiDir)
+	{
+		return mergedConfigs.computeIfAbsent(getPath(vivaldiDir),
+				path -> ModConfig.merge(vivaldiDir, getConfigsFor(path)));
+	}
+
+
+	private List<ModConfig> getConfigsFor(String vivaldiPath)
+	{
+		List<ModConfig> result = new ArrayList<>();
+
+		for (ModConfig config : configs)
+		{
+			if (contains(config, vivaldiPath))
+				result.add(config);
+		}
+
+		return (result.isEmpty() ? configs : result);
+	}
+
+
+	private boolean contains(ModConfig config, String vivaldiPath)
+	{
+		for (File dir : config.getVivaldiDirs())
+		{
+			if (getPath(dir).equals(vivaldiPath))
+				return true;
+		}
+
+		for (File root : config.getVivaldiRoots())
+		{
+			if (vivaldiPath.startsWith(getPath(root) + File.separator))
+				return true;
+		}
+
+		return false;
+	}
+
+
+	private String getPath(File file)
+	{
+		return file.getAbsoluteFile().toPath().normalize().toString();
+	}
+}
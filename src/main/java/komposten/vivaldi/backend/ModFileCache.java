@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Keeps the contents of recently copied mod files in memory, so that a mod
+ * file that is copied to many versions (or is used by several configs) is
+ * only read from disk once.
+ * <br />
+ * Entries are keyed by canonical path and are only used while the file's
+ * size and modification time are unchanged. Files that were modified very
+ * recently are not cached, since a change within the file system's timestamp
+ * resolution would go unnoticed. The least recently used entries are evicted
+ * when the cache grows beyond its size limit.
+ */
+class ModFileCache
+{
+	public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+	private static final long MAX_FILE_SIZE = 8 * 1024 * 1024;
+	/** How long ago a file must have been modified to be cached. */
+	private static final long SETTLE_TIME = 2000;
+
+	private final long maxSize;
+	private final Map<String, Entry> entries;
+	private long size;
+
+
+	public ModFileCache()
+	{
+		this(DEFAULT_MAX_SIZE);
+	}
+
+
+	/**
+	 * @param maxSize The maximum total size of the cached files, in bytes.
+	 */
+	public ModFileCache(long maxSize)
+	{
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+
+	/**
+	 * @return The contents of the file, or <code>null</code> if it should not
+	 *         be cached (e.g. because it is too large), in which case it should
+	 *         be copied directly instead.
+	 * @throws IOException If the file could not be read.
+	 */
+	public byte[] read(File file) throws IOException
+	{
+		long lastModified = file.lastModified();
+		long length = file.length();
+
+		if (length > Math.min(MAX_FILE_SIZE, maxSize)
+				|| System.currentTimeMillis() - lastModified < SETTLE_TIME)
+			return null;
+
+		String path = file.getCanonicalPath();
+
+		synchronized (this)
+		{
+			Entry entry = entries.get(path);
+
+			if (entry != null && entry.lastModified == lastModified && entry.content.length == length)
+				return entry.content;
+		}
+
+		byte[] content = Files.readAllBytes(file.toPath());
+
+		//Only cache the content if the file did not change while it was read.
+		if (content.length == length && file.lastModified() == lastModified)
+			put(path, new Entry(content, lastModified));
+
+		return content;
+	}
+
+
+	private synchronized void put(String path, Entry entry)
+	{
+		Entry previous = entries.put(path, entry);
+		if (previous != null)
+			size -= previous.content.length;
+		size += entry.content.length;
+
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (size > maxSize && iterator.hasNext())
+		{
+			size -= iterator.next().content.length;
+			iterator.remove();
+		}
+	}
+
+
+	synchronized int getEntryCount()
+	{
+		return entries.size();
+	}
+
+
+	private static class Entry
+	{
+		private final byte[] content;
+		private final long lastModified;
+
+
+		public Entry(byte[] content, long lastModified)
+		{
+			this.content = content;
+			this.lastModified = lastModified;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Collects the instructions whose mod files have changed since they were last
+ * {@link #take() taken}, so that only those mod files are copied when
+ * hot-patching.
+ */
+class ModFileChanges
+{
+	private final Map<Path, List<Instruction>> modFileToInstructions;
+	private final Set<Instruction> changed;
+	/** When the first of the pending changes was added. */
+	private long changedSince;
+
+
+	public ModFileChanges(List<ModConfig> modConfigs)
+	{
+		this.modFileToInstructions = new HashMap<>();
+		this.changed = new LinkedHashSet<>();
+
+		for (ModConfig config : modConfigs)
+		{
+			Path modDir = config.getModDir().getAbsoluteFile().toPath();
+
+			for (Instruction instruction : config.getInstructions())
+			{
+				Path modFile = modDir.resolve(instruction.sourceFile).normalize();
+				modFileToInstructions.computeIfAbsent(modFile, k -> new ArrayList<>()).add(instruction);
+			}
+		}
+	}
+
+
+	/**
+	 * Adds the instructions that use a file as their mod file.
+	 * 
+	 * @return <code>true</code> if any instruction uses the file.
+	 */
+	public synchronized boolean add(File file)
+	{
+		List<Instruction> instructions = modFileToInstructions.get(
+				file.getAbsoluteFile().toPath().normalize());
+
+		if (instructions == null)
+			return false;
+
+		if (changed.isEmpty())
+			changedSince = System.nanoTime();
+		changed.addAll(instructions);
+		return true;
+	}
+
+
+	public synchronized boolean isEmpty()
+	{
+		return changed.isEmpty();
+	}
+
+
+	/**
+	 * @return The {@link System#nanoTime() time} the first of the pending
+	 *         changes was added.
+	 */
+	public synchronized long getChangedSince()
+	{
+		return changedSince;
+	}
+
+
+	/**
+	 * @return The instructions whose mod files have changed, in the order they
+	 *         were added. The pending changes are cleared.
+	 */
+	public synchronized List<Instruction> take()
+	{
+		List<Instruction> instructions = new ArrayList<>(changed);
+		changed.clear();
+		return instructions;
+	}
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import komposten.vivaldi.util.Json;
+
+
+/**
+ * Measures how long patching takes on this machine, by patching scratch
+ * copies of real version directories with the mod configs.
+ * <br />
+ * Only the files that patching reads or replaces (the instructions' targets
+ * and <code>browser.html</code>) are copied, using the original files from
+ * back-ups where the versions have already been patched. Each phase patches
+ * fresh copies, so the work is the same in every phase:
+ * <ol>
+ * <li><b>cold</b>: The first patch, with one thread.</li>
+ * <li><b>warm</b>: The same patch again, with one thread and then with more
+ * threads, patching several installations at once.</li>
+ * <li><b>re-patch</b>: Patching the already patched copies again (like
+ * <code>patch --all</code>), with one thread.</li>
+ * </ol>
+ * The reports and history of the phases are written to the scratch
+ * directory, which is deleted afterwards.
+ */
+public class PatchBenchmark
+{
+	/** Thread counts this close to the fastest one are considered as fast. */
+	private static final double PARALLELISM_TOLERANCE = 0.1;
+
+	private final List<ModConfig> configs;
+	private final List<File> versionDirs;
+	private final File scratchParent;
+	private final int maxThreads;
+	private final PatchLogger logger;
+	private File scratchDir;
+	private Patcher patcher;
+	private ModConfig config;
+
+
+	/**
+	 * @param versionDirs The version directories to copy.
+	 * @param scratchParent The directory to create the scratch directory in.
+	 *          It should be on the same drive as the installations, so the
+	 *          timings are representative.
+	 * @param maxThreads The highest number of threads to measure. Each phase
+	 *          patches at least this many installations, so the version
+	 *          directories are copied more than once if there are fewer of
+	 *          them.
+	 * @param logger The logger to write the patch log of all phases to.
+	 */
+	public PatchBenchmark(List<ModConfig> configs, List<File> versionDirs, File scratchParent,
+			int maxThreads, PatchLogger logger)
+	{
+		this.logger = logger;
+		this.configs = configs;
+		this.versionDirs = versionDirs;
+		this.scratchParent = scratchParent;
+		this.maxThreads = maxThreads;
+	}
+
+
+	/**
+	 * Runs all phases.
+	 *
+	 * @throws IOException If the scratch copies could not be created.
+	 */
+	public Result run() throws IOException
+	{
+		scratchDir = Files.createTempDirectory(scratchParent.toPath(), "vivaldimodder-benchmark")
+				.toFile();
+		try
+		{
+			patcher = new Patcher(configs, logger,
+					new PatchedVersions(new File(scratchDir, Backend.FILE_PATCHED)));
+			patcher.setHistory(new PatchHistory(new File(scratchDir, Backend.FILE_HISTORY)));
+			config = new ModConfigSet(configs).getConfig(scratchDir);
+
+			List<Phase> phases = new ArrayList<>();
+			int installationCount = Math.max(versionDirs.size(), maxThreads);
+			List<File> warmInstallations = new ArrayList<>();
+
+			phases.add(runPhase(phases, "cold", 1, installationCount, new ArrayList<>()));
+			phases.add(runPhase(phases, "warm", 1, installationCount, warmInstallations));
+
+			for (int threads = 2; threads <= maxThreads; threads = nextThreadCount(threads))
+				phases.add(runPhase(phases, "warm", threads, installationCount, new ArrayList<>()));
+
+			phases.add(patchPhase(phases, "re-patch", 1, warmInstallations));
+
+			return new Result(phases, installationCount);
+		}
+		finally
+		{
+			deleteDirectory(scratchDir.toPath());
+		}
+	}
+
+
+	/**
+	 * @return Twice the number of threads, but at most {@link #maxThreads}
+	 *         (which is always measured).
+	 */
+	private int nextThreadCount(int threads)
+	{
+		if (threads < maxThreads && threads * 2 > maxThreads)
+			return maxThreads;
+		return threads * 2;
+	}
+
+
+	/**
+	 * Creates fresh scratch copies and patches them.
+	 *
+	 * @param installations A list to add the scratch installations to.
+	 */
+	private Phase runPhase(List<Phase> phases, String name, int threads, int installationCount,
+			List<File> installations) throws IOException
+	{
+		File phaseDir = new File(scratchDir, "phase-" + phases.size());
+
+		for (int i = 0; i < installationCount; i++)
+		{
+			File installation = new File(phaseDir, "installation-" + i);
+			File versionDir = versionDirs.get(i % versionDirs.size());
+
+			copyVersion(versionDir, new File(installation, versionDir.getName()));
+			installations.add(installation);
+		}
+
+		return patchPhase(phases, name, threads, installations);
+	}
+
+
+	private Phase patchPhase(List<Phase> phases, String name, int threads, List<File> installations)
+			throws IOException
+	{
+		File reportFile = new File(scratchDir, "report-" + phases.size() + ".jsonl");
+		patcher.setReportFile(reportFile);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Boolean>> results = new ArrayList<>();
+		boolean success = true;
+		long start = System.nanoTime();
+
+		try
+		{
+			for (File installation : installations)
+				results.add(executor.submit(() -> patcher.applyMods(installation, true)));
+
+			for (Future<Boolean> result : results)
+				success &= result.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			success = false;
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Patching a scratch copy failed!", e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		long wallMillis = (System.nanoTime() - start) / 1000000;
+		Phase phase = new Phase(name, threads, installations.size(), wallMillis, success);
+		readReports(reportFile, phase);
+		return phase;
+	}
+
+
+	/**
+	 * Copies the files of a version directory that patching uses. Files that
+	 * have back-ups are copied from the back-ups, so the copy is unpatched.
+	 */
+	private void copyVersion(File versionDir, File copyDir) throws IOException
+	{
+		String vivaldiPath = "resources/vivaldi";
+		copyOriginal(new File(versionDir, vivaldiPath), new File(copyDir, vivaldiPath), "browser.html");
+
+		for (Instruction instruction : config.getInstructions())
+		{
+			copyOriginal(new File(versionDir, instruction.targetDirectory),
+					new File(copyDir, instruction.targetDirectory),
+					new File(instruction.sourceFile).getName());
+		}
+	}
+
+
+	private void copyOriginal(File directory, File copyDirectory, String name) throws IOException
+	{
+		File backup = new File(directory, name + ".bak");
+		File file = (backup.exists() ? backup : new File(directory, name));
+		File copy = new File(copyDirectory, name);
+
+		copyDirectory.mkdirs();
+		if (file.isFile() && !copy.exists())
+			Files.copy(file.toPath(), copy.toPath());
+	}
+
+
+	/**
+	 * Adds the operation counts and times of the run reports in a report file
+	 * to a phase.
+	 */
+	private void readReports(File reportFile, Phase phase) throws IOException
+	{
+		if (!reportFile.exists())
+			return;
+
+		for (String line : Files.readAllLines(reportFile.toPath(), StandardCharsets.UTF_8))
+		{
+			Map<String, Object> report = Json.parseObject(line);
+
+			for (Object installation : (List<?>) report.get("installations"))
+			{
+				for (Object version : (List<?>) ((Map<?, ?>) installation).get("versions"))
+				{
+					Map<?, ?> operations = (Map<?, ?>) ((Map<?, ?>) version).get("operations");
+					phase.versions++;
+
+					for (Map.Entry<?, ?> entry : operations.entrySet())
+					{
+						Map<?, ?> stats = (Map<?, ?>) entry.getValue();
+						long millis = ((Number) stats.get("durationMs")).longValue();
+						long count = ((Number) stats.get("count")).longValue();
+						long bytes = ((Number) stats.get("bytes")).longValue();
+
+						if (entry.getKey().equals(RunReport.Operation.BACKUP.key))
+						{
+							phase.backupMillis += millis;
+						}
+						else if (entry.getKey().equals(RunReport.Operation.COPY.key))
+						{
+							phase.copyMillis += millis;
+							phase.copiedFiles += count;
+							phase.copiedBytes += bytes;
+						}
+						else if (entry.getKey().equals(RunReport.Operation.BROWSER_HTML.key))
+						{
+							phase.browserHtmlMillis += millis;
+						}
+					}
+				}
+			}
+		}
+	}
+
+
+	private static void deleteDirectory(Path directory) throws IOException
+	{
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+			{
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+
+	public static class Result
+	{
+		private final List<Phase> phases;
+		private final int installations;
+
+
+		Result(List<Phase> phases, int installations)
+		{
+			this.phases = Collections.unmodifiableList(phases);
+			this.installations = installations;
+		}
+
+
+		public List<Phase> getPhases()
+		{
+			return phases;
+		}
+
+
+		/**
+		 * @return The number of scratch installations patched in each phase.
+		 */
+		public int getInstallations()
+		{
+			return installations;
+		}
+
+
+		public boolean isSuccess()
+		{
+			for (Phase phase : phases)
+			{
+				if (!phase.isSuccess())
+					return false;
+			}
+
+			return true;
+		}
+
+
+		/**
+		 * @return The lowest number of threads whose warm phase was within
+		 *         10% of the fastest warm phase.
+		 */
+		public int getRecommendedThreads()
+		{
+			long fastest = Long.MAX_VALUE;
+			for (Phase phase : getWarmPhases())
+				fastest = Math.min(fastest, phase.getWallMillis());
+
+			int threads = 1;
+			for (Phase phase : getWarmPhases())
+			{
+				if (phase.getWallMillis() <= fastest * (1 + PARALLELISM_TOLERANCE))
+				{
+					threads = phase.getThreads();
+					break;
+				}
+			}
+
+			return threads;
+		}
+
+
+		/**
+		 * @return The time of the re-patch phase relative to the first warm
+		 *         phase (both use one thread).
+		 */
+		public double getRepatchRatio()
+		{
+			Phase warm = getWarmPhases().get(0);
+			Phase repatch = phases.get(phases.size() - 1);
+			return (double) repatch.getWallMillis() / Math.max(warm.getWallMillis(), 1);
+		}
+
+
+		private List<Phase> getWarmPhases()
+		{
+			List<Phase> warmPhases = new ArrayList<>();
+			for (Phase phase : phases)
+			{
+				if (phase.getName().equals("warm"))
+					warmPhases.add(phase);
+			}
+			return warmPhases;
+		}
+	}
+
+
+	public static class Phase
+	{
+		private final String name;
+		private final int threads;
+		private final int installations;
+		private final long wallMillis;
+		private final boolean success;
+		private int versions;
+		private long backupMillis;
+		private long copyMillis;
+		private long browserHtmlMillis;
+		private long copiedFiles;
+		private long copiedBytes;
+
+
+		Phase(String name, int threads, int installations, long wallMillis, boolean success)
+		{
+			this.name = name;
+			this.threads = threads;
+			this.installations = installations;
+			this.wallMillis = wallMillis;
+			this.success = success;
+		}
+
+
+		public String getName()
+		{
+			return name;
+		}
+
+
+		public int getThreads()
+		{
+			return threads;
+		}
+
+
+		public int getInstallations()
+		{
+			return installations;
+		}
+
+
+		public int getVersions()
+		{
+			return versions;
+		}
+
+
+		public long getWallMillis()
+		{
+			return wallMillis;
+		}
+
+
+		/**
+		 * @return The time spent on back-ups, summed over all threads.
+		 */
+		public long getBackupMillis()
+		{
+			return backupMillis;
+		}
+
+
+		/**
+		 * @return The time spent copying mod files, summed over all threads.
+		 */
+		public long getCopyMillis()
+		{
+			return copyMillis;
+		}
+
+
+		/**
+		 * @return The time spent on <code>browser.html</code>, summed over all
+		 *         threads.
+		 */
+		public long getBrowserHtmlMillis()
+		{
+			return browserHtmlMillis;
+		}
+
+
+		public long getCopiedFiles()
+		{
+			return copiedFiles;
+		}
+
+
+		public long getCopiedBytes()
+		{
+			return copiedBytes;
+		}
+
+
+		public boolean isSuccess()
+		{
+			return success;
+		}
+
+
+		public double getMegabytesPerSecond()
+		{
+			return copiedBytes / (1024.0 * 1024.0) / Math.max(wallMillis / 1000.0, 0.001);
+		}
+
+
+		public double getFilesPerSecond()
+		{
+			return copiedFiles / Math.max(wallMillis / 1000.0, 0.001);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+
+
+/**
+ * A progress event from a patch. Events are delivered to
+ * {@link Patcher.PatchProgressListener}s and to subscribers of
+ * {@link Backend#getPatchEventPublisher()}.
+ * <br />
+ * Concurrent runs are reported as a single patch, from
+ * {@link Type#PATCH_STARTED} to {@link Type#PATCH_FINISHED}.
+ */
+public class PatchEvent
+{
+	public enum Type
+	{
+		PATCH_STARTED,
+		FILES_TO_PATCH,
+		NEXT_INSTALLATION,
+		NEXT_VERSION,
+		NEXT_MOD_FILE,
+		BYTES_COPIED,
+		ERROR,
+		PATCH_FINISHED
+	}
+
+
+	private final Type type;
+	private final File directory;
+	private final String modFile;
+	private final int dirCount;
+	private final int modFileCount;
+	private final long bytesCopied;
+	private final String message;
+	private final boolean success;
+
+
+	private PatchEvent(Type type, File directory, String modFile, int dirCount,
+			int modFileCount, long bytesCopied, String message, boolean success)
+	{
+		this.type = type;
+		this.directory = directory;
+		this.modFile = modFile;
+		this.dirCount = dirCount;
+		this.modFileCount = modFileCount;
+		this.bytesCopied = bytesCopied;
+		this.message = message;
+		this.success = success;
+	}
+
+
+	static PatchEvent patchStarted()
+	{
+		return new PatchEvent(Type.PATCH_STARTED, null, null, 0, 0, 0, null, false);
+	}
+
+
+	static PatchEvent filesToPatch(int dirCount, int modFileCount)
+	{
+		return new PatchEvent(Type.FILES_TO_PATCH, null, null, dirCount, modFileCount, 0, null, false);
+	}
+
+
+	static PatchEvent nextInstallation(File vivaldiDir)
+	{
+		return new PatchEvent(Type.NEXT_INSTALLATION, vivaldiDir, null, 0, 0, 0, null, false);
+	}
+
+
+	static PatchEvent nextVersion(File versionDir)
+	{
+		return new PatchEvent(Type.NEXT_VERSION, versionDir, null, 0, 0, 0, null, false);
+	}
+
+
+	static PatchEvent nextModFile(String modFile)
+	{
+		return new PatchEvent(Type.NEXT_MOD_FILE, null, modFile, 0, 0, 0, null, false);
+	}
+
+
+	/**
+	 * @param totalBytes The total number of bytes copied since the patch
+	 *          started.
+	 */
+	static PatchEvent bytesCopied(long totalBytes)
+	{
+		return new PatchEvent(Type.BYTES_COPIED, null, null, 0, 0, totalBytes, null, false);
+	}
+
+
+	static PatchEvent error(String message)
+	{
+		return new PatchEvent(Type.ERROR, null, null, 0, 0, 0, message, false);
+	}
+
+
+	static PatchEvent patchFinished(boolean success)
+	{
+		return new PatchEvent(Type.PATCH_FINISHED, null, null, 0, 0, 0, null, success);
+	}
+
+
+	public Type getType()
+	{
+		return type;
+	}
+
+
+	/**
+	 * @return The installation or version directory for
+	 *         {@link Type#NEXT_INSTALLATION} and {@link Type#NEXT_VERSION}
+	 *         events.
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+
+	public String getModFile()
+	{
+		return modFile;
+	}
+
+
+	public int getDirCount()
+	{
+		return dirCount;
+	}
+
+
+	public int getModFileCount()
+	{
+		return modFileCount;
+	}
+
+
+	/**
+	 * @return The total number of bytes copied since the patch started, for
+	 *         {@link Type#BYTES_COPIED} events. The total is cumulative, so
+	 *         merging or dropping these events loses no information.
+	 */
+	public long getBytesCopied()
+	{
+		return bytesCopied;
+	}
+
+
+	/**
+	 * @return The error message for {@link Type#ERROR} events.
+	 */
+	public String getMessage()
+	{
+		return message;
+	}
+
+
+	public boolean isSuccess()
+	{
+		return success;
+	}
+
+
+	/**
+	 * @return <code>true</code> for fine-grained progress events, which may be
+	 *         merged or dropped if listeners fall behind.
+	 */
+	public boolean isProgress()
+	{
+		return type == Type.NEXT_VERSION || type == Type.NEXT_MOD_FILE
+				|| type == Type.BYTES_COPIED;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "PatchEvent [type=" + type + ", directory=" + directory + ", modFile=" + modFile
+				+ ", dirCount=" + dirCount + ", modFileCount=" + modFileCount + ", bytesCopied="
+				+ bytesCopied + ", message=" + message + ", success=" + success + "]";
+	}
+}
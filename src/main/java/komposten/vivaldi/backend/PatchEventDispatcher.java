@@ -0,0 +1,189 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+import komposten.vivaldi.backend.Patcher.PatchProgressListener;
+import komposten.vivaldi.util.MpscRingBuffer;
+
+
+/**
+ * Delivers {@link PatchEvent}s to {@link PatchProgressListener}s and other
+ * event consumers on a separate thread, so slow listeners never slow down
+ * patching.
+ * <br />
+ * Events are published into a bounded, lock-free ring buffer and
+ * {@link #publish(PatchEvent) publish()} never blocks. If the listeners fall
+ * behind, consecutive progress events of the same type are merged into the
+ * latest one, and progress events that do not fit in the buffer are dropped.
+ * Other events (e.g. patch started/finished) are never dropped; they are
+ * kept in an overflow queue until the buffer has been drained.
+ */
+class PatchEventDispatcher
+{
+	private static final int BUFFER_SIZE = 1024;
+
+	private final Collection<Consumer<PatchEvent>> consumers;
+	private final MpscRingBuffer<PatchEvent> buffer;
+	private final Queue<PatchEvent> overflow;
+	private final Thread thread;
+	private volatile boolean waiting;
+
+
+	public PatchEventDispatcher()
+	{
+		this.consumers = new CopyOnWriteArrayList<>();
+		this.buffer = new MpscRingBuffer<>(BUFFER_SIZE);
+		this.overflow = new ConcurrentLinkedQueue<>();
+		this.thread = new Thread(this::dispatchLoop, "PatchEventThread");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+
+	public void addListener(PatchProgressListener listener)
+	{
+		consumers.add(event -> deliver(listener, event));
+	}
+
+
+	/**
+	 * Adds a consumer that receives every event that is delivered. Exceptions
+	 * thrown by the consumer are logged.
+	 */
+	public void addConsumer(Consumer<PatchEvent> consumer)
+	{
+		consumers.add(consumer);
+	}
+
+
+	public void publish(PatchEvent event)
+	{
+		if (consumers.isEmpty())
+			return;
+
+		//Events must go to the overflow queue while it is non-empty, or they
+		//would be delivered before the events already in it.
+		if (!overflow.isEmpty() || !buffer.offer(event))
+		{
+			if (!event.isProgress())
+				overflow.add(event);
+		}
+
+		if (waiting)
+			LockSupport.unpark(thread);
+	}
+
+
+	private void dispatchLoop()
+	{
+		while (true)
+		{
+			PatchEvent event = nextEvent();
+
+			if (event != null)
+			{
+				deliver(event);
+			}
+			else
+			{
+				waiting = true;
+				if (buffer.isEmpty() && overflow.isEmpty())
+					LockSupport.park(this);
+				waiting = false;
+			}
+		}
+	}
+
+
+	private PatchEvent nextEvent()
+	{
+		PatchEvent event = buffer.poll();
+
+		if (event == null)
+			return overflow.poll();
+
+		while (event.isProgress())
+		{
+			PatchEvent next = buffer.peek();
+
+			if (next == null || next.getType() != event.getType())
+				break;
+
+			event = buffer.poll();
+		}
+
+		return event;
+	}
+
+
+	private void deliver(PatchEvent event)
+	{
+		for (Consumer<PatchEvent> consumer : consumers)
+		{
+			try
+			{
+				consumer.accept(event);
+			}
+			catch (RuntimeException e)
+			{
+				String msg = String.format("A patch event consumer failed to handle %s!", event.getType());
+				LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
+			}
+		}
+	}
+
+
+	private void deliver(PatchProgressListener listener, PatchEvent event)
+	{
+		switch (event.getType())
+		{
+			case PATCH_STARTED :
+				listener.onPatchStarted();
+				break;
+			case FILES_TO_PATCH :
+				listener.filesToPatch(event.getDirCount(), event.getModFileCount());
+				break;
+			case NEXT_INSTALLATION :
+				listener.onNextInstallation(event.getDirectory());
+				break;
+			case NEXT_VERSION :
+				listener.onNextVersion(event.getDirectory());
+				break;
+			case NEXT_MOD_FILE :
+				listener.onNextModFile(event.getModFile());
+				break;
+			case PATCH_FINISHED :
+				listener.onPatchFinished(event.isSuccess());
+				break;
+			case BYTES_COPIED :
+			case ERROR :
+				//Not reported to progress listeners.
+				break;
+		}
+	}
+}
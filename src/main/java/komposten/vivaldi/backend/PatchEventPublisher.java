@@ -0,0 +1,332 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+import komposten.vivaldi.util.Flow;
+
+
+/**
+ * Publishes {@link PatchEvent}s to {@link Flow.Subscriber}s. Each subscriber
+ * controls its own demand, and events it has not requested yet are buffered
+ * per subscriber.
+ * <br />
+ * When a subscriber falls behind, fine-grained progress events
+ * ({@link PatchEvent#isProgress()}) are merged or dropped according to its
+ * {@link Policy}. Other events are always delivered, unless the subscriber
+ * falls more than {@link #MAX_PENDING_EVENTS} of them behind, in which case
+ * it is cancelled and notified through <code>onError()</code>.
+ * <br />
+ * Each subscriber receives its events on its own thread (taken from a shared
+ * pool while it has events to deliver), so a slow subscriber neither slows
+ * down patching nor delays the other subscribers.
+ */
+public class PatchEventPublisher implements Flow.Publisher<PatchEvent>
+{
+	public static final int DEFAULT_BUFFER_SIZE = 256;
+	/** The maximum number of undelivered non-progress events per subscriber. */
+	public static final int MAX_PENDING_EVENTS = 4096;
+
+
+	public enum Policy
+	{
+		/**
+		 * Progress events that arrive while the buffer is full are dropped.
+		 */
+		DROP,
+		/**
+		 * A progress event replaces an undelivered progress event of the same
+		 * type at the end of the buffer. Progress events that arrive while the
+		 * buffer is full and cannot be merged are dropped.
+		 */
+		MERGE
+	}
+
+
+	private final Collection<EventSubscription> subscriptions;
+	private final Executor executor;
+
+
+	PatchEventPublisher()
+	{
+		this(createExecutor());
+	}
+
+
+	/**
+	 * @param executor Runs the deliveries to each subscriber. Deliveries to the
+	 *          same subscriber are never run concurrently.
+	 */
+	PatchEventPublisher(Executor executor)
+	{
+		this.subscriptions = new CopyOnWriteArrayList<>();
+		this.executor = executor;
+	}
+
+
+	private static Executor createExecutor()
+	{
+		AtomicInteger threadNumber = new AtomicInteger();
+
+		return Executors.newCachedThreadPool(runnable ->
+		{
+			Thread thread = new Thread(runnable, "PatchEventSubscriber-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+
+	/**
+	 * Subscribes with the {@link Policy#MERGE MERGE} policy and the
+	 * {@link #DEFAULT_BUFFER_SIZE default buffer size}.
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super PatchEvent> subscriber)
+	{
+		subscribe(subscriber, Policy.MERGE, DEFAULT_BUFFER_SIZE);
+	}
+
+
+	/**
+	 * @param policy How to handle progress events when the subscriber falls
+	 *          behind.
+	 * @param bufferSize The maximum number of undelivered progress events to
+	 *          buffer for the subscriber.
+	 */
+	public void subscribe(Flow.Subscriber<? super PatchEvent> subscriber, Policy policy,
+			int bufferSize)
+	{
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+
+		EventSubscription subscription = new EventSubscription(subscriber, policy, bufferSize);
+		subscriptions.add(subscription);
+		subscriber.onSubscribe(subscription);
+	}
+
+
+	void publish(PatchEvent event)
+	{
+		for (EventSubscription subscription : subscriptions)
+			subscription.offer(event);
+	}
+
+
+	private class EventSubscription implements Flow.Subscription
+	{
+		private final Flow.Subscriber<? super PatchEvent> subscriber;
+		private final Policy policy;
+		private final int bufferSize;
+		private final Deque<PatchEvent> buffer;
+
+		private long demand;
+		private int bufferedProgress;
+		private boolean cancelled;
+		private boolean draining;
+		/** An error to signal to the subscriber instead of further events. */
+		private Throwable error;
+
+
+		EventSubscription(Flow.Subscriber<? super PatchEvent> subscriber, Policy policy,
+				int bufferSize)
+		{
+			this.subscriber = subscriber;
+			this.policy = policy;
+			this.bufferSize = bufferSize;
+			this.buffer = new ArrayDeque<>();
+		}
+
+
+		void offer(PatchEvent event)
+		{
+			synchronized (this)
+			{
+				if (cancelled)
+					return;
+
+				if (event.isProgress())
+				{
+					PatchEvent last = buffer.peekLast();
+
+					if (policy == Policy.MERGE && last != null && last.getType() == event.getType())
+					{
+						buffer.pollLast();
+						bufferedProgress--;
+					}
+					else if (bufferedProgress >= bufferSize)
+					{
+						return;
+					}
+
+					bufferedProgress++;
+					buffer.add(event);
+				}
+				else if (buffer.size() - bufferedProgress < MAX_PENDING_EVENTS)
+				{
+					buffer.add(event);
+				}
+				else
+				{
+					String msg = String.format("The subscriber fell more than %d events behind!",
+							MAX_PENDING_EVENTS);
+					fail(new IllegalStateException(msg));
+				}
+			}
+
+			scheduleDrain();
+		}
+
+
+		@Override
+		public void request(long n)
+		{
+			synchronized (this)
+			{
+				if (n <= 0)
+				{
+					fail(new IllegalArgumentException(
+							"The number of requested events must be positive: " + n));
+				}
+				else
+				{
+					demand += n;
+					if (demand < 0)
+						demand = Long.MAX_VALUE;
+				}
+			}
+
+			scheduleDrain();
+		}
+
+
+		@Override
+		public void cancel()
+		{
+			synchronized (this)
+			{
+				cancelled = true;
+				buffer.clear();
+			}
+
+			subscriptions.remove(this);
+		}
+
+
+		/**
+		 * Cancels the subscription, and makes the next delivery signal an error
+		 * to the subscriber instead of events. Must be called while holding the
+		 * subscription's lock, followed by {@link #scheduleDrain()}.
+		 */
+		private void fail(Throwable error)
+		{
+			cancelled = true;
+			buffer.clear();
+			this.error = error;
+			subscriptions.remove(this);
+		}
+
+
+		/**
+		 * Hands the delivery of buffered events (or an error) to the executor,
+		 * unless a delivery is already running or there is nothing to deliver.
+		 */
+		private void scheduleDrain()
+		{
+			synchronized (this)
+			{
+				if (draining || !canDeliver())
+					return;
+				draining = true;
+			}
+
+			executor.execute(this::drain);
+		}
+
+
+		private boolean canDeliver()
+		{
+			return error != null || (!cancelled && demand > 0 && !buffer.isEmpty());
+		}
+
+
+		/**
+		 * Delivers buffered events while there is demand. Only one thread drains
+		 * at a time, so calls to <code>request()</code> from within
+		 * <code>onNext()</code> do not cause recursive deliveries.
+		 */
+		private void drain()
+		{
+			while (true)
+			{
+				PatchEvent event;
+				Throwable failure;
+
+				synchronized (this)
+				{
+					if (!canDeliver())
+					{
+						draining = false;
+						return;
+					}
+
+					failure = error;
+					error = null;
+					event = null;
+
+					if (failure == null)
+					{
+						event = buffer.poll();
+						if (event.isProgress())
+							bufferedProgress--;
+						demand--;
+					}
+				}
+
+				if (failure != null)
+				{
+					subscriber.onError(failure);
+					continue;
+				}
+
+				try
+				{
+					subscriber.onNext(event);
+				}
+				catch (RuntimeException e)
+				{
+					String msg = "A patch event subscriber failed and has been cancelled!";
+					LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
+
+					cancel();
+					subscriber.onError(e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A local history of patch runs, stored as one tab-separated line per run
+ * (normally in {@link Backend#FILE_HISTORY}). Only the last
+ * {@link #MAX_RUNS} runs are kept.
+ * <br />
+ * Runs are compared to a rolling baseline (the median time per version of
+ * the previous {@link #BASELINE_RUNS} runs), so a mod or Vivaldi update that
+ * makes patching much slower is noticed. The baseline and the number of lines
+ * in the file are kept in memory between runs, and the file is only read
+ * again if something else (e.g. another process) has changed it.
+ */
+public class PatchHistory
+{
+	public static final int MAX_RUNS = 1000;
+	public static final int BASELINE_RUNS = 20;
+	/** Runs this many times slower than the baseline are regressions. */
+	public static final double REGRESSION_FACTOR = 2;
+
+	/** The minimum number of earlier runs needed for a baseline. */
+	private static final int MIN_BASELINE_RUNS = 5;
+	private static final String HEADER = "#started\tduration\tbackup\tcopy\tbrowserHtml\tbytes"
+			+ "\tversions\tskipped\tresult";
+	private static final Object FILE_LOCK = new Object();
+
+	private final File file;
+	/** The latest runs that patched any versions, or <code>null</code> until read. */
+	private List<Run> baseline;
+	private int lineCount;
+	/** The length of the file after the last write. */
+	private long fileLength;
+
+
+	public PatchHistory(File file)
+	{
+		this.file = file;
+	}
+
+
+	/**
+	 * Adds a run to the history, and trims the history if it has grown too
+	 * large.
+	 *
+	 * @return How much slower the run was than the runs before it (see
+	 *         {@link #getSlowdown(List, int)}).
+	 */
+	double record(Run run) throws IOException
+	{
+		synchronized (FILE_LOCK)
+		{
+			if (baseline == null || file.length() != fileLength)
+				readState();
+
+			List<String> lines = new ArrayList<>(2);
+			if (lineCount == 0)
+				lines.add(HEADER);
+			lines.add(run.toLine());
+
+			Files.write(file.toPath(), lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+			lineCount += lines.size();
+
+			List<Run> runs = new ArrayList<>(baseline);
+			runs.add(run);
+			double slowdown = getSlowdown(runs, runs.size() - 1);
+
+			if (run.getVersions() > 0)
+			{
+				baseline.add(run);
+				if (baseline.size() > BASELINE_RUNS)
+					baseline.remove(0);
+			}
+
+			//Trim in large steps, so the file is not rewritten after every run.
+			if (lineCount > MAX_RUNS * 2)
+				trim();
+
+			fileLength = file.length();
+			return slowdown;
+		}
+	}
+
+
+	/**
+	 * Reads the number of lines and the baseline from the file.
+	 */
+	private void readState() throws IOException
+	{
+		List<String> lines = readLines();
+		List<Run> runs = parse(lines);
+
+		lineCount = lines.size();
+		baseline = new ArrayList<>();
+		for (int i = runs.size() - 1; i >= 0 && baseline.size() < BASELINE_RUNS; i--)
+		{
+			if (runs.get(i).getVersions() > 0)
+				baseline.add(0, runs.get(i));
+		}
+	}
+
+
+	private void trim() throws IOException
+	{
+		List<String> lines = readLines();
+		List<String> kept = new ArrayList<>();
+		kept.add(HEADER);
+		kept.addAll(lines.subList(Math.max(1, lines.size() - MAX_RUNS), lines.size()));
+
+		File temp = new File(file.getPath() + ".tmp");
+		Files.write(temp.toPath(), kept, StandardCharsets.UTF_8);
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		lineCount = kept.size();
+	}
+
+
+	/**
+	 * @return The runs in the order they were recorded, or an empty list if
+	 *         nothing has been recorded yet. Malformed lines are skipped.
+	 */
+	public List<Run> load() throws IOException
+	{
+		List<Run> runs = parse(readLines());
+
+		int from = Math.max(0, runs.size() - MAX_RUNS);
+		return runs.subList(from, runs.size());
+	}
+
+
+	private List<String> readLines() throws IOException
+	{
+		try
+		{
+			return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		}
+		catch (NoSuchFileException e)
+		{
+			return new ArrayList<>();
+		}
+	}
+
+
+	private static List<Run> parse(List<String> lines)
+	{
+		List<Run> runs = new ArrayList<>();
+		for (String line : lines)
+		{
+			if (!line.startsWith("#") && !line.trim().isEmpty())
+			{
+				Run run = Run.parse(line);
+				if (run != null)
+					runs.add(run);
+			}
+		}
+
+		return runs;
+	}
+
+
+	/**
+	 * Compares a run to the median time per version of the (at most
+	 * {@link #BASELINE_RUNS}) runs before it. Runs that did not patch any
+	 * versions are ignored, since their time does not depend on the mods.
+	 *
+	 * @return How many times slower (or faster, if less than 1) the run was
+	 *         than the baseline, or 0 if there are too few earlier runs or the
+	 *         run did not patch any versions.
+	 */
+	public static double getSlowdown(List<Run> runs, int index)
+	{
+		Run run = runs.get(index);
+		if (run.getVersions() == 0)
+			return 0;
+
+		List<Double> baseline = new ArrayList<>();
+		for (int i = index - 1; i >= 0 && baseline.size() < BASELINE_RUNS; i--)
+		{
+			if (runs.get(i).getVersions() > 0)
+				baseline.add(runs.get(i).getMillisPerVersion());
+		}
+
+		if (baseline.size() < MIN_BASELINE_RUNS)
+			return 0;
+
+		Collections.sort(baseline);
+		int middle = baseline.size() / 2;
+		double median = (baseline.size() % 2 == 1 ? baseline.get(middle)
+				: (baseline.get(middle - 1) + baseline.get(middle)) / 2);
+
+		return run.getMillisPerVersion() / Math.max(median, 1);
+	}
+
+
+	public static class Run
+	{
+		private final long started;
+		private final long durationMs;
+		private final long backupMs;
+		private final long copyMs;
+		private final long browserHtmlMs;
+		private final long bytes;
+		private final int versions;
+		private final int skippedVersions;
+		private final boolean success;
+
+
+		/**
+		 * @param started When the run started, in milliseconds since the epoch.
+		 * @param versions The number of versions that were patched (or failed).
+		 * @param skippedVersions The number of versions that were skipped (e.g.
+		 *          because they were already patched).
+		 */
+		Run(long started, long durationMs, long backupMs, long copyMs, long browserHtmlMs,
+				long bytes, int versions, int skippedVersions, boolean success)
+		{
+			this.started = started;
+			this.durationMs = durationMs;
+			this.backupMs = backupMs;
+			this.copyMs = copyMs;
+			this.browserHtmlMs = browserHtmlMs;
+			this.bytes = bytes;
+			this.versions = versions;
+			this.skippedVersions = skippedVersions;
+			this.success = success;
+		}
+
+
+		private static Run parse(String line)
+		{
+			String[] fields = line.split("\t");
+
+			if (fields.length < 9)
+				return null;
+
+			try
+			{
+				return new Run(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+						Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]),
+						Long.parseLong(fields[5]), Integer.parseInt(fields[6]),
+						Integer.parseInt(fields[7]), fields[8].equals("OK"));
+			}
+			catch (NumberFormatException e)
+			{
+				return null;
+			}
+		}
+
+
+		private String toLine()
+		{
+			return started + "\t" + durationMs + "\t" + backupMs + "\t" + copyMs + "\t"
+					+ browserHtmlMs + "\t" + bytes + "\t" + versions + "\t" + skippedVersions + "\t"
+					+ (success ? "OK" : "FAILED");
+		}
+
+
+		public long getStarted()
+		{
+			return started;
+		}
+
+
+		public long getDurationMs()
+		{
+			return durationMs;
+		}
+
+
+		public long getBackupMs()
+		{
+			return backupMs;
+		}
+
+
+		public long getCopyMs()
+		{
+			return copyMs;
+		}
+
+
+		public long getBrowserHtmlMs()
+		{
+			return browserHtmlMs;
+		}
+
+
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+
+		public int getVersions()
+		{
+			return versions;
+		}
+
+
+		public int getSkippedVersions()
+		{
+			return skippedVersions;
+		}
+
+
+		public boolean isSuccess()
+		{
+			return success;
+		}
+
+
+		public double getMillisPerVersion()
+		{
+			return versions > 0 ? (double) durationMs / versions : 0;
+		}
+	}
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import komposten.utilities.logging.ExceptionHandler;
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+import komposten.vivaldi.util.LogPager;
+import komposten.vivaldi.util.PatchLogFormatter;
+
+
+/**
+ * Writes the patch log to a file and, optionally, echoes it to a stream (e.g.
+ * <code>System.out</code> when running from the command line).
+ * <br />
+ * Log records are queued and written in batches by a background thread, so
+ * patch threads do not wait for the log file. The queue is bounded; if it is
+ * full, logging blocks until there is room again. Call {@link #flush()} to
+ * wait until everything logged so far has been written.
+ * <br />
+ * The log file is written in UTF-8, and is rotated when it grows too large
+ * (and by {@link #rotate()}), keeping a number of older generations (see
+ * {@link LogPager}). The most recent lines are also kept in memory, so they
+ * can be shown while a patch runs (see {@link #getLinesSince(long)}).
+ */
+public class PatchLogger
+{
+	public static final long DEFAULT_MAX_FILE_SIZE = 10 * 1024 * 1024;
+	public static final int DEFAULT_GENERATIONS = 5;
+
+	private static final int QUEUE_SIZE = 4096;
+	private static final int MAX_BATCH_SIZE = 512;
+	private static final int RECENT_LINES = 4096;
+
+	private final String logFile;
+	private final long maxFileSize;
+	private final int generations;
+	private final PrintStream echo;
+	private final PatchLogFormatter formatter;
+	private final ExceptionHandler exceptionHandler;
+	private final BlockingQueue<LogRecord> queue;
+	private final Object flushLock;
+	private final Thread writerThread;
+	/** Guards the log file and the recent lines. */
+	private final Object fileLock;
+	private final String[] recentLines;
+
+	private long queuedCount;
+	private long writtenCount;
+	private volatile boolean closed;
+	private long lineCount;
+	private int rotations;
+
+
+	/**
+	 * @param logFile The file to write the log to.
+	 * @param echo A stream to also write the log to, or <code>null</code>.
+	 */
+	public PatchLogger(String logFile, PrintStream echo)
+	{
+		this(logFile, echo, DEFAULT_MAX_FILE_SIZE, DEFAULT_GENERATIONS);
+	}
+
+
+	/**
+	 * @param maxFileSize The size in bytes at which the log file is rotated.
+	 *          Since records are written in batches, a file may exceed this
+	 *          size by up to one batch.
+	 * @param generations The number of older log files to keep.
+	 */
+	public PatchLogger(String logFile, PrintStream echo, long maxFileSize, int generations)
+	{
+		this.logFile = logFile;
+		this.maxFileSize = maxFileSize;
+		this.generations = generations;
+		this.echo = echo;
+		this.fileLock = new Object();
+		this.recentLines = new String[RECENT_LINES];
+		this.formatter = new PatchLogFormatter();
+		this.exceptionHandler = new PatchExceptionHandler();
+		this.queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+		this.flushLock = new Object();
+		this.writerThread = new Thread(this::writeRecords, "PatchLogThread");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+
+	public void log(Level logLevel, String message)
+	{
+		log(logLevel, null, message, null);
+	}
+
+
+	public synchronized void log(Level logLevel, String location, String message,
+			Throwable throwable)
+	{
+		if (closed)
+			return;
+		
+		try
+		{
+			queue.put(new LogRecord(logLevel, Calendar.getInstance(), location, message, throwable));
+
+			synchronized (flushLock)
+			{
+				queuedCount++;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Waits until all records logged before this call have been written.
+	 */
+	public void flush()
+	{
+		synchronized (flushLock)
+		{
+			long target = queuedCount;
+
+			while (writtenCount < target && writerThread.isAlive())
+			{
+				try
+				{
+					flushLock.wait();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+
+	public String getLogFile()
+	{
+		return logFile;
+	}
+
+
+	/**
+	 * @return The number of older log files that are kept.
+	 */
+	public int getGenerations()
+	{
+		return generations;
+	}
+
+
+	/**
+	 * Waits until everything logged so far has been written, and then starts a
+	 * new log file. The current file becomes the newest of the older
+	 * generations. Nothing happens if the current file is empty.
+	 */
+	public void rotate()
+	{
+		flush();
+
+		synchronized (fileLock)
+		{
+			try
+			{
+				rotateFile();
+			}
+			catch (IOException e)
+			{
+				exceptionHandler.handleException("Could not rotate the patch log!", e);
+			}
+		}
+	}
+
+
+	private void rotateFile() throws IOException
+	{
+		File current = new File(logFile);
+
+		if (current.length() == 0)
+			return;
+
+		Files.deleteIfExists(LogPager.getGeneration(logFile, generations).toPath());
+		for (int i = generations - 1; i >= 0; i--)
+		{
+			File file = LogPager.getGeneration(logFile, i);
+
+			if (file.exists())
+			{
+				Files.move(file.toPath(), LogPager.getGeneration(logFile, i + 1).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		rotations++;
+	}
+
+
+	/**
+	 * @return The current end of the log file and the number of lines written
+	 *         so far. Lines written after this position can be read using
+	 *         {@link #getLinesSince(long)}.
+	 */
+	public Position getPosition()
+	{
+		synchronized (fileLock)
+		{
+			return new Position(new File(logFile).length(), lineCount, rotations);
+		}
+	}
+
+
+	/**
+	 * @param line The number of the first line to return, e.g.
+	 *          {@link Tail#nextLine} of a previous call.
+	 * @return The lines written from <code>line</code> onwards, as far as they
+	 *         are still kept in memory.
+	 */
+	public Tail getLinesSince(long line)
+	{
+		synchronized (fileLock)
+		{
+			long first = Math.max(line, lineCount - recentLines.length);
+			List<String> lines = new ArrayList<>((int) Math.max(0, lineCount - first));
+
+			for (long i = first; i < lineCount; i++)
+				lines.add(recentLines[(int) (i % recentLines.length)]);
+
+			return new Tail(lines, (int) Math.max(0, first - line), lineCount, rotations);
+		}
+	}
+
+
+	/**
+	 * Writes all queued records and stops the background thread. Records
+	 * logged after this call are discarded.
+	 */
+	public void close()
+	{
+		synchronized (this)
+		{
+			closed = true;
+		}
+		
+		flush();
+		writerThread.interrupt();
+	}
+
+
+	private void writeRecords()
+	{
+		List<LogRecord> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+		while (true)
+		{
+			try
+			{
+				batch.add(queue.take());
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+
+			queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+			try
+			{
+				write(batch);
+			}
+			catch (RuntimeException e)
+			{
+				//Keep the thread alive, or log() would block once the queue is full.
+				exceptionHandler.handleException("Could not write to the patch log!", e);
+			}
+			finally
+			{
+				synchronized (flushLock)
+				{
+					writtenCount += batch.size();
+					flushLock.notifyAll();
+				}
+
+				batch.clear();
+			}
+		}
+	}
+
+
+	private void write(List<LogRecord> batch)
+	{
+		StringBuilder builder = new StringBuilder();
+
+		for (LogRecord record : batch)
+		{
+			formatter.formatTo(builder, record.logLevel, record.date, record.location,
+					record.message, record.throwable);
+		}
+
+		String text = builder.toString();
+		//Encoded up-front, so that the rotation check compares bytes with bytes.
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+		synchronized (fileLock)
+		{
+			try
+			{
+				if (new File(logFile).length() + bytes.length > maxFileSize)
+					rotateFile();
+			}
+			catch (IOException e)
+			{
+				exceptionHandler.handleException("Could not rotate the patch log!", e);
+			}
+
+			try (OutputStream stream = new FileOutputStream(logFile, true))
+			{
+				stream.write(bytes);
+			}
+			catch (IOException e)
+			{
+				exceptionHandler.handleException("Could not write to the patch log!", e);
+			}
+
+			addRecentLines(text);
+		}
+
+		if (echo != null)
+		{
+			echo.print(text.replace("\r\n", System.lineSeparator()));
+			echo.flush();
+		}
+	}
+
+
+	private void addRecentLines(String text)
+	{
+		int start = 0;
+		int end;
+
+		while ((end = text.indexOf("\r\n", start)) != -1)
+		{
+			recentLines[(int) (lineCount++ % recentLines.length)] = text.substring(start, end);
+			start = end + 2;
+		}
+	}
+
+
+	/**
+	 * A position in the log, see {@link PatchLogger#getPosition()}.
+	 */
+	public static class Position
+	{
+		/** The length of the current log file. */
+		public final long fileOffset;
+		/** The number of lines written so far. */
+		public final long lineCount;
+		/** The number of times the log has been rotated. */
+		public final int rotations;
+
+
+		Position(long fileOffset, long lineCount, int rotations)
+		{
+			this.fileOffset = fileOffset;
+			this.lineCount = lineCount;
+			this.rotations = rotations;
+		}
+	}
+
+
+	/**
+	 * Recently written lines, see {@link PatchLogger#getLinesSince(long)}.
+	 */
+	public static class Tail
+	{
+		public final List<String> lines;
+		/**
+		 * The number of requested lines that were no longer kept in memory,
+		 * before the returned ones.
+		 */
+		public final int skippedLines;
+		/** The number of the line after the last returned line. */
+		public final long nextLine;
+		/** The number of times the log has been rotated. */
+		public final int rotations;
+
+
+		Tail(List<String> lines, int skippedLines, long nextLine, int rotations)
+		{
+			this.lines = lines;
+			this.skippedLines = skippedLines;
+			this.nextLine = nextLine;
+			this.rotations = rotations;
+		}
+	}
+
+
+	private static class LogRecord
+	{
+		final Level logLevel;
+		final Calendar date;
+		final String location;
+		final String message;
+		final Throwable throwable;
+
+
+		LogRecord(Level logLevel, Calendar date, String location, String message,
+				Throwable throwable)
+		{
+			this.logLevel = logLevel;
+			this.date = date;
+			this.location = location;
+			this.message = message;
+			this.throwable = throwable;
+		}
+	}
+
+
+	private class PatchExceptionHandler extends ExceptionHandler
+	{
+		private String previousException;
+		private long previousTime;
+
+		@Override
+		public void handleException(String msg, Throwable throwable)
+		{
+			//Checking message and time to prevent spam of the same message multiple times
+			//in a short interval, which happens when the patch logger can't write to
+			//patchlog.txt but is called to several times write anyway.
+			if (LogUtils.hasInitialised() &&
+					(!Objects.equals(throwable.getMessage(), previousException) ||
+					(System.nanoTime() - previousTime) > 5E9))
+			{
+				previousException = throwable.getMessage();
+				previousTime = System.nanoTime();
+
+				LogUtils.log(Level.ERROR, "", msg, throwable, true);
+			}
+		}
+	}
+}
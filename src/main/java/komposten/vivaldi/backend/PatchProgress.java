@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Tracks the progress of a patch in both operations (files copied, backed up
+ * or generated) and bytes.
+ * <br />
+ * Progress is weighted so that each operation costs as much as
+ * {@link #OPERATION_WEIGHT} bytes, since copying many small files is dominated
+ * by per-file overhead rather than by their size. Counts are kept in
+ * {@link LongAdder}s so that concurrent patch threads can update them
+ * cheaply, while throughput and ETA are only calculated when the progress is
+ * {@link #sample() sampled}.
+ */
+public class PatchProgress
+{
+	private static final long OPERATION_WEIGHT = 64 * 1024;
+	private static final double SMOOTHING_TIME = 3000;
+
+	private final LongAdder plannedOperations;
+	private final LongAdder plannedBytes;
+	private final LongAdder completedOperations;
+	private final LongAdder completedBytes;
+
+	private long startTime;
+	private long lastSampleTime;
+	private long lastSampleUnits;
+	private long lastSampleBytes;
+	private double unitsPerMilli;
+	private double bytesPerMilli;
+
+
+	PatchProgress()
+	{
+		plannedOperations = new LongAdder();
+		plannedBytes = new LongAdder();
+		completedOperations = new LongAdder();
+		completedBytes = new LongAdder();
+		reset();
+	}
+
+
+	/**
+	 * Resets the progress. Must only be called when no patch is running.
+	 */
+	void reset()
+	{
+		plannedOperations.reset();
+		plannedBytes.reset();
+		completedOperations.reset();
+		completedBytes.reset();
+
+		synchronized (this)
+		{
+			startTime = System.currentTimeMillis();
+			lastSampleTime = startTime;
+			lastSampleUnits = 0;
+			lastSampleBytes = 0;
+			unitsPerMilli = 0;
+			bytesPerMilli = 0;
+		}
+	}
+
+
+	void addPlanned(long operations, long bytes)
+	{
+		plannedOperations.add(operations);
+		plannedBytes.add(bytes);
+	}
+
+
+	void addCompleted(long operations, long bytes)
+	{
+		completedOperations.add(operations);
+		completedBytes.add(bytes);
+	}
+
+
+	/**
+	 * @return The completed part of the patch, between 0 and 1.
+	 */
+	public double getFraction()
+	{
+		long planned = getPlannedUnits();
+
+		if (planned == 0)
+			return 0;
+
+		return Math.min(1, getCompletedUnits() / (double) planned);
+	}
+
+
+	public long getCompletedBytes()
+	{
+		return completedBytes.sum();
+	}
+
+
+	public long getPlannedBytes()
+	{
+		return plannedBytes.sum();
+	}
+
+
+	/**
+	 * Updates the throughput and ETA. The throughput is an exponentially
+	 * weighted moving average, so it follows changes in speed without
+	 * fluctuating with each file. During the first few seconds the average
+	 * since the start is used instead, since there is not enough history to
+	 * smooth over.
+	 */
+	public synchronized void sample()
+	{
+		long now = System.currentTimeMillis();
+		long elapsed = now - lastSampleTime;
+
+		if (elapsed <= 0)
+			return;
+
+		long units = getCompletedUnits();
+		long bytes = completedBytes.sum();
+		long sinceStart = now - startTime;
+
+		if (sinceStart < SMOOTHING_TIME)
+		{
+			unitsPerMilli = units / (double) sinceStart;
+			bytesPerMilli = bytes / (double) sinceStart;
+		}
+		else
+		{
+			double alpha = 1 - Math.exp(-elapsed / SMOOTHING_TIME);
+			unitsPerMilli += alpha * ((units - lastSampleUnits) / (double) elapsed - unitsPerMilli);
+			bytesPerMilli += alpha * ((bytes - lastSampleBytes) / (double) elapsed - bytesPerMilli);
+		}
+
+		lastSampleTime = now;
+		lastSampleUnits = units;
+		lastSampleBytes = bytes;
+	}
+
+
+	/**
+	 * @return The number of bytes copied per second at the last
+	 *         {@link #sample() sample}.
+	 */
+	public synchronized double getBytesPerSecond()
+	{
+		return bytesPerMilli * 1000;
+	}
+
+
+	/**
+	 * @return The estimated time left in milliseconds, based on the throughput
+	 *         at the last {@link #sample() sample}, or <code>-1</code> if it is
+	 *         not known yet.
+	 */
+	public synchronized long getEtaMillis()
+	{
+		if (unitsPerMilli <= 0)
+			return -1;
+
+		long remaining = Math.max(0, getPlannedUnits() - lastSampleUnits);
+		return (long) (remaining / unitsPerMilli);
+	}
+
+
+	private long getPlannedUnits()
+	{
+		return plannedOperations.sum() * OPERATION_WEIGHT + plannedBytes.sum();
+	}
+
+
+	private long getCompletedUnits()
+	{
+		return completedOperations.sum() * OPERATION_WEIGHT + completedBytes.sum();
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import komposten.utilities.logging.Level;
+import komposten.vivaldi.util.Tracing;
+
+
+/**
+ * The state of a single patch run: the mod configs it uses, the errors it has
+ * collected so far, its log output and the progress of the current version.
+ * <br />
+ * Runs on different installations may execute at the same time, so log
+ * entries are buffered and written to the patch log in blocks by
+ * {@link #flushLog()} instead of being interleaved line by line.
+ */
+class PatchRun
+{
+	final ModConfigSet configs;
+	/** The config of the installation that is being patched. */
+	ModConfig config;
+	/** Traces the run from its creation until it is finished. */
+	final Tracing.Span span;
+	/** Records the outcome of each version for the run report. */
+	final RunReport report;
+
+	long versionOperations;
+	long versionBytes;
+	long completedOperations;
+	long completedBytes;
+
+	private final PatchLogger logger;
+	private final List<Consumer<PatchLogger>> logEntries;
+	private ErrorAggregator errors;
+
+
+	PatchRun(ModConfigSet configs, PatchLogger logger)
+	{
+		this.configs = configs;
+		this.config = configs.getPrimary();
+		this.span = Tracing.begin(Tracing.SpanType.PATCH_RUN);
+		this.report = new RunReport();
+		this.logger = logger;
+		this.logEntries = new ArrayList<>();
+		this.errors = new ErrorAggregator();
+	}
+
+
+	/**
+	 * Switches to the config of the specified installation.
+	 */
+	void useInstallation(File vivaldiDir)
+	{
+		config = configs.getConfig(vivaldiDir);
+	}
+
+
+	void log(Level logLevel, String message)
+	{
+		logEntries.add(target -> target.log(logLevel, message));
+	}
+
+
+	void log(Level logLevel, String location, String message, Throwable throwable)
+	{
+		logEntries.add(target -> target.log(logLevel, location, message, throwable));
+	}
+
+
+	/**
+	 * @param operation The operation that failed.
+	 * @param file The file the operation failed on.
+	 */
+	void addError(Level logLevel, RunReport.Operation operation, File file, String message,
+			Throwable throwable)
+	{
+		errors.add(logLevel, operation, file, message, throwable);
+		report.error(logLevel, operation, file, message, throwable);
+	}
+
+
+	boolean hasErrors()
+	{
+		return !errors.isEmpty();
+	}
+
+
+	/**
+	 * Returns the errors collected since the last call and clears them.
+	 */
+	ErrorAggregator takeErrors()
+	{
+		ErrorAggregator taken = errors;
+		errors = new ErrorAggregator();
+		return taken;
+	}
+
+
+	/**
+	 * Writes all buffered log entries to the patch log as one block.
+	 */
+	void flushLog()
+	{
+		synchronized (logger)
+		{
+			for (Consumer<PatchLogger> entry : logEntries)
+				entry.accept(logger);
+		}
+
+		logEntries.clear();
+	}
+
+
+	static class LogMessage
+	{
+		final Level logLevel;
+		final String location;
+		final String message;
+		final Throwable throwable;
+
+		LogMessage(Level logLevel, String location, String message, Throwable t)
+		{
+			this.logLevel = logLevel;
+			this.location = location;
+			this.message = message;
+			this.throwable = t;
+		}
+	}
+}
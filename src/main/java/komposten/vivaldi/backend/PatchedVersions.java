@@ -0,0 +1,261 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+import komposten.utilities.tools.FileOperations;
+
+
+/**
+ * Keeps track of which versions of each installation have been patched, and
+ * stores them in a file (normally {@link Backend#FILE_PATCHED}).
+ * Installations are identified by their canonical paths.
+ * <br />
+ * Several processes may share the file. Changes are therefore kept until
+ * they are {@link #save() saved}, and merged with the file's current content
+ * while holding a lock on <code>&lt;file&gt;.lock</code>.
+ */
+class PatchedVersions
+{
+	private final File file;
+	private final File lockFile;
+	private final Map<String, Set<String>> versions;
+	/** Unsaved changes, mapped from installation and version to if it is patched. */
+	private final Map<String, Map<String, Boolean>> changes;
+
+
+	/**
+	 * Loads the patched versions from a file. A missing file means that
+	 * nothing has been patched yet.
+	 */
+	PatchedVersions(File file)
+	{
+		this.file = file;
+		this.lockFile = new File(file.getPath() + ".lock");
+		this.versions = new LinkedHashMap<>();
+		this.changes = new LinkedHashMap<>();
+
+		refresh();
+	}
+
+
+	/**
+	 * Reloads the file, so versions patched by other processes are included.
+	 * Unsaved changes are kept.
+	 */
+	public synchronized void refresh()
+	{
+		try
+		{
+			withFileLock(this::load);
+		}
+		catch (IOException e)
+		{
+			String msg = "Could not read the patched versions file!";
+			LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
+		}
+	}
+
+
+	private void load() throws IOException
+	{
+		versions.clear();
+
+		try
+		{
+			Map<String, String> data = FileOperations.loadConfigFile(file, false);
+
+			for (Entry<String, String> entry : data.entrySet())
+			{
+				Set<String> set = new LinkedHashSet<>();
+
+				for (String string : entry.getValue().split(";"))
+				{
+					if (!string.isEmpty())
+						set.add(string);
+				}
+
+				versions.put(entry.getKey(), set);
+			}
+		}
+		catch (FileNotFoundException e)
+		{
+			//Ignore; missing file simply means no patches have been done previously.
+		}
+
+		for (Entry<String, Map<String, Boolean>> installation : changes.entrySet())
+		{
+			Set<String> set = versions.computeIfAbsent(installation.getKey(), k -> new LinkedHashSet<>());
+
+			for (Entry<String, Boolean> version : installation.getValue().entrySet())
+			{
+				if (version.getValue())
+					set.add(version.getKey());
+				else
+					set.remove(version.getKey());
+			}
+		}
+	}
+
+
+	public synchronized boolean isPatched(File vivaldiDir, File versionDir)
+	{
+		Set<String> patched = versions.get(getKey(vivaldiDir));
+
+		return patched != null && patched.contains(versionDir.getName());
+	}
+
+
+	public synchronized void setPatched(File vivaldiDir, File versionDir)
+	{
+		String key = getKey(vivaldiDir);
+
+		versions.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(versionDir.getName());
+		changes.computeIfAbsent(key, k -> new LinkedHashMap<>()).put(versionDir.getName(), true);
+	}
+
+
+	public synchronized void setUnpatched(File vivaldiDir, File versionDir)
+	{
+		String key = getKey(vivaldiDir);
+		Set<String> patched = versions.get(key);
+
+		if (patched != null)
+			patched.remove(versionDir.getName());
+		changes.computeIfAbsent(key, k -> new LinkedHashMap<>()).put(versionDir.getName(), false);
+	}
+
+
+	/**
+	 * Merges the unsaved changes into the file's current content and writes
+	 * the result.
+	 */
+	public synchronized void save()
+	{
+		try
+		{
+			withFileLock(() ->
+			{
+				load();
+				write();
+				changes.clear();
+			});
+		}
+		catch (IOException e)
+		{
+			String msg = "Could not write the patched versions file!";
+			LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
+		}
+	}
+
+
+	private void write() throws IOException
+	{
+		FileOperations fops = new FileOperations();
+
+		try
+		{
+			fops.createWriter(file, false);
+
+			StringBuilder builder = new StringBuilder();
+			for (Entry<String, Set<String>> entry : versions.entrySet())
+			{
+				builder.append(entry.getKey()).append("=");
+				for (String version : entry.getValue())
+					builder.append(version).append(";");
+				builder.append("\n");
+			}
+
+			fops.printData(builder.toString(), false);
+		}
+		finally
+		{
+			try
+			{
+				fops.closeWriter();
+			}
+			catch (IOException e)
+			{
+				//Ignore
+			}
+		}
+	}
+
+
+	/**
+	 * Runs an operation on the file while holding the lock on the lock file.
+	 * The lock is also held against other instances in this process, since
+	 * overlapping file locks are not allowed within one process.
+	 */
+	private void withFileLock(FileOperation operation) throws IOException
+	{
+		File parent = lockFile.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+
+		synchronized (PatchedVersions.class)
+		{
+			try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE))
+			{
+				FileLock lock = channel.lock();
+				try
+				{
+					operation.run();
+				}
+				finally
+				{
+					lock.release();
+				}
+			}
+		}
+	}
+
+
+	private String getKey(File vivaldiDir)
+	{
+		try
+		{
+			return vivaldiDir.getCanonicalPath();
+		}
+		catch (IOException e)
+		{
+			return vivaldiDir.getAbsolutePath();
+		}
+	}
+
+
+	private interface FileOperation
+	{
+		public void run() throws IOException;
+	}
+}
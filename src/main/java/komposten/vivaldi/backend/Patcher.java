@@ -18,18 +18,29 @@
  */
 package komposten.vivaldi.backend;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -38,9 +49,13 @@ import org.jsoup.nodes.Element;
 import komposten.utilities.data.ObjectPair;
 import komposten.utilities.logging.Level;
 import komposten.utilities.logging.LogUtils;
-import komposten.utilities.logging.Logger;
 import komposten.utilities.tools.FileOperations;
+import komposten.vivaldi.backend.ErrorAggregator.ErrorGroup;
+import komposten.vivaldi.backend.PatchRun.LogMessage;
 import komposten.vivaldi.util.DirectoryUtils;
+import komposten.vivaldi.util.Metrics;
+import komposten.vivaldi.util.Tracing;
+import komposten.vivaldi.util.Tracing.SpanType;
 import komposten.vivaldi.util.Utilities;
 
 
@@ -67,89 +82,724 @@ public class Patcher
 	}
 
 
-	private Collection<PatchProgressListener> listeners;
-	private Map<String, List<String>> patchedVersions;
-	private ModConfig modConfig;
-	private Logger logger;
+	private static final Metrics.Histogram BACKUP_SECONDS = Metrics.histogram(
+			"vivaldimodder_backup_seconds", "Time to back up a file.");
+	private static final Metrics.Counter BACKUP_FAILURES = Metrics.counter(
+			"vivaldimodder_backup_failures_total", "Files that could not be backed up.");
+	private static final Metrics.Histogram COPY_SECONDS = Metrics.histogram(
+			"vivaldimodder_copy_seconds", "Time to copy a mod file.");
+	private static final Metrics.Counter COPY_FAILURES = Metrics.counter(
+			"vivaldimodder_copy_failures_total", "Mod files that could not be copied.");
+	private static final Metrics.Counter COPIED_BYTES = Metrics.counter(
+			"vivaldimodder_copied_bytes_total", "Bytes of mod files copied.");
+	private static final Metrics.Histogram PARSE_SECONDS = Metrics.histogram(
+			"vivaldimodder_browser_html_parse_seconds", "Time to parse browser.html.");
+	private static final Metrics.Histogram SERIALISE_SECONDS = Metrics.histogram(
+			"vivaldimodder_browser_html_serialise_seconds", "Time to serialise and write browser.html.");
+	private static final Metrics.Counter VERSIONS_PATCHED = Metrics.counter(
+			"vivaldimodder_versions_patched_total", "Versions patched successfully.");
+	private static final Metrics.Counter VERSIONS_FAILED = Metrics.counter(
+			"vivaldimodder_versions_failed_total", "Versions that could not be patched.");
 	
-	private List<LogMessage> errors;
+	private PatchEventDispatcher eventDispatcher;
+	private PatchProgress progress;
+	private volatile PatchedVersions patchedVersions;
+	private Set<File> discoveredVivaldiDirs;
+	private volatile ModConfigSet latestConfigs;
+	private PatchLogger logger;
+	private volatile File reportFile;
+	private volatile PatchHistory history;
+	private ModFileCache modFileCache;
+	
+	private int activeRuns;
+	private int openBatches;
+	private volatile boolean cancelled;
+	private int batchVersionCount;
+	private boolean batchSuccess;
+	private AtomicLong batchBytesCopied;
+	/**
+	 * The number of versions of each installation that were planned when a
+	 * batch was started, until the installation's run takes them over.
+	 */
+	private Map<File, Integer> plannedVersions;
 
 
-	public Patcher(ModConfig modConfig, Logger logger)
+	public Patcher(ModConfig modConfig, PatchLogger logger)
 	{
-		this.modConfig = modConfig;
-		this.logger = logger;
-		this.listeners = new LinkedList<>();
-		this.errors = new LinkedList<>();
+		this(Collections.singletonList(modConfig), logger);
+	}
 
-		loadPatchedVersions();
+
+	/**
+	 * Creates a patcher that patches with several mod configs. Installations
+	 * that are in more than one config are patched once, with the instructions
+	 * of all of those configs.
+	 */
+	public Patcher(List<ModConfig> modConfigs, PatchLogger logger)
+	{
+		this(modConfigs, logger, new PatchedVersions(new File(Backend.FILE_PATCHED)));
 	}
 
 
+	Patcher(List<ModConfig> modConfigs, PatchLogger logger, PatchedVersions patchedVersions)
+	{
+		this.latestConfigs = new ModConfigSet(modConfigs);
+		this.logger = logger;
+		this.eventDispatcher = new PatchEventDispatcher();
+		this.batchBytesCopied = new AtomicLong();
+		this.plannedVersions = new ConcurrentHashMap<>();
+		this.progress = new PatchProgress();
+		this.discoveredVivaldiDirs = new CopyOnWriteArraySet<>();
+		this.patchedVersions = patchedVersions;
+		this.reportFile = new File(Backend.FILE_REPORT);
+		this.history = new PatchHistory(new File(Backend.FILE_HISTORY));
+		this.modFileCache = new ModFileCache();
+	}
+
+
+	/**
+	 * Adds a listener for patch progress. Listeners are called on a separate
+	 * thread, and fine-grained progress events may be merged if a listener is
+	 * slow.
+	 */
 	public void addProgressListener(PatchProgressListener listener)
 	{
-		this.listeners.add(listener);
+		eventDispatcher.addListener(listener);
+	}
+
+
+	/**
+	 * @return The progress of the current (or last) patch. Concurrent runs
+	 *         share the same progress.
+	 */
+	public PatchProgress getProgress()
+	{
+		return progress;
+	}
+
+
+	/**
+	 * @return <code>true</code> if a patch is running.
+	 */
+	public synchronized boolean isPatching()
+	{
+		return activeRuns > 0 || openBatches > 0;
+	}
+
+
+	/**
+	 * Cancels all active runs. Versions that are being patched are finished, so
+	 * no version is left half-patched, but the remaining versions are skipped.
+	 * Skipped versions are not marked as patched and are patched the next time.
+	 * 
+	 * @return <code>false</code> if no patch was running.
+	 */
+	public synchronized boolean cancel()
+	{
+		if (activeRuns == 0 && openBatches == 0)
+			return false;
+		
+		cancelled = true;
+		return true;
+	}
+
+
+	/**
+	 * Adds a consumer that receives all patch events on the event dispatch
+	 * thread, including events that are not reported to progress listeners.
+	 */
+	void addEventConsumer(Consumer<PatchEvent> consumer)
+	{
+		eventDispatcher.addConsumer(consumer);
 	}
 	
 	
+	/**
+	 * Sets the mod config to use. Patches that are currently running finish
+	 * with the config they started with.
+	 */
 	public void setModConfig(ModConfig modConfig)
 	{
-		this.modConfig = modConfig;
+		setModConfigs(Collections.singletonList(modConfig));
 	}
 
 
-	private void loadPatchedVersions()
+	/**
+	 * Sets the mod configs to use. Patches that are currently running finish
+	 * with the configs they started with.
+	 */
+	public void setModConfigs(List<ModConfig> modConfigs)
 	{
-		try
+		this.latestConfigs = new ModConfigSet(modConfigs);
+	}
+
+
+	/**
+	 * Sets where to keep track of patched versions. Must only be called when no
+	 * patch is running.
+	 */
+	void setPatchedVersions(PatchedVersions patchedVersions)
+	{
+		this.patchedVersions = patchedVersions;
+	}
+
+
+	/**
+	 * Sets the file to append a {@link RunReport report} of each
+	 * {@link #applyMods(boolean) applyMods} run to, or <code>null</code> to not
+	 * write reports.
+	 */
+	void setReportFile(File reportFile)
+	{
+		this.reportFile = reportFile;
+	}
+
+
+	/**
+	 * Sets the history to record each {@link #applyMods(boolean) applyMods}
+	 * run in.
+	 */
+	void setHistory(PatchHistory history)
+	{
+		this.history = history;
+	}
+
+
+	/**
+	 * @return The root directories of all mod configs, mapped to how deep to
+	 *         search them for installations.
+	 */
+	public Map<File, Integer> getVivaldiRoots()
+	{
+		return latestConfigs.getVivaldiRoots();
+	}
+
+
+	/**
+	 * @return The (possibly merged) mod config to patch the installation with.
+	 */
+	ModConfig getModConfig(File vivaldiDir)
+	{
+		return latestConfigs.getConfig(vivaldiDir);
+	}
+	
+	
+	/**
+	 * Adds a Vivaldi directory that is not part of the mod config to the
+	 * installations to patch.
+	 * 
+	 * @return <code>false</code> if the directory is already in the config or
+	 *         has already been added.
+	 */
+	public synchronized boolean addVivaldiDir(File vivaldiDir)
+	{
+		String path = getAbsolutePath(vivaldiDir);
+		
+		for (File dir : getVivaldiDirs())
 		{
-			patchedVersions = new HashMap<>();
-			File patchedFile = new File(Backend.FILE_PATCHED);
-			Map<String, String> data = FileOperations.loadConfigFile(patchedFile, false);
+			if (getAbsolutePath(dir).equals(path))
+				return false;
+		}
+		
+		return discoveredVivaldiDirs.add(vivaldiDir);
+	}
+	
+	
+	/**
+	 * @return The Vivaldi directories from the mod configs, followed by any
+	 *         directories added using {@link #addVivaldiDir(File)}.
+	 */
+	public List<File> getVivaldiDirs()
+	{
+		List<File> dirs = latestConfigs.getVivaldiDirs();
+		dirs.addAll(discoveredVivaldiDirs);
+		return dirs;
+	}
 
-			for (Entry<String, String> entry : data.entrySet())
-			{
-				String key = entry.getKey();
-				String[] versions = entry.getValue().split(";");
 
-				List<String> list = new ArrayList<>(versions.length);
+	/**
+	 * Patches all installations, one after the other.
+	 * 
+	 * @return <code>true</code> if all versions were patched successfully.
+	 */
+	public boolean applyMods(boolean patchAll)
+	{
+		PatchRun run = startRun();
+		boolean success = applyMods(run, listVersionDirs(run), patchAll);
+		recordRun(run, success);
+		finishRun(run, success);
+		return success;
+	}
 
-				for (String string : versions)
+
+	/**
+	 * Patches a single installation. Patches on different installations may run
+	 * concurrently, but callers must not patch the same installation from two
+	 * threads at once.
+	 * 
+	 * @return <code>true</code> if all versions were patched successfully.
+	 */
+	public boolean applyMods(File vivaldiDir, boolean patchAll)
+	{
+		PatchRun run = startRun();
+		boolean success = true;
+		run.span.path(vivaldiDir);
+		
+		if (vivaldiDir.exists())
+		{
+			success = applyMods(run, listVersionDirs(vivaldiDir), patchAll);
+		}
+		else
+		{
+			run.log(Level.WARNING,
+					String.format("Directory %s does not exist, skipping!", vivaldiDir));
+			run.report.missingInstallation(vivaldiDir);
+		}
+		
+		recordRun(run, success);
+		finishRun(run, success);
+		return success;
+	}
+
+
+	/**
+	 * Copies the mod files of the specified instructions to the versions of an
+	 * installation that have already been patched. <code>browser.html</code> is
+	 * only updated if one of the instructions adds a script or style that did
+	 * not exist in a version before.
+	 * <br />
+	 * Instructions that are not in the installation's config are ignored.
+	 */
+	public void applyModFiles(File vivaldiDir, Collection<Instruction> modFiles)
+	{
+		PatchRun run = startRun();
+		run.useInstallation(vivaldiDir);
+		run.span.path(vivaldiDir);
+		
+		List<Instruction> instructions = new ArrayList<>(modFiles);
+		instructions.retainAll(run.config.getInstructions());
+
+		List<ObjectPair<File, File>> versionDirs = listPatchedVersionDirs(vivaldiDir);
+		run.span.count(versionDirs.size());
+		planProgress(run, versionDirs.size(), instructions, false);
+		notifyFilesToPatch(run, versionDirs.size());
+
+		boolean success = true;
+		String headerSeparator = "---------------------------------";
+
+		try (InstallationLock installationLock = lockDirectory(run, vivaldiDir, "Installation"))
+		{
+			for (int i = 0; i < versionDirs.size() && installationLock != null; i++)
+			{
+				if (isCancelled(run, versionDirs.size() - i))
 				{
-					if (!string.isEmpty())
-						list.add(string);
+					success = false;
+					break;
 				}
+				
+				ObjectPair<File, File> versionDir = versionDirs.get(i);
+				run.log(null, headerSeparator);
+				run.log(null, String.format("Updating changed mod files in %s...", versionDir.getFirst()));
+				run.log(null, headerSeparator);
 
-				patchedVersions.put(key, list);
+				try (InstallationLock versionLock = lockDirectory(run, versionDir.getFirst(), "Version"))
+				{
+					if (versionLock != null && !applyModFiles(run, instructions, versionDir.getFirst(), false))
+						success = false;
+				}
+				
+				versionCompleted(run);
+				run.flushLog();
 			}
 		}
-		catch (FileNotFoundException e)
+
+		finishRun(run, success);
+	}
+
+
+	/**
+	 * Re-applies instructions in a version whose deployed files have been
+	 * modified or deleted by something other than VivaldiModder.
+	 * 
+	 * @param instructions The instructions whose targets have drifted.
+	 * @param browserHtml If <code>browser.html</code> should be regenerated.
+	 */
+	void reapplyDrifted(File vivaldiDir, File versionDir, List<Instruction> instructions,
+			boolean browserHtml)
+	{
+		PatchRun run = startRun();
+		run.useInstallation(vivaldiDir);
+		run.span.path(versionDir).count(1);
+		
+		String headerSeparator = "---------------------------------";
+		run.log(null, headerSeparator);
+		run.log(null, String.format("Re-applying modified or deleted files in %s...", versionDir));
+		run.log(null, headerSeparator);
+		planProgress(run, 1, instructions, browserHtml);
+		
+		//Only the version is locked, so drift can be repaired while another
+		//process patches other versions of the installation.
+		boolean success = true;
+		try (InstallationLock versionLock = lockDirectory(run, versionDir, "Version"))
 		{
-			//Ignore; missing file simply means no patches have been done previously.
+			if (versionLock != null)
+				success = applyModFiles(run, instructions, versionDir, browserHtml);
 		}
+		
+		versionCompleted(run);
+		finishRun(run, success);
 	}
 
 
-	public void applyMods(boolean patchAll)
+	/**
+	 * Removes the mods from all versions of all installations. Files that were
+	 * backed up when patching are restored from their back-ups, while files
+	 * without back-ups (i.e. files added by the mods) are deleted if their
+	 * content is the same as the mod file's.
+	 * 
+	 * @return <code>true</code> if all versions were unpatched successfully.
+	 */
+	public boolean unpatch()
 	{
-		notifyPatchStarted();
-		boolean success = applyMods(listVersionDirs(), patchAll);
-		notifyPatchFinished(success);
+		PatchRun run = startRun();
+		List<ObjectPair<File, File>> versionDirs = listVersionDirs(run);
+		run.span.count(versionDirs.size());
+		
+		notifyFilesToPatch(run, planProgress(run, versionDirs));
+		patchedVersions.refresh();
+
+		int successes = 0;
+		String headerSeparator = "---------------------------------";
+		DirectoryLocks locks = new DirectoryLocks(run);
+		
+		for (int i = 0; i < versionDirs.size(); i++)
+		{
+			if (isCancelled(run, versionDirs.size() - i))
+				break;
+			
+			ObjectPair<File, File> versionDir = versionDirs.get(i);
+			useInstallation(run, versionDir.getSecond());
+			notifyNextVersion(versionDir.getFirst());
+			
+			run.log(null, headerSeparator);
+			run.log(null, String.format("Unpatching version %s in %s...",
+					versionDir.getFirst().getName(), versionDir.getSecond()));
+			run.log(null, headerSeparator);
+			
+			if (!locks.lock(versionDir.getSecond(), versionDir.getFirst()))
+			{
+				run.log(null, "");
+				versionCompleted(run);
+				run.flushLog();
+				continue;
+			}
+			
+			boolean success = true;
+			for (Instruction instruction : run.config.getInstructions())
+			{
+				File modFile = getModFile(run.config, instruction);
+				if (!restoreFile(run, getTargetFile(instruction, versionDir.getFirst()), modFile,
+						versionDir.getFirst()))
+					success = false;
+				operationCompleted(run, 0);
+			}
+			
+			if (!hasBrowserHtmlInstruction(run.config))
+			{
+				File browser = new File(versionDir.getFirst(), "resources/vivaldi/browser.html");
+				if (!restoreFile(run, browser, null, versionDir.getFirst()))
+					success = false;
+				operationCompleted(run, 0);
+			}
+			
+			if (run.hasErrors())
+				logErrors(run);
+			
+			if (success)
+			{
+				successes++;
+				versionUnpatched(versionDir.getSecond(), versionDir.getFirst());
+			}
+			
+			locks.unlockVersion();
+			run.log(null, "");
+			versionCompleted(run);
+			run.flushLog();
+		}
+		
+		locks.unlockInstallation();
+		
+		int skipped = locks.getSkippedVersions();
+		run.log(null, headerSeparator);
+		if (successes == versionDirs.size())
+			run.log(null, "Unpatched all Vivaldi installations successfully!");
+		else if (successes + skipped < versionDirs.size())
+			run.log(Level.WARNING, String.format(
+					"%d/%d versions were not unpatched successfully! Please review the log above!",
+					versionDirs.size() - successes - skipped, versionDirs.size()));
+		logSkippedVersions(run, skipped);
+		run.log(null, headerSeparator);
+		
+		savePatchedVersions();
+		finishRun(run, successes + skipped == versionDirs.size());
+		
+		return successes + skipped == versionDirs.size();
+	}
+
+
+	/**
+	 * Restores a file from its back-up, or deletes it if it has no back-up and
+	 * is identical to the mod file.
+	 * 
+	 * @param modFile The mod file that was copied to <code>target</code>, or
+	 *          <code>null</code> if the file should only be restored.
+	 * @return <code>false</code> if the file could not be restored or deleted.
+	 */
+	private boolean restoreFile(PatchRun run, File target, File modFile, File versionDir)
+	{
+		String relativePath = versionDir.toPath().relativize(target.toPath()).toString();
+		File backupFile = new File(target.getParentFile(), target.getName() + ".bak");
+		
+		try
+		{
+			if (backupFile.exists())
+			{
+				if (!FileOperations.copyFile(backupFile, target) || !backupFile.delete())
+					throw new IOException(String.format("Could not replace %s with %s!",
+							target.getName(), backupFile.getName()));
+				
+				run.log(null, String.format("  %s Restored %s", getResultString(true), relativePath));
+			}
+			else if (modFile != null && target.exists() && contentEquals(modFile, target))
+			{
+				if (!target.delete())
+					throw new IOException(String.format("Could not delete %s!", target.getName()));
+				
+				run.log(null, String.format("  %s Removed %s", getResultString(true), relativePath));
+			}
+			
+			return true;
+		}
+		catch (IOException e)
+		{
+			String message = String.format("Could not restore %s", relativePath);
+			run.addError(Level.ERROR, RunReport.Operation.RESTORE, target, message, e);
+			run.log(null, String.format("  %s %s", getResultString(false), relativePath));
+			return false;
+		}
+	}
+
+
+	/**
+	 * Starts a batch of runs that listeners see as a single patch, e.g. one run
+	 * per installation when the installations are patched on separate threads.
+	 * Runs outside of a batch are only merged if they overlap, so runs that
+	 * happen to start one after the other would otherwise be reported as
+	 * separate patches. Each call must be followed by a call to
+	 * {@link #finishBatch()}.
+	 * <br />
+	 * The versions of all installations are added to the progress up front,
+	 * so the progress does not jump back when the run of a later installation
+	 * starts.
+	 * 
+	 * @param vivaldiDirs The installations that will be patched in the batch.
+	 */
+	public void startBatch(List<File> vivaldiDirs)
+	{
+		ModConfigSet configs = latestConfigs;
+		Map<File, Integer> versionCounts = new LinkedHashMap<>();
+		long operations = 0;
+		long bytes = 0;
+		
+		for (File vivaldiDir : vivaldiDirs)
+		{
+			ModConfig config = configs.getConfig(vivaldiDir);
+			List<Instruction> instructions = config.getInstructions();
+			int versionCount = DirectoryUtils.findVivaldiVersionDirs(vivaldiDir).size();
+			
+			versionCounts.merge(vivaldiDir, versionCount, Integer::sum);
+			operations += getVersionOperations(instructions, !hasBrowserHtmlInstruction(config))
+					* versionCount;
+			bytes += getModBytes(config, instructions) * versionCount;
+		}
+		
+		synchronized (this)
+		{
+			if (openBatches++ == 0 && activeRuns == 0)
+				startPatch();
+			
+			for (Entry<File, Integer> entry : versionCounts.entrySet())
+				plannedVersions.merge(entry.getKey(), entry.getValue(), Integer::sum);
+			progress.addPlanned(operations, bytes);
+			
+			batchVersionCount += versionCounts.values().stream().mapToInt(Integer::intValue).sum();
+			eventDispatcher.publish(PatchEvent.filesToPatch(batchVersionCount,
+					configs.getPrimary().getInstructions().size()));
+		}
 	}
 
 
-	public void applyMods(File vivaldiDir, boolean patchAll)
+	/**
+	 * Finishes a batch started using {@link #startBatch(List)}. Listeners are
+	 * notified that patching has finished if no run or other batch is active.
+	 */
+	public synchronized void finishBatch()
+	{
+		if (--openBatches == 0)
+		{
+			plannedVersions.clear();
+			
+			if (activeRuns == 0)
+				notifyPatchFinished(batchSuccess);
+		}
+	}
+
+
+	/**
+	 * Creates the context for a new run using the latest mod config, so the
+	 * config never changes in the middle of a run. Listeners are only notified
+	 * that patching has started if no other run or batch is active.
+	 */
+	private synchronized PatchRun startRun()
 	{
+		if (activeRuns++ == 0 && openBatches == 0)
+			startPatch();
+		
+		return new PatchRun(latestConfigs, logger);
+	}
+
+
+	/**
+	 * Resets the state shared by the runs of a patch, and notifies listeners
+	 * that patching has started.
+	 */
+	private void startPatch()
+	{
+		cancelled = false;
+		batchSuccess = true;
+		batchVersionCount = 0;
+		batchBytesCopied.set(0);
+		plannedVersions.clear();
+		progress.reset();
 		notifyPatchStarted();
-		boolean success = applyMods(listVersionDirs(vivaldiDir), patchAll);
-		notifyPatchFinished(success);
 	}
 
 
-	private List<ObjectPair<File, File>> listVersionDirs()
+	/**
+	 * Creates a run for an installation without starting it, so the stages of
+	 * patching ({@link #backupFiles(PatchRun, List, File) back-ups},
+	 * {@link #copyFiles(PatchRun, List, File) copies} and
+	 * {@link #generateBrowserHtmlFile(PatchRun, File) browser.html}) can be
+	 * run on their own, e.g. by benchmarks.
+	 */
+	PatchRun createRun(File vivaldiDir)
+	{
+		PatchRun run = new PatchRun(latestConfigs, logger);
+		run.useInstallation(vivaldiDir);
+		return run;
+	}
+
+
+	/**
+	 * Writes the remaining log output of the run and waits until it is in the
+	 * patch log. Listeners are notified that patching has finished once the
+	 * last active run finishes, unless a batch is still open.
+	 */
+	private void finishRun(PatchRun run, boolean success)
+	{
+		run.flushLog();
+		logger.flush();
+		run.span.end(success);
+		
+		synchronized (this)
+		{
+			batchSuccess &= success;
+			
+			if (--activeRuns == 0 && openBatches == 0)
+				notifyPatchFinished(batchSuccess);
+		}
+	}
+
+
+	private boolean applyModFiles(PatchRun run, List<Instruction> instructions, File versionDir,
+			boolean forceBrowserHtml)
+	{
+		boolean success = true;
+		boolean updateBrowserHtml = !hasBrowserHtmlInstruction(run.config)
+				&& (forceBrowserHtml || addsNewScriptOrStyle(instructions, versionDir));
+
+		List<Instruction> successfulBackups = backupFiles(run, instructions, versionDir);
+		if (successfulBackups.size() != instructions.size())
+			success = false;
+
+		if (!copyFiles(run, successfulBackups, versionDir))
+			success = false;
+
+		if (updateBrowserHtml)
+		{
+			if (!generateBrowserHtmlFile(run, versionDir))
+				success = false;
+			operationCompleted(run, 0);
+		}
+
+		if (run.hasErrors())
+			logErrors(run);
+
+		run.log(null, "");
+		return success;
+	}
+
+
+	private boolean addsNewScriptOrStyle(List<Instruction> instructions, File versionDir)
+	{
+		for (Instruction instruction : instructions)
+		{
+			if (!instruction.excludeFromBrowserHtml && (Utilities.isScript(instruction.sourceFile)
+					|| Utilities.isStyle(instruction.sourceFile)))
+			{
+				if (!getTargetFile(instruction, versionDir).exists())
+					return true;
+			}
+		}
+
+		return false;
+	}
+
+
+	/**
+	 * @return Pairs of version directories (first) and Vivaldi directories
+	 *         (second) for all versions that have been patched previously.
+	 */
+	List<ObjectPair<File, File>> listPatchedVersionDirs()
+	{
+		List<ObjectPair<File, File>> versionDirs = new ArrayList<>();
+		
+		for (File vivaldiDir : getVivaldiDirs())
+			versionDirs.addAll(listPatchedVersionDirs(vivaldiDir));
+		
+		return versionDirs;
+	}
+
+
+	private List<ObjectPair<File, File>> listPatchedVersionDirs(File vivaldiDir)
+	{
+		List<ObjectPair<File, File>> versionDirs = new ArrayList<>();
+		
+		for (ObjectPair<File, File> pair : listVersionDirs(vivaldiDir))
+		{
+			if (hasBeenPatchedPreviously(vivaldiDir, pair.getFirst()))
+				versionDirs.add(pair);
+		}
+		
+		return versionDirs;
+	}
+
+
+	private List<ObjectPair<File, File>> listVersionDirs(PatchRun run)
 	{
 		List<ObjectPair<File, File>> dirs = new ArrayList<>();
 
-		for (File vivaldiDir : modConfig.getVivaldiDirs())
+		for (File vivaldiDir : getVivaldiDirs())
 		{
 			if (vivaldiDir.exists())
 			{
@@ -157,8 +807,9 @@ public class Patcher
 			}
 			else
 			{
-				logger.log(Level.WARNING,
+				run.log(Level.WARNING,
 						String.format("Directory %s does not exist, skipping!", vivaldiDir));
+				run.report.missingInstallation(vivaldiDir);
 			}
 		}
 
@@ -179,103 +830,187 @@ public class Patcher
 	}
 
 
-	private boolean applyMods(List<ObjectPair<File, File>> versionDirs, boolean patchAll)
+	private boolean applyMods(PatchRun run, List<ObjectPair<File, File>> versionDirs,
+			boolean patchAll)
 	{
-		notifyFilesToPatch(versionDirs);
+		run.span.count(versionDirs.size());
+		notifyFilesToPatch(run, planProgress(run, versionDirs));
+		patchedVersions.refresh();
 
 		int successes = 0;
 		File vivaldiDir = null;
 		String headerSeparator = "=================================";
+		DirectoryLocks locks = new DirectoryLocks(run);
 		
-		for (ObjectPair<File, File> versionDir : versionDirs)
+		for (int i = 0; i < versionDirs.size(); i++)
 		{
+			if (isCancelled(run, versionDirs.size() - i))
+				break;
+			
+			ObjectPair<File, File> versionDir = versionDirs.get(i);
 			if (vivaldiDir == null || !versionDir.getSecond().equals(vivaldiDir))
 			{
 				vivaldiDir = versionDir.getSecond();
-				logger.log(null, headerSeparator);
-				logger.log(null, String.format("Patching installation %s...", vivaldiDir));
-				logger.log(null, headerSeparator);
+				useInstallation(run, vivaldiDir);
+				run.log(null, headerSeparator);
+				run.log(null, String.format("Patching installation %s...", vivaldiDir));
+				run.log(null, headerSeparator);
 				notifyNextInstallation(vivaldiDir);
 			}
-
-			if (applyMods(versionDir.getFirst(), versionDir.getSecond(), patchAll))
+
+			if (locks.lock(vivaldiDir, versionDir.getFirst()))
+			{
+				if (applyMods(run, versionDir.getFirst(), versionDir.getSecond(), patchAll))
+				{
+					successes++;
+					VERSIONS_PATCHED.increment();
+					versionPatched(versionDir.getSecond(), versionDir.getFirst());
+				}
+				else
+				{
+					VERSIONS_FAILED.increment();
+				}
+				
+				locks.unlockVersion();
+			}
+			else
 			{
-				successes++;
-				versionPatched(versionDir.getSecond(), versionDir.getFirst());
+				run.report.skipVersion(vivaldiDir, versionDir.getFirst(), RunReport.OUTCOME_LOCKED);
 			}
+			
+			versionCompleted(run);
+			run.flushLog();
 		}
+		
+		locks.unlockInstallation();
 
-		logger.log(null, headerSeparator);
+		int skipped = locks.getSkippedVersions();
+		run.log(null, headerSeparator);
 		if (successes == versionDirs.size())
-			logger.log(null, "Patched all Vivaldi installations successfully!");
-		else
-			logger.log(Level.WARNING, String.format(
+			run.log(null, "Patched all Vivaldi installations successfully!");
+		else if (successes + skipped < versionDirs.size())
+			run.log(Level.WARNING, String.format(
 					"%d/%d versions were not patched successfully! Please review the log above!",
-					versionDirs.size() - successes, versionDirs.size()));
-		logger.log(null, headerSeparator);
+					versionDirs.size() - successes - skipped, versionDirs.size()));
+		logSkippedVersions(run, skipped);
+		run.log(null, headerSeparator);
 
 		savePatchedVersions();
 		
-		return successes == versionDirs.size();
+		return successes + skipped == versionDirs.size();
+	}
+
+
+	/**
+	 * Locks a directory, so other processes do not patch it at the same time.
+	 * 
+	 * @param type "Installation" or "Version", for the log message.
+	 * @return The lock, or <code>null</code> if another process is patching
+	 *         the directory.
+	 */
+	private InstallationLock lockDirectory(PatchRun run, File directory, String type)
+	{
+		InstallationLock lock = InstallationLock.tryLock(directory, InstallationLock.DEFAULT_WAIT);
+		
+		if (lock == null)
+		{
+			run.log(Level.WARNING, String.format(
+					"%s %s is being patched by another process, skipping it!", type, directory));
+		}
+		
+		return lock;
+	}
+
+
+	private void logSkippedVersions(PatchRun run, int skipped)
+	{
+		if (skipped > 0)
+		{
+			run.log(Level.WARNING, String.format(
+					"%d versions were skipped since other processes were patching them.", skipped));
+		}
 	}
 
 	
-	private boolean applyMods(File versionDir, File vivaldiDir, boolean patchAll)
+	private boolean applyMods(PatchRun run, File versionDir, File vivaldiDir, boolean patchAll)
 	{
-		for (PatchProgressListener listener : listeners)
-			listener.onNextVersion(versionDir);
+		notifyNextVersion(versionDir);
 
 		boolean success = true;
 		String headerSeparator = "---------------------------------";
+		Tracing.Span span = Tracing.begin(SpanType.VERSION_PATCH).path(versionDir);
+		run.report.startVersion(vivaldiDir, versionDir);
 
-		logger.log(null, headerSeparator);
+		run.log(null, headerSeparator);
 		if (!patchAll && hasBeenPatchedPreviously(vivaldiDir, versionDir))
 		{
-			logger.log(null, String.format("Version %s already patched, skipping it.",
+			run.log(null, String.format("Version %s already patched, skipping it.",
 					versionDir.getName()));
-			logger.log(null, headerSeparator);
+			run.log(null, headerSeparator);
+			span.end("skipped");
+			run.report.endVersion(RunReport.OUTCOME_ALREADY_PATCHED);
 		}
 		else
 		{
-			logger.log(null,String.format("Patching version %s...", versionDir.getName()));
-			logger.log(null, headerSeparator);
+			run.log(null,String.format("Patching version %s...", versionDir.getName()));
+			run.log(null, headerSeparator);
 
-			logger.log(null, "BACKING UP FILES");
-			List<Instruction> successfulBackups = backupFiles(versionDir);
-			if (successfulBackups.size() != modConfig.getInstructions().size())
+			run.log(null, "BACKING UP FILES");
+			List<Instruction> instructions = run.config.getInstructions();
+			List<Instruction> successfulBackups = backupFiles(run, instructions, versionDir);
+			if (successfulBackups.size() != instructions.size())
 				success = false;
 			
-			logger.log(null, "");
-			logger.log(null, "COPYING MOD FILES");
-			if (!copyFiles(successfulBackups, versionDir))
+			run.log(null, "");
+			run.log(null, "COPYING MOD FILES");
+			if (!copyFiles(run, successfulBackups, versionDir))
 				success = false;
 
-			if (!hasBrowserHtmlInstruction())
+			if (!hasBrowserHtmlInstruction(run.config))
 			{
-				logger.log(null, "");
-				logger.log(null, "UPDATING BROWSER.HTML");
-				if (!generateBrowserHtmlFile(versionDir))
+				run.log(null, "");
+				run.log(null, "UPDATING BROWSER.HTML");
+				if (!generateBrowserHtmlFile(run, versionDir))
 					success = false;
+				operationCompleted(run, 0);
 			}
 			
-			if (!errors.isEmpty())
+			if (run.hasErrors())
 			{
-				logger.log(null, "");
-				logErrors();
+				run.log(null, "");
+				logErrors(run);
 			}
 
-			logger.log(null, "");
+			run.log(null, "");
+			span.bytes(run.versionBytes).end(success);
+			run.report.endVersion(success ? RunReport.OUTCOME_PATCHED : RunReport.OUTCOME_FAILED);
 		}
 
 		return success;
 	}
 
 
-	private boolean hasBeenPatchedPreviously(File vivaldiDir, File versionDir)
+	/**
+	 * @param remainingVersions The number of versions that will be skipped if
+	 *          the run has been cancelled.
+	 */
+	private boolean isCancelled(PatchRun run, int remainingVersions)
 	{
-		List<String> previouslyPatched = this.patchedVersions.get(getAbsolutePath(vivaldiDir));
+		if (cancelled)
+		{
+			run.log(Level.WARNING, String.format("Patching was cancelled, skipping %d versions!",
+					remainingVersions));
+			run.report.cancelled(remainingVersions);
+			return true;
+		}
 		
-		return previouslyPatched != null && previouslyPatched.contains(versionDir.getName());
+		return false;
+	}
+
+
+	private boolean hasBeenPatchedPreviously(File vivaldiDir, File versionDir)
+	{
+		return patchedVersions.isPatched(vivaldiDir, versionDir);
 	}
 
 
@@ -284,14 +1019,14 @@ public class Patcher
 	 *         already had backups, or did not exist (and where thus not in need
 	 *         of being backed up).
 	 */
-	private List<Instruction> backupFiles(File versionDir)
+	List<Instruction> backupFiles(PatchRun run, List<Instruction> instructionsToBackup, File versionDir)
 	{
 		List<Instruction> instructions = new LinkedList<>();
 		boolean anyNeededBackup = false;
 		
-		for (Instruction instruction : modConfig.getInstructions())
+		for (Instruction instruction : instructionsToBackup)
 		{
-			File sourceFile = new File(modConfig.getModDir(), instruction.sourceFile);
+			File sourceFile = getModFile(run.config, instruction);
 			File targetDir = new File(versionDir, instruction.targetDirectory);
 			File targetFile = new File(targetDir, sourceFile.getName());
 			File backupFile = new File(targetDir, sourceFile.getName() + ".bak");
@@ -299,7 +1034,7 @@ public class Patcher
 			if (targetFile.exists() && !backupFile.exists())
 			{
 				anyNeededBackup = true;
-				if (backupFile(targetFile, backupFile, versionDir))
+				if (backupFile(run, targetFile, backupFile, versionDir))
 					instructions.add(instruction);
 			}
 			else
@@ -314,36 +1049,45 @@ public class Patcher
 		if (browser.exists() && !browserBackup.exists())
 		{
 			anyNeededBackup = true;
-			backupFile(browser, browserBackup, versionDir);
+			backupFile(run, browser, browserBackup, versionDir);
 		}
 		
 		if (!anyNeededBackup)
-			logger.log(null, String.format("  %s All files already had back-ups!", getResultString(true)));
+			run.log(null, String.format("  %s All files already had back-ups!", getResultString(true)));
 		
 		return instructions;
 	}
 
 
-	private boolean copyFiles(List<Instruction> instructions, File versionDir)
+	boolean copyFiles(PatchRun run, List<Instruction> instructions, File versionDir)
 	{
 		boolean allSuccessful = true;
 		for (Instruction instruction : instructions)
 		{
-			File sourceFile = new File(modConfig.getModDir(), instruction.sourceFile);
+			File sourceFile = getModFile(run.config, instruction);
 			File targetDir = new File(versionDir, instruction.targetDirectory);
 			File targetFile = new File(targetDir, sourceFile.getName());
 			
-			if (!copyFile(sourceFile, targetFile, modConfig.getModDir()))
+			long bytes = sourceFile.length();
+			
+			notifyNextModFile(instruction);
+			if (copyFile(run, sourceFile, targetFile, run.config.getModDir(instruction)))
+				notifyBytesCopied(bytes);
+			else
 				allSuccessful = false;
+			
+			operationCompleted(run, bytes);
 		}
 		
 		return allSuccessful;
 	}
 
 
-	private boolean backupFile(File file, File backupFile, File relativeTo)
+	private boolean backupFile(PatchRun run, File file, File backupFile, File relativeTo)
 	{
 		String relativePath = relativeTo.toPath().relativize(file.toPath()).toString();
+		long start = System.nanoTime();
+		Tracing.Span span = Tracing.begin(SpanType.FILE_BACKUP).path(file).bytes(file.length());
 		boolean success;
 		
 		try
@@ -354,19 +1098,27 @@ public class Patcher
 		{
 			String message = String.format(
 					"Could not back up %s, so it will not be replaced!", relativePath);
-			errors.add(new LogMessage(Level.ERROR, "", message, e));
+			run.addError(Level.ERROR, RunReport.Operation.BACKUP, file, message, e);
 			
 			success = false;
 		}
 		
-		logger.log(null, String.format("  %s %s", getResultString(success), relativePath));
+		BACKUP_SECONDS.observeSince(start);
+		if (!success)
+			BACKUP_FAILURES.increment();
+		span.end(success);
+		run.report.operation(RunReport.Operation.BACKUP, success, file.length(), start);
+		
+		run.log(null, String.format("  %s %s", getResultString(success), relativePath));
 		return success;
 	}
 
 
-	private boolean copyFile(File file, File targetFile, File relativeTo)
+	private boolean copyFile(PatchRun run, File file, File targetFile, File relativeTo)
 	{
 		String relativePath = relativeTo.toPath().relativize(file.toPath()).toString();
+		long start = System.nanoTime();
+		Tracing.Span span = Tracing.begin(SpanType.FILE_COPY).path(targetFile).bytes(file.length());
 		boolean success;
 		
 		try
@@ -378,23 +1130,42 @@ public class Patcher
 				throw new IOException(
 						String.format("%s is not a file!", file.getPath()));
 			
-			success = FileOperations.copyFile(file, targetFile);
+			byte[] content = modFileCache.read(file);
+			
+			if (content != null)
+			{
+				targetFile.getParentFile().mkdirs();
+				Files.write(targetFile.toPath(), content);
+				success = true;
+			}
+			else
+			{
+				success = FileOperations.copyFile(file, targetFile);
+			}
 		}
 		catch (IOException e)
 		{
 			String message = String.format("Could not copy %s", relativePath);
-			errors.add(new LogMessage(Level.ERROR, "", message, e));
+			run.addError(Level.ERROR, RunReport.Operation.COPY, targetFile, message, e);
 			success = false;
 		}
 
-		logger.log(null, String.format("  %s %s", getResultString(success), relativePath));
+		COPY_SECONDS.observeSince(start);
+		if (success)
+			COPIED_BYTES.add(file.length());
+		else
+			COPY_FAILURES.increment();
+		span.end(success);
+		run.report.operation(RunReport.Operation.COPY, success, file.length(), start);
+		
+		run.log(null, String.format("  %s %s", getResultString(success), relativePath));
 		return success;
 	}
 	
 	
-	private boolean hasBrowserHtmlInstruction()
+	private boolean hasBrowserHtmlInstruction(ModConfig config)
 	{
-		for (Instruction instruction : modConfig.getInstructions())
+		for (Instruction instruction : config.getInstructions())
 		{
 			if (instruction.sourceFile.toLowerCase().endsWith("browser.html"))
 				return true;
@@ -404,24 +1175,43 @@ public class Patcher
 	}
 	
 	
-	private boolean generateBrowserHtmlFile(File versionDir)
+	boolean generateBrowserHtmlFile(PatchRun run, File versionDir)
 	{
 		List<String> styleFiles = new ArrayList<>();
 		List<String> scriptFiles = new ArrayList<>();
 
 		Path pathVivaldi = new File(versionDir, "resources/vivaldi/").toPath();
 		File fileBrowserHtml = pathVivaldi.resolve("browser.html").toFile();
+		Tracing.Span span = Tracing.begin(SpanType.BROWSER_HTML_REWRITE).path(fileBrowserHtml);
+		long start = System.nanoTime();
 		
 		if (!fileBrowserHtml.exists())
 		{
-			logger.log(null, String.format("  %s Reading resources/vivaldi/browser.html",
+			run.log(null, String.format("  %s Reading resources/vivaldi/browser.html",
 							getResultString(false)));
 			String message = "resources/vivaldi/browser.html does not exist!";
-			errors.add(new LogMessage(Level.ERROR, message));
+			run.addError(Level.ERROR, RunReport.Operation.BROWSER_HTML, fileBrowserHtml, message, null);
+			span.end(false);
+			run.report.operation(RunReport.Operation.BROWSER_HTML, false, 0, start);
 			return false;
 		}
 		
-		for (Instruction instruction : modConfig.getInstructions())
+		listBrowserHtmlFiles(run.config, versionDir, styleFiles, scriptFiles);
+		
+		boolean success = addStylesAndScripts(run, fileBrowserHtml, styleFiles, scriptFiles);
+		span.bytes(fileBrowserHtml.length()).end(success);
+		run.report.operation(RunReport.Operation.BROWSER_HTML, success, fileBrowserHtml.length(),
+				start);
+		return success;
+	}
+
+
+	private void listBrowserHtmlFiles(ModConfig config, File versionDir, List<String> styleFiles,
+			List<String> scriptFiles)
+	{
+		Path pathVivaldi = new File(versionDir, "resources/vivaldi/").toPath();
+		
+		for (Instruction instruction : config.getInstructions())
 		{
 			if (!instruction.excludeFromBrowserHtml)
 			{
@@ -437,8 +1227,105 @@ public class Patcher
 				}
 			}
 		}
+	}
+
+
+	/**
+	 * @return <code>true</code> if <code>browser.html</code> in the version
+	 *         directory either does not need to be generated, or still
+	 *         includes all mod scripts and styles.
+	 */
+	boolean isBrowserHtmlUpToDate(File vivaldiDir, File versionDir)
+	{
+		ModConfig config = getModConfig(vivaldiDir);
+		
+		if (hasBrowserHtmlInstruction(config))
+			return true;
+		
+		List<String> styleFiles = new ArrayList<>();
+		List<String> scriptFiles = new ArrayList<>();
+		listBrowserHtmlFiles(config, versionDir, styleFiles, scriptFiles);
+		
+		if (styleFiles.isEmpty() && scriptFiles.isEmpty())
+			return true;
+		
+		File fileBrowserHtml = new File(versionDir, "resources/vivaldi/browser.html");
+		
+		try
+		{
+			Document document = Jsoup.parse(fileBrowserHtml, null);
+			
+			for (String styleFile : styleFiles)
+			{
+				if (document.getElementsByAttributeValue("href", styleFile).isEmpty())
+					return false;
+			}
+			
+			for (String scriptFile : scriptFiles)
+			{
+				if (document.getElementsByAttributeValue("src", scriptFile).isEmpty())
+					return false;
+			}
+			
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+
+	/**
+	 * @return <code>true</code> if the target file of the instruction exists
+	 *         and has the same content as the mod file.
+	 */
+	boolean isTargetUpToDate(File vivaldiDir, Instruction instruction, File versionDir)
+	{
+		File sourceFile = getModFile(getModConfig(vivaldiDir), instruction);
+		File targetFile = getTargetFile(instruction, versionDir);
+		
+		if (!sourceFile.exists())
+			return true; //Nothing to re-apply; missing mod files are reported when patching.
+		
+		return contentEquals(sourceFile, targetFile);
+	}
+
+
+	private boolean contentEquals(File sourceFile, File targetFile)
+	{
+		if (!targetFile.exists() || targetFile.length() != sourceFile.length())
+			return false;
 		
-		return addStylesAndScripts(fileBrowserHtml, styleFiles, scriptFiles);
+		try (InputStream source = new BufferedInputStream(new FileInputStream(sourceFile));
+				InputStream target = new BufferedInputStream(new FileInputStream(targetFile)))
+		{
+			int read;
+			while ((read = source.read()) != -1)
+			{
+				if (read != target.read())
+					return false;
+			}
+			
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+
+	private File getModFile(ModConfig config, Instruction instruction)
+	{
+		return new File(config.getModDir(instruction), instruction.sourceFile);
+	}
+
+
+	File getTargetFile(Instruction instruction, File versionDir)
+	{
+		File targetDir = new File(versionDir, instruction.targetDirectory);
+		return new File(targetDir, new File(instruction.sourceFile).getName());
 	}
 
 
@@ -453,35 +1340,35 @@ public class Patcher
 	}
 
 
-	private boolean addStylesAndScripts(File file, List<String> styleFiles, List<String> scriptFiles)
+	private boolean addStylesAndScripts(PatchRun run, File file, List<String> styleFiles, List<String> scriptFiles)
 	{
 		if (styleFiles.isEmpty() && scriptFiles.isEmpty())
 		{
-			logger.log(null, String.format("  %s No files to add",
+			run.log(null, String.format("  %s No files to add",
 					getResultString(true)));
 			return true;
 		}
 
 		File backupFile = new File(file.getParentFile(), "browser.html.bak");
-		Document document = readBrowserHtml(backupFile);
+		Document document = readBrowserHtml(run, backupFile);
 
 		if (document != null)
 		{
 			updateHtmlDocument(document, styleFiles, scriptFiles);
 			
-			if (saveToFile(document, file))
+			if (saveToFile(run, document, file))
 			{
 				for (String scriptFile : scriptFiles)
-					logger.log(null, String.format("  %s Added %s", getResultString(true), scriptFile));
+					run.log(null, String.format("  %s Added %s", getResultString(true), scriptFile));
 				for (String styleFile : styleFiles)
-					logger.log(null, String.format("  %s Added %s", getResultString(true), styleFile));
+					run.log(null, String.format("  %s Added %s", getResultString(true), styleFile));
 				
 				return true;
 			}
 		}
 		else
 		{
-			logger.log(null, String.format("  %s Reading resources/vivaldi/browser.html",
+			run.log(null, String.format("  %s Reading resources/vivaldi/browser.html",
 							getResultString(false)));
 		}
 		
@@ -518,9 +1405,10 @@ public class Patcher
 	}
 
 
-	private Document readBrowserHtml(File file)
+	private Document readBrowserHtml(PatchRun run, File file)
 	{
 		Document document = null;
+		long start = System.nanoTime();
 		
 		try
 		{
@@ -529,15 +1417,18 @@ public class Patcher
 		catch (IOException e)
 		{
 			String message = "Could not read resources/vivaldi/browser.html!";
-			errors.add(new LogMessage(Level.ERROR, "", message, e));
+			run.addError(Level.ERROR, RunReport.Operation.BROWSER_HTML, file, message, e);
 		}
 		
+		PARSE_SECONDS.observeSince(start);
 		return document;
 	}
 
 
-	private boolean saveToFile(Document document, File file)
+	private boolean saveToFile(PatchRun run, Document document, File file)
 	{
+		long start = System.nanoTime();
+		
 		try
 		{
 			FileOperations fops = new FileOperations();
@@ -549,22 +1440,157 @@ public class Patcher
 		catch (IOException e)
 		{
 			String message = "Could not save the modified resources/vivaldi/browser.html!";
-			errors.add(new LogMessage(Level.ERROR, "", message, e));
+			run.addError(Level.ERROR, RunReport.Operation.BROWSER_HTML, file, message, e);
 
 			return false;
 		}
+		finally
+		{
+			SERIALISE_SECONDS.observeSince(start);
+		}
+	}
+
+
+	/**
+	 * Logs the errors collected by the run, a few per group. The causes of each
+	 * group are only logged once, since they are the same for all of its errors.
+	 */
+	private void logErrors(PatchRun run)
+	{
+		ErrorAggregator errors = run.takeErrors();
+		int errorCount = errors.getErrorCount();
+		
+		run.log(null, String.format("%s ERROR%s OCCURRED", errorCount, errorCount != 1 ? "S" : ""));
+		for (ErrorGroup group : errors.getGroups())
+		{
+			for (int i = 0; i < group.samples.size(); i++)
+			{
+				LogMessage error = group.samples.get(i);
+				String message = String.format("  %s %s", getResultString(false), error.message);
+				run.log(error.logLevel, error.location, message, i == 0 ? error.throwable : null);
+			}
+			
+			int remaining = group.count - group.samples.size();
+			if (remaining > 0)
+			{
+				if (group.isOverflow())
+					run.log(null, String.format("      ...and %d other errors", remaining));
+				else
+					run.log(null, String.format("      ...and %d more like these in %s", remaining,
+							group.directory));
+			}
+			
+			notifyError(group);
+		}
+	}
+	
+	
+	/**
+	 * Adds the work of patching the specified number of versions with the
+	 * instructions to the progress.
+	 */
+	private void planProgress(PatchRun run, int versionCount, Collection<Instruction> instructions,
+			boolean browserHtml)
+	{
+		setVersionWork(run, instructions, browserHtml);
+		progress.addPlanned(run.versionOperations * versionCount, run.versionBytes * versionCount);
 	}
 
 
-	private void logErrors()
+	/**
+	 * Adds the work of patching the versions with the config of their
+	 * installation to the progress, and switches to the config of the first
+	 * installation. Versions that were already planned by
+	 * {@link #startBatch(List)} are not added again. If an installation has
+	 * fewer versions than were planned, the work of the missing versions is
+	 * completed instead.
+	 * 
+	 * @return The number of versions that were added to the plan.
+	 */
+	private int planProgress(PatchRun run, List<ObjectPair<File, File>> versionDirs)
 	{
-		logger.log(null, String.format("%s ERROR%s OCCURRED", errors.size(), errors.size() != 1 ? "S" : ""));
-		for (LogMessage error : errors)
+		Map<File, Integer> versionCounts = new LinkedHashMap<>();
+		for (ObjectPair<File, File> versionDir : versionDirs)
+			versionCounts.merge(versionDir.getSecond(), 1, Integer::sum);
+		
+		int addedVersions = 0;
+		for (Entry<File, Integer> entry : versionCounts.entrySet())
 		{
-			String message = String.format("  %s %s", getResultString(false), error.message);
-			logger.log(error.logLevel, error.location, message, error.throwable, false);
+			Integer planned = plannedVersions.remove(entry.getKey());
+			int added = entry.getValue() - (planned != null ? planned : 0);
+			
+			run.useInstallation(entry.getKey());
+			setVersionWork(run, run.config.getInstructions(), !hasBrowserHtmlInstruction(run.config));
+			if (added >= 0)
+				progress.addPlanned(run.versionOperations * added, run.versionBytes * added);
+			else
+				progress.addCompleted(run.versionOperations * -added, run.versionBytes * -added);
+			
+			addedVersions += added;
 		}
-		errors.clear();
+		
+		if (!versionDirs.isEmpty())
+			useInstallation(run, versionDirs.get(0).getSecond());
+		
+		return addedVersions;
+	}
+
+
+	/**
+	 * Switches to the config of an installation, and updates the work of each
+	 * version accordingly.
+	 */
+	private void useInstallation(PatchRun run, File vivaldiDir)
+	{
+		run.useInstallation(vivaldiDir);
+		setVersionWork(run, run.config.getInstructions(), !hasBrowserHtmlInstruction(run.config));
+	}
+
+
+	private void setVersionWork(PatchRun run, Collection<Instruction> instructions,
+			boolean browserHtml)
+	{
+		run.versionOperations = getVersionOperations(instructions, browserHtml);
+		run.versionBytes = getModBytes(run.config, instructions);
+	}
+
+
+	private long getVersionOperations(Collection<Instruction> instructions, boolean browserHtml)
+	{
+		return instructions.size() + (browserHtml ? 1 : 0);
+	}
+
+
+	private long getModBytes(ModConfig config, Collection<Instruction> instructions)
+	{
+		long bytes = 0;
+		for (Instruction instruction : instructions)
+			bytes += getModFile(config, instruction).length();
+		
+		return bytes;
+	}
+
+
+	private void operationCompleted(PatchRun run, long bytes)
+	{
+		run.completedOperations++;
+		run.completedBytes += bytes;
+		progress.addCompleted(1, bytes);
+	}
+
+
+	/**
+	 * Completes the planned work of the current version that was not done (e.g.
+	 * because the version was skipped or a backup failed), so the progress
+	 * does not stall.
+	 */
+	private void versionCompleted(PatchRun run)
+	{
+		progress.addCompleted(Math.max(0, run.versionOperations - run.completedOperations),
+				Math.max(0, run.versionBytes - run.completedBytes));
+		
+		run.completedOperations = 0;
+		run.completedBytes = 0;
 	}
 	
 	
@@ -574,14 +1600,15 @@ public class Patcher
 	}
 
 
-	private void versionPatched(File vivaldiDir, File versionFolder)
+	private void versionUnpatched(File vivaldiDir, File versionFolder)
 	{
-		String key = getAbsolutePath(vivaldiDir);
+		patchedVersions.setUnpatched(vivaldiDir, versionFolder);
+	}
 
-		List<String> versions = patchedVersions.computeIfAbsent(key, k -> new ArrayList<>());
-		
-		if (!versions.contains(versionFolder.getName()))
-			versions.add(versionFolder.getName());
+
+	private void versionPatched(File vivaldiDir, File versionFolder)
+	{
+		patchedVersions.setPatched(vivaldiDir, versionFolder);
 	}
 
 
@@ -598,98 +1625,180 @@ public class Patcher
 	}
 
 
-	private void savePatchedVersions()
+	/**
+	 * Writes the run report and adds the run to the history. A warning is
+	 * logged if the run was much slower than usual.
+	 */
+	private void recordRun(PatchRun run, boolean success)
 	{
-		FileOperations fops = new FileOperations();
-
+		File file = reportFile;
+		
 		try
 		{
-			fops.createWriter(new File(Backend.FILE_PATCHED), false);
-
-			StringBuilder builder = new StringBuilder();
-			for (Entry<String, List<String>> entry : patchedVersions.entrySet())
-			{
-				builder.append(entry.getKey()).append("=");
-				for (String version : entry.getValue())
-					builder.append(version).append(";");
-				builder.append("\n");
-			}
-
-			fops.printData(builder.toString(), false);
+			if (file != null)
+				run.report.appendTo(file, success);
 		}
 		catch (IOException e)
 		{
-			String msg = "Could not write the patched versions file!";
+			String msg = String.format("Could not write the run report to %s!", file);
 			LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
 		}
-		finally
+		
+		try
 		{
-			try
-			{
-				fops.closeWriter();
-			}
-			catch (IOException e)
+			double slowdown = history.record(run.report.toHistoryRun(success));
+			if (slowdown >= PatchHistory.REGRESSION_FACTOR)
 			{
-				//Ignore
+				run.log(Level.WARNING, String.format(Locale.ROOT,
+						"Patching took %.1f times longer per version than usual!", slowdown));
 			}
 		}
+		catch (IOException e)
+		{
+			String msg = "Could not update the patch history!";
+			LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
+		}
+	}
+
+
+	private void savePatchedVersions()
+	{
+		patchedVersions.save();
 	}
 
 
 	private void notifyPatchStarted()
 	{
-		for (PatchProgressListener listener : listeners)
-			listener.onPatchStarted();
+		eventDispatcher.publish(PatchEvent.patchStarted());
 	}
 
 
 	private void notifyPatchFinished(boolean success)
 	{
-		for (PatchProgressListener listener : listeners)
-			listener.onPatchFinished(success);
+		eventDispatcher.publish(PatchEvent.patchFinished(success));
 	}
 
 
-	private void notifyFilesToPatch(List<ObjectPair<File, File>> versionDirs)
+	/**
+	 * Reports the total number of versions in all active runs and batches, so
+	 * listeners see them as one patch.
+	 * 
+	 * @param addedVersions The number of versions the run adds to the patch.
+	 */
+	private synchronized void notifyFilesToPatch(PatchRun run, int addedVersions)
 	{
-		for (PatchProgressListener listener : listeners)
-			listener.filesToPatch(versionDirs.size(), modConfig.getInstructions().size());
+		batchVersionCount += addedVersions;
+		
+		int modFileCount = run.config.getInstructions().size();
+		eventDispatcher.publish(PatchEvent.filesToPatch(batchVersionCount, modFileCount));
 	}
 
 
 	private void notifyNextInstallation(File vivaldiDir)
 	{
-		for (PatchProgressListener listener : listeners)
-			listener.onNextInstallation(vivaldiDir);
+		eventDispatcher.publish(PatchEvent.nextInstallation(vivaldiDir));
+	}
+
+
+	private void notifyNextVersion(File versionDir)
+	{
+		eventDispatcher.publish(PatchEvent.nextVersion(versionDir));
 	}
 
 
-	@SuppressWarnings("unused")
 	private void notifyNextModFile(Instruction instruction)
 	{
-		for (PatchProgressListener listener : listeners)
-			listener.onNextModFile(instruction.sourceFile);
+		eventDispatcher.publish(PatchEvent.nextModFile(instruction.sourceFile));
+	}
+
+
+	private void notifyBytesCopied(long bytes)
+	{
+		eventDispatcher.publish(PatchEvent.bytesCopied(batchBytesCopied.addAndGet(bytes)));
+	}
+
+
+	private void notifyError(ErrorGroup group)
+	{
+		LogMessage error = group.samples.get(0);
+		String message = error.message;
+		if (error.throwable != null && error.throwable.getMessage() != null)
+			message += ": " + error.throwable.getMessage();
+		if (group.count > 1)
+			message += String.format(" (and %d more)", group.count - 1);
+		
+		eventDispatcher.publish(PatchEvent.error(message));
 	}
 	
 	
-	private class LogMessage
+	/**
+	 * Keeps an installation locked while its versions are patched one after
+	 * the other, and locks each version while it is patched. Versions are
+	 * skipped if either lock is held by another process.
+	 */
+	private class DirectoryLocks
 	{
-		private final Level logLevel;
-		private final String location;
-		private final String message;
-		private final Throwable throwable;
+		private final PatchRun run;
+		private File vivaldiDir;
+		private InstallationLock installationLock;
+		private InstallationLock versionLock;
+		private int skippedVersions;
+		
 		
-		public LogMessage(Level logLevel, String message)
+		DirectoryLocks(PatchRun run)
 		{
-			this(logLevel, null, message, null);
+			this.run = run;
 		}
-
-		public LogMessage(Level logLevel, String location, String message, Throwable t)
+		
+		
+		/**
+		 * Locks a version, and its installation unless it is already locked.
+		 * 
+		 * @return <code>false</code> if the version should be skipped.
+		 */
+		boolean lock(File vivaldiDir, File versionDir)
+		{
+			if (!vivaldiDir.equals(this.vivaldiDir))
+			{
+				unlockInstallation();
+				this.vivaldiDir = vivaldiDir;
+				installationLock = lockDirectory(run, vivaldiDir, "Installation");
+			}
+			
+			if (installationLock != null)
+				versionLock = lockDirectory(run, versionDir, "Version");
+			
+			if (versionLock == null)
+			{
+				skippedVersions++;
+				return false;
+			}
+			
+			return true;
+		}
+		
+		
+		void unlockVersion()
+		{
+			if (versionLock != null)
+				versionLock.close();
+			versionLock = null;
+		}
+		
+		
+		void unlockInstallation()
+		{
+			unlockVersion();
+			
+			if (installationLock != null)
+				installationLock.close();
+			installationLock = null;
+		}
+		
+		
+		int getSkippedVersions()
 		{
-			this.logLevel = logLevel;
-			this.location = location;
-			this.message = message;
-			this.throwable = t;
+			return skippedVersions;
 		}
 	}
 }
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import komposten.utilities.logging.Level;
+import komposten.vivaldi.backend.ErrorAggregator.ErrorGroup;
+import komposten.vivaldi.util.Json;
+
+
+/**
+ * A machine-readable report of a patch run, with the outcome of each version,
+ * the time and bytes spent on each kind of operation, and the errors that
+ * occurred (grouped by an {@link ErrorAggregator}).
+ * <br />
+ * Reports are appended to a file as JSON Lines (one run per line).
+ * <br />
+ * A report belongs to a single run, and is not thread-safe.
+ */
+class RunReport
+{
+	enum Operation
+	{
+		BACKUP("backup"),
+		COPY("copy"),
+		BROWSER_HTML("browserHtml"),
+		RESTORE("restore");
+
+		final String key;
+
+
+		private Operation(String key)
+		{
+			this.key = key;
+		}
+	}
+
+
+	static final String OUTCOME_PATCHED = "patched";
+	static final String OUTCOME_FAILED = "failed";
+	static final String OUTCOME_ALREADY_PATCHED = "already-patched";
+	/** The version was skipped since another process was patching it. */
+	static final String OUTCOME_LOCKED = "locked";
+
+	/** Report files larger than this are rolled over to <code>.1</code>. */
+	private static final long MAX_FILE_SIZE = 10 * 1024 * 1024;
+	private static final Object FILE_LOCK = new Object();
+
+	private final Instant started;
+	private final long startNanos;
+	private final Map<File, List<VersionReport>> installations;
+	private final List<String> missingInstallations;
+	private final ErrorAggregator runErrors;
+	private VersionReport currentVersion;
+	private int cancelledVersions;
+
+
+	RunReport()
+	{
+		this.started = Instant.now();
+		this.startNanos = System.nanoTime();
+		this.installations = new LinkedHashMap<>();
+		this.missingInstallations = new ArrayList<>();
+		this.runErrors = new ErrorAggregator();
+	}
+
+
+	void startVersion(File vivaldiDir, File versionDir)
+	{
+		currentVersion = new VersionReport(versionDir);
+		installations.computeIfAbsent(vivaldiDir, dir -> new ArrayList<>()).add(currentVersion);
+	}
+
+
+	void endVersion(String outcome)
+	{
+		if (currentVersion != null)
+		{
+			currentVersion.outcome = outcome;
+			currentVersion.durationNanos = System.nanoTime() - currentVersion.startNanos;
+			currentVersion = null;
+		}
+	}
+
+
+	/**
+	 * Records a version that was not patched at all, e.g. because it was
+	 * locked.
+	 */
+	void skipVersion(File vivaldiDir, File versionDir, String outcome)
+	{
+		startVersion(vivaldiDir, versionDir);
+		endVersion(outcome);
+	}
+
+
+	/**
+	 * Records an operation in the current version. Operations outside of a
+	 * version are ignored.
+	 *
+	 * @param startNanos When the operation started, as returned by
+	 *          {@link System#nanoTime()}.
+	 */
+	void operation(Operation operation, boolean success, long bytes, long startNanos)
+	{
+		if (currentVersion == null)
+			return;
+
+		OperationStats stats = currentVersion.operations.computeIfAbsent(operation,
+				key -> new OperationStats());
+		stats.count++;
+		stats.nanos += System.nanoTime() - startNanos;
+		if (success)
+			stats.bytes += bytes;
+		else
+			stats.failed++;
+	}
+
+
+	void error(Level logLevel, Operation operation, File file, String message, Throwable throwable)
+	{
+		ErrorAggregator errors = (currentVersion != null ? currentVersion.errors : runErrors);
+		errors.add(logLevel, operation, file, message, throwable);
+	}
+
+
+	void missingInstallation(File vivaldiDir)
+	{
+		missingInstallations.add(vivaldiDir.getPath());
+	}
+
+
+	void cancelled(int remainingVersions)
+	{
+		cancelledVersions += remainingVersions;
+	}
+
+
+	Map<String, Object> toMap(boolean success)
+	{
+		Map<String, Integer> outcomes = new LinkedHashMap<>();
+		List<Object> installationList = new ArrayList<>();
+
+		for (Map.Entry<File, List<VersionReport>> entry : installations.entrySet())
+		{
+			List<Object> versionList = new ArrayList<>();
+			for (VersionReport version : entry.getValue())
+			{
+				outcomes.merge(version.outcome, 1, Integer::sum);
+				versionList.add(version.toMap());
+			}
+
+			Map<String, Object> installation = new LinkedHashMap<>();
+			installation.put("path", entry.getKey().getPath());
+			installation.put("versions", versionList);
+			installationList.add(installation);
+		}
+
+		if (cancelledVersions > 0)
+			outcomes.put("cancelled", cancelledVersions);
+
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("started", started.toString());
+		map.put("durationMs", toMillis(System.nanoTime() - startNanos));
+		map.put("success", success);
+		map.put("versions", outcomes);
+		map.put("installations", installationList);
+		map.put("missingInstallations", missingInstallations);
+		map.put("errorCount", runErrors.getErrorCount());
+		map.put("errors", toList(runErrors));
+		return map;
+	}
+
+
+	/**
+	 * @return A summary of the run for the {@link PatchHistory}.
+	 */
+	PatchHistory.Run toHistoryRun(boolean success)
+	{
+		long[] nanos = new long[Operation.values().length];
+		long bytes = 0;
+		int versions = 0;
+		int skippedVersions = cancelledVersions;
+
+		for (List<VersionReport> versionReports : installations.values())
+		{
+			for (VersionReport version : versionReports)
+			{
+				if (OUTCOME_PATCHED.equals(version.outcome) || OUTCOME_FAILED.equals(version.outcome))
+					versions++;
+				else
+					skippedVersions++;
+
+				for (Map.Entry<Operation, OperationStats> entry : version.operations.entrySet())
+				{
+					nanos[entry.getKey().ordinal()] += entry.getValue().nanos;
+					bytes += entry.getValue().bytes;
+				}
+			}
+		}
+
+		return new PatchHistory.Run(started.toEpochMilli(), toMillis(System.nanoTime() - startNanos),
+				toMillis(nanos[Operation.BACKUP.ordinal()]), toMillis(nanos[Operation.COPY.ordinal()]),
+				toMillis(nanos[Operation.BROWSER_HTML.ordinal()]), bytes, versions, skippedVersions,
+				success);
+	}
+
+
+	/**
+	 * Appends the report to a JSON Lines file as a single line.
+	 */
+	void appendTo(File file, boolean success) throws IOException
+	{
+		byte[] line = (Json.write(toMap(success)) + "\n").getBytes(StandardCharsets.UTF_8);
+
+		synchronized (FILE_LOCK)
+		{
+			if (file.length() > MAX_FILE_SIZE)
+			{
+				Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			Files.write(file.toPath(), line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+	}
+
+
+	private static List<Object> toList(ErrorAggregator errors)
+	{
+		List<Object> list = new ArrayList<>();
+
+		for (ErrorGroup group : errors.getGroups())
+		{
+			List<String> samples = new ArrayList<>();
+			for (PatchRun.LogMessage sample : group.samples)
+				samples.add(sample.message);
+
+			List<String> causes = new ArrayList<>();
+			Throwable throwable = group.samples.get(0).throwable;
+			for (Throwable cause = throwable; cause != null; cause = cause.getCause())
+				causes.add(cause.getClass().getName() + ": " + cause.getMessage());
+
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put("operation", group.isOverflow() ? "other" : group.operation.key);
+			map.put("directory", group.directory != null ? group.directory.getPath() : null);
+			map.put("rootCause", group.rootCause);
+			map.put("count", group.count);
+			map.put("samples", samples);
+			map.put("causes", causes);
+			list.add(map);
+		}
+
+		return list;
+	}
+
+
+	private static long toMillis(long nanos)
+	{
+		return nanos / 1000000;
+	}
+
+
+	private static class VersionReport
+	{
+		final File versionDir;
+		final long startNanos;
+		final Map<Operation, OperationStats> operations;
+		final ErrorAggregator errors;
+		String outcome;
+		long durationNanos;
+
+
+		VersionReport(File versionDir)
+		{
+			this.versionDir = versionDir;
+			this.startNanos = System.nanoTime();
+			this.operations = new LinkedHashMap<>();
+			this.errors = new ErrorAggregator();
+		}
+
+
+		Map<String, Object> toMap()
+		{
+			Map<String, Object> operationMap = new LinkedHashMap<>();
+			for (Map.Entry<Operation, OperationStats> entry : operations.entrySet())
+				operationMap.put(entry.getKey().key, entry.getValue().toMap());
+
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put("version", versionDir.getName());
+			map.put("path", versionDir.getPath());
+			map.put("outcome", outcome);
+			map.put("durationMs", toMillis(durationNanos));
+			map.put("operations", operationMap);
+			map.put("errorCount", errors.getErrorCount());
+			map.put("errors", toList(errors));
+			return map;
+		}
+	}
+
+
+	private static class OperationStats
+	{
+		int count;
+		int failed;
+		long bytes;
+		long nanos;
+
+
+		Map<String, Object> toMap()
+		{
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put("count", count);
+			map.put("failed", failed);
+			map.put("bytes", bytes);
+			map.put("durationMs", toMillis(nanos));
+			return map;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * A lock file that gives one fleet worker exclusive ownership of a shard. The
+ * lock is created atomically and contains the owner's id, so it works on
+ * shared storage where <code>FileChannel</code> locks are unreliable.
+ * <br />
+ * The owner must {@link #heartbeat() touch} the lock regularly. A lock that
+ * has not been touched for the stale timeout is assumed to belong to a
+ * crashed worker, and may be taken over by another worker.
+ */
+class ShardLock
+{
+	private final File file;
+	private final String owner;
+	private final long staleTimeout;
+
+
+	/**
+	 * @param owner A unique id of the worker process.
+	 * @param staleTimeout How long (in milliseconds) the lock may go without a
+	 *          heartbeat before it is considered abandoned.
+	 */
+	ShardLock(File file, String owner, long staleTimeout)
+	{
+		this.file = file;
+		this.owner = owner;
+		this.staleTimeout = staleTimeout;
+	}
+
+
+	/**
+	 * Tries to acquire the lock, taking it over if it is stale.
+	 *
+	 * @return <code>true</code> if the lock was acquired.
+	 */
+	public boolean tryAcquire() throws IOException
+	{
+		if (create())
+			return true;
+
+		if (!isStale(file))
+			return false;
+
+		//Move the stale lock out of the way first, so that only one worker can
+		//take it over.
+		File claimed = new File(file.getPath() + "." + Integer.toHexString(owner.hashCode()) + ".stale");
+		if (!file.renameTo(claimed))
+			return false;
+
+		if (!isStale(claimed))
+		{
+			//Another worker took over the lock just before we moved it; give it back.
+			try
+			{
+				Files.move(claimed.toPath(), file.toPath());
+			}
+			catch (FileAlreadyExistsException e)
+			{
+				//A third worker has already created a new lock, so the moved one is
+				//obsolete. Its owner notices at its next heartbeat.
+				Files.deleteIfExists(claimed.toPath());
+			}
+			return false;
+		}
+
+		Files.deleteIfExists(claimed.toPath());
+		return create();
+	}
+
+
+	private boolean create() throws IOException
+	{
+		try
+		{
+			Files.write(file.toPath(), owner.getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			return true;
+		}
+		catch (FileAlreadyExistsException e)
+		{
+			return false;
+		}
+	}
+
+
+	private boolean isStale(File lockFile)
+	{
+		long lastModified = lockFile.lastModified();
+		return lastModified != 0 && System.currentTimeMillis() - lastModified > staleTimeout;
+	}
+
+
+	/**
+	 * @return <code>true</code> if the lock exists and belongs to this owner.
+	 */
+	public boolean isHeld()
+	{
+		try
+		{
+			byte[] content = Files.readAllBytes(file.toPath());
+			return owner.equals(new String(content, StandardCharsets.UTF_8));
+		}
+		catch (NoSuchFileException e)
+		{
+			return false;
+		}
+		catch (IOException e)
+		{
+			//Assume that the lock is still held; a real takeover is detected the
+			//next time.
+			return true;
+		}
+	}
+
+
+	/**
+	 * Marks the lock as alive.
+	 *
+	 * @return <code>false</code> if the lock has been taken over by another
+	 *         worker.
+	 */
+	public boolean heartbeat()
+	{
+		if (!isHeld())
+			return false;
+
+		file.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+
+	public void release() throws IOException
+	{
+		if (isHeld())
+			Files.deleteIfExists(file.toPath());
+	}
+}
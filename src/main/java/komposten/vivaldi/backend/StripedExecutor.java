@@ -0,0 +1,189 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+
+
+/**
+ * Runs work on a pool of threads, split into stripes keyed by Vivaldi
+ * directory. Work on the same stripe runs one at a time in the order it was
+ * posted (and is merged like in a {@link WorkQueue}), while different stripes
+ * run concurrently.
+ * <br />
+ * A stripe only occupies a thread while it has pending work, so the number of
+ * stripes is not limited by the number of threads.
+ */
+class StripedExecutor
+{
+	private final String name;
+	private final ExecutorService threadPool;
+	private final Map<String, Stripe> stripes;
+
+
+	/**
+	 * @param name The name of the executor, used to name its threads.
+	 * @param threadCount The maximum number of stripes to run at once.
+	 */
+	public StripedExecutor(String name, int threadCount)
+	{
+		AtomicInteger threadNumber = new AtomicInteger();
+
+		this.name = name;
+		this.stripes = new ConcurrentHashMap<>();
+		this.threadPool = Executors.newFixedThreadPool(threadCount, runnable ->
+		{
+			Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+
+	public void postRunnable(File key, Runnable runnable)
+	{
+		postWork(key, new WorkQueue.Work()
+		{
+			@Override
+			public void run()
+			{
+				runnable.run();
+			}
+		});
+	}
+
+
+	/**
+	 * Posts work to the stripe of the specified directory. Directories are
+	 * compared by canonical path, so different paths to the same installation
+	 * share a stripe.
+	 */
+	public void postWork(File key, WorkQueue.Work work)
+	{
+		Stripe stripe = stripes.computeIfAbsent(getStripeKey(key), k -> new Stripe());
+
+		synchronized (stripe)
+		{
+			stripe.queue.post(work);
+
+			if (!stripe.scheduled)
+			{
+				stripe.scheduled = true;
+				threadPool.execute(stripe);
+			}
+		}
+	}
+
+
+	/**
+	 * Removes all work that has been posted but not started yet. Work that is
+	 * running is not affected.
+	 *
+	 * @return The removed work.
+	 */
+	public List<WorkQueue.Work> clear()
+	{
+		List<WorkQueue.Work> removed = new ArrayList<>();
+
+		for (Stripe stripe : stripes.values())
+			removed.addAll(stripe.queue.clear());
+
+		return removed;
+	}
+
+
+	/**
+	 * @return The number of work items that have been posted but not started.
+	 */
+	public int getPendingCount()
+	{
+		int count = 0;
+
+		for (Stripe stripe : stripes.values())
+			count += stripe.queue.size();
+
+		return count;
+	}
+
+
+	/**
+	 * @return The key of the stripe that work for <code>file</code> is run on,
+	 *         so different paths to the same directory share a stripe.
+	 */
+	static String getStripeKey(File file)
+	{
+		try
+		{
+			return file.getCanonicalPath();
+		}
+		catch (IOException e)
+		{
+			return file.getAbsolutePath();
+		}
+	}
+
+
+	private class Stripe implements Runnable
+	{
+		private final WorkQueue queue = new WorkQueue();
+		private boolean scheduled;
+
+
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				WorkQueue.Work work;
+
+				synchronized (this)
+				{
+					work = queue.poll();
+
+					if (work == null)
+					{
+						scheduled = false;
+						return;
+					}
+				}
+
+				try
+				{
+					work.run();
+				}
+				catch (RuntimeException e)
+				{
+					String msg = String.format("Uncaught exception in %s!", name);
+					LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+
+/**
+ * A FIFO queue of work which merges new work into pending work that already
+ * covers it, so that e.g. five requests to patch the same installation
+ * result in a single patch.
+ */
+class WorkQueue
+{
+	/**
+	 * A unit of work that can absorb work posted after it.
+	 */
+	abstract static class Work implements Runnable
+	{
+		/**
+		 * Called on pending work when <code>newer</code> is posted. If this work
+		 * covers <code>newer</code> (possibly after updating itself),
+		 * <code>newer</code> is dropped.
+		 *
+		 * @return <code>true</code> if <code>newer</code> does not need to be run.
+		 */
+		boolean absorb(Work newer)
+		{
+			return false;
+		}
+	}
+
+
+	/**
+	 * A request to patch a Vivaldi installation. Requests for the same
+	 * installation are merged, and the merged request is forced
+	 * (<code>patchAll</code>) if any of them was. Installations are compared
+	 * by their {@link StripedExecutor#getStripeKey(File) stripe key}, so
+	 * requests that use different paths to the same installation are merged
+	 * as well.
+	 */
+	abstract static class PatchWork extends Work
+	{
+		protected final File vivaldiDir;
+		protected boolean patchAll;
+		private final String key;
+
+
+		/**
+		 * @param vivaldiDir The installation to patch.
+		 * @param patchAll If versions that have already been patched should be
+		 *          patched again.
+		 */
+		PatchWork(File vivaldiDir, boolean patchAll)
+		{
+			this.vivaldiDir = vivaldiDir;
+			this.patchAll = patchAll;
+			this.key = StripedExecutor.getStripeKey(vivaldiDir);
+		}
+
+
+		@Override
+		boolean absorb(Work newer)
+		{
+			if (!(newer instanceof PatchWork))
+				return false;
+
+			PatchWork other = (PatchWork) newer;
+
+			if (key.equals(other.key))
+			{
+				patchAll |= other.patchAll;
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+
+	private final LinkedList<Work> pending;
+
+
+	public WorkQueue()
+	{
+		pending = new LinkedList<>();
+	}
+
+
+	/**
+	 * Adds work to the end of the queue, unless it is absorbed by pending work.
+	 * Pending work that is covered by the new work is removed.
+	 *
+	 * @return <code>true</code> if the work was queued, <code>false</code> if
+	 *         it was absorbed.
+	 */
+	public synchronized boolean post(Work work)
+	{
+		for (Work existing : pending)
+		{
+			if (existing.absorb(work))
+				return false;
+		}
+
+		Iterator<Work> iterator = pending.iterator();
+		while (iterator.hasNext())
+		{
+			if (work.absorb(iterator.next()))
+				iterator.remove();
+		}
+
+		pending.add(work);
+		notifyAll();
+		return true;
+	}
+
+
+	public synchronized Work take() throws InterruptedException
+	{
+		while (pending.isEmpty())
+			wait();
+
+		return pending.removeFirst();
+	}
+
+
+	/**
+	 * @return The first pending work, or <code>null</code> if the queue is
+	 *         empty.
+	 */
+	public synchronized Work poll()
+	{
+		return pending.pollFirst();
+	}
+
+
+	/**
+	 * Removes all pending work.
+	 *
+	 * @return The removed work.
+	 */
+	public synchronized List<Work> clear()
+	{
+		List<Work> removed = new ArrayList<>(pending);
+		pending.clear();
+		return removed;
+	}
+
+
+	public synchronized int size()
+	{
+		return pending.size();
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.backend;
+
+
+/**
+ * Runs posted work one at a time. Used for control operations (e.g. saving
+ * the config or re-registering watchers) that should not wait for patches
+ * to finish.
+ */
+class WorkerThread extends Thread
+{
+	private WorkQueue workQueue;
+
+
+	public WorkerThread(String name)
+	{
+		super(name);
+
+		this.workQueue = new WorkQueue();
+	}
+
+
+	int getQueueDepth()
+	{
+		return workQueue.size();
+	}
+
+
+	void postRunnable(Runnable runnable)
+	{
+		workQueue.post(new WorkQueue.Work()
+		{
+			@Override
+			public void run()
+			{
+				runnable.run();
+			}
+		});
+	}
+
+
+	@Override
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				workQueue.take().run();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,823 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.cli;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import komposten.utilities.logging.LogUtils;
+import komposten.vivaldi.backend.Backend;
+import komposten.vivaldi.backend.FleetWorker;
+import komposten.vivaldi.backend.ModConfig;
+import komposten.vivaldi.backend.PatchBenchmark;
+import komposten.vivaldi.backend.PatchHistory;
+import komposten.vivaldi.backend.PatchLogger;
+import komposten.vivaldi.backend.Patcher;
+import komposten.vivaldi.util.DirectoryUtils;
+import komposten.vivaldi.util.Metrics;
+
+
+/**
+ * Runs VivaldiModder from the command line. Does not use AWT or Swing, so it
+ * can run on machines without a display.
+ * <br />
+ * The patch log is written to both <code>patchlog.txt</code> and standard
+ * output. The exit code is one of {@link #EXIT_OK}, {@link #EXIT_FAILED},
+ * {@link #EXIT_INVALID} and {@link #EXIT_CONFIG_ERROR}.
+ */
+public class CommandLine
+{
+	/** The command completed successfully. */
+	public static final int EXIT_OK = 0;
+	/** One or more versions could not be patched or unpatched. */
+	public static final int EXIT_FAILED = 1;
+	/** The command line or the config is invalid. */
+	public static final int EXIT_INVALID = 2;
+	/** The config could not be loaded. */
+	public static final int EXIT_CONFIG_ERROR = 3;
+
+	private static final String DEFAULT_CONFIG = "config.ini";
+	private static final String FILE_BENCHMARK_LOG = "benchmarklog.txt";
+	private static final int DEFAULT_SHARD_SIZE = 100;
+	private static final int DEFAULT_HISTORY_LIMIT = 20;
+	private static final int DEFAULT_BENCHMARK_THREADS = Math.max(1,
+			Math.min(8, Runtime.getRuntime().availableProcessors()));
+	private static final long METRICS_INTERVAL = 15 * 1000;
+	/** How long a shut-down daemon waits for the current version to be patched, in ms. */
+	private static final long DAEMON_SHUTDOWN_TIMEOUT = 10 * 1000;
+	private static final List<String> COMMANDS = Arrays.asList("patch", "unpatch", "validate",
+			"daemon", "fleet", "history", "benchmark", "help", "--help", "-h");
+
+	private final PrintStream out;
+	private final PrintStream err;
+
+	private String command;
+	private List<String> configPaths;
+	private boolean patchAll;
+	private int port;
+	private String manifestPath;
+	private String statePath;
+	private int shardSize;
+	private String metricsPath;
+	private int historyLimit;
+	private List<String> versionPaths;
+	private String scratchPath;
+	private int benchmarkThreads;
+
+
+	public CommandLine(PrintStream out, PrintStream err)
+	{
+		this.out = out;
+		this.err = err;
+	}
+
+
+	/**
+	 * @return <code>true</code> if <code>arg</code> is a command-line command.
+	 */
+	public static boolean isCommand(String arg)
+	{
+		return COMMANDS.contains(arg);
+	}
+
+
+	/**
+	 * Runs the command specified by <code>args</code>.
+	 *
+	 * @return The exit code.
+	 */
+	public int run(String[] args)
+	{
+		if (!parseArguments(args))
+		{
+			printUsage(err);
+			return EXIT_INVALID;
+		}
+
+		if (metricsPath == null)
+			return runCommand();
+
+		Metrics.startExporting(new File(metricsPath), METRICS_INTERVAL);
+		try
+		{
+			return runCommand();
+		}
+		finally
+		{
+			Metrics.stopExporting(new File(metricsPath));
+		}
+	}
+
+
+	private int runCommand()
+	{
+		switch (command)
+		{
+			case "patch" :
+			case "unpatch" :
+				return runPatch();
+			case "validate" :
+				return runValidate();
+			case "daemon" :
+				return runDaemon();
+			case "fleet" :
+				return runFleet();
+			case "history" :
+				return runHistory();
+			case "benchmark" :
+				return runBenchmark();
+			default :
+				printUsage(out);
+				return EXIT_OK;
+		}
+	}
+
+
+	private boolean parseArguments(String[] args)
+	{
+		if (args.length == 0)
+		{
+			err.println("No command specified!");
+			return false;
+		}
+
+		command = args[0];
+		configPaths = new ArrayList<>();
+		patchAll = false;
+		port = Daemon.DEFAULT_PORT;
+		manifestPath = null;
+		statePath = null;
+		shardSize = DEFAULT_SHARD_SIZE;
+		metricsPath = null;
+		historyLimit = DEFAULT_HISTORY_LIMIT;
+		versionPaths = new ArrayList<>();
+		scratchPath = System.getProperty("java.io.tmpdir");
+		benchmarkThreads = DEFAULT_BENCHMARK_THREADS;
+
+		if (!isCommand(command))
+		{
+			err.println("Unknown command: " + command);
+			return false;
+		}
+
+		for (int i = 1; i < args.length; i++)
+		{
+			String arg = args[i];
+
+			if (arg.equals("--all") && (command.equals("patch") || command.equals("fleet")))
+			{
+				patchAll = true;
+			}
+			else if (arg.equals("--config") && i + 1 < args.length)
+			{
+				configPaths.add(args[++i]);
+			}
+			else if (arg.startsWith("--config="))
+			{
+				configPaths.add(arg.substring("--config=".length()));
+			}
+			else if (arg.equals("--port") && i + 1 < args.length && command.equals("daemon"))
+			{
+				if (!parsePort(args[++i]))
+					return false;
+			}
+			else if (arg.equals("--metrics") && i + 1 < args.length)
+			{
+				metricsPath = args[++i];
+			}
+			else if (arg.equals("--manifest") && i + 1 < args.length && command.equals("fleet"))
+			{
+				manifestPath = args[++i];
+			}
+			else if (arg.equals("--state") && i + 1 < args.length && command.equals("fleet"))
+			{
+				statePath = args[++i];
+			}
+			else if (arg.equals("--shard-size") && i + 1 < args.length && command.equals("fleet"))
+			{
+				if (!parseShardSize(args[++i]))
+					return false;
+			}
+			else if (arg.equals("--limit") && i + 1 < args.length && command.equals("history"))
+			{
+				if (!parseHistoryLimit(args[++i]))
+					return false;
+			}
+			else if (arg.equals("--version") && i + 1 < args.length && command.equals("benchmark"))
+			{
+				versionPaths.add(args[++i]);
+			}
+			else if (arg.equals("--scratch") && i + 1 < args.length && command.equals("benchmark"))
+			{
+				scratchPath = args[++i];
+			}
+			else if (arg.equals("--threads") && i + 1 < args.length && command.equals("benchmark"))
+			{
+				if (!parseBenchmarkThreads(args[++i]))
+					return false;
+			}
+			else
+			{
+				err.println("Unknown or incomplete option: " + arg);
+				return false;
+			}
+		}
+
+		if (configPaths.isEmpty())
+			configPaths.add(DEFAULT_CONFIG);
+
+		if (command.equals("fleet") && (manifestPath == null || statePath == null))
+		{
+			err.println("The fleet command requires --manifest and --state!");
+			return false;
+		}
+
+		return true;
+	}
+
+
+	private boolean parsePort(String value)
+	{
+		try
+		{
+			port = Integer.parseInt(value);
+		}
+		catch (NumberFormatException e)
+		{
+			port = -1;
+		}
+
+		if (port < 0 || port > 65535)
+		{
+			err.println("Invalid port: " + value);
+			return false;
+		}
+
+		return true;
+	}
+
+
+	private boolean parseShardSize(String value)
+	{
+		try
+		{
+			shardSize = Integer.parseInt(value);
+		}
+		catch (NumberFormatException e)
+		{
+			shardSize = 0;
+		}
+
+		if (shardSize < 1)
+		{
+			err.println("Invalid shard size: " + value);
+			return false;
+		}
+
+		return true;
+	}
+
+
+	private boolean parseHistoryLimit(String value)
+	{
+		try
+		{
+			historyLimit = Integer.parseInt(value);
+		}
+		catch (NumberFormatException e)
+		{
+			historyLimit = 0;
+		}
+
+		if (historyLimit < 1)
+		{
+			err.println("Invalid limit: " + value);
+			return false;
+		}
+
+		return true;
+	}
+
+
+	private boolean parseBenchmarkThreads(String value)
+	{
+		try
+		{
+			benchmarkThreads = Integer.parseInt(value);
+		}
+		catch (NumberFormatException e)
+		{
+			benchmarkThreads = 0;
+		}
+
+		if (benchmarkThreads < 1)
+		{
+			err.println("Invalid number of threads: " + value);
+			return false;
+		}
+
+		return true;
+	}
+
+
+	private void printUsage(PrintStream stream)
+	{
+		stream.println("Usage: VivaldiModder <command> [--config <file>]...");
+		stream.println();
+		stream.println("Commands:");
+		stream.println("  patch          Patch all versions that have not been patched yet.");
+		stream.println("  patch --all    Patch all versions, including already patched ones.");
+		stream.println("  unpatch        Restore backed-up files and remove added mod files.");
+		stream.println("  validate       Check the config for errors.");
+		stream.println("  daemon         Keep running and accept commands on a local socket.");
+		stream.println("  fleet          Patch the installations in a manifest, sharing the work with");
+		stream.println("                 other fleet workers that use the same state directory.");
+		stream.println("  history        Show recent patch runs and flag runs that were much slower");
+		stream.println("                 than usual.");
+		stream.println("  benchmark      Patch scratch copies of version directories and recommend");
+		stream.println("                 how many installations to patch at once.");
+		stream.println();
+		stream.println("Options:");
+		stream.println("  --config <file>  The config file to use (default: " + DEFAULT_CONFIG + "). Can be");
+		stream.println("                   repeated to patch with several configs in one pass.");
+		stream.println("  --port <port>    The port for the daemon to listen on (default: "
+				+ Daemon.DEFAULT_PORT + ").");
+		stream.println("  --metrics <file> Write metrics in the Prometheus text format to a file,");
+		stream.println("                   every " + METRICS_INTERVAL / 1000 + " seconds and on exit.");
+		stream.println("  --manifest <file>  (fleet) A file with one installation or directory to");
+		stream.println("                     search per line.");
+		stream.println("  --state <dir>      (fleet) The state directory shared by all fleet workers.");
+		stream.println("  --shard-size <n>   (fleet) The number of manifest lines per shard (default: "
+				+ DEFAULT_SHARD_SIZE + ").");
+		stream.println("  --limit <n>        (history) The number of runs to show (default: "
+				+ DEFAULT_HISTORY_LIMIT + ").");
+		stream.println("  --version <dir>    (benchmark) A version directory to copy. Can be repeated");
+		stream.println("                     (default: the newest version of each installation).");
+		stream.println("  --scratch <dir>    (benchmark) Where to create the copies (default: the");
+		stream.println("                     temp directory). Use a directory on the same drive as");
+		stream.println("                     the installations.");
+		stream.println("  --threads <n>      (benchmark) The most installations to patch at once");
+		stream.println("                     (default: " + DEFAULT_BENCHMARK_THREADS + ").");
+		stream.println();
+		stream.println("Exit codes: 0 = success, 1 = patching failed, 2 = invalid arguments or "
+				+ "config, 3 = config could not be loaded.");
+		stream.println("Run without a command to start the user interface.");
+	}
+
+
+	private int runValidate()
+	{
+		List<ModConfig> configs = loadConfigs();
+
+		if (configs == null)
+			return EXIT_CONFIG_ERROR;
+		if (!validateConfigs(configs))
+			return EXIT_INVALID;
+
+		out.println(configs.size() == 1 ? "The config is valid." : "The configs are valid.");
+		return EXIT_OK;
+	}
+
+
+	private int runPatch()
+	{
+		List<ModConfig> configs = loadConfigs();
+
+		if (configs == null)
+			return EXIT_CONFIG_ERROR;
+		if (!validateConfigs(configs))
+			return EXIT_INVALID;
+
+		if (!LogUtils.hasInitialised())
+			LogUtils.writeToFile("log.txt");
+
+		PatchLogger logger = new PatchLogger(Backend.FILE_PATCHLOG, out);
+		logger.rotate();
+
+		Patcher patcher = new Patcher(configs, logger);
+
+		for (Map.Entry<File, Integer> root : patcher.getVivaldiRoots().entrySet())
+		{
+			for (File vivaldiDir : DirectoryUtils.findVivaldiDirs(root.getKey(), root.getValue()))
+				patcher.addVivaldiDir(vivaldiDir);
+		}
+
+		boolean success;
+		if (command.equals("unpatch"))
+			success = patcher.unpatch();
+		else
+			success = patcher.applyMods(patchAll);
+
+		return success ? EXIT_OK : EXIT_FAILED;
+	}
+
+
+	/**
+	 * Starts a {@link Daemon} and runs until the JVM is shut down (e.g. using
+	 * Ctrl+C or a termination signal). Unlike the other commands, the full
+	 * {@link Backend} (including file watchers, if enabled) is used, so
+	 * installations are patched automatically as well.
+	 * <br />
+	 * On shut-down, the daemon is closed (which deletes its token file) and any
+	 * running patch is cancelled. The version that is being patched is given
+	 * some time to finish, so it is not left half-patched.
+	 */
+	private int runDaemon()
+	{
+		Backend backend = new Backend(configPaths,
+				(title, message) -> err.println(title + System.lineSeparator() + message));
+		Daemon daemon = new Daemon(backend, port, new File(Daemon.FILE_TOKEN), out);
+
+		try
+		{
+			daemon.start();
+		}
+		catch (IOException e)
+		{
+			err.println(String.format("Could not start the daemon on port %d: %s", port,
+					e.getMessage()));
+			return EXIT_FAILED;
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() ->
+		{
+			daemon.close();
+			if (backend.cancelPatch())
+				awaitPatch(backend, DAEMON_SHUTDOWN_TIMEOUT);
+		}, "DaemonShutdownThread"));
+		backend.start();
+
+		try
+		{
+			daemon.awaitTermination();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		return EXIT_OK;
+	}
+
+
+	/**
+	 * Waits until the backend has finished patching, or the timeout (in
+	 * milliseconds) has passed.
+	 */
+	private void awaitPatch(Backend backend, long timeout)
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+
+		try
+		{
+			while (backend.isPatching() && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Patches the shards of a fleet manifest that are not complete or locked by
+	 * other workers. Running the command again resumes any interrupted shards.
+	 */
+	private int runFleet()
+	{
+		List<ModConfig> configs = loadConfigs();
+
+		if (configs == null)
+			return EXIT_CONFIG_ERROR;
+		if (!validateConfigs(configs))
+			return EXIT_INVALID;
+
+		if (!LogUtils.hasInitialised())
+			LogUtils.writeToFile("log.txt");
+
+		try
+		{
+			FleetWorker worker = new FleetWorker(new File(manifestPath), shardSize, new File(statePath),
+					configs, out);
+			return worker.run(patchAll) ? EXIT_OK : EXIT_FAILED;
+		}
+		catch (IOException e)
+		{
+			err.println("Could not run the fleet worker: " + e.getMessage());
+			return EXIT_CONFIG_ERROR;
+		}
+	}
+
+
+	/**
+	 * Prints the most recent runs in the patch history. Runs that took much
+	 * longer per version than the runs before them are flagged.
+	 */
+	private int runHistory()
+	{
+		List<PatchHistory.Run> runs;
+
+		try
+		{
+			runs = new PatchHistory(new File(Backend.FILE_HISTORY)).load();
+		}
+		catch (IOException e)
+		{
+			err.println("Could not read the patch history: " + e.getMessage());
+			return EXIT_FAILED;
+		}
+
+		if (runs.isEmpty())
+		{
+			out.println("No patch runs have been recorded yet.");
+			return EXIT_OK;
+		}
+
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		int regressions = 0;
+
+		out.println(String.format("%-19s  %9s  %11s  %8s  %8s  %12s  %8s  %7s  %s", "Started",
+				"Duration", "Per version", "Back-ups", "Copies", "browser.html", "Versions", "Skipped",
+				"Result"));
+
+		for (int i = Math.max(0, runs.size() - historyLimit); i < runs.size(); i++)
+		{
+			PatchHistory.Run run = runs.get(i);
+			double slowdown = PatchHistory.getSlowdown(runs, i);
+			String line = String.format(Locale.ROOT, "%-19s  %9s  %11s  %8s  %8s  %12s  %8d  %7d  %s",
+					dateFormat.format(new Date(run.getStarted())), formatSeconds(run.getDurationMs()),
+					formatSeconds((long) run.getMillisPerVersion()), formatSeconds(run.getBackupMs()),
+					formatSeconds(run.getCopyMs()), formatSeconds(run.getBrowserHtmlMs()),
+					run.getVersions(), run.getSkippedVersions(), run.isSuccess() ? "OK" : "FAILED");
+
+			if (slowdown >= PatchHistory.REGRESSION_FACTOR)
+			{
+				line += String.format(Locale.ROOT, "  <- %.1fx slower than usual", slowdown);
+				regressions++;
+			}
+
+			out.println(line);
+		}
+
+		if (regressions > 0)
+		{
+			out.println();
+			out.println(String.format(Locale.ROOT, "%d of the runs took at least %.0f times longer per"
+					+ " version than the median of the %d runs before them.", regressions,
+					PatchHistory.REGRESSION_FACTOR, PatchHistory.BASELINE_RUNS));
+		}
+
+		return EXIT_OK;
+	}
+
+
+	/**
+	 * Patches scratch copies of version directories with the configs, and
+	 * prints the timings of each phase together with recommended settings.
+	 */
+	private int runBenchmark()
+	{
+		List<ModConfig> configs = loadConfigs();
+
+		if (configs == null)
+			return EXIT_CONFIG_ERROR;
+		if (!validateConfigs(configs))
+			return EXIT_INVALID;
+
+		List<File> versionDirs = getBenchmarkVersionDirs(configs);
+		if (versionDirs == null)
+			return EXIT_INVALID;
+
+		if (!LogUtils.hasInitialised())
+			LogUtils.writeToFile("log.txt");
+
+		out.println(String.format("Patching copies of %d version(s) in %s...", versionDirs.size(),
+				scratchPath));
+
+		PatchLogger logger = new PatchLogger(FILE_BENCHMARK_LOG, null);
+		logger.rotate();
+
+		PatchBenchmark.Result result;
+		try
+		{
+			result = new PatchBenchmark(configs, versionDirs, new File(scratchPath), benchmarkThreads,
+					logger).run();
+		}
+		catch (IOException e)
+		{
+			err.println("Could not run the benchmark: " + e.getMessage());
+			return EXIT_FAILED;
+		}
+		finally
+		{
+			logger.close();
+		}
+
+		out.println();
+		out.println(String.format("%-8s  %7s  %8s  %9s  %8s  %8s  %12s  %8s  %8s  %s", "Phase",
+				"Threads", "Versions", "Wall time", "Back-ups", "Copies", "browser.html", "MB/s",
+				"Files/s", "Result"));
+
+		for (PatchBenchmark.Phase phase : result.getPhases())
+		{
+			out.println(String.format(Locale.ROOT,
+					"%-8s  %7d  %8d  %9s  %8s  %8s  %12s  %8.1f  %8.1f  %s", phase.getName(),
+					phase.getThreads(), phase.getVersions(), formatSeconds(phase.getWallMillis()),
+					formatSeconds(phase.getBackupMillis()), formatSeconds(phase.getCopyMillis()),
+					formatSeconds(phase.getBrowserHtmlMillis()), phase.getMegabytesPerSecond(),
+					phase.getFilesPerSecond(), phase.isSuccess() ? "OK" : "FAILED"));
+		}
+
+		int threads = result.getRecommendedThreads();
+		double repatchRatio = result.getRepatchRatio();
+
+		out.println();
+		out.println("Back-ups, copies and browser.html are summed over all threads.");
+		out.println(String.format("Recommended parallelism: %d installation(s) at once, e.g. %d fleet"
+				+ " worker(s) per machine.", threads, threads));
+
+		if (repatchRatio < 0.5)
+		{
+			out.println(String.format(Locale.ROOT, "Re-patching with --all takes %.0f%% of the time of"
+					+ " a first patch, so it can be used in every patch window.", repatchRatio * 100));
+		}
+		else
+		{
+			out.println(String.format(Locale.ROOT, "Re-patching with --all takes %.0f%% of the time of"
+					+ " a first patch; only use it after mod updates.", repatchRatio * 100));
+		}
+
+		if (!result.isSuccess())
+		{
+			out.println();
+			out.println("Some phases failed; see " + FILE_BENCHMARK_LOG + " for details.");
+			return EXIT_FAILED;
+		}
+
+		return EXIT_OK;
+	}
+
+
+	/**
+	 * @return The version directories given with <code>--version</code>, or
+	 *         the newest version of each installation in the configs, or
+	 *         <code>null</code> if there are none or any is invalid.
+	 */
+	private List<File> getBenchmarkVersionDirs(List<ModConfig> configs)
+	{
+		List<File> versionDirs = new ArrayList<>();
+
+		for (String path : versionPaths)
+		{
+			File versionDir = new File(path);
+			if (!DirectoryUtils.isVersionDir(versionDir))
+			{
+				err.println(String.format("%s is not a Vivaldi version directory!", path));
+				return null;
+			}
+
+			versionDirs.add(versionDir);
+		}
+
+		if (versionPaths.isEmpty())
+		{
+			List<File> vivaldiDirs = new ArrayList<>();
+			for (ModConfig config : configs)
+			{
+				vivaldiDirs.addAll(Arrays.asList(config.getVivaldiDirs()));
+				for (File root : config.getVivaldiRoots())
+					vivaldiDirs.addAll(DirectoryUtils.findVivaldiDirs(root, config.getVivaldiRootDepth()));
+			}
+
+			for (File vivaldiDir : vivaldiDirs)
+			{
+				List<File> versions = DirectoryUtils.findVivaldiVersionDirs(vivaldiDir);
+				if (!versions.isEmpty())
+				{
+					versions.sort((a, b) -> compareVersions(a.getName(), b.getName()));
+					versionDirs.add(versions.get(versions.size() - 1));
+				}
+			}
+		}
+
+		if (versionDirs.isEmpty())
+		{
+			err.println("No version directories were found to benchmark with! Use --version <dir>.");
+			return null;
+		}
+
+		return versionDirs;
+	}
+
+
+	/**
+	 * Compares version numbers (e.g. <code>2.10.1</code> and
+	 * <code>2.9.4</code>) number by number. Parts that are not numbers are
+	 * compared as text.
+	 */
+	private static int compareVersions(String version1, String version2)
+	{
+		String[] numbers1 = version1.split("\\.");
+		String[] numbers2 = version2.split("\\.");
+
+		for (int i = 0; i < Math.min(numbers1.length, numbers2.length); i++)
+		{
+			int result;
+			if (numbers1[i].matches("\\d{1,18}") && numbers2[i].matches("\\d{1,18}"))
+				result = Long.compare(Long.parseLong(numbers1[i]), Long.parseLong(numbers2[i]));
+			else
+				result = numbers1[i].compareTo(numbers2[i]);
+
+			if (result != 0)
+				return result;
+		}
+
+		return Integer.compare(numbers1.length, numbers2.length);
+	}
+
+
+	private String formatSeconds(long millis)
+	{
+		return String.format(Locale.ROOT, "%.2f s", millis / 1000.0);
+	}
+
+
+	/**
+	 * @return The configs, or <code>null</code> if any of them could not be
+	 *         loaded.
+	 */
+	private List<ModConfig> loadConfigs()
+	{
+		List<ModConfig> configs = new ArrayList<>();
+
+		for (String configPath : configPaths)
+		{
+			try
+			{
+				configs.add(new ModConfig(new File(configPath)));
+			}
+			catch (FileNotFoundException e)
+			{
+				err.println(String.format("The config file (%s) could not be found!", configPath));
+				return null;
+			}
+			catch (IOException e)
+			{
+				err.println(String.format("The config file (%s) could not be read: %s", configPath,
+						e.getMessage()));
+				return null;
+			}
+		}
+
+		return configs;
+	}
+
+
+	private boolean validateConfigs(List<ModConfig> configs)
+	{
+		boolean valid = true;
+
+		for (ModConfig config : configs)
+		{
+			List<String> errors = config.validate();
+
+			if (!errors.isEmpty())
+			{
+				err.println(String.format("The config (%s) contains %d errors:",
+						config.getConfigFile(), errors.size()));
+				for (String error : errors)
+					err.println(error);
+
+				valid = false;
+			}
+		}
+
+		return valid;
+	}
+}
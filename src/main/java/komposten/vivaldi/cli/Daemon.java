@@ -0,0 +1,484 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+import komposten.vivaldi.backend.Backend;
+import komposten.vivaldi.backend.PatchProgress;
+import komposten.vivaldi.util.Json;
+
+
+/**
+ * Keeps a {@link Backend} running and accepts commands on a local control
+ * socket, so that patches can be triggered without starting a new JVM each
+ * time. The socket only listens on the loopback address.
+ * <br />
+ * Since any local user can connect to the socket, every request must contain
+ * a <code>token</code> field with a random token that is generated on start
+ * and written to a file only the owner can read (the
+ * {@link #FILE_TOKEN token file} next to the settings file by default).
+ * <br />
+ * Each request is a single line of at most {@link #MAX_REQUEST_LENGTH}
+ * characters containing a JSON object with a <code>command</code> field, and
+ * is answered with a single line containing a JSON object with an
+ * <code>ok</code> field (and an <code>error</code> field if <code>ok</code> is
+ * <code>false</code>). The commands are:
+ * <ul>
+ * <li><code>patch</code>: Patches all installations. Set <code>all</code> to
+ * <code>true</code> to also patch versions that have already been patched,
+ * and <code>wait</code> to <code>true</code> to reply once patching has
+ * finished (with a <code>success</code> field).</li>
+ * <li><code>status</code>: Replies with the installations and the progress
+ * of the current (or last) patch.</li>
+ * <li><code>reload-config</code>: Reloads the config file. Replies with the
+ * config's errors if it is invalid.</li>
+ * <li><code>cancel</code>: Cancels the running and pending patches.</li>
+ * </ul>
+ */
+public class Daemon
+{
+	/** The default port of the control socket. */
+	public static final int DEFAULT_PORT = 47474;
+	/** The default file to write the token to. */
+	public static final String FILE_TOKEN = "daemontoken.txt";
+	/** The maximum length of a request, in characters. */
+	public static final int MAX_REQUEST_LENGTH = 64 * 1024;
+
+	private final Backend backend;
+	private final int port;
+	private final File tokenFile;
+	private final String token;
+	private final PrintStream log;
+	private final ExecutorService clientThreads;
+
+	private ServerSocket serverSocket;
+	private Thread acceptThread;
+
+
+	/**
+	 * @param port The port to listen on, or 0 to use any free port.
+	 * @param tokenFile The file to write the token to.
+	 * @param log A stream to print connection information to.
+	 */
+	public Daemon(Backend backend, int port, File tokenFile, PrintStream log)
+	{
+		AtomicInteger threadNumber = new AtomicInteger();
+
+		this.backend = backend;
+		this.port = port;
+		this.tokenFile = tokenFile;
+		this.token = createToken();
+		this.log = log;
+		this.clientThreads = Executors.newCachedThreadPool(runnable ->
+		{
+			Thread thread = new Thread(runnable, "DaemonClient-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+
+	private static String createToken()
+	{
+		byte[] bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			builder.append(String.format("%02x", b));
+
+		return builder.toString();
+	}
+
+
+	/**
+	 * Opens the control socket, writes the token file and starts accepting
+	 * connections. The socket is opened first, so the token file of another
+	 * daemon that is using the port is left alone, while a file left behind by
+	 * a daemon that was not closed is replaced.
+	 *
+	 * @throws IOException If the socket could not be opened (e.g. because
+	 *           another daemon is already using the port) or the token file
+	 *           could not be written.
+	 */
+	public void start() throws IOException
+	{
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+		try
+		{
+			writeTokenFile();
+		}
+		catch (IOException e)
+		{
+			serverSocket.close();
+			throw e;
+		}
+
+		log.println(String.format("Listening on %s:%d", serverSocket.getInetAddress().getHostAddress(),
+				getPort()));
+		log.println(String.format("The token for requests is in %s", tokenFile.getAbsolutePath()));
+
+		acceptThread = new Thread(this::acceptConnections, "DaemonThread");
+		acceptThread.start();
+	}
+
+
+	/**
+	 * Replaces the token file with a new one that only the owner can read and
+	 * write. On file systems without POSIX permissions, access is restricted
+	 * as far as <code>java.io.File</code> allows.
+	 */
+	private void writeTokenFile() throws IOException
+	{
+		Path path = tokenFile.toPath();
+		Files.deleteIfExists(path);
+
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+		{
+			Files.createFile(path,
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		else
+		{
+			Files.createFile(path);
+			tokenFile.setReadable(false, false);
+			tokenFile.setWritable(false, false);
+			tokenFile.setReadable(true, true);
+			tokenFile.setWritable(true, true);
+		}
+
+		Files.write(path, token.getBytes(StandardCharsets.UTF_8));
+	}
+
+
+	/**
+	 * @return The port the control socket is listening on.
+	 */
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+
+	/**
+	 * Waits until the daemon has been {@link #close() closed}.
+	 */
+	public void awaitTermination() throws InterruptedException
+	{
+		acceptThread.join();
+	}
+
+
+	/**
+	 * Closes the control socket and deletes the token file. Closing the daemon
+	 * again has no effect.
+	 */
+	public void close()
+	{
+		try
+		{
+			serverSocket.close();
+		}
+		catch (IOException e)
+		{
+			String msg = "Could not close the control socket!";
+			LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
+		}
+
+		clientThreads.shutdownNow();
+		tokenFile.delete();
+	}
+
+
+	private void acceptConnections()
+	{
+		while (!serverSocket.isClosed())
+		{
+			try
+			{
+				Socket socket = serverSocket.accept();
+				clientThreads.execute(() -> serve(socket));
+			}
+			catch (SocketException e)
+			{
+				//The socket has been closed.
+				break;
+			}
+			catch (IOException e)
+			{
+				String msg = "Could not accept a connection on the control socket!";
+				LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
+			}
+		}
+	}
+
+
+	private void serve(Socket socket)
+	{
+		try (Socket client = socket;
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter writer = new PrintWriter(
+						new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)))
+		{
+			String line;
+			while ((line = readRequest(reader)) != null)
+			{
+				if (line.trim().isEmpty())
+					continue;
+
+				writer.print(handle(line));
+				writer.print('\n');
+				writer.flush();
+			}
+		}
+		catch (RequestTooLongException e)
+		{
+			//The rest of the request can't be told apart from the next one, so
+			//the connection is closed.
+			String msg = String.format("Closed a connection that sent a request of over %d characters.",
+					MAX_REQUEST_LENGTH);
+			LogUtils.log(Level.WARNING, msg);
+		}
+		catch (IOException e)
+		{
+			String msg = "A connection to the control socket failed!";
+			LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
+		}
+	}
+
+
+	/**
+	 * Reads a request line, without the line break.
+	 *
+	 * @return The request, or <code>null</code> if the end of the stream has
+	 *         been reached.
+	 * @throws RequestTooLongException If the request is longer than
+	 *           {@link #MAX_REQUEST_LENGTH}.
+	 */
+	String readRequest(Reader reader) throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		int c;
+
+		while ((c = reader.read()) != -1)
+		{
+			if (c == '\n')
+				break;
+			else if (line.length() == MAX_REQUEST_LENGTH)
+				throw new RequestTooLongException();
+
+			line.append((char) c);
+		}
+
+		if (c == -1 && line.length() == 0)
+			return null;
+
+		int length = line.length();
+		if (length > 0 && line.charAt(length - 1) == '\r')
+			line.setLength(length - 1);
+
+		return line.toString();
+	}
+
+
+	/**
+	 * Handles a single request.
+	 *
+	 * @return The JSON reply, without a trailing line break.
+	 */
+	String handle(String request)
+	{
+		Map<String, Object> reply;
+
+		try
+		{
+			Map<String, Object> json = Json.parseObject(request);
+			reply = handle(json);
+		}
+		catch (IllegalArgumentException e)
+		{
+			reply = error("Invalid request: " + e.getMessage());
+		}
+		catch (RuntimeException e)
+		{
+			String msg = "Failed to handle a request on the control socket!";
+			LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
+			reply = error(e.toString());
+		}
+
+		return Json.write(reply);
+	}
+
+
+	private Map<String, Object> handle(Map<String, Object> request)
+	{
+		Object command = request.get("command");
+
+		if (!isAuthorised(request.get("token")))
+			return error("The request has no valid token!");
+		else if (command == null)
+			return error("The request has no command!");
+
+		switch (command.toString())
+		{
+			case "patch" :
+				return patch(Boolean.TRUE.equals(request.get("all")),
+						Boolean.TRUE.equals(request.get("wait")));
+			case "status" :
+				return status();
+			case "reload-config" :
+				return reloadConfig();
+			case "cancel" :
+				Map<String, Object> reply = ok();
+				reply.put("cancelled", backend.cancelPatch());
+				return reply;
+			default :
+				return error("Unknown command: " + command);
+		}
+	}
+
+
+	private boolean isAuthorised(Object requestToken)
+	{
+		if (!(requestToken instanceof String))
+			return false;
+
+		return MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+				((String) requestToken).getBytes(StandardCharsets.UTF_8));
+	}
+
+
+	/**
+	 * Patches without clearing the patch log, so that patches triggered by
+	 * clients do not rotate it each time.
+	 */
+	private Map<String, Object> patch(boolean patchAll, boolean wait)
+	{
+		Future<Boolean> result = backend.applyMods(false, patchAll);
+		Map<String, Object> reply = ok();
+
+		if (wait)
+		{
+			try
+			{
+				reply.put("success", result.get());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return error("Interrupted while waiting for the patch to finish!");
+			}
+			catch (ExecutionException e)
+			{
+				return error("The patch failed: " + e.getCause());
+			}
+		}
+
+		return reply;
+	}
+
+
+	private Map<String, Object> status()
+	{
+		PatchProgress progress = backend.getPatchProgress();
+		progress.sample();
+
+		List<String> installations = new ArrayList<>();
+		for (File dir : backend.getVivaldiDirs())
+			installations.add(dir.getPath());
+
+		Map<String, Object> reply = ok();
+		reply.put("patching", backend.isPatching());
+		reply.put("progress", progress.getFraction());
+		reply.put("completedBytes", progress.getCompletedBytes());
+		reply.put("plannedBytes", progress.getPlannedBytes());
+		reply.put("bytesPerSecond", progress.getBytesPerSecond());
+		reply.put("etaMillis", progress.getEtaMillis());
+		reply.put("installations", installations);
+		return reply;
+	}
+
+
+	private Map<String, Object> reloadConfig()
+	{
+		List<String> errors = backend.reloadModConfig();
+
+		if (errors.isEmpty())
+			return ok();
+
+		Map<String, Object> reply = error("The config is invalid!");
+		reply.put("errors", errors);
+		return reply;
+	}
+
+
+	private Map<String, Object> ok()
+	{
+		Map<String, Object> reply = new LinkedHashMap<>();
+		reply.put("ok", true);
+		return reply;
+	}
+
+
+	private Map<String, Object> error(String message)
+	{
+		Map<String, Object> reply = new LinkedHashMap<>();
+		reply.put("ok", false);
+		reply.put("error", message);
+		return reply;
+	}
+
+
+	private static class RequestTooLongException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+	}
+}
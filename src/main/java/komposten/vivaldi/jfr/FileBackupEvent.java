@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import komposten.vivaldi.util.Tracing;
+
+
+@Name("komposten.vivaldi.FileBackup")
+@Label("File Backup")
+@Description("Backs up a file before it is replaced by a mod file.")
+class FileBackupEvent extends SpanEvent
+{
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+
+	@Override
+	public Tracing.Span bytes(long bytes)
+	{
+		this.bytes = bytes;
+		return this;
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.jfr;
+
+import komposten.vivaldi.util.Tracing;
+
+
+/**
+ * Emits {@link Tracing} spans as Java Flight Recorder events. Loaded by
+ * {@link Tracing} if the runtime supports JFR.
+ */
+public class JfrTracer implements Tracing.Tracer
+{
+	@Override
+	public Tracing.Span begin(Tracing.SpanType type)
+	{
+		SpanEvent event = createEvent(type);
+		event.begin();
+		return event;
+	}
+
+
+	private SpanEvent createEvent(Tracing.SpanType type)
+	{
+		switch (type)
+		{
+			case PATCH_RUN :
+				return new PatchRunEvent();
+			case VERSION_PATCH :
+				return new VersionPatchEvent();
+			case FILE_COPY :
+				return new FileCopyEvent();
+			case FILE_BACKUP :
+				return new FileBackupEvent();
+			case BROWSER_HTML_REWRITE :
+				return new BrowserHtmlRewriteEvent();
+			case DIRECTORY_SCAN :
+				return new DirectoryScanEvent();
+			case WATCHER_TRIGGER :
+				return new WatcherTriggerEvent();
+			default :
+				throw new IllegalArgumentException("Unknown span type: " + type);
+		}
+	}
+}
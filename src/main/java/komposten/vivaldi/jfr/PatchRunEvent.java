@@ -0,0 +1,43 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import komposten.vivaldi.util.Tracing;
+
+
+@Name("komposten.vivaldi.PatchRun")
+@Label("Patch Run")
+@Description("Patches, unpatches or updates one or all installations.")
+class PatchRunEvent extends SpanEvent
+{
+	@Label("Versions")
+	long versionCount;
+
+
+	@Override
+	public Tracing.Span count(long count)
+	{
+		this.versionCount = count;
+		return this;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.jfr;
+
+import java.io.File;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+import komposten.vivaldi.util.Tracing;
+
+
+/**
+ * The base of all VivaldiModder events. An event begins when it is created by
+ * {@link JfrTracer} and is committed when the span ends, if the event is
+ * enabled in a running recording.
+ */
+@Category("VivaldiModder")
+@StackTrace(false)
+abstract class SpanEvent extends Event implements Tracing.Span
+{
+	@Label("Path")
+	String path;
+
+	@Label("Outcome")
+	String outcome;
+
+
+	@Override
+	public Tracing.Span path(File path)
+	{
+		this.path = (path != null ? path.getPath() : null);
+		return this;
+	}
+
+
+	@Override
+	public Tracing.Span bytes(long bytes)
+	{
+		return this;
+	}
+
+
+	@Override
+	public Tracing.Span count(long count)
+	{
+		return this;
+	}
+
+
+	@Override
+	public void end(boolean success)
+	{
+		end(Tracing.getOutcome(success));
+	}
+
+
+	@Override
+	public void end(String outcome)
+	{
+		end();
+
+		if (shouldCommit())
+		{
+			this.outcome = outcome;
+			commit();
+		}
+	}
+}
@@ -73,12 +73,13 @@ public class ModPanel extends JPanel
 	
 	private EditInstructionDialog editDialog;
 	private VivaldiDirectoryDialog vivaldiDialog;
+	private PatchLogDialog logDialog;
 
 	public ModPanel(String configPath)
 	{
 		super(new GridBagLayout());
 
-		backend = new Backend(configPath);
+		backend = new Backend(configPath, this::showBackendError);
 
 		labelModDir = new JLabel("Mod directory:");
 		labelVivaldiDirs = new JLabel("Vivaldi directories:");
@@ -203,7 +204,9 @@ public class ModPanel extends JPanel
 
 		List<Instruction> instructions = instructionsTable.getInstructions();
 
-		ModConfig config = new ModConfig(backend.getModConfig().getConfigFile(), modDir, vivaldiDirs, instructions);
+		ModConfig oldConfig = backend.getModConfig();
+		ModConfig config = new ModConfig(oldConfig.getConfigFile(), modDir, vivaldiDirs, instructions);
+		config.setVivaldiRoots(oldConfig.getVivaldiRoots(), oldConfig.getVivaldiRootDepth());
 
 		List<String> errors = config.validate();
 
@@ -391,30 +394,19 @@ public class ModPanel extends JPanel
 	}
 	
 	
+	private void showBackendError(String title, String message)
+	{
+		JOptionPane.showMessageDialog(SwingUtilities.getWindowAncestor(this), message, title,
+				JOptionPane.ERROR_MESSAGE);
+	}
+	
+	
 	private void showPatchLog()
 	{
-		try
-		{
-			Desktop.getDesktop().open(new File(Backend.FILE_PATCHLOG));
-		}
-		catch (IllegalArgumentException e)
-		{
-			String title = "Could not open the log!";
-			String msg = "The patch log file doesn't exist! Look in log.txt for more details.";
-			JOptionPane.showMessageDialog(SwingUtilities.getWindowAncestor(ModPanel.this),
-					msg, title, JOptionPane.ERROR_MESSAGE);
-			
-			LogUtils.log(Level.ERROR, ModPanel.class.getSimpleName(), msg, e, false);
-		}
-		catch (IOException e)
-		{
-			String title = "Could not open the log!";
-			String msg = "The patch log could not be opened!\nReason: " + e.getMessage();
-			JOptionPane.showMessageDialog(SwingUtilities.getWindowAncestor(ModPanel.this),
-					msg, title, JOptionPane.ERROR_MESSAGE);
-			
-			LogUtils.log(Level.ERROR, ModPanel.class.getSimpleName(), msg, e, false);
-		}
+		if (logDialog == null)
+			logDialog = new PatchLogDialog(SwingUtilities.getWindowAncestor(this), backend.getPatchLogger());
+		
+		logDialog.showLog();
 	}
 	
 	
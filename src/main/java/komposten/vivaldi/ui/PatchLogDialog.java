@@ -0,0 +1,277 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.ui;
+
+import java.awt.BorderLayout;
+import java.awt.Desktop;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.Window;
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+import komposten.vivaldi.backend.PatchLogger;
+import komposten.vivaldi.util.LogPager;
+
+
+/**
+ * Shows the patch log. New lines are shown as they are written (from the
+ * logger's recent lines), while older parts of the log are only read from
+ * disk, one page at a time, when requested.
+ * <br />
+ * At most {@link #MAX_LINES} lines are shown. New lines push out the oldest
+ * ones (after which older pages can no longer be loaded), and loading older
+ * pages pushes out the newest ones (after which new lines are no longer
+ * shown).
+ */
+public class PatchLogDialog extends JDialog
+{
+	private static final int POLL_INTERVAL = 250;
+	private static final int MAX_LINES = 20000;
+
+	private PatchLogger logger;
+	private LogPager pager;
+	private long nextLine;
+	private int rotations;
+
+	private JTextArea textArea;
+	private JScrollPane scrollPane;
+	private JButton buttonOlder;
+	private JButton buttonOpen;
+	private JButton buttonClose;
+	private Timer pollTimer;
+
+
+	public PatchLogDialog(Window owner, PatchLogger logger)
+	{
+		super(owner, "Patch log");
+		this.logger = logger;
+
+		textArea = new JTextArea();
+		textArea.setEditable(false);
+		textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+		scrollPane = new JScrollPane(textArea);
+		scrollPane.setPreferredSize(new Dimension(800, 500));
+
+		buttonOlder = new JButton("Load older");
+		buttonOpen = new JButton("Open in editor");
+		buttonClose = new JButton("Close");
+		buttonOlder.addActionListener(e -> loadOlder());
+		buttonOpen.addActionListener(e -> openInEditor());
+		buttonClose.addActionListener(e -> setVisible(false));
+
+		JPanel panelTop = new JPanel(new FlowLayout(FlowLayout.LEFT));
+		panelTop.add(buttonOlder);
+		JPanel panelButtons = new JPanel(new FlowLayout(FlowLayout.TRAILING));
+		panelButtons.add(buttonOpen);
+		panelButtons.add(buttonClose);
+
+		setLayout(new BorderLayout());
+		add(panelTop, BorderLayout.NORTH);
+		add(scrollPane, BorderLayout.CENTER);
+		add(panelButtons, BorderLayout.SOUTH);
+
+		pollTimer = new Timer(POLL_INTERVAL, e -> poll());
+
+		pack();
+		setLocationRelativeTo(owner);
+	}
+
+
+	/**
+	 * Shows the end of the log, and keeps showing new lines until the dialog
+	 * is closed.
+	 */
+	public void showLog()
+	{
+		PatchLogger.Position position = logger.getPosition();
+		pager = new LogPager(logger.getLogFile(), logger.getGenerations(), position.fileOffset,
+				LogPager.DEFAULT_PAGE_SIZE);
+		nextLine = position.lineCount;
+		rotations = position.rotations;
+
+		textArea.setText("");
+		buttonOlder.setEnabled(true);
+		loadOlder();
+		textArea.setCaretPosition(textArea.getDocument().getLength());
+
+		pollTimer.start();
+		setVisible(true);
+	}
+
+
+	@Override
+	public void setVisible(boolean visible)
+	{
+		if (!visible)
+			pollTimer.stop();
+
+		super.setVisible(visible);
+	}
+
+
+	private void poll()
+	{
+		PatchLogger.Tail tail = logger.getLinesSince(nextLine);
+
+		for (; rotations < tail.rotations; rotations++)
+			pager.onRotated();
+
+		if (tail.lines.isEmpty() && tail.skippedLines == 0)
+			return;
+
+		JScrollBar scrollBar = scrollPane.getVerticalScrollBar();
+		boolean atBottom = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum();
+
+		StringBuilder builder = new StringBuilder();
+		if (tail.skippedLines > 0)
+		{
+			builder.append(String.format("[%d lines not shown; open the log in an editor to see them]\n",
+					tail.skippedLines));
+		}
+		for (String line : tail.lines)
+			builder.append(line).append('\n');
+
+		textArea.append(builder.toString());
+		nextLine = tail.nextLine;
+		trimOldest();
+
+		if (atBottom)
+			textArea.setCaretPosition(textArea.getDocument().getLength());
+	}
+
+
+	private void loadOlder()
+	{
+		try
+		{
+			String page = pager.readOlder();
+
+			if (page == null)
+			{
+				buttonOlder.setEnabled(false);
+				return;
+			}
+
+			//Keep the visible lines in place when inserting above them.
+			JScrollBar scrollBar = scrollPane.getVerticalScrollBar();
+			int fromBottom = scrollBar.getMaximum() - scrollBar.getValue();
+
+			textArea.insert(page.replace("\r\n", "\n"), 0);
+			trimNewest();
+			scrollPane.validate();
+			scrollBar.setValue(scrollBar.getMaximum() - fromBottom);
+		}
+		catch (IOException e)
+		{
+			String msg = "Could not read the patch log: " + e.getMessage();
+			JOptionPane.showMessageDialog(this, msg, "Could not read the log!",
+					JOptionPane.ERROR_MESSAGE);
+			LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
+			buttonOlder.setEnabled(false);
+		}
+	}
+
+
+	/**
+	 * Removes lines from the start of the text if there are too many. Older
+	 * pages would not connect to the remaining lines, so they can no longer
+	 * be loaded.
+	 */
+	private void trimOldest()
+	{
+		int excess = textArea.getLineCount() - MAX_LINES;
+
+		if (excess > 0)
+		{
+			try
+			{
+				textArea.replaceRange("[Older lines removed; open the log in an editor to see them]\n",
+						0, textArea.getLineStartOffset(excess + 1));
+				buttonOlder.setEnabled(false);
+			}
+			catch (BadLocationException e)
+			{
+				//Can't happen, since the line exists.
+			}
+		}
+	}
+
+
+	/**
+	 * Removes lines from the end of the text if there are too many. New lines
+	 * would not connect to the remaining lines, so they are no longer shown.
+	 */
+	private void trimNewest()
+	{
+		int excess = textArea.getLineCount() - MAX_LINES;
+
+		if (excess > 0)
+		{
+			try
+			{
+				textArea.replaceRange("[Newer lines removed; reopen the log to see them]\n",
+						textArea.getLineStartOffset(MAX_LINES - 1), textArea.getDocument().getLength());
+				pollTimer.stop();
+			}
+			catch (BadLocationException e)
+			{
+				//Can't happen, since the line exists.
+			}
+		}
+	}
+
+
+	private void openInEditor()
+	{
+		try
+		{
+			Desktop.getDesktop().open(new File(logger.getLogFile()));
+		}
+		catch (IllegalArgumentException e)
+		{
+			String title = "Could not open the log!";
+			String msg = "The patch log file doesn't exist! Look in log.txt for more details.";
+			JOptionPane.showMessageDialog(this, msg, title, JOptionPane.ERROR_MESSAGE);
+
+			LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
+		}
+		catch (IOException e)
+		{
+			String title = "Could not open the log!";
+			String msg = "The patch log could not be opened!\nReason: " + e.getMessage();
+			JOptionPane.showMessageDialog(this, msg, title, JOptionPane.ERROR_MESSAGE);
+
+			LogUtils.log(Level.ERROR, getClass().getSimpleName(), msg, e, false);
+		}
+	}
+}
@@ -23,13 +23,22 @@ import java.awt.Graphics;
 import java.io.File;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import komposten.vivaldi.backend.Backend;
+import komposten.vivaldi.backend.PatchProgress;
 import komposten.vivaldi.backend.Patcher.PatchProgressListener;
 
 
+/**
+ * Shows the progress of patches. The progress is sampled at a fixed frame
+ * rate while patching, rather than repainting for each patch event.
+ */
 public class PatchProgressBar extends JPanel
 {
+	private static final int FRAME_INTERVAL = 1000 / 30;
+
 	private enum State
 	{
 		PATCHING,
@@ -37,16 +46,39 @@ public class PatchProgressBar extends JPanel
 		FAIL
 	}
 	
+	private PatchProgress patchProgress;
+	private Timer frameTimer;
 	private float progress = 0;
 	private State state;
 	
 
 	public PatchProgressBar(Backend backend)
 	{
+		patchProgress = backend.getPatchProgress();
+		frameTimer = new Timer(FRAME_INTERVAL, e -> updateProgress());
 		backend.registerProgressListener(progressListener);
 	}
 
 
+	private void updateProgress()
+	{
+		patchProgress.sample();
+		progress = (float) patchProgress.getFraction();
+		
+		long eta = patchProgress.getEtaMillis();
+		String tooltip = String.format("%d%%", (int) (progress * 100));
+		if (eta >= 0)
+		{
+			long seconds = (eta + 999) / 1000;
+			tooltip += String.format(", about %d:%02d left (%.1f kB/s)", seconds / 60, seconds % 60,
+					patchProgress.getBytesPerSecond() / 1024);
+		}
+		
+		setToolTipText(tooltip);
+		repaint();
+	}
+
+
 	@Override
 	protected void paintComponent(Graphics g)
 	{
@@ -63,25 +95,23 @@ public class PatchProgressBar extends JPanel
 
 	private PatchProgressListener progressListener = new PatchProgressListener()
 	{
-		private float total;
-		private int fileCounter;
-
-
 		@Override
 		public void onPatchStarted()
 		{
-			this.fileCounter = 0;
-
-			state = State.PATCHING;
-			progress = 0;
-			repaint();
+			SwingUtilities.invokeLater(() ->
+			{
+				state = State.PATCHING;
+				progress = 0;
+				frameTimer.start();
+				repaint();
+			});
 		}
 		
 		
 		@Override
 		public void filesToPatch(int dirCount, int modFileCount)
 		{
-			this.total = dirCount * (float)modFileCount;
+			//Progress is read from the PatchProgress instead.
 		}
 
 
@@ -102,18 +132,21 @@ public class PatchProgressBar extends JPanel
 		@Override
 		public void onNextModFile(String file)
 		{
-			progress = fileCounter / total;
-			fileCounter++;
-			repaint();
+			//Progress is read from the PatchProgress instead.
 		}
 
 
 		@Override
 		public void onPatchFinished(boolean success)
 		{
-			progress = 1;
-			state = (success ? State.SUCCESS : State.FAIL);
-			repaint();
+			SwingUtilities.invokeLater(() ->
+			{
+				frameTimer.stop();
+				progress = 1;
+				state = (success ? State.SUCCESS : State.FAIL);
+				setToolTipText(null);
+				repaint();
+			});
 		}
 	};
 }
@@ -28,6 +28,10 @@ import java.util.stream.Collectors;
 
 public final class DirectoryUtils
 {
+	private static final Metrics.Histogram SCAN_SECONDS = Metrics.histogram(
+			"vivaldimodder_directory_scan_seconds", "Time to search a directory for Vivaldi versions.");
+	
+	
 	private DirectoryUtils()
 	{}
 
@@ -51,7 +55,20 @@ public final class DirectoryUtils
 
 	public static List<File> findVivaldiVersionDirs(File vivaldiDir, int maxDepth)
 	{
+		long start = System.nanoTime();
+		Tracing.Span span = Tracing.begin(Tracing.SpanType.DIRECTORY_SCAN).path(vivaldiDir);
 		List<File> dirs = new LinkedList<>();
+		
+		findVivaldiVersionDirs(vivaldiDir, maxDepth, dirs);
+		
+		SCAN_SECONDS.observeSince(start);
+		span.count(dirs.size()).end(true);
+		return dirs;
+	}
+
+
+	private static void findVivaldiVersionDirs(File vivaldiDir, int maxDepth, List<File> dirs)
+	{
 		File[] children = vivaldiDir.listFiles();
 
 		if (children != null)
@@ -61,11 +78,9 @@ public final class DirectoryUtils
 				if (isVersionDir(child))
 					dirs.add(child);
 				else if (maxDepth > 0)
-					dirs.addAll(findVivaldiVersionDirs(child, maxDepth-1));
+					findVivaldiVersionDirs(child, maxDepth-1, dirs);
 			}
 		}
-
-		return dirs;
 	}
 	
 	
@@ -0,0 +1,611 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+
+
+/**
+ * Watches directories for created, modified and deleted files and passes the
+ * events on to a {@link WatchListener}. Directories can be watched
+ * recursively down to a given depth, in which case sub-directories created
+ * while watching are registered automatically. A directory can be watched by
+ * several listeners, each with its own depth, and every listener receives the
+ * events in it.
+ * <br />
+ * Directories on file systems where the native <code>WatchService</code>
+ * does not deliver events (e.g. NFS and most FUSE mounts) are polled instead.
+ * This is decided per directory, either up-front based on the file system
+ * type or later if a natively watched directory changes without any events
+ * being delivered. Sub-directories of polled directories are polled as well.
+ * Polled directories are checked more often after changes and less often
+ * while idle.
+ */
+public class DirectoryWatcher
+{
+	private static final long POLL_INTERVAL_MIN = 500;
+	private static final long POLL_INTERVAL_MAX = 30000;
+	private static final long VERIFY_INTERVAL = 60000;
+	private static final String[] POLLED_FILE_SYSTEMS = {
+			"nfs", "cifs", "smb", "fuse.", "9p", "afs", "davfs", "ncpfs", "vboxsf"
+	};
+
+	public interface WatchListener
+	{
+		/**
+		 * @param kind The kind of event (one of the
+		 *          <code>StandardWatchEventKinds.ENTRY_*</code> kinds).
+		 * @param file The file or directory the event concerns.
+		 */
+		public void onFileEvent(WatchEvent.Kind<?> kind, File file);
+	}
+
+
+	private final WatchService watchService;
+	private final Map<Path, Registration> registrations;
+	private final Map<WatchKey, Registration> watchKeys;
+	private final Map<Path, PolledDirectory> polledDirectories;
+	private final ScheduledExecutorService poller;
+	private final Thread thread;
+	private boolean forcePolling;
+
+
+	public DirectoryWatcher(String threadName) throws IOException
+	{
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.registrations = new ConcurrentHashMap<>();
+		this.watchKeys = new ConcurrentHashMap<>();
+		this.polledDirectories = new ConcurrentHashMap<>();
+		this.thread = new Thread(this::run, threadName);
+		this.thread.setDaemon(true);
+		this.poller = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread pollerThread = new Thread(runnable, threadName + "-Poller");
+			pollerThread.setDaemon(true);
+			return pollerThread;
+		});
+	}
+
+
+	/**
+	 * @param forcePolling If all directories registered after this call should
+	 *          be polled, regardless of their file system.
+	 */
+	public void setForcePolling(boolean forcePolling)
+	{
+		this.forcePolling = forcePolling;
+	}
+
+
+	/**
+	 * Starts watching a directory. If <code>listener</code> already watches the
+	 * directory, it is only registered again if <code>depth</code> is greater
+	 * than before.
+	 *
+	 * @param directory The directory to watch.
+	 * @param depth How many levels of sub-directories to also watch.
+	 *          <code>0</code> only watches <code>directory</code> itself.
+	 * @param listener The listener to notify of events in the directory.
+	 * @throws IOException If <code>directory</code> could not be registered.
+	 */
+	public void watch(File directory, int depth, WatchListener listener) throws IOException
+	{
+		register(directory.getAbsoluteFile().toPath().normalize(), depth, listener, false);
+	}
+
+
+	/**
+	 * @param polled If <code>directory</code> should be polled even if its file
+	 *          system supports native events.
+	 */
+	private synchronized void register(Path directory, int depth, WatchListener listener,
+			boolean polled) throws IOException
+	{
+		Registration registration = registrations.get(directory);
+
+		if (registration == null)
+		{
+			registration = new Registration(directory);
+
+			if (polled || forcePolling || isPolledFileSystem(directory))
+			{
+				poll(registration);
+			}
+			else
+			{
+				WatchKey key = directory.register(watchService,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY,
+						StandardWatchEventKinds.ENTRY_DELETE);
+				registration.lastModified = directory.toFile().lastModified();
+				registration.key = key;
+				watchKeys.put(key, registration);
+			}
+
+			registrations.put(directory, registration);
+		}
+
+		if (!registration.addWatcher(listener, depth))
+			return;
+
+		if (depth > 0)
+		{
+			File[] children = directory.toFile().listFiles(File::isDirectory);
+
+			if (children != null)
+			{
+				for (File child : children)
+					register(child.toPath(), depth - 1, listener, registration.key == null);
+			}
+		}
+	}
+
+
+	/**
+	 * Stops notifying a listener of events in a directory and the
+	 * sub-directories it was registered for. Directories no other listener
+	 * watches are no longer watched at all.
+	 */
+	public synchronized void unwatch(File directory, WatchListener listener)
+	{
+		Path path = directory.getAbsoluteFile().toPath().normalize();
+
+		for (Registration registration : registrations.values())
+		{
+			if (registration.directory.startsWith(path) && registration.removeWatcher(listener)
+					&& registration.watchers.isEmpty())
+				remove(registration);
+		}
+	}
+
+
+	private boolean isPolledFileSystem(Path directory)
+	{
+		try
+		{
+			String type = Files.getFileStore(directory).type().toLowerCase();
+
+			for (String polledType : POLLED_FILE_SYSTEMS)
+			{
+				if (type.startsWith(polledType))
+					return true;
+			}
+		}
+		catch (IOException e)
+		{
+			//Can't tell, so try native events first and let verifyNativeWatches() decide.
+		}
+
+		return false;
+	}
+
+
+	private void poll(Registration registration)
+	{
+		PolledDirectory polled = new PolledDirectory(registration);
+		polledDirectories.put(registration.directory, polled);
+		poller.schedule(() -> poll(polled), polled.interval, TimeUnit.MILLISECONDS);
+	}
+
+
+	public void start()
+	{
+		thread.start();
+		poller.scheduleWithFixedDelay(this::verifyNativeWatches, VERIFY_INTERVAL,
+				VERIFY_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+
+	public void close()
+	{
+		try
+		{
+			watchService.close();
+		}
+		catch (IOException e)
+		{
+			thread.interrupt();
+		}
+
+		for (WatchKey key : watchKeys.keySet())
+			key.cancel();
+
+		poller.shutdownNow();
+		registrations.clear();
+		watchKeys.clear();
+		polledDirectories.clear();
+	}
+
+
+	private void run()
+	{
+		while (true)
+		{
+			WatchKey key;
+			try
+			{
+				key = watchService.take();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (ClosedWatchServiceException e)
+			{
+				break;
+			}
+
+			Registration registration = watchKeys.get(key);
+
+			if (registration != null)
+				registration.lastEvent = System.currentTimeMillis();
+
+			for (WatchEvent<?> event : key.pollEvents())
+			{
+				WatchEvent.Kind<?> kind = event.kind();
+
+				if (kind == StandardWatchEventKinds.OVERFLOW || registration == null)
+					continue;
+
+				Path path = registration.directory.resolve((Path) event.context());
+				dispatch(registration, kind, path);
+			}
+
+			if (!key.reset() && registration != null)
+				remove(registration);
+		}
+	}
+
+
+	private void dispatch(Registration registration, WatchEvent.Kind<?> kind, Path path)
+	{
+		if (kind == StandardWatchEventKinds.ENTRY_CREATE && registration.getDepth() > 0
+				&& path.toFile().isDirectory())
+		{
+			for (Watcher watcher : registration.watchers)
+			{
+				if (watcher.depth > 0)
+					registerCreated(path, watcher, registration.key == null);
+			}
+		}
+
+		for (Watcher watcher : registration.watchers)
+			watcher.listener.onFileEvent(kind, path.toFile());
+	}
+
+
+	private synchronized void remove(Registration registration)
+	{
+		registrations.remove(registration.directory, registration);
+
+		if (registration.key != null)
+		{
+			registration.key.cancel();
+			watchKeys.remove(registration.key);
+		}
+		else
+		{
+			polledDirectories.remove(registration.directory);
+		}
+	}
+
+
+	private void poll(PolledDirectory polled)
+	{
+		if (polledDirectories.get(polled.registration.directory) != polled)
+			return;
+
+		Map<String, FileState> snapshot = polled.takeSnapshot();
+		boolean changed = false;
+
+		if (snapshot == null)
+		{
+			//The directory has been deleted, so there is nothing left to poll.
+			remove(polled.registration);
+			return;
+		}
+
+		for (Entry<String, FileState> entry : snapshot.entrySet())
+		{
+			FileState previous = polled.snapshot.get(entry.getKey());
+			WatchEvent.Kind<?> kind = null;
+
+			if (previous == null)
+				kind = StandardWatchEventKinds.ENTRY_CREATE;
+			else if (!entry.getValue().isDirectory && !entry.getValue().equals(previous))
+				kind = StandardWatchEventKinds.ENTRY_MODIFY;
+
+			if (kind != null)
+			{
+				changed = true;
+				dispatch(polled.registration, kind, polled.registration.directory.resolve(entry.getKey()));
+			}
+		}
+
+		for (String name : polled.snapshot.keySet())
+		{
+			if (!snapshot.containsKey(name))
+			{
+				changed = true;
+				dispatch(polled.registration, StandardWatchEventKinds.ENTRY_DELETE,
+						polled.registration.directory.resolve(name));
+			}
+		}
+
+		polled.snapshot = snapshot;
+
+		if (changed)
+			polled.interval = POLL_INTERVAL_MIN;
+		else
+			polled.interval = Math.min(polled.interval * 2, POLL_INTERVAL_MAX);
+
+		if (!poller.isShutdown())
+			poller.schedule(() -> poll(polled), polled.interval, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Checks if any natively watched directory has changed since the last check
+	 * without delivering any events, and if so switches it to polling. Since
+	 * the change that gave it away was missed, the directory is then rescanned
+	 * for files modified since the previous check.
+	 */
+	private void verifyNativeWatches()
+	{
+		long verifyStart = System.currentTimeMillis() - VERIFY_INTERVAL;
+		Map<Registration, Long> switched = new HashMap<>();
+
+		synchronized (this)
+		{
+			for (Registration registration : watchKeys.values())
+			{
+				long lastModified = registration.directory.toFile().lastModified();
+
+				if (lastModified != registration.lastModified && registration.lastEvent < verifyStart)
+				{
+					String msg = String.format("No file events received for %s, polling it instead.",
+							registration.directory);
+					LogUtils.log(Level.WARNING, msg);
+
+					registration.key.cancel();
+					watchKeys.remove(registration.key);
+					registration.key = null;
+					poll(registration);
+					switched.put(registration, registration.lastModified);
+				}
+
+				registration.lastModified = lastModified;
+			}
+		}
+
+		for (Entry<Registration, Long> entry : switched.entrySet())
+			rescan(entry.getKey(), entry.getValue());
+	}
+
+
+	/**
+	 * Dispatches events for all files in a directory that have been modified
+	 * since <code>since</code>. Directories are reported as created, so that
+	 * they are registered if needed.
+	 */
+	private void rescan(Registration registration, long since)
+	{
+		File[] files = registration.directory.toFile().listFiles();
+
+		if (files == null)
+			return;
+
+		for (File file : files)
+		{
+			if (file.lastModified() >= since)
+			{
+				WatchEvent.Kind<?> kind = (file.isDirectory() ? StandardWatchEventKinds.ENTRY_CREATE
+						: StandardWatchEventKinds.ENTRY_MODIFY);
+				dispatch(registration, kind, file.toPath());
+			}
+		}
+	}
+
+
+	private void registerCreated(Path directory, Watcher parent, boolean polled)
+	{
+		try
+		{
+			register(directory, parent.depth - 1, parent.listener, polled);
+		}
+		catch (IOException e)
+		{
+			String msg = String.format("Could not watch the new directory %s!", directory);
+			LogUtils.log(Level.WARNING, getClass().getSimpleName(), msg, e, false);
+		}
+	}
+
+
+	private static class Registration
+	{
+		private final Path directory;
+		private final List<Watcher> watchers;
+		/** The native watch key, or <code>null</code> if the directory is polled. */
+		private WatchKey key;
+		private volatile long lastEvent;
+		private long lastModified;
+
+
+		public Registration(Path directory)
+		{
+			this.directory = directory;
+			this.watchers = new CopyOnWriteArrayList<>();
+			this.lastEvent = System.currentTimeMillis();
+		}
+
+
+		/**
+		 * @return <code>true</code> if the listener was added, or
+		 *         <code>false</code> if it was already registered with at least
+		 *         the same depth.
+		 */
+		public boolean addWatcher(WatchListener listener, int depth)
+		{
+			for (Watcher watcher : watchers)
+			{
+				if (watcher.listener == listener)
+				{
+					if (watcher.depth >= depth)
+						return false;
+
+					watchers.remove(watcher);
+					break;
+				}
+			}
+
+			watchers.add(new Watcher(listener, depth));
+			return true;
+		}
+
+
+		/**
+		 * @return <code>true</code> if the listener was registered.
+		 */
+		public boolean removeWatcher(WatchListener listener)
+		{
+			return watchers.removeIf(watcher -> watcher.listener == listener);
+		}
+
+
+		/**
+		 * @return The greatest depth any listener watches this directory with.
+		 */
+		public int getDepth()
+		{
+			int depth = 0;
+			for (Watcher watcher : watchers)
+				depth = Math.max(depth, watcher.depth);
+			return depth;
+		}
+	}
+
+
+	private static class Watcher
+	{
+		private final WatchListener listener;
+		private final int depth;
+
+
+		public Watcher(WatchListener listener, int depth)
+		{
+			this.listener = listener;
+			this.depth = depth;
+		}
+	}
+
+
+	private static class PolledDirectory
+	{
+		private final Registration registration;
+		private Map<String, FileState> snapshot;
+		private long interval;
+
+
+		public PolledDirectory(Registration registration)
+		{
+			this.registration = registration;
+			this.interval = POLL_INTERVAL_MIN;
+			this.snapshot = takeSnapshot();
+
+			if (snapshot == null)
+				snapshot = new HashMap<>();
+		}
+
+
+		/**
+		 * @return The states of all files in the directory, or <code>null</code>
+		 *         if the directory could not be listed.
+		 */
+		private Map<String, FileState> takeSnapshot()
+		{
+			File[] files = registration.directory.toFile().listFiles();
+
+			if (files == null)
+				return null;
+
+			Map<String, FileState> states = new HashMap<>(files.length * 2);
+			for (File file : files)
+				states.put(file.getName(), new FileState(file));
+
+			return states;
+		}
+	}
+
+
+	private static class FileState
+	{
+		private final long lastModified;
+		private final long length;
+		private final boolean isDirectory;
+
+
+		public FileState(File file)
+		{
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+			this.isDirectory = file.isDirectory();
+		}
+
+
+		@Override
+		public int hashCode()
+		{
+			return Long.hashCode(lastModified) * 31 + Long.hashCode(length);
+		}
+
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof FileState))
+				return false;
+
+			FileState other = (FileState) obj;
+			return lastModified == other.lastModified && length == other.length
+					&& isDirectory == other.isDirectory;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.util;
+
+
+/**
+ * Interfaces for reactive streams with demand-based backpressure. These mirror
+ * <code>java.util.concurrent.Flow</code> from Java 9, which is not available
+ * on Java 8, so moving to the JDK interfaces only requires changing imports.
+ */
+public final class Flow
+{
+	private Flow()
+	{
+	}
+
+
+	public interface Publisher<T>
+	{
+		/**
+		 * Adds a subscriber. {@link Subscriber#onSubscribe(Subscription)} is
+		 * called before any other method on the subscriber.
+		 */
+		public void subscribe(Subscriber<? super T> subscriber);
+	}
+
+
+	public interface Subscriber<T>
+	{
+		public void onSubscribe(Subscription subscription);
+
+
+		public void onNext(T item);
+
+
+		public void onError(Throwable throwable);
+
+
+		public void onComplete();
+	}
+
+
+	public interface Subscription
+	{
+		/**
+		 * Adds <code>n</code> items to the current unfulfilled demand.
+		 */
+		public void request(long n);
+
+
+		public void cancel();
+	}
+}
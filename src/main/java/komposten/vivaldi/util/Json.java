@@ -0,0 +1,394 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A minimal JSON reader and writer for the small messages exchanged over the
+ * daemon's control socket.
+ * <br />
+ * Objects are read as {@link Map}s (keeping the key order), arrays as
+ * {@link List}s, numbers as {@link Long}s or {@link Double}s, and
+ * <code>true</code>, <code>false</code> and <code>null</code> as
+ * {@link Boolean}s and <code>null</code>.
+ */
+public final class Json
+{
+	private final String text;
+	private int position;
+
+
+	private Json(String text)
+	{
+		this.text = text;
+	}
+
+
+	/**
+	 * @throws IllegalArgumentException If <code>text</code> is not valid JSON.
+	 */
+	public static Object parse(String text)
+	{
+		Json parser = new Json(text);
+		Object value = parser.readValue();
+
+		parser.skipWhitespace();
+		if (parser.position < text.length())
+			throw parser.error("Unexpected trailing characters");
+
+		return value;
+	}
+
+
+	/**
+	 * @throws IllegalArgumentException If <code>text</code> is not a valid JSON
+	 *           object.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> parseObject(String text)
+	{
+		Object value = parse(text);
+
+		if (!(value instanceof Map))
+			throw new IllegalArgumentException("Expected a JSON object: " + text);
+
+		return (Map<String, Object>) value;
+	}
+
+
+	/**
+	 * Converts a value to JSON. Supports maps, iterables, strings, numbers,
+	 * booleans and <code>null</code>; other values are written as strings.
+	 */
+	public static String write(Object value)
+	{
+		StringBuilder builder = new StringBuilder();
+		write(value, builder);
+		return builder.toString();
+	}
+
+
+	private static void write(Object value, StringBuilder builder)
+	{
+		if (value == null)
+		{
+			builder.append("null");
+		}
+		else if (value instanceof Map)
+		{
+			builder.append('{');
+
+			Iterator<? extends Map.Entry<?, ?>> iterator = ((Map<?, ?>) value).entrySet().iterator();
+			while (iterator.hasNext())
+			{
+				Map.Entry<?, ?> entry = iterator.next();
+				writeString(String.valueOf(entry.getKey()), builder);
+				builder.append(':');
+				write(entry.getValue(), builder);
+
+				if (iterator.hasNext())
+					builder.append(',');
+			}
+
+			builder.append('}');
+		}
+		else if (value instanceof Iterable)
+		{
+			builder.append('[');
+
+			Iterator<?> iterator = ((Iterable<?>) value).iterator();
+			while (iterator.hasNext())
+			{
+				write(iterator.next(), builder);
+
+				if (iterator.hasNext())
+					builder.append(',');
+			}
+
+			builder.append(']');
+		}
+		else if (value instanceof Number || value instanceof Boolean)
+		{
+			builder.append(value);
+		}
+		else
+		{
+			writeString(value.toString(), builder);
+		}
+	}
+
+
+	private static void writeString(String string, StringBuilder builder)
+	{
+		builder.append('"');
+
+		for (int i = 0; i < string.length(); i++)
+		{
+			char c = string.charAt(i);
+
+			switch (c)
+			{
+				case '"' :
+					builder.append("\\\"");
+					break;
+				case '\\' :
+					builder.append("\\\\");
+					break;
+				case '\n' :
+					builder.append("\\n");
+					break;
+				case '\r' :
+					builder.append("\\r");
+					break;
+				case '\t' :
+					builder.append("\\t");
+					break;
+				default :
+					if (c < 0x20)
+						builder.append(String.format("\\u%04x", (int) c));
+					else
+						builder.append(c);
+			}
+		}
+
+		builder.append('"');
+	}
+
+
+	private Object readValue()
+	{
+		skipWhitespace();
+
+		if (position >= text.length())
+			throw error("Unexpected end of input");
+
+		char c = text.charAt(position);
+
+		switch (c)
+		{
+			case '{' :
+				return readObject();
+			case '[' :
+				return readArray();
+			case '"' :
+				return readString();
+			case 't' :
+				return readLiteral("true", Boolean.TRUE);
+			case 'f' :
+				return readLiteral("false", Boolean.FALSE);
+			case 'n' :
+				return readLiteral("null", null);
+			default :
+				if (c == '-' || (c >= '0' && c <= '9'))
+					return readNumber();
+				throw error("Unexpected character '" + c + "'");
+		}
+	}
+
+
+	private Map<String, Object> readObject()
+	{
+		Map<String, Object> map = new LinkedHashMap<>();
+		position++;
+
+		skipWhitespace();
+		if (consume('}'))
+			return map;
+
+		do
+		{
+			skipWhitespace();
+			if (position >= text.length() || text.charAt(position) != '"')
+				throw error("Expected a key");
+
+			String key = readString();
+
+			skipWhitespace();
+			if (!consume(':'))
+				throw error("Expected ':'");
+
+			map.put(key, readValue());
+			skipWhitespace();
+		}
+		while (consume(','));
+
+		if (!consume('}'))
+			throw error("Expected ',' or '}'");
+
+		return map;
+	}
+
+
+	private List<Object> readArray()
+	{
+		List<Object> list = new ArrayList<>();
+		position++;
+
+		skipWhitespace();
+		if (consume(']'))
+			return list;
+
+		do
+		{
+			list.add(readValue());
+			skipWhitespace();
+		}
+		while (consume(','));
+
+		if (!consume(']'))
+			throw error("Expected ',' or ']'");
+
+		return list;
+	}
+
+
+	private String readString()
+	{
+		StringBuilder builder = new StringBuilder();
+		position++;
+
+		while (position < text.length())
+		{
+			char c = text.charAt(position++);
+
+			if (c == '"')
+				return builder.toString();
+
+			if (c != '\\')
+			{
+				builder.append(c);
+				continue;
+			}
+
+			if (position >= text.length())
+				break;
+
+			char escaped = text.charAt(position++);
+			switch (escaped)
+			{
+				case 'b' :
+					builder.append('\b');
+					break;
+				case 'f' :
+					builder.append('\f');
+					break;
+				case 'n' :
+					builder.append('\n');
+					break;
+				case 'r' :
+					builder.append('\r');
+					break;
+				case 't' :
+					builder.append('\t');
+					break;
+				case 'u' :
+					if (position + 4 > text.length())
+						throw error("Incomplete unicode escape");
+					try
+					{
+						builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+					}
+					catch (NumberFormatException e)
+					{
+						throw error("Invalid unicode escape");
+					}
+					position += 4;
+					break;
+				default :
+					builder.append(escaped);
+			}
+		}
+
+		throw error("Unterminated string");
+	}
+
+
+	private Number readNumber()
+	{
+		int start = position;
+		boolean decimal = false;
+
+		while (position < text.length())
+		{
+			char c = text.charAt(position);
+
+			if (c == '.' || c == 'e' || c == 'E')
+				decimal = true;
+			else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9')))
+				break;
+
+			position++;
+		}
+
+		String number = text.substring(start, position);
+
+		try
+		{
+			if (decimal)
+				return Double.valueOf(number);
+			return Long.valueOf(number);
+		}
+		catch (NumberFormatException e)
+		{
+			position = start;
+			throw error("Invalid number '" + number + "'");
+		}
+	}
+
+
+	private Object readLiteral(String literal, Object value)
+	{
+		if (!text.startsWith(literal, position))
+			throw error("Unexpected character '" + text.charAt(position) + "'");
+
+		position += literal.length();
+		return value;
+	}
+
+
+	private boolean consume(char c)
+	{
+		if (position < text.length() && text.charAt(position) == c)
+		{
+			position++;
+			return true;
+		}
+
+		return false;
+	}
+
+
+	private void skipWhitespace()
+	{
+		while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+			position++;
+	}
+
+
+	private IllegalArgumentException error(String message)
+	{
+		return new IllegalArgumentException(String.format("%s at position %d", message, position));
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Reads a log file backwards, one page at a time, continuing with older
+ * generations of the log (<code>&lt;file&gt;.1</code>,
+ * <code>&lt;file&gt;.2</code>, etc.) once the current file has been read.
+ * Pages always start at the beginning of a line, so only the requested part
+ * of a large log is ever read into memory.
+ */
+public class LogPager
+{
+	public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+
+	private final String logFile;
+	private final int generations;
+	private final int pageSize;
+	private int generation;
+	private long offset;
+
+
+	/**
+	 * @param logFile The current log file.
+	 * @param generations The number of older generations that may exist.
+	 * @param endOffset Where in the current log file to start reading
+	 *          backwards from.
+	 */
+	public LogPager(String logFile, int generations, long endOffset, int pageSize)
+	{
+		this.logFile = logFile;
+		this.generations = generations;
+		this.pageSize = pageSize;
+		this.offset = endOffset;
+	}
+
+
+	/**
+	 * @return The file of a log generation, where generation 0 is the current
+	 *         log file.
+	 */
+	public static File getGeneration(String logFile, int generation)
+	{
+		return new File(generation == 0 ? logFile : logFile + "." + generation);
+	}
+
+
+	/**
+	 * Must be called when the log has been rotated, i.e. when each generation
+	 * has been renamed to the next older one.
+	 */
+	public void onRotated()
+	{
+		generation++;
+	}
+
+
+	/**
+	 * @return The page before the previously read one, or <code>null</code> if
+	 *         the beginning of the oldest generation has been reached.
+	 */
+	public String readOlder() throws IOException
+	{
+		while (offset <= 0)
+		{
+			if (generation >= generations)
+				return null;
+
+			File file = getGeneration(logFile, ++generation);
+			if (!file.exists())
+				return null;
+
+			offset = file.length();
+		}
+
+		try (RandomAccessFile file = new RandomAccessFile(getGeneration(logFile, generation), "r"))
+		{
+			long end = Math.min(offset, file.length());
+			long start = Math.max(0, end - pageSize);
+			byte[] bytes = new byte[(int) (end - start)];
+
+			file.seek(start);
+			file.readFully(bytes);
+
+			//Skip the partial line at the start; it is read with the next page.
+			//The last byte is ignored since it ends the last line of the page.
+			int first = 0;
+			if (start > 0)
+			{
+				while (first < bytes.length - 1 && bytes[first] != '\n')
+					first++;
+
+				if (first == bytes.length - 1)
+					first = 0; //A single line longer than a page.
+				else
+					first++;
+			}
+
+			offset = start + first;
+			return new String(bytes, first, bytes.length - first, StandardCharsets.UTF_8);
+		}
+	}
+}
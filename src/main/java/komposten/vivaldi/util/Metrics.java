@@ -0,0 +1,373 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import komposten.utilities.logging.Level;
+import komposten.utilities.logging.LogUtils;
+
+
+/**
+ * A process-wide registry of counters, gauges and latency histograms, which
+ * can be written to a file in the Prometheus text format (e.g. for
+ * node_exporter's textfile collector).
+ * <br />
+ * Metrics are registered once, usually in static fields of the class that
+ * updates them. Updating a metric is lock-free.
+ */
+public final class Metrics
+{
+	/** Histogram buckets (in seconds) suitable for file operations. */
+	private static final double[] LATENCY_BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+			0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	private static final Map<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+	private static ScheduledExecutorService exporter;
+
+
+	private Metrics()
+	{}
+
+
+	public static Counter counter(String name, String help)
+	{
+		return register(new Counter(name, help));
+	}
+
+
+	/**
+	 * Registers a gauge whose value is read from <code>value</code> each time
+	 * the metrics are written. Registering a gauge with the same name again
+	 * replaces the previous gauge.
+	 */
+	public static void gauge(String name, String help, DoubleSupplier value)
+	{
+		METRICS.put(name, new Gauge(name, help, value));
+	}
+
+
+	/**
+	 * Registers a histogram of durations in seconds.
+	 */
+	public static Histogram histogram(String name, String help)
+	{
+		return register(new Histogram(name, help, LATENCY_BUCKETS));
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private static <T extends Metric> T register(T metric)
+	{
+		Metric existing = METRICS.putIfAbsent(metric.name, metric);
+
+		if (existing == null)
+			return metric;
+		if (existing.getClass() != metric.getClass())
+			throw new IllegalArgumentException(metric.name + " is already registered as another type!");
+
+		return (T) existing;
+	}
+
+
+	/**
+	 * @return All metrics in the Prometheus text exposition format.
+	 */
+	public static String format()
+	{
+		StringBuilder builder = new StringBuilder();
+
+		for (Metric metric : METRICS.values())
+		{
+			builder.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+			builder.append("# TYPE ").append(metric.name).append(' ').append(metric.getType())
+					.append('\n');
+			metric.format(builder);
+		}
+
+		return builder.toString();
+	}
+
+
+	/**
+	 * Writes all metrics to a file. The file is replaced atomically where
+	 * possible, so readers never see a partially written file.
+	 */
+	public static void writeToFile(File file) throws IOException
+	{
+		Path target = file.getAbsoluteFile().toPath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+		Files.write(temp, format().getBytes(StandardCharsets.UTF_8));
+
+		try
+		{
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+
+	/**
+	 * Writes the metrics to a file every <code>intervalMillis</code>
+	 * milliseconds until {@link #stopExporting(File)} is called.
+	 */
+	public static synchronized void startExporting(File file, long intervalMillis)
+	{
+		if (exporter != null)
+			exporter.shutdownNow();
+
+		exporter = Executors.newSingleThreadScheduledExecutor(runnable ->
+		{
+			Thread thread = new Thread(runnable, "MetricsThread");
+			thread.setDaemon(true);
+			return thread;
+		});
+		exporter.scheduleWithFixedDelay(() -> export(file), 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Stops the periodic export and writes the metrics one last time.
+	 */
+	public static synchronized void stopExporting(File file)
+	{
+		if (exporter != null)
+		{
+			exporter.shutdownNow();
+			exporter = null;
+		}
+
+		export(file);
+	}
+
+
+	private static void export(File file)
+	{
+		try
+		{
+			writeToFile(file);
+		}
+		catch (IOException e)
+		{
+			String msg = String.format("Could not write the metrics to %s!", file);
+			LogUtils.log(Level.WARNING, Metrics.class.getSimpleName(), msg, e, false);
+		}
+	}
+
+
+	private static String formatValue(double value)
+	{
+		if (value == Double.POSITIVE_INFINITY)
+			return "+Inf";
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+
+		return String.format(Locale.ROOT, "%s", value);
+	}
+
+
+	private abstract static class Metric
+	{
+		final String name;
+		final String help;
+
+
+		Metric(String name, String help)
+		{
+			this.name = name;
+			this.help = help;
+		}
+
+
+		abstract String getType();
+
+
+		abstract void format(StringBuilder builder);
+	}
+
+
+	public static final class Counter extends Metric
+	{
+		private final LongAdder value = new LongAdder();
+
+
+		private Counter(String name, String help)
+		{
+			super(name, help);
+		}
+
+
+		public void increment()
+		{
+			value.increment();
+		}
+
+
+		public void add(long amount)
+		{
+			value.add(amount);
+		}
+
+
+		public long get()
+		{
+			return value.sum();
+		}
+
+
+		@Override
+		String getType()
+		{
+			return "counter";
+		}
+
+
+		@Override
+		void format(StringBuilder builder)
+		{
+			builder.append(name).append(' ').append(value.sum()).append('\n');
+		}
+	}
+
+
+	private static final class Gauge extends Metric
+	{
+		private final DoubleSupplier value;
+
+
+		private Gauge(String name, String help, DoubleSupplier value)
+		{
+			super(name, help);
+			this.value = value;
+		}
+
+
+		@Override
+		String getType()
+		{
+			return "gauge";
+		}
+
+
+		@Override
+		void format(StringBuilder builder)
+		{
+			builder.append(name).append(' ').append(formatValue(value.getAsDouble())).append('\n');
+		}
+	}
+
+
+	public static final class Histogram extends Metric
+	{
+		private final double[] buckets;
+		private final LongAdder[] counts;
+		private final LongAdder count = new LongAdder();
+		private final DoubleAdder sum = new DoubleAdder();
+
+
+		private Histogram(String name, String help, double[] buckets)
+		{
+			super(name, help);
+			this.buckets = buckets;
+			this.counts = new LongAdder[buckets.length];
+
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = new LongAdder();
+		}
+
+
+		/**
+		 * Records the time since <code>startNanos</code>, as returned by
+		 * {@link System#nanoTime()}.
+		 */
+		public void observeSince(long startNanos)
+		{
+			observe((System.nanoTime() - startNanos) / 1e9);
+		}
+
+
+		public void observe(double seconds)
+		{
+			for (int i = 0; i < buckets.length; i++)
+			{
+				if (seconds <= buckets[i])
+				{
+					counts[i].increment();
+					break;
+				}
+			}
+
+			count.increment();
+			sum.add(seconds);
+		}
+
+
+		public long getCount()
+		{
+			return count.sum();
+		}
+
+
+		@Override
+		String getType()
+		{
+			return "histogram";
+		}
+
+
+		@Override
+		void format(StringBuilder builder)
+		{
+			//Read the total first, so the cumulative buckets never exceed it.
+			long total = count.sum();
+			long cumulative = 0;
+
+			for (int i = 0; i < buckets.length; i++)
+			{
+				cumulative += counts[i].sum();
+				builder.append(name).append("_bucket{le=\"").append(formatValue(buckets[i]))
+						.append("\"} ").append(Math.min(cumulative, total)).append('\n');
+			}
+
+			builder.append(name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+			builder.append(name).append("_sum ").append(formatValue(sum.sum())).append('\n');
+			builder.append(name).append("_count ").append(total).append('\n');
+		}
+	}
+}
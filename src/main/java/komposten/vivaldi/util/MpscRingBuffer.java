@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer.
+ * <br />
+ * Each slot has a sequence number that tells producers whether the slot is
+ * free for the current lap and tells the consumer whether it has been
+ * filled, so neither side ever blocks: {@link #offer(Object)} returns
+ * <code>false</code> when the buffer is full, and {@link #poll()} returns
+ * <code>null</code> when it is empty.
+ * <br />
+ * {@link #poll()}, {@link #peek()} and {@link #isEmpty()} must only be called
+ * from the consumer thread.
+ */
+public class MpscRingBuffer<E>
+{
+	private final int mask;
+	private final AtomicReferenceArray<E> elements;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail;
+	private long head;
+
+
+	/**
+	 * @param capacity The minimum capacity of the buffer. Rounded up to the
+	 *          nearest power of two.
+	 */
+	public MpscRingBuffer(int capacity)
+	{
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+
+		this.mask = size - 1;
+		this.elements = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		this.tail = new AtomicLong();
+
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+
+	public int capacity()
+	{
+		return mask + 1;
+	}
+
+
+	/**
+	 * @return <code>false</code> if the buffer is full.
+	 */
+	public boolean offer(E element)
+	{
+		if (element == null)
+			throw new NullPointerException();
+
+		long position = tail.get();
+
+		while (true)
+		{
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - position;
+
+			if (difference == 0)
+			{
+				if (tail.compareAndSet(position, position + 1))
+				{
+					elements.set(index, element);
+					sequences.set(index, position + 1);
+					return true;
+				}
+			}
+			else if (difference < 0)
+			{
+				return false;
+			}
+
+			position = tail.get();
+		}
+	}
+
+
+	/**
+	 * @return The oldest element, or <code>null</code> if the buffer is empty.
+	 */
+	public E poll()
+	{
+		int index = (int) (head & mask);
+
+		if (sequences.get(index) != head + 1)
+			return null;
+
+		E element = elements.get(index);
+		elements.set(index, null);
+		sequences.set(index, head + mask + 1);
+		head++;
+
+		return element;
+	}
+
+
+	/**
+	 * @return The oldest element without removing it, or <code>null</code> if
+	 *         the buffer is empty.
+	 */
+	public E peek()
+	{
+		int index = (int) (head & mask);
+
+		if (sequences.get(index) != head + 1)
+			return null;
+
+		return elements.get(index);
+	}
+
+
+	public boolean isEmpty()
+	{
+		return sequences.get((int) (head & mask)) != head + 1;
+	}
+}
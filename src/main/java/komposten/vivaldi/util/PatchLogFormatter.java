@@ -18,51 +18,88 @@
  */
 package komposten.vivaldi.util;
 
-import java.text.DateFormat;
-import java.util.Arrays;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
 import java.util.Calendar;
 
 import komposten.utilities.logging.Level;
 import komposten.utilities.logging.LogFormatter;
 
+/**
+ * Formats patch log records as <code>date | message</code>, with the causes
+ * of a throwable on indented lines below.
+ * <br />
+ * Log lines are formatted at high rates when patching many installations, so
+ * the date formatter is shared and each thread reuses its own buffer.
+ * {@link #formatTo(StringBuilder, Level, Calendar, String, String, Throwable)}
+ * appends to a caller-provided buffer, which avoids creating a string per
+ * record when records are written in batches.
+ */
 public class PatchLogFormatter implements LogFormatter
 {
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+			.ofLocalizedDateTime(FormatStyle.MEDIUM, FormatStyle.LONG);
+	private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal
+			.withInitial(() -> new StringBuilder(256));
+	/** Buffers that grew larger than this are not kept, to not hold on to memory. */
+	private static final int MAX_KEPT_BUFFER = 16 * 1024;
+	
+	
 	@Override
 	public String format(Level logLevel, Calendar date, String location, String message,
 			Throwable throwable, boolean includeStackTrace)
 	{
-		DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.LONG);
+		StringBuilder builder = BUFFER.get();
+		builder.setLength(0);
+		
+		formatTo(builder, logLevel, date, location, message, throwable);
+		String result = builder.toString();
+		
+		if (builder.capacity() > MAX_KEPT_BUFFER)
+			BUFFER.remove();
 		
-		StringBuilder builder = new StringBuilder();
+		return result;
+	}
+	
+	
+	/**
+	 * Appends a formatted record to <code>builder</code>.
+	 */
+	public void formatTo(StringBuilder builder, Level logLevel, Calendar date, String location,
+			String message, Throwable throwable)
+	{
+		int start = builder.length();
 		
-		builder.append(dateFormat.format(date.getTime())).append(" | ");
+		DATE_FORMAT.formatTo(ZonedDateTime.ofInstant(date.toInstant(), date.getTimeZone().toZoneId()),
+				builder);
+		int separator = builder.length() + 1;
+		builder.append(" | ");
 		
 		if (location != null && !location.isEmpty())
 			builder.append("In ").append(location).append(": ");
 		
 		builder.append(message).append("\r\n");
 		
-		if (throwable != null)
+		while (throwable != null)
 		{
-			String indent = createIndentString(builder);
-			
-			while (throwable != null)
-			{
-				builder.append(indent).append("        Cause: ").append(throwable.getMessage()).append("\r\n");
-				throwable = throwable.getCause();
-			}
+			appendIndent(builder, separator - start);
+			builder.append("        Cause: ").append(throwable.getMessage()).append("\r\n");
+			throwable = throwable.getCause();
 		}
 		
-		return builder.toString().replace('\\', '/');
+		for (int i = start; i < builder.length(); i++)
+		{
+			if (builder.charAt(i) == '\\')
+				builder.setCharAt(i, '/');
+		}
 	}
-
-	private String createIndentString(StringBuilder builder)
+	
+	
+	private void appendIndent(StringBuilder builder, int indentSize)
 	{
-		int indentSize = builder.indexOf("|");
-		char[] indentChars = new char[indentSize+2];
-		Arrays.fill(indentChars, ' ');
-		indentChars[indentSize] = '|';
-		
-		return new String(indentChars);
+		for (int i = 0; i < indentSize; i++)
+			builder.append(' ');
+		builder.append("| ");
 	}
 }
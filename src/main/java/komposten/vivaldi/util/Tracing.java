@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 Jakob Hjelm
+ * 
+ * This file is part of VivaldiModder.
+ * 
+ * VivaldiModder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package komposten.vivaldi.util;
+
+import java.io.File;
+
+
+/**
+ * Records spans of work (e.g. patch runs and file copies) so they show up in
+ * profiling tools. On Java 11 and later spans are emitted as Java Flight
+ * Recorder events (see <code>komposten.vivaldi.jfr</code>), which cost next
+ * to nothing unless a recording with the events enabled is running. On older
+ * runtimes spans are discarded.
+ */
+public final class Tracing
+{
+	public enum SpanType
+	{
+		PATCH_RUN,
+		VERSION_PATCH,
+		FILE_COPY,
+		FILE_BACKUP,
+		BROWSER_HTML_REWRITE,
+		DIRECTORY_SCAN,
+		WATCHER_TRIGGER
+	}
+
+
+	/**
+	 * A span that has begun. Setters return the span so they can be chained.
+	 */
+	public interface Span
+	{
+		public Span path(File path);
+
+
+		public Span bytes(long bytes);
+
+
+		/**
+		 * Sets the number of items (e.g. versions) the span covered.
+		 */
+		public Span count(long count);
+
+
+		public void end(boolean success);
+
+
+		/**
+		 * @param outcome A short description of the outcome, e.g.
+		 *          <code>"skipped"</code>.
+		 */
+		public void end(String outcome);
+	}
+
+
+	public interface Tracer
+	{
+		public Span begin(SpanType type);
+	}
+
+
+	private static final String JFR_TRACER = "komposten.vivaldi.jfr.JfrTracer";
+	private static final Span NO_OP_SPAN = new NoOpSpan();
+	private static final Tracer TRACER = createTracer();
+
+
+	private Tracing()
+	{}
+
+
+	private static Tracer createTracer()
+	{
+		try
+		{
+			Class.forName("jdk.jfr.Event");
+			return (Tracer) Class.forName(JFR_TRACER).getConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError e)
+		{
+			//Java Flight Recorder is not available (or the tracer was not built).
+			return type -> NO_OP_SPAN;
+		}
+	}
+
+
+	public static Span begin(SpanType type)
+	{
+		return TRACER.begin(type);
+	}
+
+
+	/**
+	 * Records a span without duration, e.g. for an event that triggered work.
+	 */
+	public static void instant(SpanType type, File path)
+	{
+		TRACER.begin(type).path(path).end(true);
+	}
+
+
+	/**
+	 * @return The outcome that {@link Span#end(boolean)} records.
+	 */
+	public static String getOutcome(boolean success)
+	{
+		return success ? "success" : "failure";
+	}
+
+
+	private static final class NoOpSpan implements Span
+	{
+		@Override
+		public Span path(File path)
+		{
+			return this;
+		}
+
+
+		@Override
+		public Span bytes(long bytes)
+		{
+			return this;
+		}
+
+
+		@Override
+		public Span count(long count)
+		{
+			return this;
+		}
+
+
+		@Override
+		public void end(boolean success)
+		{}
+
+
+		@Override
+		public void end(String outcome)
+		{}
+	}
+}
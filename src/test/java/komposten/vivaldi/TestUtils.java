@@ -3,9 +3,23 @@ package komposten.vivaldi;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import komposten.vivaldi.backend.Instruction;
+import komposten.vivaldi.backend.ModConfig;
 
 public class TestUtils
 {
+	public static final String VERSION = "2.6.1566.49";
+	public static final String BROWSER_HTML = "<html><head></head><body></body></html>";
+	public static final String STYLE_DIR = "resources/vivaldi/style";
+
+
 	private TestUtils()
 	{}
 	
@@ -26,5 +40,59 @@ public class TestUtils
 			throw new IOException(msg);
 		}
 	}
-	
+
+
+	/**
+	 * Creates a Vivaldi version with an empty <code>browser.html</code> and
+	 * style directory.
+	 *
+	 * @return The version directory.
+	 */
+	public static File createVersion(File vivaldiDir, String version) throws IOException
+	{
+		File versionDir = new File(vivaldiDir, version);
+		new File(versionDir, STYLE_DIR).mkdirs();
+		writeFile(new File(versionDir, "resources/vivaldi/browser.html"), BROWSER_HTML);
+		return versionDir;
+	}
+
+
+	/**
+	 * @return A config with a single instruction, which copies
+	 *         <code>custom.css</code> to the style directory.
+	 */
+	public static ModConfig createStyleConfig(File modDir, File... vivaldiDirs)
+	{
+		return new ModConfig(null, modDir, vivaldiDirs,
+				Arrays.asList(new Instruction("custom.css", STYLE_DIR, false)));
+	}
+
+
+	/**
+	 * Writes a file as UTF-8, creating its parent directories if needed.
+	 */
+	public static void writeFile(File file, String content) throws IOException
+	{
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+
+	public static String readFile(File file) throws IOException
+	{
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * Deletes a directory and everything in it.
+	 */
+	public static void deleteRecursively(File dir) throws IOException
+	{
+		try (Stream<Path> paths = Files.walk(dir.toPath()))
+		{
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(path);
+		}
+	}
 }
@@ -0,0 +1,134 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import komposten.vivaldi.TestUtils;
+import komposten.vivaldi.util.DirectoryWatcher;
+
+
+class DriftWatcherTest
+{
+	private static final long SETTLE_DELAY = 100;
+	private static final long REAPPLY_INTERVAL = 3000;
+	private static final String MOD_CONTENT = "body { color: red; }";
+
+	private File dir;
+	private File vivaldiDir;
+	private File versionDir;
+	private File target;
+	private PatchLogger logger;
+	private Patcher patcher;
+	private DirectoryWatcher watcher;
+	private DriftWatcher driftWatcher;
+	private BlockingQueue<File> reapplied;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("driftwatcher").toFile();
+		File modDir = new File(dir, "mod");
+		vivaldiDir = new File(dir, "vivaldi");
+		versionDir = TestUtils.createVersion(vivaldiDir, TestUtils.VERSION);
+		target = new File(versionDir, TestUtils.STYLE_DIR + "/custom.css");
+
+		TestUtils.writeFile(new File(modDir, "custom.css"), MOD_CONTENT);
+
+		ModConfig config = TestUtils.createStyleConfig(modDir, vivaldiDir);
+		logger = new PatchLogger(new File(dir, "patchlog.txt").getPath(), null);
+		patcher = new Patcher(Arrays.asList(config), logger,
+				new PatchedVersions(new File(dir, "patched.ini")));
+		assertTrue(patcher.applyMods(true));
+
+		reapplied = new LinkedBlockingQueue<>();
+		driftWatcher = new DriftWatcher(patcher, (installation, runnable) ->
+		{
+			runnable.run();
+			reapplied.add(installation);
+		}, SETTLE_DELAY, REAPPLY_INTERVAL);
+
+		watcher = new DirectoryWatcher("DriftWatcherTest");
+		watcher.setForcePolling(true);
+		watcher.start();
+		driftWatcher.watchPatchedVersions(watcher);
+	}
+
+
+	@AfterEach
+	void tearDown() throws IOException
+	{
+		watcher.close();
+		logger.close();
+		TestUtils.deleteRecursively(dir);
+	}
+
+
+	@Test
+	void modifiedTarget_reapplied() throws Exception
+	{
+		TestUtils.writeFile(target, "body { }");
+
+		assertEquals(vivaldiDir, reapplied.poll(5, TimeUnit.SECONDS));
+		assertEquals(MOD_CONTENT, TestUtils.readFile(target));
+	}
+
+
+	@Test
+	void deletedTarget_reapplied() throws Exception
+	{
+		assertTrue(target.delete());
+
+		assertEquals(vivaldiDir, reapplied.poll(5, TimeUnit.SECONDS));
+		assertEquals(MOD_CONTENT, TestUtils.readFile(target));
+	}
+
+
+	@Test
+	void unrelatedFileModified_notReapplied() throws Exception
+	{
+		TestUtils.writeFile(new File(target.getParentFile(), "other.css"), "body { }");
+
+		assertNull(reapplied.poll(2, TimeUnit.SECONDS));
+	}
+
+
+	@Test
+	void repeatedDrift_reappliedOncePerInterval() throws Exception
+	{
+		long firstDrift = System.currentTimeMillis();
+		TestUtils.writeFile(target, "body { }");
+		assertEquals(vivaldiDir, reapplied.poll(5, TimeUnit.SECONDS));
+
+		//Wait for the re-applied file to be polled before drifting again.
+		Thread.sleep(1000);
+		TestUtils.writeFile(target, "body { margin: 0; }");
+
+		assertEquals(vivaldiDir, reapplied.poll(REAPPLY_INTERVAL + 5000, TimeUnit.MILLISECONDS));
+		assertTrue(System.currentTimeMillis() - firstDrift >= REAPPLY_INTERVAL);
+		assertEquals(MOD_CONTENT, TestUtils.readFile(target));
+	}
+
+
+	@Test
+	void watchPatchedVersions_calledAgain_reappliedOnce() throws Exception
+	{
+		driftWatcher.watchPatchedVersions(watcher);
+		driftWatcher.watchPatchedVersions(watcher);
+		TestUtils.writeFile(target, "body { }");
+
+		assertEquals(vivaldiDir, reapplied.poll(5, TimeUnit.SECONDS));
+		assertNull(reapplied.poll(REAPPLY_INTERVAL + 1000, TimeUnit.MILLISECONDS));
+	}
+}
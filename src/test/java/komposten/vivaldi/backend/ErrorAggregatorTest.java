@@ -0,0 +1,83 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import komposten.utilities.logging.Level;
+import komposten.vivaldi.backend.ErrorAggregator.ErrorGroup;
+
+
+class ErrorAggregatorTest
+{
+	@Test
+	void add_sameCauseAndDirectory_grouped()
+	{
+		ErrorAggregator errors = new ErrorAggregator();
+		File dir = new File("style");
+
+		for (int i = 0; i < 10000; i++)
+		{
+			File file = new File(dir, "file" + i + ".css");
+			IOException cause = new IOException(file.getPath() + " (Access is denied)");
+			errors.add(Level.ERROR, RunReport.Operation.COPY, file, "Could not copy " + file,
+					new IOException("Copy failed", cause));
+		}
+
+		List<ErrorGroup> groups = errors.getGroups();
+		assertEquals(10000, errors.getErrorCount());
+		assertEquals(1, groups.size());
+		assertEquals(10000, groups.get(0).count);
+		assertEquals(ErrorAggregator.MAX_SAMPLES, groups.get(0).samples.size());
+		assertEquals(dir, groups.get(0).directory);
+		assertEquals("IOException: <file> (Access is denied)", groups.get(0).rootCause);
+	}
+
+
+	@Test
+	void add_shortFileName_onlyWholePathComponentsReplaced()
+	{
+		ErrorAggregator errors = new ErrorAggregator();
+		File file = new File("style", "a");
+		File modFile = new File("mod", "a");
+		IOException cause = new IOException("Cannot read data from " + modFile.getPath()
+				+ " to a or " + file.getPath() + ": a.css and ba are locked");
+		errors.add(Level.ERROR, RunReport.Operation.COPY, file, "Could not copy " + file,
+				new IOException("Copy failed", cause));
+
+		assertEquals("IOException: Cannot read data from <file> to <file> or <file>: a.css and ba"
+				+ " are locked", errors.getGroups().get(0).rootCause);
+	}
+
+
+	@Test
+	void add_differentOperationOrDirectory_separateGroups()
+	{
+		ErrorAggregator errors = new ErrorAggregator();
+
+		errors.add(Level.ERROR, RunReport.Operation.COPY, new File("a/x.css"), "1", null);
+		errors.add(Level.ERROR, RunReport.Operation.BACKUP, new File("a/x.css"), "2", null);
+		errors.add(Level.ERROR, RunReport.Operation.COPY, new File("b/x.css"), "3", null);
+
+		assertEquals(3, errors.getGroups().size());
+	}
+
+
+	@Test
+	void add_tooManyGroups_overflow()
+	{
+		ErrorAggregator errors = new ErrorAggregator();
+
+		for (int i = 0; i < ErrorAggregator.MAX_GROUPS + 5; i++)
+			errors.add(Level.ERROR, RunReport.Operation.COPY, new File("dir" + i, "x.css"), "", null);
+
+		List<ErrorGroup> groups = errors.getGroups();
+		assertEquals(ErrorAggregator.MAX_GROUPS + 1, groups.size());
+		assertTrue(groups.get(groups.size() - 1).isOverflow());
+		assertEquals(5, groups.get(groups.size() - 1).count);
+	}
+}
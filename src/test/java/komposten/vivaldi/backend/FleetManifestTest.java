@@ -0,0 +1,60 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+
+class FleetManifestTest
+{
+	@Test
+	void getShard_lastShardIsSmaller()
+	{
+		FleetManifest manifest = new FleetManifest(Arrays.asList("a", "b", "c", "d", "e"), 2);
+
+		assertEquals(5, manifest.getEntryCount());
+		assertEquals(3, manifest.getShardCount());
+		assertEquals(Arrays.asList("a", "b"), manifest.getShard(0));
+		assertEquals(Arrays.asList("e"), manifest.getShard(2));
+	}
+
+
+	@Test
+	void getShardCount_empty_zero()
+	{
+		assertEquals(0, new FleetManifest(Arrays.asList(), 10).getShardCount());
+	}
+
+
+	@Test
+	void getId_differentShardSize_differentId()
+	{
+		List<String> entries = Arrays.asList("a", "b", "c");
+
+		assertEquals(new FleetManifest(entries, 2).getId(), new FleetManifest(entries, 2).getId());
+		assertNotEquals(new FleetManifest(entries, 2).getId(), new FleetManifest(entries, 3).getId());
+		assertNotEquals(new FleetManifest(entries, 2).getId(),
+				new FleetManifest(Arrays.asList("a", "c", "b"), 2).getId());
+	}
+
+
+	@Test
+	void load_skipsBlankLinesAndComments() throws IOException
+	{
+		File file = File.createTempFile("manifest", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), Arrays.asList("# Installations", "/opt/a", "", "  /opt/b  "),
+				StandardCharsets.UTF_8);
+
+		FleetManifest manifest = FleetManifest.load(file, 10);
+
+		assertEquals(Arrays.asList("/opt/a", "/opt/b"), manifest.getShard(0));
+	}
+}
@@ -0,0 +1,88 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import komposten.vivaldi.TestUtils;
+
+
+class FleetWorkerTest
+{
+	private File dir;
+	private File modDir;
+	private File stateDir;
+	private File manifestFile;
+	private File installation;
+	private File target;
+	private List<ModConfig> configs;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("fleetworker").toFile();
+		modDir = new File(dir, "mod");
+		stateDir = new File(dir, "state");
+		manifestFile = new File(dir, "manifest.txt");
+		installation = new File(dir, "vivaldi");
+		File versionDir = TestUtils.createVersion(installation, TestUtils.VERSION);
+		target = new File(versionDir, TestUtils.STYLE_DIR + "/custom.css");
+
+		modDir.mkdirs();
+		TestUtils.writeFile(manifestFile, installation.getPath() + "\n" + new File(dir, "missing").getPath() + "\n");
+
+		configs = Arrays.asList(TestUtils.createStyleConfig(modDir));
+	}
+
+
+	@AfterEach
+	void tearDown() throws IOException
+	{
+		TestUtils.deleteRecursively(dir);
+	}
+
+
+	@Test
+	void run_allEntriesPatched_shardDone() throws IOException
+	{
+		TestUtils.writeFile(new File(modDir, "custom.css"), "body { }");
+
+		assertTrue(createWorker().run(false));
+
+		assertTrue(new File(stateDir, "shard-0.done").exists());
+		assertEquals("body { }", TestUtils.readFile(target));
+	}
+
+
+	@Test
+	void run_failedEntry_shardNotDoneAndRetried() throws IOException
+	{
+		//The mod file is missing, so patching fails.
+		assertFalse(createWorker().run(false));
+		assertFalse(new File(stateDir, "shard-0.done").exists());
+
+		TestUtils.writeFile(new File(modDir, "custom.css"), "body { }");
+
+		assertTrue(createWorker().run(false));
+		assertTrue(new File(stateDir, "shard-0.done").exists());
+		assertEquals("body { }", TestUtils.readFile(target));
+	}
+
+
+	private FleetWorker createWorker() throws IOException
+	{
+		return new FleetWorker(manifestFile, 10, stateDir, configs,
+				new PrintStream(new ByteArrayOutputStream()));
+	}
+}
@@ -0,0 +1,67 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+class InstallationLockTest
+{
+	private File dir;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("installationlock").toFile();
+	}
+
+
+	@AfterEach
+	void tearDown()
+	{
+		new File(dir, InstallationLock.FILE_NAME).delete();
+		dir.delete();
+	}
+
+
+	@Test
+	void tryLock_alreadyLocked_null()
+	{
+		try (InstallationLock lock = InstallationLock.tryLock(dir, 0))
+		{
+			assertNotNull(lock);
+			assertTrue(lock.isLocked());
+			assertNull(InstallationLock.tryLock(dir, 200));
+		}
+	}
+
+
+	@Test
+	void tryLock_afterClose_locks()
+	{
+		InstallationLock.tryLock(dir, 0).close();
+
+		try (InstallationLock lock = InstallationLock.tryLock(dir, 0))
+		{
+			assertNotNull(lock);
+		}
+	}
+
+
+	@Test
+	void tryLock_missingDirectory_unlocked()
+	{
+		try (InstallationLock lock = InstallationLock.tryLock(new File(dir, "missing"), 0))
+		{
+			assertNotNull(lock);
+			assertFalse(lock.isLocked());
+		}
+	}
+}
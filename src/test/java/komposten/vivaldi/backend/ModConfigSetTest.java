@@ -0,0 +1,105 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+
+class ModConfigSetTest
+{
+	private static final File MOD_DIR_A = new File("modsA").getAbsoluteFile();
+	private static final File MOD_DIR_B = new File("modsB").getAbsoluteFile();
+	private static final File SHARED = new File("vivaldi/shared").getAbsoluteFile();
+	private static final File ONLY_A = new File("vivaldi/a").getAbsoluteFile();
+
+
+	@Test
+	void getConfig_singleConfig_sameConfig()
+	{
+		ModConfig config = createConfig("a.ini", MOD_DIR_A, new File[] { SHARED }, "a.css");
+		ModConfigSet configs = new ModConfigSet(Collections.singletonList(config));
+
+		assertSame(config, configs.getConfig(SHARED));
+		assertSame(config, configs.getConfig(new File("elsewhere")));
+	}
+
+
+	@Test
+	void getConfig_sharedInstallation_mergesInstructions()
+	{
+		ModConfig configA = createConfig("a.ini", MOD_DIR_A, new File[] { SHARED, ONLY_A }, "a.css");
+		ModConfig configB = createConfig("b.ini", MOD_DIR_B, new File[] { SHARED }, "b.js");
+		ModConfigSet configs = new ModConfigSet(Arrays.asList(configA, configB));
+
+		ModConfig merged = configs.getConfig(SHARED);
+		List<Instruction> instructions = merged.getInstructions();
+
+		assertEquals(2, instructions.size());
+		assertEquals(MOD_DIR_A, merged.getModDir(new Instruction("a.css", "style", false)));
+		assertEquals(MOD_DIR_B, merged.getModDir(new Instruction("b.js", "style", false)));
+		assertSame(merged, configs.getConfig(new File(SHARED, "../shared")));
+
+		assertSame(configA, configs.getConfig(ONLY_A));
+	}
+
+
+	@Test
+	void getConfig_sameTarget_laterConfigWins()
+	{
+		ModConfig configA = createConfig("a.ini", MOD_DIR_A, new File[] { SHARED }, "a.css");
+		ModConfig configB = createConfig("b.ini", MOD_DIR_B, new File[] { SHARED }, "a.css");
+		ModConfigSet configs = new ModConfigSet(Arrays.asList(configA, configB));
+
+		ModConfig merged = configs.getConfig(SHARED);
+
+		assertEquals(1, merged.getInstructions().size());
+		assertEquals(MOD_DIR_B, merged.getModDir(merged.getInstructions().get(0)));
+	}
+
+
+	@Test
+	void getConfig_installationBelowRoot_usesConfigWithRoot()
+	{
+		ModConfig configA = createConfig("a.ini", MOD_DIR_A, null, "a.css");
+		ModConfig configB = createConfig("b.ini", MOD_DIR_B, null, "b.js");
+		configA.setVivaldiRoots(new File[] { new File("vivaldi") }, 2);
+
+		ModConfigSet configs = new ModConfigSet(Arrays.asList(configA, configB));
+
+		assertSame(configA, configs.getConfig(ONLY_A));
+	}
+
+
+	@Test
+	void getVivaldiDirsAndRoots_noDuplicates()
+	{
+		ModConfig configA = createConfig("a.ini", MOD_DIR_A, new File[] { SHARED, ONLY_A }, "a.css");
+		ModConfig configB = createConfig("b.ini", MOD_DIR_B, new File[] { SHARED }, "b.js");
+		configA.setVivaldiRoots(new File[] { new File("roots/1"), new File("roots/2") }, 1);
+		configB.setVivaldiRoots(new File[] { new File("roots/1/") }, 3);
+
+		ModConfigSet configs = new ModConfigSet(Arrays.asList(configA, configB));
+		Map<File, Integer> roots = configs.getVivaldiRoots();
+
+		assertEquals(Arrays.asList(SHARED, ONLY_A), configs.getVivaldiDirs());
+		assertEquals(2, roots.size());
+		assertEquals(Integer.valueOf(3), roots.get(new File("roots/1")));
+		assertEquals(Integer.valueOf(1), roots.get(new File("roots/2")));
+	}
+
+
+	private ModConfig createConfig(String file, File modDir, File[] vivaldiDirs, String modFile)
+	{
+		List<Instruction> instructions = new ArrayList<>();
+		instructions.add(new Instruction(modFile, "style", false));
+
+		return new ModConfig(new File(file), modDir, vivaldiDirs, instructions);
+	}
+}
@@ -136,4 +136,20 @@ class ModConfigTest
 						config.getVivaldiDirs()[1]),
 				() -> assertEquals(instruction, config.getInstructions().get(0)));
 	}
+
+
+	@Test
+	void loadConfig_vivaldiRoots()
+			throws FileNotFoundException, IOException
+	{
+		ModConfig config = getModConfig("vivaldi_roots.ini");
+
+		assertAll(
+				() -> assertEquals(1, config.getVivaldiDirs().length),
+				() -> assertEquals(2, config.getVivaldiRoots().length),
+				() -> assertEquals(new File("C:\\Users"), config.getVivaldiRoots()[0]),
+				() -> assertEquals(new File("D:\\Portable"), config.getVivaldiRoots()[1]),
+				() -> assertEquals(4, config.getVivaldiRootDepth()),
+				() -> assertEquals(1, config.getInstructions().size()));
+	}
 }
@@ -0,0 +1,113 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import komposten.vivaldi.TestUtils;
+
+
+class ModFileCacheTest
+{
+	private File dir;
+	private long settledTime;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("modfilecache").toFile();
+		settledTime = System.currentTimeMillis() - 60000;
+	}
+
+
+	@AfterEach
+	void tearDown() throws IOException
+	{
+		TestUtils.deleteRecursively(dir);
+	}
+
+
+	@Test
+	void read_sameFileTwice_readOnce() throws IOException
+	{
+		ModFileCache cache = new ModFileCache();
+		File file = write("custom.css", "body { }");
+
+		byte[] first = cache.read(file);
+		byte[] second = cache.read(new File(dir, "../" + dir.getName() + "/custom.css"));
+
+		assertEquals("body { }", new String(first, StandardCharsets.UTF_8));
+		assertSame(first, second);
+		assertEquals(1, cache.getEntryCount());
+	}
+
+
+	@Test
+	void read_modifiedFile_readAgain() throws IOException
+	{
+		ModFileCache cache = new ModFileCache();
+		File file = write("custom.css", "body { }");
+		cache.read(file);
+
+		write("custom.css", "body { color: red; }");
+		file.setLastModified(settledTime + 1000);
+
+		assertEquals("body { color: red; }", new String(cache.read(file), StandardCharsets.UTF_8));
+	}
+
+
+	@Test
+	void read_recentlyModifiedFile_notCached() throws IOException
+	{
+		ModFileCache cache = new ModFileCache();
+		File file = write("custom.css", "body { }");
+		file.setLastModified(System.currentTimeMillis());
+
+		assertNull(cache.read(file));
+		assertEquals(0, cache.getEntryCount());
+	}
+
+
+	@Test
+	void read_overMaxSize_leastRecentlyUsedEvicted() throws IOException
+	{
+		ModFileCache cache = new ModFileCache(20);
+		File a = write("a.css", "0123456789");
+		File b = write("b.css", "0123456789");
+		File c = write("c.css", "0123456789");
+
+		byte[] contentA = cache.read(a);
+		cache.read(b);
+		cache.read(a);
+		cache.read(c);
+
+		assertEquals(2, cache.getEntryCount());
+		assertSame(contentA, cache.read(a));
+	}
+
+
+	@Test
+	void read_fileLargerThanMaxSize_notCached() throws IOException
+	{
+		ModFileCache cache = new ModFileCache(4);
+
+		assertNull(cache.read(write("custom.css", "body { }")));
+	}
+
+
+	private File write(String name, String content) throws IOException
+	{
+		File file = new File(dir, name);
+		TestUtils.writeFile(file, content);
+		file.setLastModified(settledTime);
+		return file;
+	}
+}
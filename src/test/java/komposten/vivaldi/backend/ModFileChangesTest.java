@@ -0,0 +1,73 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+class ModFileChangesTest
+{
+	private File modDir;
+	private Instruction style;
+	private Instruction script;
+	private Instruction sharedStyle;
+	private ModFileChanges changes;
+
+
+	@BeforeEach
+	void setUp()
+	{
+		modDir = new File("mods");
+		style = new Instruction("custom.css", "resources/vivaldi/style", false);
+		script = new Instruction("js/custom.js", "resources/vivaldi", false);
+		sharedStyle = new Instruction("custom.css", "resources/vivaldi/other", false);
+
+		ModConfig config = new ModConfig(null, modDir, new File[0], Arrays.asList(style, script));
+		ModConfig other = new ModConfig(null, modDir, new File[0], Arrays.asList(sharedStyle));
+		changes = new ModFileChanges(Arrays.asList(config, other));
+	}
+
+
+	@Test
+	void add_modFile_onlyItsInstructionsTaken()
+	{
+		assertTrue(changes.add(new File(modDir, "js/custom.js")));
+		assertEquals(Arrays.asList(script), changes.take());
+	}
+
+
+	@Test
+	void add_modFileInSeveralConfigs_allInstructionsTaken()
+	{
+		assertTrue(changes.add(new File(modDir, "custom.css").getAbsoluteFile()));
+		assertEquals(Arrays.asList(style, sharedStyle), changes.take());
+	}
+
+
+	@Test
+	void add_unrelatedFile_ignored()
+	{
+		assertFalse(changes.add(new File(modDir, "notes.txt")));
+		assertFalse(changes.add(new File(modDir, "custom.js")));
+		assertTrue(changes.isEmpty());
+	}
+
+
+	@Test
+	void add_sameFileTwice_takenOnce()
+	{
+		changes.add(new File(modDir, "js/custom.js"));
+		long changedSince = changes.getChangedSince();
+		changes.add(new File(modDir, "js/../js/custom.js"));
+
+		assertEquals(changedSince, changes.getChangedSince());
+		assertEquals(Arrays.asList(script), changes.take());
+		assertEquals(Collections.emptyList(), changes.take());
+		assertTrue(changes.isEmpty());
+	}
+}
@@ -0,0 +1,92 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import komposten.vivaldi.TestUtils;
+
+
+class PatchBenchmarkTest
+{
+	private File dir;
+	private File versionDir;
+	private File scratchDir;
+	private PatchLogger logger;
+	private ModConfig config;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("patchbenchmark").toFile();
+		File modDir = new File(dir, "mod");
+		versionDir = TestUtils.createVersion(new File(dir, "vivaldi"), TestUtils.VERSION);
+		scratchDir = new File(dir, "scratch");
+
+		scratchDir.mkdirs();
+		TestUtils.writeFile(new File(modDir, "custom.css"), "body { color: red; }");
+		TestUtils.writeFile(new File(versionDir, TestUtils.STYLE_DIR + "/custom.css"), "body { }");
+
+		config = TestUtils.createStyleConfig(modDir);
+		logger = new PatchLogger(new File(dir, "patchlog.txt").getPath(), null);
+	}
+
+
+	@AfterEach
+	void tearDown() throws IOException
+	{
+		logger.close();
+		TestUtils.deleteRecursively(dir);
+	}
+
+
+	@Test
+	void run_allPhasesPatchCopies() throws IOException
+	{
+		PatchBenchmark.Result result = new PatchBenchmark(Arrays.asList(config),
+				Arrays.asList(versionDir), scratchDir, 3, logger).run();
+
+		List<PatchBenchmark.Phase> phases = result.getPhases();
+		assertTrue(result.isSuccess());
+		assertEquals(3, result.getInstallations());
+		assertEquals(Arrays.asList("cold", "warm", "warm", "warm", "re-patch"),
+				Arrays.asList(phases.stream().map(PatchBenchmark.Phase::getName).toArray()));
+		assertEquals(3, phases.get(3).getThreads());
+
+		for (PatchBenchmark.Phase phase : phases)
+		{
+			assertEquals(3, phase.getVersions());
+			assertEquals(3, phase.getCopiedFiles());
+			assertEquals(3 * "body { color: red; }".length(), phase.getCopiedBytes());
+		}
+
+		assertTrue(result.getRecommendedThreads() >= 1 && result.getRecommendedThreads() <= 3);
+		assertEquals(0, scratchDir.list().length);
+	}
+
+
+	@Test
+	void run_patchedVersion_copiesOriginals() throws IOException
+	{
+		File target = new File(versionDir, "resources/vivaldi/style/custom.css");
+		TestUtils.writeFile(new File(target.getPath() + ".bak"), "body { }");
+		TestUtils.writeFile(target, "body { color: red; }");
+
+		PatchBenchmark.Result result = new PatchBenchmark(Arrays.asList(config),
+				Arrays.asList(versionDir), scratchDir, 1, logger).run();
+
+		assertTrue(result.isSuccess());
+		assertEquals(3, result.getPhases().size());
+		assertEquals(1, result.getPhases().get(0).getCopiedFiles());
+		assertEquals("body { color: red; }", TestUtils.readFile(target));
+	}
+}
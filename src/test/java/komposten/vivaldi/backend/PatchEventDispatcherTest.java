@@ -0,0 +1,130 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import komposten.vivaldi.backend.Patcher.PatchProgressListener;
+
+
+class PatchEventDispatcherTest
+{
+	@Test
+	void publish_blockedListener_doesNotBlockAndKeepsLifecycleEvents() throws InterruptedException
+	{
+		PatchEventDispatcher dispatcher = new PatchEventDispatcher();
+		RecordingListener listener = new RecordingListener();
+		dispatcher.addListener(listener);
+
+		dispatcher.publish(PatchEvent.patchStarted());
+		assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+
+		//The listener is now blocked in onPatchStarted, so everything below has
+		//to be buffered or dropped.
+		long start = System.nanoTime();
+		for (int i = 0; i < 5000; i++)
+		{
+			dispatcher.publish(PatchEvent.nextVersion(new File("version" + i)));
+			dispatcher.publish(PatchEvent.nextInstallation(new File("installation" + i)));
+		}
+		dispatcher.publish(PatchEvent.patchFinished(true));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		listener.release.countDown();
+		assertTrue(listener.finished.await(5, TimeUnit.SECONDS));
+
+		assertTrue(elapsed < 2000, "publish() blocked for " + elapsed + " ms");
+		assertEquals(5000, listener.installations.size());
+		for (int i = 0; i < 5000; i++)
+			assertEquals(new File("installation" + i), listener.installations.get(i));
+		assertTrue(listener.versions.size() < 5000);
+	}
+
+
+	@Test
+	void publish_consecutiveProgressEvents_mergedIntoLatest() throws InterruptedException
+	{
+		PatchEventDispatcher dispatcher = new PatchEventDispatcher();
+		RecordingListener listener = new RecordingListener();
+		dispatcher.addListener(listener);
+
+		dispatcher.publish(PatchEvent.patchStarted());
+		assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+
+		for (int i = 0; i < 10; i++)
+			dispatcher.publish(PatchEvent.nextVersion(new File("version" + i)));
+		dispatcher.publish(PatchEvent.patchFinished(true));
+
+		listener.release.countDown();
+		assertTrue(listener.finished.await(5, TimeUnit.SECONDS));
+
+		assertEquals(1, listener.versions.size());
+		assertEquals(new File("version9"), listener.versions.get(0));
+	}
+
+
+	private static class RecordingListener implements PatchProgressListener
+	{
+		private static final long serialVersionUID = 1L;
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(1);
+		final List<File> installations = new CopyOnWriteArrayList<>();
+		final List<File> versions = new CopyOnWriteArrayList<>();
+
+
+		@Override
+		public void onPatchStarted()
+		{
+			started.countDown();
+			try
+			{
+				release.await(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+
+		@Override
+		public void filesToPatch(int dirCount, int modFileCount)
+		{
+		}
+
+
+		@Override
+		public void onNextInstallation(File directory)
+		{
+			installations.add(directory);
+		}
+
+
+		@Override
+		public void onNextVersion(File versionDirectory)
+		{
+			versions.add(versionDirectory);
+		}
+
+
+		@Override
+		public void onNextModFile(String file)
+		{
+		}
+
+
+		@Override
+		public void onPatchFinished(boolean success)
+		{
+			finished.countDown();
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import komposten.vivaldi.backend.PatchEvent.Type;
+import komposten.vivaldi.backend.PatchEventPublisher.Policy;
+import komposten.vivaldi.util.Flow;
+
+
+class PatchEventPublisherTest
+{
+	@Test
+	void publish_noDemand_eventsBufferedUntilRequested()
+	{
+		PatchEventPublisher publisher = new PatchEventPublisher(Runnable::run);
+		TestSubscriber subscriber = new TestSubscriber();
+		publisher.subscribe(subscriber);
+
+		publisher.publish(PatchEvent.patchStarted());
+		publisher.publish(PatchEvent.nextInstallation(new File("A")));
+		assertTrue(subscriber.events.isEmpty());
+
+		subscriber.subscription.request(1);
+		assertEquals(1, subscriber.events.size());
+		assertEquals(Type.PATCH_STARTED, subscriber.events.get(0).getType());
+
+		subscriber.subscription.request(5);
+		assertEquals(2, subscriber.events.size());
+
+		publisher.publish(PatchEvent.patchFinished(true));
+		assertEquals(3, subscriber.events.size());
+	}
+
+
+	@Test
+	void publish_mergePolicy_progressEventsMerged()
+	{
+		PatchEventPublisher publisher = new PatchEventPublisher(Runnable::run);
+		TestSubscriber subscriber = new TestSubscriber();
+		publisher.subscribe(subscriber, Policy.MERGE, 2);
+
+		publisher.publish(PatchEvent.patchStarted());
+		for (int i = 1; i <= 10; i++)
+			publisher.publish(PatchEvent.bytesCopied(i * 100));
+		publisher.publish(PatchEvent.patchFinished(true));
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+
+		assertEquals(3, subscriber.events.size());
+		assertEquals(Type.BYTES_COPIED, subscriber.events.get(1).getType());
+		assertEquals(1000, subscriber.events.get(1).getBytesCopied());
+		assertEquals(Type.PATCH_FINISHED, subscriber.events.get(2).getType());
+	}
+
+
+	@Test
+	void publish_dropPolicy_progressEventsDroppedWhenFull()
+	{
+		PatchEventPublisher publisher = new PatchEventPublisher(Runnable::run);
+		TestSubscriber subscriber = new TestSubscriber();
+		publisher.subscribe(subscriber, Policy.DROP, 2);
+
+		publisher.publish(PatchEvent.patchStarted());
+		for (int i = 0; i < 10; i++)
+			publisher.publish(PatchEvent.nextModFile("file" + i));
+		publisher.publish(PatchEvent.error("error"));
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+
+		assertEquals(4, subscriber.events.size());
+		assertEquals("file0", subscriber.events.get(1).getModFile());
+		assertEquals("file1", subscriber.events.get(2).getModFile());
+		assertEquals(Type.ERROR, subscriber.events.get(3).getType());
+	}
+
+
+	@Test
+	void cancel_noMoreEventsDelivered()
+	{
+		PatchEventPublisher publisher = new PatchEventPublisher(Runnable::run);
+		TestSubscriber subscriber = new TestSubscriber();
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(Long.MAX_VALUE);
+
+		publisher.publish(PatchEvent.patchStarted());
+		subscriber.subscription.cancel();
+		publisher.publish(PatchEvent.patchFinished(true));
+
+		assertEquals(1, subscriber.events.size());
+	}
+
+
+	@Test
+	void request_nonPositive_signalsError()
+	{
+		PatchEventPublisher publisher = new PatchEventPublisher(Runnable::run);
+		TestSubscriber subscriber = new TestSubscriber();
+		publisher.subscribe(subscriber);
+
+		subscriber.subscription.request(0);
+
+		assertTrue(subscriber.error instanceof IllegalArgumentException);
+	}
+
+
+	@Test
+	void publish_tooManyPendingEvents_signalsError()
+	{
+		PatchEventPublisher publisher = new PatchEventPublisher(Runnable::run);
+		TestSubscriber subscriber = new TestSubscriber();
+		publisher.subscribe(subscriber);
+
+		for (int i = 0; i <= PatchEventPublisher.MAX_PENDING_EVENTS; i++)
+			publisher.publish(PatchEvent.error("error " + i));
+		subscriber.subscription.request(Long.MAX_VALUE);
+
+		assertTrue(subscriber.error instanceof IllegalStateException);
+		assertTrue(subscriber.events.isEmpty());
+	}
+
+
+	@Test
+	void publish_slowSubscriber_otherSubscribersNotDelayed() throws InterruptedException
+	{
+		PatchEventPublisher publisher = new PatchEventPublisher();
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingQueue<PatchEvent> fastEvents = new LinkedBlockingQueue<>();
+
+		TestSubscriber slow = new TestSubscriber()
+		{
+			@Override
+			public void onNext(PatchEvent item)
+			{
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		TestSubscriber fast = new TestSubscriber()
+		{
+			@Override
+			public void onNext(PatchEvent item)
+			{
+				fastEvents.add(item);
+			}
+		};
+
+		publisher.subscribe(slow);
+		publisher.subscribe(fast);
+		slow.subscription.request(Long.MAX_VALUE);
+		fast.subscription.request(Long.MAX_VALUE);
+
+		publisher.publish(PatchEvent.patchStarted());
+		publisher.publish(PatchEvent.patchFinished(true));
+
+		try
+		{
+			assertEquals(Type.PATCH_STARTED, fastEvents.poll(5, TimeUnit.SECONDS).getType());
+			assertEquals(Type.PATCH_FINISHED, fastEvents.poll(5, TimeUnit.SECONDS).getType());
+		}
+		finally
+		{
+			release.countDown();
+		}
+	}
+
+
+	private static class TestSubscriber implements Flow.Subscriber<PatchEvent>
+	{
+		Flow.Subscription subscription;
+		List<PatchEvent> events = new ArrayList<>();
+		Throwable error;
+
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription)
+		{
+			this.subscription = subscription;
+		}
+
+
+		@Override
+		public void onNext(PatchEvent item)
+		{
+			events.add(item);
+		}
+
+
+		@Override
+		public void onError(Throwable throwable)
+		{
+			error = throwable;
+		}
+
+
+		@Override
+		public void onComplete()
+		{
+		}
+	}
+}
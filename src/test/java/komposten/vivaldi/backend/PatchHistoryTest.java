@@ -0,0 +1,130 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+
+class PatchHistoryTest
+{
+	@Test
+	void record_load_roundTrip() throws IOException
+	{
+		File file = File.createTempFile("history", ".tsv");
+		file.deleteOnExit();
+		Files.delete(file.toPath());
+		PatchHistory history = new PatchHistory(file);
+
+		assertTrue(history.load().isEmpty());
+
+		history.record(new PatchHistory.Run(1000, 500, 10, 20, 30, 4096, 2, 1, true));
+		history.record(new PatchHistory.Run(2000, 600, 11, 21, 31, 0, 0, 3, false));
+
+		List<PatchHistory.Run> runs = history.load();
+		assertEquals(2, runs.size());
+		assertEquals(1000, runs.get(0).getStarted());
+		assertEquals(500, runs.get(0).getDurationMs());
+		assertEquals(20, runs.get(0).getCopyMs());
+		assertEquals(4096, runs.get(0).getBytes());
+		assertEquals(2, runs.get(0).getVersions());
+		assertTrue(runs.get(0).isSuccess());
+		assertFalse(runs.get(1).isSuccess());
+		assertEquals(3, runs.get(1).getSkippedVersions());
+	}
+
+
+	@Test
+	void getSlowdown_comparedToMedianPerVersion()
+	{
+		List<PatchHistory.Run> runs = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+			runs.add(createRun(100 + i, 1));
+		runs.add(createRun(1000, 0));
+		runs.add(createRun(630, 2));
+
+		assertEquals(3, PatchHistory.getSlowdown(runs, runs.size() - 1), 0.1);
+		assertEquals(0, PatchHistory.getSlowdown(runs, runs.size() - 2), 0.001);
+	}
+
+
+	@Test
+	void getSlowdown_tooFewEarlierRuns_zero()
+	{
+		List<PatchHistory.Run> runs = new ArrayList<>();
+		runs.add(createRun(100, 1));
+		runs.add(createRun(1000, 1));
+
+		assertEquals(0, PatchHistory.getSlowdown(runs, 1), 0.001);
+	}
+
+
+	@Test
+	void record_returnsSlowdownComparedToEarlierRuns() throws IOException
+	{
+		File file = createHistoryFile();
+		PatchHistory history = new PatchHistory(file);
+
+		assertEquals(0, history.record(createRun(100, 1)), 0.001);
+		for (int i = 0; i < 9; i++)
+			history.record(createRun(100, 1));
+		assertEquals(0, history.record(createRun(1000, 0)), 0.001);
+
+		assertEquals(3, history.record(createRun(600, 2)), 0.001);
+	}
+
+
+	@Test
+	void record_fileChangedByOtherHistory_baselineReadAgain() throws IOException
+	{
+		File file = createHistoryFile();
+		PatchHistory history = new PatchHistory(file);
+		PatchHistory other = new PatchHistory(file);
+
+		history.record(createRun(1000, 1));
+		for (int i = 0; i < 10; i++)
+			other.record(createRun(100, 1));
+
+		assertEquals(2, history.record(createRun(200, 1)), 0.001);
+		assertEquals(12, history.load().size());
+	}
+
+
+	@Test
+	void record_historyTooLarge_trimmedToMaxRuns() throws IOException
+	{
+		File file = createHistoryFile();
+		PatchHistory history = new PatchHistory(file);
+
+		for (int i = 0; i < PatchHistory.MAX_RUNS * 2; i++)
+			history.record(new PatchHistory.Run(i, 100, 0, 0, 0, 0, 1, 0, true));
+
+		List<String> lines = Files.readAllLines(file.toPath());
+		assertEquals(PatchHistory.MAX_RUNS + 1, lines.size());
+		assertTrue(lines.get(0).startsWith("#"));
+
+		List<PatchHistory.Run> runs = history.load();
+		assertEquals(PatchHistory.MAX_RUNS, runs.size());
+		assertEquals(PatchHistory.MAX_RUNS * 2 - 1, runs.get(runs.size() - 1).getStarted());
+	}
+
+
+	private File createHistoryFile() throws IOException
+	{
+		File file = File.createTempFile("history", ".tsv");
+		file.deleteOnExit();
+		Files.delete(file.toPath());
+		return file;
+	}
+
+
+	private PatchHistory.Run createRun(long durationMs, int versions)
+	{
+		return new PatchHistory.Run(0, durationMs, 0, 0, 0, 0, versions, 0, true);
+	}
+}
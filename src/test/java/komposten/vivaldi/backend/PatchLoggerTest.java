@@ -0,0 +1,219 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import komposten.utilities.logging.Level;
+import komposten.vivaldi.util.LogPager;
+
+
+class PatchLoggerTest
+{
+	private File logFile;
+	private ByteArrayOutputStream echo;
+	private PatchLogger logger;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		logFile = File.createTempFile("patchlog", ".txt");
+		echo = new ByteArrayOutputStream();
+		logger = new PatchLogger(logFile.getPath(), new PrintStream(echo, true));
+	}
+
+
+	@AfterEach
+	void tearDown()
+	{
+		logger.close();
+		for (int i = 0; i <= PatchLogger.DEFAULT_GENERATIONS; i++)
+			LogPager.getGeneration(logFile.getPath(), i).delete();
+	}
+
+
+	@Test
+	void flush_manyRecords_allWrittenInOrder() throws IOException
+	{
+		for (int i = 0; i < 10000; i++)
+			logger.log(null, "Line " + i);
+
+		logger.flush();
+
+		List<String> lines = Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+		assertEquals(10000, lines.size());
+		assertTrue(lines.get(0).endsWith("| Line 0"));
+		assertTrue(lines.get(9999).endsWith("| Line 9999"));
+		assertTrue(echo.toString().contains("| Line 9999"));
+	}
+
+
+	@Test
+	void flush_severalThreads_allWritten() throws Exception
+	{
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++)
+		{
+			int thread = t;
+			threads[t] = new Thread(() ->
+			{
+				for (int i = 0; i < 1000; i++)
+					logger.log(Level.WARNING, "Thread " + thread + " line " + i);
+			});
+			threads[t].start();
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+		logger.flush();
+
+		List<String> lines = Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+		assertEquals(4000, lines.size());
+	}
+
+
+	@Test
+	void log_writeFails_laterRecordsStillWritten() throws IOException, InterruptedException
+	{
+		logger.close();
+		PrintStream failingEcho = new PrintStream(echo, true)
+		{
+			@Override
+			public void print(String s)
+			{
+				throw new IllegalStateException();
+			}
+		};
+		logger = new PatchLogger(logFile.getPath(), failingEcho);
+
+		Thread thread = new Thread(() ->
+		{
+			for (int i = 0; i < 10000; i++)
+				logger.log(null, "Line " + i);
+			logger.flush();
+		});
+		thread.setDaemon(true);
+		thread.start();
+		thread.join(10000);
+		assertFalse(thread.isAlive(), "log() or flush() blocked after a failed write");
+
+		List<String> lines = Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+		assertEquals(10000, lines.size());
+		assertTrue(lines.get(9999).endsWith("| Line 9999"));
+	}
+
+
+	@Test
+	void close_laterRecordsDiscarded() throws IOException
+	{
+		logger.log(null, "Before");
+		logger.close();
+		logger.log(null, "After");
+		logger.flush();
+
+		List<String> lines = Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+		assertEquals(1, lines.size());
+	}
+
+
+	@Test
+	void log_maxFileSizeExceeded_rotated() throws IOException
+	{
+		logger.close();
+		logger = new PatchLogger(logFile.getPath(), new PrintStream(echo, true), 1024, 2);
+
+		for (int i = 0; i < 100; i++)
+		{
+			logger.log(null, "Line " + i);
+			logger.flush();
+		}
+
+		File older = LogPager.getGeneration(logFile.getPath(), 1);
+		File oldest = LogPager.getGeneration(logFile.getPath(), 2);
+		assertTrue(logFile.length() <= 1024);
+		assertTrue(older.exists());
+		assertTrue(oldest.exists());
+		assertFalse(LogPager.getGeneration(logFile.getPath(), 3).exists());
+
+		List<String> lines = Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+		assertTrue(lines.get(lines.size() - 1).endsWith("| Line 99"));
+	}
+
+
+	@Test
+	void log_nonAsciiText_writtenAsUtf8AndSizeInBytes() throws IOException
+	{
+		logger.close();
+		logger = new PatchLogger(logFile.getPath(), new PrintStream(echo, true), 1024, 2);
+
+		String text = "\u00e5\u00e4\u00f6\u00e9\u00fc\u00df\u00f8\u00e6";
+		for (int i = 0; i < 100; i++)
+		{
+			logger.log(null, text + " " + i);
+			logger.flush();
+		}
+
+		assertTrue(logFile.length() <= 1024);
+		List<String> lines = Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+		assertTrue(lines.get(lines.size() - 1).endsWith("| " + text + " 99"));
+	}
+
+
+	@Test
+	void rotate_emptyLog_nothingRotated()
+	{
+		logger.rotate();
+		assertFalse(LogPager.getGeneration(logFile.getPath(), 1).exists());
+
+		logger.log(null, "Line");
+		logger.rotate();
+		assertTrue(LogPager.getGeneration(logFile.getPath(), 1).exists());
+		assertEquals(0, logFile.length());
+		assertEquals(1, logger.getPosition().rotations);
+	}
+
+
+	@Test
+	void getLinesSince_returnsNewLines()
+	{
+		logger.log(null, "Before");
+		logger.flush();
+		PatchLogger.Position position = logger.getPosition();
+
+		logger.log(null, "After 1");
+		logger.log(null, "After 2");
+		logger.flush();
+
+		PatchLogger.Tail tail = logger.getLinesSince(position.lineCount);
+		assertEquals(2, tail.lines.size());
+		assertTrue(tail.lines.get(0).endsWith("| After 1"));
+		assertEquals(0, tail.skippedLines);
+		assertEquals(position.lineCount + 2, tail.nextLine);
+		assertTrue(logger.getLinesSince(tail.nextLine).lines.isEmpty());
+	}
+
+
+	@Test
+	void getLinesSince_tooOld_linesSkipped()
+	{
+		for (int i = 0; i < 5000; i++)
+			logger.log(null, "Line " + i);
+		logger.flush();
+
+		PatchLogger.Tail tail = logger.getLinesSince(0);
+		assertTrue(tail.skippedLines > 0);
+		assertEquals(5000, tail.skippedLines + tail.lines.size());
+		assertTrue(tail.lines.get(tail.lines.size() - 1).endsWith("| Line 4999"));
+	}
+}
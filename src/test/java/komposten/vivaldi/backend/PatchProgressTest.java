@@ -0,0 +1,130 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import komposten.vivaldi.TestUtils;
+import komposten.vivaldi.backend.PatchEvent.Type;
+
+
+class PatchProgressTest
+{
+	@Test
+	void getFraction_nothingPlanned_zero()
+	{
+		assertEquals(0.0, new PatchProgress().getFraction());
+	}
+
+
+	@Test
+	void getFraction_weightsOperationsAndBytes()
+	{
+		PatchProgress progress = new PatchProgress();
+		progress.addPlanned(2, 0);
+		progress.addPlanned(0, 2 * 64 * 1024);
+
+		progress.addCompleted(1, 0);
+		assertEquals(0.25, progress.getFraction(), 1E-9);
+
+		progress.addCompleted(1, 64 * 1024);
+		assertEquals(0.75, progress.getFraction(), 1E-9);
+	}
+
+
+	@Test
+	void getFraction_moreCompletedThanPlanned_cappedAtOne()
+	{
+		PatchProgress progress = new PatchProgress();
+		progress.addPlanned(1, 10);
+		progress.addCompleted(3, 10);
+
+		assertEquals(1.0, progress.getFraction());
+	}
+
+
+	@Test
+	void getEtaMillis_beforeAndAfterProgress() throws InterruptedException
+	{
+		PatchProgress progress = new PatchProgress();
+		progress.addPlanned(10, 0);
+		assertEquals(-1, progress.getEtaMillis());
+
+		Thread.sleep(20);
+		progress.addCompleted(5, 0);
+		progress.sample();
+
+		long eta = progress.getEtaMillis();
+		assertTrue(eta >= 0 && eta < 10000, "Unexpected ETA: " + eta);
+	}
+
+
+	@Test
+	void reset_clearsProgress()
+	{
+		PatchProgress progress = new PatchProgress();
+		progress.addPlanned(1, 100);
+		progress.addCompleted(1, 100);
+		progress.reset();
+
+		assertEquals(0.0, progress.getFraction());
+		assertEquals(0, progress.getCompletedBytes());
+		assertEquals(-1, progress.getEtaMillis());
+	}
+
+
+	@Test
+	void getFraction_batchOfTwoInstallationsOnOneThread_neverDecreases() throws Exception
+	{
+		File dir = Files.createTempDirectory("patchprogress").toFile();
+		File modDir = new File(dir, "mod");
+		File firstVivaldiDir = new File(dir, "vivaldi1");
+		File secondVivaldiDir = new File(dir, "vivaldi2");
+		TestUtils.createVersion(firstVivaldiDir, TestUtils.VERSION);
+		TestUtils.createVersion(secondVivaldiDir, TestUtils.VERSION);
+		TestUtils.writeFile(new File(modDir, "custom.css"), "body { color: red; }");
+
+		PatchLogger logger = new PatchLogger(new File(dir, "patchlog.txt").getPath(), null);
+		Patcher patcher = new Patcher(
+				Arrays.asList(TestUtils.createStyleConfig(modDir, firstVivaldiDir, secondVivaldiDir)),
+				logger, new PatchedVersions(new File(dir, "patched.ini")));
+		PatchProgress progress = patcher.getProgress();
+
+		//Sampled on the event thread only, so the samples are in order.
+		List<Double> fractions = new ArrayList<>();
+		CountDownLatch finished = new CountDownLatch(1);
+		patcher.addEventConsumer(event ->
+		{
+			fractions.add(progress.getFraction());
+			if (event.getType() == Type.PATCH_FINISHED)
+				finished.countDown();
+		});
+
+		try
+		{
+			patcher.startBatch(Arrays.asList(firstVivaldiDir, secondVivaldiDir));
+			assertTrue(patcher.applyMods(firstVivaldiDir, true));
+			assertEquals(0.5, progress.getFraction(), 1E-9);
+			assertTrue(patcher.applyMods(secondVivaldiDir, true));
+			patcher.finishBatch();
+
+			assertTrue(finished.await(5, TimeUnit.SECONDS));
+			assertEquals(1.0, progress.getFraction());
+			for (int i = 1; i < fractions.size(); i++)
+				assertTrue(fractions.get(i) >= fractions.get(i - 1), "Fraction decreased: " + fractions);
+		}
+		finally
+		{
+			logger.close();
+			TestUtils.deleteRecursively(dir);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+class PatchedVersionsTest
+{
+	private File dir;
+	private File file;
+	private File installation;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("patchedversions").toFile();
+		file = new File(dir, "PATCHED");
+		installation = new File(dir, "Application");
+	}
+
+
+	@AfterEach
+	void tearDown()
+	{
+		for (File child : dir.listFiles())
+			child.delete();
+		dir.delete();
+	}
+
+
+	@Test
+	void save_otherProcessSaved_mergesChanges()
+	{
+		PatchedVersions first = new PatchedVersions(file);
+		PatchedVersions second = new PatchedVersions(file);
+
+		first.setPatched(installation, new File(installation, "1.0.0.1"));
+		first.save();
+		second.setPatched(installation, new File(installation, "2.0.0.1"));
+		second.save();
+
+		PatchedVersions reloaded = new PatchedVersions(file);
+		assertTrue(reloaded.isPatched(installation, new File(installation, "1.0.0.1")));
+		assertTrue(reloaded.isPatched(installation, new File(installation, "2.0.0.1")));
+	}
+
+
+	@Test
+	void save_unpatched_removedFromFile()
+	{
+		PatchedVersions first = new PatchedVersions(file);
+		first.setPatched(installation, new File(installation, "1.0.0.1"));
+		first.setPatched(installation, new File(installation, "2.0.0.1"));
+		first.save();
+
+		PatchedVersions second = new PatchedVersions(file);
+		second.setUnpatched(installation, new File(installation, "1.0.0.1"));
+		second.save();
+
+		first.refresh();
+		assertFalse(first.isPatched(installation, new File(installation, "1.0.0.1")));
+		assertTrue(first.isPatched(installation, new File(installation, "2.0.0.1")));
+	}
+
+
+	@Test
+	void refresh_keepsUnsavedChanges()
+	{
+		PatchedVersions patchedVersions = new PatchedVersions(file);
+		patchedVersions.setPatched(installation, new File(installation, "1.0.0.1"));
+
+		patchedVersions.refresh();
+
+		assertTrue(patchedVersions.isPatched(installation, new File(installation, "1.0.0.1")));
+	}
+}
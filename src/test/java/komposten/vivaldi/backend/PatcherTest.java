@@ -0,0 +1,212 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import komposten.vivaldi.TestUtils;
+import komposten.vivaldi.backend.PatchEvent.Type;
+
+
+class PatcherTest
+{
+	private File dir;
+	private File modDir;
+	private File vivaldiDir;
+	private File versionDir;
+	private File browserHtml;
+	private Instruction style;
+	private Instruction script;
+	private PatchLogger logger;
+	private Patcher patcher;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("patcher").toFile();
+		modDir = new File(dir, "mod");
+		vivaldiDir = new File(dir, "vivaldi");
+		versionDir = TestUtils.createVersion(vivaldiDir, TestUtils.VERSION);
+		browserHtml = new File(versionDir, "resources/vivaldi/browser.html");
+
+		TestUtils.writeFile(new File(modDir, "custom.css"), "body { color: red; }");
+		TestUtils.writeFile(new File(modDir, "custom.js"), "console.log('custom');");
+
+		style = new Instruction("custom.css", TestUtils.STYLE_DIR, false);
+		script = new Instruction("custom.js", "resources/vivaldi", false);
+		ModConfig config = new ModConfig(null, modDir, new File[] { vivaldiDir },
+				Arrays.asList(style, script));
+		logger = new PatchLogger(new File(dir, "patchlog.txt").getPath(), null);
+		patcher = new Patcher(Arrays.asList(config), logger,
+				new PatchedVersions(new File(dir, "patched.ini")));
+
+		assertTrue(patcher.applyMods(true));
+	}
+
+
+	@AfterEach
+	void tearDown() throws IOException
+	{
+		logger.close();
+		TestUtils.deleteRecursively(dir);
+	}
+
+
+	@Test
+	void applyModFiles_changedModFile_onlyAffectedTargetCopied() throws IOException
+	{
+		File styleTarget = patcher.getTargetFile(style, versionDir);
+		File scriptTarget = patcher.getTargetFile(script, versionDir);
+		TestUtils.writeFile(new File(modDir, "custom.css"), "body { color: blue; }");
+		TestUtils.writeFile(scriptTarget, "//Not copied again");
+
+		patcher.applyModFiles(vivaldiDir, Arrays.asList(style));
+
+		assertEquals("body { color: blue; }", TestUtils.readFile(styleTarget));
+		assertEquals("//Not copied again", TestUtils.readFile(scriptTarget));
+	}
+
+
+	@Test
+	void applyModFiles_existingTargets_browserHtmlNotRegenerated() throws IOException
+	{
+		String patchedHtml = TestUtils.readFile(browserHtml);
+		TestUtils.writeFile(new File(modDir, "custom.css"), "body { color: blue; }");
+		TestUtils.writeFile(new File(modDir, "custom.js"), "console.log('changed');");
+		//A regenerated browser.html would include the mod files again.
+		TestUtils.writeFile(browserHtml, TestUtils.BROWSER_HTML);
+
+		patcher.applyModFiles(vivaldiDir, Arrays.asList(style, script));
+
+		assertNotEquals(TestUtils.BROWSER_HTML, patchedHtml);
+		assertEquals(TestUtils.BROWSER_HTML, TestUtils.readFile(browserHtml));
+	}
+
+
+	@Test
+	void applyModFiles_missingTarget_browserHtmlRegenerated() throws IOException
+	{
+		File styleTarget = patcher.getTargetFile(style, versionDir);
+		assertTrue(styleTarget.delete());
+		TestUtils.writeFile(browserHtml, TestUtils.BROWSER_HTML);
+
+		patcher.applyModFiles(vivaldiDir, Arrays.asList(style));
+
+		assertEquals("body { color: red; }", TestUtils.readFile(styleTarget));
+		assertTrue(patcher.isBrowserHtmlUpToDate(vivaldiDir, versionDir));
+	}
+
+
+	@Test
+	void applyModFiles_unpatchedVersion_notTouched() throws IOException
+	{
+		File newVersionDir = TestUtils.createVersion(vivaldiDir, "2.7.1628.30");
+		File newBrowserHtml = new File(newVersionDir, "resources/vivaldi/browser.html");
+
+		patcher.applyModFiles(vivaldiDir, Arrays.asList(style, script));
+
+		assertFalse(patcher.getTargetFile(style, newVersionDir).exists());
+		assertFalse(patcher.getTargetFile(script, newVersionDir).exists());
+		assertEquals(TestUtils.BROWSER_HTML, TestUtils.readFile(newBrowserHtml));
+	}
+
+
+	@Test
+	void applyModFiles_instructionNotInConfig_ignored() throws IOException
+	{
+		Instruction other = new Instruction("other.css", "resources/vivaldi/style", false);
+		TestUtils.writeFile(new File(modDir, "other.css"), "body { }");
+
+		patcher.applyModFiles(vivaldiDir, Arrays.asList(other));
+
+		assertFalse(patcher.getTargetFile(other, versionDir).exists());
+	}
+
+
+	@Test
+	void applyMods_settledModFiles_copiedToEveryVersion() throws IOException
+	{
+		File newVersionDir = TestUtils.createVersion(vivaldiDir, "2.7.1628.30");
+		File newBrowserHtml = new File(newVersionDir, "resources/vivaldi/browser.html");
+
+		//Mod files that have not been modified recently are read through the cache.
+		long settledTime = System.currentTimeMillis() - 60000;
+		new File(modDir, "custom.css").setLastModified(settledTime);
+		new File(modDir, "custom.js").setLastModified(settledTime);
+
+		assertTrue(patcher.applyMods(true));
+
+		for (File dir : Arrays.asList(versionDir, newVersionDir))
+		{
+			assertEquals("body { color: red; }", TestUtils.readFile(patcher.getTargetFile(style, dir)));
+			assertEquals("console.log('custom');", TestUtils.readFile(patcher.getTargetFile(script, dir)));
+		}
+	}
+
+
+	@Test
+	void setModConfigs_runStarted_runKeepsItsConfig()
+	{
+		PatchRun run = patcher.createRun(vivaldiDir);
+		ModConfig newConfig = new ModConfig(null, modDir, new File[] { vivaldiDir },
+				Arrays.asList(script));
+
+		patcher.setModConfigs(Arrays.asList(newConfig));
+
+		assertEquals(Arrays.asList(style, script), run.config.getInstructions());
+		assertEquals(Arrays.asList(script), patcher.createRun(vivaldiDir).config.getInstructions());
+		run.flushLog();
+	}
+
+
+	@Test
+	void startBatch_runsOneAfterTheOther_reportedAsOnePatch() throws Exception
+	{
+		File otherVivaldiDir = new File(dir, "vivaldi2");
+		TestUtils.createVersion(otherVivaldiDir, TestUtils.VERSION);
+		BlockingQueue<Type> events = new LinkedBlockingQueue<>();
+		patcher.addEventConsumer(event ->
+		{
+			if (event.getType() == Type.PATCH_STARTED || event.getType() == Type.PATCH_FINISHED)
+				events.add(event.getType());
+		});
+
+		patcher.startBatch(Arrays.asList(vivaldiDir, otherVivaldiDir));
+		assertTrue(patcher.applyMods(vivaldiDir, true));
+		assertTrue(patcher.isPatching());
+		assertTrue(patcher.applyMods(otherVivaldiDir, true));
+		patcher.finishBatch();
+
+		assertFalse(patcher.isPatching());
+		assertEquals(Type.PATCH_STARTED, events.poll(5, TimeUnit.SECONDS));
+		assertEquals(Type.PATCH_FINISHED, events.poll(5, TimeUnit.SECONDS));
+		assertNull(events.poll(500, TimeUnit.MILLISECONDS));
+	}
+
+
+	@Test
+	void cancel_betweenRunsOfBatch_laterRunsCancelled() throws IOException
+	{
+		File otherVivaldiDir = new File(dir, "vivaldi2");
+		File otherVersionDir = TestUtils.createVersion(otherVivaldiDir, TestUtils.VERSION);
+
+		patcher.startBatch(Arrays.asList(vivaldiDir, otherVivaldiDir));
+		assertTrue(patcher.applyMods(vivaldiDir, true));
+		assertTrue(patcher.cancel());
+		assertFalse(patcher.applyMods(otherVivaldiDir, true));
+		patcher.finishBatch();
+
+		assertFalse(patcher.getTargetFile(style, otherVersionDir).exists());
+	}
+}
@@ -0,0 +1,91 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import komposten.utilities.logging.Level;
+import komposten.vivaldi.util.Json;
+
+
+class RunReportTest
+{
+	@Test
+	void toMap_versionOutcomesAndOperations()
+	{
+		File vivaldiDir = new File("vivaldi");
+		RunReport report = new RunReport();
+
+		report.startVersion(vivaldiDir, new File(vivaldiDir, "2.6.1566.49"));
+		report.operation(RunReport.Operation.COPY, true, 100, System.nanoTime());
+		report.operation(RunReport.Operation.COPY, false, 50, System.nanoTime());
+		report.error(Level.ERROR, RunReport.Operation.COPY, new File("style/custom.css"),
+				"Could not copy custom.css", new IOException("Access is denied"));
+		report.endVersion(RunReport.OUTCOME_FAILED);
+		report.skipVersion(vivaldiDir, new File(vivaldiDir, "2.7.1628.30"), RunReport.OUTCOME_LOCKED);
+		report.cancelled(2);
+
+		Map<String, Object> map = Json.parseObject(Json.write(report.toMap(false)));
+
+		assertEquals(false, map.get("success"));
+		Map<?, ?> outcomes = (Map<?, ?>) map.get("versions");
+		assertEquals(1L, outcomes.get("failed"));
+		assertEquals(1L, outcomes.get("locked"));
+		assertEquals(2L, outcomes.get("cancelled"));
+
+		List<?> installations = (List<?>) map.get("installations");
+		assertEquals(1, installations.size());
+		List<?> versions = (List<?>) ((Map<?, ?>) installations.get(0)).get("versions");
+		Map<?, ?> version = (Map<?, ?>) versions.get(0);
+		assertEquals("2.6.1566.49", version.get("version"));
+
+		Map<?, ?> copy = (Map<?, ?>) ((Map<?, ?>) version.get("operations")).get("copy");
+		assertEquals(2L, copy.get("count"));
+		assertEquals(1L, copy.get("failed"));
+		assertEquals(100L, copy.get("bytes"));
+
+		assertEquals(1L, version.get("errorCount"));
+		Map<?, ?> error = (Map<?, ?>) ((List<?>) version.get("errors")).get(0);
+		assertEquals("copy", error.get("operation"));
+		assertEquals("Could not copy custom.css", ((List<?>) error.get("samples")).get(0));
+		assertEquals("java.io.IOException: Access is denied", ((List<?>) error.get("causes")).get(0));
+	}
+
+
+	@Test
+	void error_outsideVersion_addedToRun()
+	{
+		RunReport report = new RunReport();
+		report.error(Level.ERROR, RunReport.Operation.BROWSER_HTML, new File("browser.html"),
+				"Something went wrong", null);
+
+		Map<String, Object> map = report.toMap(false);
+
+		assertEquals(1, map.get("errorCount"));
+		assertEquals(1, ((List<?>) map.get("errors")).size());
+	}
+
+
+	@Test
+	void appendTo_oneLinePerRun() throws IOException
+	{
+		File file = File.createTempFile("report", ".jsonl");
+		file.deleteOnExit();
+		Files.delete(file.toPath());
+
+		new RunReport().appendTo(file, true);
+		new RunReport().appendTo(file, false);
+
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		assertEquals(2, lines.size());
+		assertEquals(true, Json.parseObject(lines.get(0)).get("success"));
+		assertEquals(false, Json.parseObject(lines.get(1)).get("success"));
+	}
+}
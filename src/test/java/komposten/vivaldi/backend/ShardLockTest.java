@@ -0,0 +1,81 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+class ShardLockTest
+{
+	private static final long STALE_TIMEOUT = 60 * 1000;
+
+	private File dir;
+	private File lockFile;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("shardlock").toFile();
+		lockFile = new File(dir, "shard-0.lock");
+	}
+
+
+	@AfterEach
+	void tearDown()
+	{
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+
+	@Test
+	void tryAcquire_heldByOther_false() throws IOException
+	{
+		ShardLock first = new ShardLock(lockFile, "first", STALE_TIMEOUT);
+		ShardLock second = new ShardLock(lockFile, "second", STALE_TIMEOUT);
+
+		assertTrue(first.tryAcquire());
+		assertFalse(second.tryAcquire());
+		assertTrue(first.isHeld());
+		assertFalse(second.isHeld());
+	}
+
+
+	@Test
+	void release_otherCanAcquire() throws IOException
+	{
+		ShardLock first = new ShardLock(lockFile, "first", STALE_TIMEOUT);
+		ShardLock second = new ShardLock(lockFile, "second", STALE_TIMEOUT);
+
+		assertTrue(first.tryAcquire());
+		second.release();
+		assertTrue(lockFile.exists());
+
+		first.release();
+		assertTrue(second.tryAcquire());
+	}
+
+
+	@Test
+	void tryAcquire_staleLock_takesOver() throws IOException
+	{
+		ShardLock first = new ShardLock(lockFile, "first", STALE_TIMEOUT);
+		ShardLock second = new ShardLock(lockFile, "second", STALE_TIMEOUT);
+
+		assertTrue(first.tryAcquire());
+		lockFile.setLastModified(System.currentTimeMillis() - 2 * STALE_TIMEOUT);
+
+		assertTrue(second.tryAcquire());
+		assertTrue(second.isHeld());
+		assertFalse(first.heartbeat());
+		assertEquals(1, dir.listFiles().length);
+	}
+}
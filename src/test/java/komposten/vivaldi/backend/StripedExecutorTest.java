@@ -0,0 +1,96 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+
+class StripedExecutorTest
+{
+	private static final File DIR_A = new File("A");
+	private static final File DIR_B = new File("B");
+
+
+	@Test
+	void postRunnable_sameKey_runInOrder() throws InterruptedException
+	{
+		StripedExecutor executor = new StripedExecutor("TestExecutor", 4);
+		List<Integer> order = new CopyOnWriteArrayList<>();
+		CountDownLatch done = new CountDownLatch(1);
+
+		for (int i = 0; i < 10; i++)
+		{
+			int index = i;
+			executor.postRunnable(DIR_A, () -> order.add(index));
+		}
+		executor.postRunnable(DIR_A, done::countDown);
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 10; i++)
+			assertEquals(i, order.get(i).intValue());
+	}
+
+
+	@Test
+	void postRunnable_differentKeys_runConcurrently() throws InterruptedException
+	{
+		StripedExecutor executor = new StripedExecutor("TestExecutor", 2);
+		CountDownLatch bothStarted = new CountDownLatch(2);
+		CountDownLatch done = new CountDownLatch(2);
+
+		Runnable waitForOther = () ->
+		{
+			bothStarted.countDown();
+			try
+			{
+				if (bothStarted.await(5, TimeUnit.SECONDS))
+					done.countDown();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		};
+
+		executor.postRunnable(DIR_A, waitForOther);
+		executor.postRunnable(DIR_B, waitForOther);
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+
+	@Test
+	void postRunnable_equivalentPaths_shareStripe() throws InterruptedException
+	{
+		StripedExecutor executor = new StripedExecutor("TestExecutor", 2);
+		CountDownLatch firstStarted = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch secondRan = new CountDownLatch(1);
+
+		executor.postRunnable(DIR_A, () ->
+		{
+			firstStarted.countDown();
+			try
+			{
+				release.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		});
+		executor.postRunnable(new File("./A"), secondRan::countDown);
+
+		assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+		assertFalse(secondRan.await(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		assertTrue(secondRan.await(5, TimeUnit.SECONDS));
+	}
+}
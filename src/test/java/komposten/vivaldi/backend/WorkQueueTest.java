@@ -0,0 +1,119 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import komposten.vivaldi.backend.WorkQueue.PatchWork;
+import komposten.vivaldi.backend.WorkQueue.Work;
+
+
+class WorkQueueTest
+{
+	private static final File DIR_A = new File("A");
+	private static final File DIR_B = new File("B");
+
+
+	@Test
+	void post_sameInstallation_merged() throws InterruptedException
+	{
+		WorkQueue queue = new WorkQueue();
+
+		assertTrue(queue.post(new TestPatchWork(DIR_A, false)));
+		assertFalse(queue.post(new TestPatchWork(DIR_A, false)));
+		assertFalse(queue.post(new TestPatchWork(DIR_A, true)));
+
+		assertEquals(1, queue.size());
+		assertTrue(((PatchWork) queue.take()).patchAll);
+	}
+
+
+	@Test
+	void post_samePathSpelledDifferently_merged()
+	{
+		WorkQueue queue = new WorkQueue();
+
+		queue.post(new TestPatchWork(DIR_A, false));
+
+		assertFalse(queue.post(new TestPatchWork(DIR_A.getAbsoluteFile(), false)));
+		assertFalse(queue.post(new TestPatchWork(new File(DIR_B, "../A"), true)));
+		assertEquals(1, queue.size());
+	}
+
+
+	@Test
+	void post_differentInstallations_notMerged()
+	{
+		WorkQueue queue = new WorkQueue();
+
+		queue.post(new TestPatchWork(DIR_A, false));
+		queue.post(new TestPatchWork(DIR_B, false));
+
+		assertEquals(2, queue.size());
+	}
+
+
+	@Test
+	void post_otherWork_neverMerged() throws InterruptedException
+	{
+		WorkQueue queue = new WorkQueue();
+		Work first = new TestWork();
+		Work second = new TestWork();
+
+		queue.post(first);
+		queue.post(new TestPatchWork(DIR_A, false));
+		queue.post(second);
+
+		assertEquals(3, queue.size());
+		assertSame(first, queue.take());
+		assertTrue(queue.take() instanceof PatchWork);
+		assertSame(second, queue.take());
+	}
+
+
+	@Test
+	void clear_removesPendingWork()
+	{
+		WorkQueue queue = new WorkQueue();
+		Work work = new TestWork();
+
+		queue.post(work);
+		queue.post(new TestPatchWork(DIR_A, false));
+
+		List<Work> removed = queue.clear();
+
+		assertEquals(2, removed.size());
+		assertSame(work, removed.get(0));
+		assertEquals(0, queue.size());
+		assertNull(queue.poll());
+	}
+
+
+	private static class TestWork extends Work
+	{
+		@Override
+		public void run()
+		{
+			//Nothing to run.
+		}
+	}
+
+
+	private static class TestPatchWork extends PatchWork
+	{
+		TestPatchWork(File vivaldiDir, boolean patchAll)
+		{
+			super(vivaldiDir, patchAll);
+		}
+
+
+		@Override
+		public void run()
+		{
+			//Nothing to run.
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package komposten.vivaldi.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+class WorkerThreadTest
+{
+	private static final File DIR_A = new File("A");
+
+	private WorkerThread controlThread;
+
+
+	@BeforeEach
+	void setUp()
+	{
+		controlThread = new WorkerThread("TestControlThread");
+		controlThread.start();
+	}
+
+
+	@AfterEach
+	void tearDown() throws InterruptedException
+	{
+		controlThread.interrupt();
+		controlThread.join(5000);
+	}
+
+
+	@Test
+	void postRunnable_runInOrder() throws InterruptedException
+	{
+		List<Integer> order = new CopyOnWriteArrayList<>();
+		CountDownLatch done = new CountDownLatch(1);
+
+		for (int i = 0; i < 10; i++)
+		{
+			int index = i;
+			controlThread.postRunnable(() -> order.add(index));
+		}
+		controlThread.postRunnable(done::countDown);
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 10; i++)
+			assertEquals(i, order.get(i).intValue());
+	}
+
+
+	@Test
+	void postRunnable_patchActive_controlWorkNotQueuedBehindIt() throws InterruptedException
+	{
+		StripedExecutor patchExecutor = new StripedExecutor("TestPatchThread", 1);
+		CountDownLatch patchStarted = new CountDownLatch(1);
+		CountDownLatch releasePatch = new CountDownLatch(1);
+		CountDownLatch patchFinished = new CountDownLatch(1);
+		CountDownLatch controlRan = new CountDownLatch(1);
+
+		patchExecutor.postRunnable(DIR_A, () ->
+		{
+			patchStarted.countDown();
+			try
+			{
+				releasePatch.await(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			patchFinished.countDown();
+		});
+
+		try
+		{
+			assertTrue(patchStarted.await(5, TimeUnit.SECONDS));
+			controlThread.postRunnable(controlRan::countDown);
+
+			assertTrue(controlRan.await(5, TimeUnit.SECONDS));
+			assertEquals(1, patchFinished.getCount());
+		}
+		finally
+		{
+			releasePatch.countDown();
+		}
+
+		assertTrue(patchFinished.await(5, TimeUnit.SECONDS));
+	}
+
+
+	@Test
+	void postRunnable_controlWorkBlocked_patchesKeepRunning() throws InterruptedException
+	{
+		StripedExecutor patchExecutor = new StripedExecutor("TestPatchThread", 1);
+		CountDownLatch controlStarted = new CountDownLatch(1);
+		CountDownLatch releaseControl = new CountDownLatch(1);
+		CountDownLatch patchRan = new CountDownLatch(1);
+
+		controlThread.postRunnable(() ->
+		{
+			controlStarted.countDown();
+			try
+			{
+				releaseControl.await(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		});
+
+		try
+		{
+			assertTrue(controlStarted.await(5, TimeUnit.SECONDS));
+			patchExecutor.postRunnable(DIR_A, patchRan::countDown);
+
+			assertTrue(patchRan.await(5, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			releaseControl.countDown();
+		}
+	}
+}
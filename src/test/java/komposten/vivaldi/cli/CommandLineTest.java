@@ -0,0 +1,124 @@
+package komposten.vivaldi.cli;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import komposten.vivaldi.TestUtils;
+
+
+class CommandLineTest
+{
+	private ByteArrayOutputStream out;
+	private ByteArrayOutputStream err;
+	private CommandLine commandLine;
+
+
+	@BeforeEach
+	void setUp()
+	{
+		out = new ByteArrayOutputStream();
+		err = new ByteArrayOutputStream();
+		commandLine = new CommandLine(new PrintStream(out), new PrintStream(err));
+	}
+
+
+	@Test
+	void isCommand()
+	{
+		assertTrue(CommandLine.isCommand("patch"));
+		assertTrue(CommandLine.isCommand("unpatch"));
+		assertTrue(CommandLine.isCommand("validate"));
+		assertFalse(CommandLine.isCommand("config.ini"));
+	}
+
+
+	@Test
+	void run_help_printsUsage()
+	{
+		assertEquals(CommandLine.EXIT_OK, commandLine.run(new String[] { "help" }));
+		assertTrue(out.toString().startsWith("Usage:"));
+	}
+
+
+	@Test
+	void run_unknownOption_invalid()
+	{
+		int exitCode = commandLine.run(new String[] { "validate", "--all" });
+
+		assertEquals(CommandLine.EXIT_INVALID, exitCode);
+		assertTrue(err.toString().contains("--all"));
+	}
+
+
+	@Test
+	void run_invalidPort_invalid()
+	{
+		assertEquals(CommandLine.EXIT_INVALID, commandLine.run(new String[] { "daemon", "--port", "x" }));
+		assertEquals(CommandLine.EXIT_INVALID, commandLine.run(new String[] { "patch", "--port", "1" }));
+	}
+
+
+	@Test
+	void run_fleetWithoutState_invalid()
+	{
+		String[] args = { "fleet", "--manifest", "manifest.txt" };
+
+		assertEquals(CommandLine.EXIT_INVALID, commandLine.run(args));
+		assertTrue(err.toString().contains("--state"));
+		assertEquals(CommandLine.EXIT_INVALID,
+				commandLine.run(new String[] { "fleet", "--manifest", "m", "--state", "s", "--shard-size", "0" }));
+	}
+
+
+	@Test
+	void run_historyInvalidLimit_invalid()
+	{
+		assertEquals(CommandLine.EXIT_INVALID,
+				commandLine.run(new String[] { "history", "--limit", "0" }));
+		assertTrue(err.toString().contains("Invalid limit"));
+	}
+
+
+	@Test
+	void run_missingConfigArgument_invalid()
+	{
+		assertEquals(CommandLine.EXIT_INVALID, commandLine.run(new String[] { "patch", "--config" }));
+	}
+
+
+	@Test
+	void run_missingConfig_configError()
+	{
+		String[] args = { "validate", "--config", "does_not_exist.ini" };
+
+		assertEquals(CommandLine.EXIT_CONFIG_ERROR, commandLine.run(args));
+		assertTrue(err.toString().contains("does_not_exist.ini"));
+	}
+
+
+	@Test
+	void run_oneOfSeveralConfigsMissing_configError() throws IOException
+	{
+		String config = TestUtils.getTestFile("single_file_1.ini").getPath();
+		String[] args = { "validate", "--config", config, "--config", "does_not_exist.ini" };
+
+		assertEquals(CommandLine.EXIT_CONFIG_ERROR, commandLine.run(args));
+	}
+
+
+	@Test
+	void run_invalidConfig_invalid() throws IOException
+	{
+		String config = TestUtils.getTestFile("single_file_1.ini").getPath();
+
+		assertEquals(CommandLine.EXIT_INVALID,
+				commandLine.run(new String[] { "validate", "--config=" + config }));
+		assertTrue(err.toString().contains("errors"));
+	}
+}
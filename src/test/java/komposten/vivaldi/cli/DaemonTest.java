@@ -0,0 +1,222 @@
+package komposten.vivaldi.cli;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import komposten.vivaldi.util.Json;
+
+
+class DaemonTest
+{
+	private File tokenFile;
+	private Daemon daemon;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		tokenFile = File.createTempFile("daemontoken", ".txt");
+		daemon = new Daemon(null, 0, tokenFile, new PrintStream(new ByteArrayOutputStream()));
+	}
+
+
+	@AfterEach
+	void tearDown()
+	{
+		tokenFile.delete();
+	}
+
+
+	@Test
+	void handle_invalidJson_error()
+	{
+		Map<String, Object> reply = Json.parseObject(daemon.handle("{command: patch}"));
+
+		assertEquals(Boolean.FALSE, reply.get("ok"));
+		assertTrue(reply.get("error").toString().startsWith("Invalid request"));
+	}
+
+
+	@Test
+	void handle_noCommand_error() throws IOException
+	{
+		daemon.start();
+		String token = readToken();
+		daemon.close();
+
+		Map<String, Object> reply = Json.parseObject(
+				daemon.handle("{\"all\": true, \"token\": \"" + token + "\"}"));
+
+		assertEquals(Boolean.FALSE, reply.get("ok"));
+		assertEquals("The request has no command!", reply.get("error"));
+	}
+
+
+	@Test
+	void handle_noToken_error()
+	{
+		Map<String, Object> reply = Json.parseObject(daemon.handle("{\"command\": \"status\"}"));
+
+		assertEquals(Boolean.FALSE, reply.get("ok"));
+		assertEquals("The request has no valid token!", reply.get("error"));
+	}
+
+
+	@Test
+	void handle_wrongToken_error()
+	{
+		Map<String, Object> reply = Json.parseObject(
+				daemon.handle("{\"command\": \"status\", \"token\": \"0123\"}"));
+
+		assertEquals(Boolean.FALSE, reply.get("ok"));
+		assertEquals("The request has no valid token!", reply.get("error"));
+	}
+
+
+	@Test
+	void start_tokenFileOwnerOnly() throws IOException
+	{
+		daemon.start();
+
+		try
+		{
+			assertEquals(64, readToken().length());
+
+			if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+			{
+				assertEquals(PosixFilePermissions.fromString("rw-------"),
+						Files.getPosixFilePermissions(tokenFile.toPath()));
+			}
+		}
+		finally
+		{
+			daemon.close();
+		}
+
+		assertFalse(tokenFile.exists());
+	}
+
+
+	@Test
+	void start_staleTokenFile_replaced() throws IOException
+	{
+		Files.write(tokenFile.toPath(), "stale".getBytes(StandardCharsets.UTF_8));
+
+		daemon.start();
+		String token = readToken();
+		daemon.close();
+
+		assertNotEquals("stale", token);
+		assertEquals(64, token.length());
+	}
+
+
+	@Test
+	void start_portInUse_otherTokenFileKept() throws IOException
+	{
+		daemon.start();
+		String token = readToken();
+		File otherTokenFile = File.createTempFile("daemontoken", ".txt");
+		Daemon other = new Daemon(null, daemon.getPort(), otherTokenFile,
+				new PrintStream(new ByteArrayOutputStream()));
+
+		try
+		{
+			Files.write(otherTokenFile.toPath(), token.getBytes(StandardCharsets.UTF_8));
+			assertThrows(IOException.class, other::start);
+			assertEquals(token, new String(Files.readAllBytes(otherTokenFile.toPath()),
+					StandardCharsets.UTF_8));
+		}
+		finally
+		{
+			daemon.close();
+			otherTokenFile.delete();
+		}
+	}
+
+
+	@Test
+	void start_repliesOnLoopbackSocket() throws IOException
+	{
+		daemon.start();
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+				PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)))
+		{
+			writer.println("{\"command\": \"explode\", \"token\": \"" + readToken() + "\"}");
+			Map<String, Object> reply = Json.parseObject(reader.readLine());
+			assertEquals(Boolean.FALSE, reply.get("ok"));
+			assertEquals("Unknown command: explode", reply.get("error"));
+
+			writer.println("not json");
+			assertEquals(Boolean.FALSE, Json.parseObject(reader.readLine()).get("ok"));
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+
+
+	@Test
+	void start_tooLongRequest_connectionClosed() throws IOException
+	{
+		daemon.start();
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+				PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)))
+		{
+			char[] request = new char[Daemon.MAX_REQUEST_LENGTH + 1];
+			Arrays.fill(request, ' ');
+			writer.println(request);
+
+			assertNull(reader.readLine());
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+
+
+	@Test
+	void readRequest_splitsLines() throws IOException
+	{
+		StringReader reader = new StringReader("first\r\n\nlast");
+
+		assertEquals("first", daemon.readRequest(reader));
+		assertEquals("", daemon.readRequest(reader));
+		assertEquals("last", daemon.readRequest(reader));
+		assertNull(daemon.readRequest(reader));
+	}
+
+
+	private String readToken() throws IOException
+	{
+		return new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8);
+	}
+}
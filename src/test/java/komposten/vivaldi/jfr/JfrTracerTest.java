@@ -0,0 +1,58 @@
+package komposten.vivaldi.jfr;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import komposten.vivaldi.util.Tracing;
+import komposten.vivaldi.util.Tracing.SpanType;
+
+
+class JfrTracerTest
+{
+	@Test
+	void begin_recording_eventCommitted() throws IOException
+	{
+		Path dump = Files.createTempFile("tracing", ".jfr");
+
+		try (Recording recording = new Recording())
+		{
+			recording.enable("komposten.vivaldi.FileCopy");
+			recording.start();
+
+			Tracing.begin(SpanType.FILE_COPY).path(new File("style.css")).bytes(1234).end(true);
+
+			recording.stop();
+			recording.dump(dump);
+		}
+
+		List<RecordedEvent> events = RecordingFile.readAllEvents(dump).stream()
+				.filter(event -> event.getEventType().getName().equals("komposten.vivaldi.FileCopy"))
+				.collect(Collectors.toList());
+		Files.delete(dump);
+
+		assertEquals(1, events.size());
+		assertEquals("style.css", events.get(0).getString("path"));
+		assertEquals(1234, events.get(0).getLong("bytes"));
+		assertEquals("success", events.get(0).getString("outcome"));
+	}
+
+
+	@Test
+	void begin_notRecording_doesNotFail()
+	{
+		for (SpanType type : SpanType.values())
+			Tracing.begin(type).path(null).bytes(1).count(1).end("skipped");
+	}
+}
@@ -0,0 +1,122 @@
+package komposten.vivaldi.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class DirectoryWatcherTest
+{
+	private File directory;
+	private DirectoryWatcher watcher;
+	private BlockingQueue<Object[]> events;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		directory = Files.createTempDirectory("DirectoryWatcherTest").toFile();
+		events = new LinkedBlockingQueue<>();
+
+		watcher = new DirectoryWatcher("TestWatcher");
+		watcher.setForcePolling(true);
+		watcher.watch(directory, 1, (kind, file) -> events.add(new Object[] { kind, file }));
+		watcher.start();
+	}
+
+
+	@AfterEach
+	void tearDown()
+	{
+		watcher.close();
+
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				File[] children = file.listFiles();
+				if (children != null)
+				{
+					for (File child : children)
+						child.delete();
+				}
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+
+	@Test
+	void polling_createAndDeleteFile_eventsDelivered() throws Exception
+	{
+		File file = new File(directory, "file.txt");
+		assertTrue(file.createNewFile());
+		assertEvent(StandardWatchEventKinds.ENTRY_CREATE, file);
+
+		assertTrue(file.delete());
+		assertEvent(StandardWatchEventKinds.ENTRY_DELETE, file);
+	}
+
+
+	@Test
+	void polling_fileInCreatedDirectory_eventDelivered() throws Exception
+	{
+		File subDirectory = new File(directory, "sub");
+		assertTrue(subDirectory.mkdir());
+		assertEvent(StandardWatchEventKinds.ENTRY_CREATE, subDirectory);
+
+		File file = new File(subDirectory, "file.txt");
+		assertTrue(file.createNewFile());
+		assertEvent(StandardWatchEventKinds.ENTRY_CREATE, file);
+	}
+
+
+	@Test
+	void polling_overlappingRegistrations_allListenersNotified() throws Exception
+	{
+		BlockingQueue<Object[]> shallowEvents = new LinkedBlockingQueue<>();
+		watcher.watch(directory, 0, (kind, file) -> shallowEvents.add(new Object[] { kind, file }));
+
+		File subDirectory = new File(directory, "sub");
+		assertTrue(subDirectory.mkdir());
+		assertEvent(StandardWatchEventKinds.ENTRY_CREATE, subDirectory);
+		assertEvent(shallowEvents, StandardWatchEventKinds.ENTRY_CREATE, subDirectory);
+
+		File file = new File(subDirectory, "file.txt");
+		assertTrue(file.createNewFile());
+		assertEvent(StandardWatchEventKinds.ENTRY_CREATE, file);
+		assertNull(shallowEvents.poll(1, TimeUnit.SECONDS));
+	}
+
+
+	private void assertEvent(WatchEvent.Kind<?> expectedKind, File expectedFile)
+			throws InterruptedException
+	{
+		assertEvent(events, expectedKind, expectedFile);
+	}
+
+
+	private void assertEvent(BlockingQueue<Object[]> events, WatchEvent.Kind<?> expectedKind,
+			File expectedFile) throws InterruptedException
+	{
+		Object[] event = events.poll(5, TimeUnit.SECONDS);
+
+		assertTrue(event != null, "No event received for " + expectedFile);
+		assertEquals(expectedKind, event[0]);
+		assertEquals(expectedFile.getAbsoluteFile(), event[1]);
+	}
+}
@@ -0,0 +1,86 @@
+package komposten.vivaldi.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+
+class JsonTest
+{
+	@Test
+	void parseObject_allValueTypes()
+	{
+		Map<String, Object> json = Json.parseObject(
+				" {\"command\": \"patch\", \"all\": true, \"wait\": false, \"port\": 47474,"
+				+ " \"fraction\": 0.5, \"none\": null, \"list\": [1, \"a\", {}]} ");
+
+		assertEquals("patch", json.get("command"));
+		assertEquals(Boolean.TRUE, json.get("all"));
+		assertEquals(Boolean.FALSE, json.get("wait"));
+		assertEquals(47474L, json.get("port"));
+		assertEquals(0.5, json.get("fraction"));
+		assertTrue(json.containsKey("none"));
+		assertNull(json.get("none"));
+		assertEquals(Arrays.asList(1L, "a", new LinkedHashMap<>()), json.get("list"));
+	}
+
+
+	@Test
+	void parse_escapes()
+	{
+		assertEquals("a\"b\\c\nd\u00e5", Json.parse("\"a\\\"b\\\\c\\nd\\u00e5\""));
+	}
+
+
+	@Test
+	void parse_invalid_throwsException()
+	{
+		assertThrows(IllegalArgumentException.class, () -> Json.parse("{\"a\" 1}"));
+		assertThrows(IllegalArgumentException.class, () -> Json.parse("{\"a\": 1"));
+		assertThrows(IllegalArgumentException.class, () -> Json.parse("\"unterminated"));
+		assertThrows(IllegalArgumentException.class, () -> Json.parse("[1, 2] 3"));
+		assertThrows(IllegalArgumentException.class, () -> Json.parse(""));
+		assertThrows(IllegalArgumentException.class, () -> Json.parseObject("[1]"));
+	}
+
+
+	@Test
+	void write_roundTrip()
+	{
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("ok", true);
+		map.put("error", "Line 1\nLine \"2\"\t\\");
+		map.put("count", 3L);
+		map.put("errors", Arrays.asList("a", null));
+
+		String json = Json.write(map);
+
+		assertEquals("{\"ok\":true,\"error\":\"Line 1\\nLine \\\"2\\\"\\t\\\\\",\"count\":3,"
+				+ "\"errors\":[\"a\",null]}", json);
+		assertEquals(map, Json.parse(json));
+	}
+
+
+	@Test
+	void write_controlCharacters_escaped()
+	{
+		String json = Json.write("\u0001");
+
+		assertEquals("\"\\u0001\"", json);
+		assertEquals("\u0001", Json.parse(json));
+	}
+
+
+	@SuppressWarnings("unchecked")
+	@Test
+	void parse_emptyContainers()
+	{
+		assertTrue(((Map<String, Object>) Json.parse("{ }")).isEmpty());
+		assertTrue(((List<Object>) Json.parse("[ ]")).isEmpty());
+	}
+}
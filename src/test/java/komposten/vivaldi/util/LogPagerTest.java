@@ -0,0 +1,96 @@
+package komposten.vivaldi.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+class LogPagerTest
+{
+	private File logFile;
+
+
+	@BeforeEach
+	void setUp() throws IOException
+	{
+		logFile = File.createTempFile("patchlog", ".txt");
+	}
+
+
+	@AfterEach
+	void tearDown()
+	{
+		for (int i = 0; i <= 2; i++)
+			LogPager.getGeneration(logFile.getPath(), i).delete();
+	}
+
+
+	@Test
+	void readOlder_pagesStartAtLines() throws IOException
+	{
+		write(0, "line 1\nline 2\nline 3\n");
+		LogPager pager = new LogPager(logFile.getPath(), 2, logFile.length(), 10);
+
+		assertEquals("line 3\n", pager.readOlder());
+		assertEquals("line 2\n", pager.readOlder());
+		assertEquals("line 1\n", pager.readOlder());
+		assertNull(pager.readOlder());
+	}
+
+
+	@Test
+	void readOlder_olderGenerations_readAfterCurrent() throws IOException
+	{
+		write(0, "current\n");
+		write(1, "older\n");
+		write(2, "oldest\n");
+		LogPager pager = new LogPager(logFile.getPath(), 2, logFile.length(), 1024);
+
+		assertEquals("current\n", pager.readOlder());
+		assertEquals("older\n", pager.readOlder());
+		assertEquals("oldest\n", pager.readOlder());
+		assertNull(pager.readOlder());
+	}
+
+
+	@Test
+	void readOlder_afterRotation_continuesInRotatedFile() throws IOException
+	{
+		write(0, "first\nsecond\n");
+		LogPager pager = new LogPager(logFile.getPath(), 2, "first\n".length(), 1024);
+
+		Files.move(logFile.toPath(), LogPager.getGeneration(logFile.getPath(), 1).toPath());
+		write(0, "new\n");
+		pager.onRotated();
+
+		assertEquals("first\n", pager.readOlder());
+		assertNull(pager.readOlder());
+	}
+
+
+	@Test
+	void readOlder_lineLongerThanPage_returnsPartialLine() throws IOException
+	{
+		write(0, "a very long line\n");
+		LogPager pager = new LogPager(logFile.getPath(), 0, logFile.length(), 8);
+
+		assertEquals("ng line\n", pager.readOlder());
+		assertEquals(" very lo", pager.readOlder());
+		assertEquals("a", pager.readOlder());
+		assertNull(pager.readOlder());
+	}
+
+
+	private void write(int generation, String content) throws IOException
+	{
+		Files.write(LogPager.getGeneration(logFile.getPath(), generation).toPath(),
+				content.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,74 @@
+package komposten.vivaldi.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+
+class MetricsTest
+{
+	@Test
+	void counter_sameName_sameCounter()
+	{
+		Metrics.Counter counter = Metrics.counter("test_same_total", "Test.");
+		counter.increment();
+
+		assertSame(counter, Metrics.counter("test_same_total", "Test."));
+		assertThrows(IllegalArgumentException.class,
+				() -> Metrics.histogram("test_same_total", "Test."));
+	}
+
+
+	@Test
+	void format_counterAndGauge()
+	{
+		Metrics.counter("test_format_total", "A counter.").add(3);
+		Metrics.gauge("test_format_gauge", "A gauge.", () -> 2.5);
+
+		String text = Metrics.format();
+
+		assertTrue(text.contains("# HELP test_format_total A counter.\n"
+				+ "# TYPE test_format_total counter\ntest_format_total 3\n"));
+		assertTrue(text.contains("# TYPE test_format_gauge gauge\ntest_format_gauge 2.5\n"));
+	}
+
+
+	@Test
+	void format_histogramBucketsAreCumulative()
+	{
+		Metrics.Histogram histogram = Metrics.histogram("test_histogram_seconds", "A histogram.");
+		histogram.observe(0.002);
+		histogram.observe(0.2);
+		histogram.observe(60);
+
+		String text = Metrics.format();
+
+		assertEquals(3, histogram.getCount());
+		assertTrue(text.contains("test_histogram_seconds_bucket{le=\"0.001\"} 0\n"));
+		assertTrue(text.contains("test_histogram_seconds_bucket{le=\"0.0025\"} 1\n"));
+		assertTrue(text.contains("test_histogram_seconds_bucket{le=\"0.25\"} 2\n"));
+		assertTrue(text.contains("test_histogram_seconds_bucket{le=\"10\"} 2\n"));
+		assertTrue(text.contains("test_histogram_seconds_bucket{le=\"+Inf\"} 3\n"));
+		assertTrue(text.contains("test_histogram_seconds_count 3\n"));
+	}
+
+
+	@Test
+	void writeToFile_writesFormat() throws IOException
+	{
+		File file = File.createTempFile("metrics", ".prom");
+		file.deleteOnExit();
+		Metrics.counter("test_file_total", "Test.");
+
+		Metrics.writeToFile(file);
+
+		String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		assertTrue(content.contains("# TYPE"));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+}
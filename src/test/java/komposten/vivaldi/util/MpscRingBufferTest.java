@@ -0,0 +1,97 @@
+package komposten.vivaldi.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class MpscRingBufferTest
+{
+	@Test
+	void constructor_capacityRoundedUp()
+	{
+		assertEquals(8, new MpscRingBuffer<Integer>(5).capacity());
+		assertEquals(8, new MpscRingBuffer<Integer>(8).capacity());
+		assertEquals(1, new MpscRingBuffer<Integer>(1).capacity());
+	}
+
+
+	@Test
+	void offer_full_returnsFalse()
+	{
+		MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(4);
+
+		for (int i = 0; i < 4; i++)
+			assertTrue(buffer.offer(i));
+
+		assertFalse(buffer.offer(4));
+		assertEquals(0, buffer.poll().intValue());
+		assertTrue(buffer.offer(4));
+	}
+
+
+	@Test
+	void poll_wrapsAround_fifoOrder()
+	{
+		MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(4);
+
+		for (int i = 0; i < 20; i++)
+		{
+			assertTrue(buffer.offer(i));
+			assertEquals(i, buffer.peek().intValue());
+			assertEquals(i, buffer.poll().intValue());
+		}
+
+		assertTrue(buffer.isEmpty());
+		assertNull(buffer.poll());
+		assertNull(buffer.peek());
+	}
+
+
+	@Test
+	void offer_concurrentProducers_allElementsReceivedInProducerOrder() throws InterruptedException
+	{
+		int producerCount = 4;
+		int perProducer = 20000;
+		MpscRingBuffer<int[]> buffer = new MpscRingBuffer<>(64);
+		List<Thread> producers = new ArrayList<>();
+
+		for (int p = 0; p < producerCount; p++)
+		{
+			int producer = p;
+			Thread thread = new Thread(() ->
+			{
+				for (int i = 0; i < perProducer; i++)
+				{
+					while (!buffer.offer(new int[] { producer, i }))
+						Thread.yield();
+				}
+			});
+			producers.add(thread);
+			thread.start();
+		}
+
+		int[] next = new int[producerCount];
+		int received = 0;
+		long deadline = System.currentTimeMillis() + 20000;
+
+		while (received < producerCount * perProducer && System.currentTimeMillis() < deadline)
+		{
+			int[] element = buffer.poll();
+
+			if (element != null)
+			{
+				assertEquals(next[element[0]], element[1]);
+				next[element[0]]++;
+				received++;
+			}
+		}
+
+		for (Thread thread : producers)
+			thread.join();
+
+		assertEquals(producerCount * perProducer, received);
+	}
+}
@@ -0,0 +1,59 @@
+package komposten.vivaldi.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+import org.junit.jupiter.api.Test;
+
+import komposten.utilities.logging.Level;
+
+
+class PatchLogFormatterTest
+{
+	private final PatchLogFormatter formatter = new PatchLogFormatter();
+
+
+	@Test
+	void format_locationAndBackslashes()
+	{
+		String text = formatter.format(Level.ERROR, Calendar.getInstance(), "Patcher",
+				"Copied C:\\mods\\a.css", null, false);
+
+		assertTrue(text.endsWith(" | In Patcher: Copied C:/mods/a.css\r\n"));
+	}
+
+
+	@Test
+	void format_throwable_causesAlignedWithSeparator()
+	{
+		IOException cause = new IOException("Access denied");
+		Exception exception = new Exception("Could not copy", cause);
+
+		String[] lines = formatter.format(null, Calendar.getInstance(), null, "Failed", exception,
+				false).split("\r\n");
+
+		assertEquals(3, lines.length);
+		int separator = lines[0].indexOf('|');
+		assertEquals(separator, lines[1].indexOf('|'));
+		assertEquals(separator, lines[2].indexOf('|'));
+		assertTrue(lines[1].endsWith("|         Cause: Could not copy"));
+		assertTrue(lines[2].endsWith("|         Cause: Access denied"));
+	}
+
+
+	@Test
+	void formatTo_appendsToBuilder()
+	{
+		StringBuilder builder = new StringBuilder("C:\\existing\r\n");
+
+		formatter.formatTo(builder, null, Calendar.getInstance(), null, "First", null);
+		formatter.formatTo(builder, null, Calendar.getInstance(), null, "Second", null);
+
+		String[] lines = builder.toString().split("\r\n");
+		assertEquals("C:\\existing", lines[0]);
+		assertTrue(lines[1].endsWith("| First"));
+		assertTrue(lines[2].endsWith("| Second"));
+	}
+}